@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "cpp/photo/vr_photo.h"
+
+#include <memory>
+#include <sstream>
+
+#include <glog/logging.h>
+#include "xmpmeta/gimage.h"
+#include "xmpmeta/gpano.h"
+#include "xmpmeta/photo_sphere_writer.h"
+#include "xmpmeta/vr_photo_writer.h"
+#include "xmpmeta/xmp_writer.h"
+
+namespace vr180 {
+namespace {
+
+const unsigned char kMarkerPrefix = 0xFF;
+const unsigned char kSoiMarker = 0xD8;
+const unsigned char kApp1Marker = 0xE1;
+const char kExifHeader[] = {'E', 'x', 'i', 'f', 0, 0};
+
+}  // namespace
+
+bool InsertExifSegment(const std::string& exif_segment, std::string* jpeg) {
+  if (jpeg->size() < 2 ||
+      static_cast<unsigned char>((*jpeg)[0]) != kMarkerPrefix ||
+      static_cast<unsigned char>((*jpeg)[1]) != kSoiMarker) {
+    LOG(ERROR) << "Not a JPEG image";
+    return false;
+  }
+  // The marker, the length, which includes itself, and the exif header.
+  if (exif_segment.size() < 4 + sizeof(kExifHeader) ||
+      static_cast<unsigned char>(exif_segment[0]) != kMarkerPrefix ||
+      static_cast<unsigned char>(exif_segment[1]) != kApp1Marker ||
+      exif_segment.compare(4, sizeof(kExifHeader), kExifHeader,
+                           sizeof(kExifHeader)) != 0) {
+    LOG(ERROR) << "Not an exif segment";
+    return false;
+  }
+  const size_t length =
+      (static_cast<unsigned char>(exif_segment[2]) << 8) |
+      static_cast<unsigned char>(exif_segment[3]);
+  if (length + 2 != exif_segment.size()) {
+    LOG(ERROR) << "Invalid exif segment length: " << length;
+    return false;
+  }
+  jpeg->insert(2, exif_segment);
+  return true;
+}
+
+bool CreateVRPhoto(const std::string& left, const std::string& right,
+                   const xmpmeta::PanoMetaData& metadata,
+                   const std::string& exif_segment, std::string* photo) {
+  const std::unique_ptr<xmpmeta::GPano> gpano =
+      xmpmeta::GPano::CreateFromData(metadata);
+  const std::unique_ptr<xmpmeta::XmpData> xmp_data =
+      xmpmeta::CreateXmpData(/*create_extended=*/true);
+
+  if (right.empty()) {
+    // For mono photos, only package the GPano into the XMP metadata.
+    if (!xmpmeta::WritePhotoSphereMetaToXmp(*gpano, xmp_data.get())) {
+      return false;
+    }
+  } else {
+    // Package right eye JPEG and GPano into the XMP metadata.
+    const std::unique_ptr<xmpmeta::GImage> gimage =
+        xmpmeta::GImage::CreateFromData(right, "image/jpeg");
+    if (!xmpmeta::WriteVrPhotoMetaToXmp(*gimage, *gpano, nullptr,
+                                        xmp_data.get())) {
+      return false;
+    }
+  }
+
+  // Add the xmp data to the left eye jpeg.
+  std::istringstream input_stream(left);
+  std::ostringstream output_stream;
+  if (!xmpmeta::WriteLeftEyeAndXmpMeta(*xmp_data, &input_stream,
+                                       &output_stream)) {
+    return false;
+  }
+  *photo = output_stream.str();
+  // The exif segment goes first, right after the SOI marker.
+  return exif_segment.empty() || InsertExifSegment(exif_segment, photo);
+}
+
+}  // namespace vr180
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef VR180_CPP_PHOTO_VR_PHOTO_H_
+#define VR180_CPP_PHOTO_VR_PHOTO_H_
+
+#include <string>
+
+#include "xmpmeta/pano_meta_data.h"
+
+namespace vr180 {
+// Inserts a JPEG APP1 segment with exif data, starting with its marker, right
+// after the SOI marker of jpeg.
+bool InsertExifSegment(const std::string& exif_segment, std::string* jpeg);
+
+// Creates a VR photo in memory, so that it can be written to a file at once.
+// The left eye image is the primary image, and the right eye image and the
+// panorama metadata are stored in the XMP sections. The right eye image is
+// empty for mono photos, and the exif segment is empty to leave out exif data.
+bool CreateVRPhoto(const std::string& left, const std::string& right,
+                   const xmpmeta::PanoMetaData& metadata,
+                   const std::string& exif_segment, std::string* photo);
+
+}  // namespace vr180
+
+#endif  // VR180_CPP_PHOTO_VR_PHOTO_H_
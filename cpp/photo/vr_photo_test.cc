@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "cpp/photo/vr_photo.h"
+
+#include <cstdint>
+#include <cstring>
+#include <string>
+#include <vector>
+
+#include "gtest/gtest.h"
+#include "cpp/photo/jpeg_encoder.h"
+#include "xmpmeta/pano_meta_data.h"
+
+namespace vr180 {
+namespace {
+
+const int kWidth = 32;
+const int kHeight = 16;
+const char kXmpHeader[] = "http://ns.adobe.com/xap/1.0/";
+const char kExtendedXmpHeader[] = "http://ns.adobe.com/xmp/extension/";
+
+// A JPEG segment before the image data.
+struct Segment {
+  int marker;
+  std::string data;
+};
+
+// An APP1 segment with a TIFF header and an empty IFD0.
+std::string GetExifSegment() {
+  const unsigned char segment[] = {
+      0xFF, 0xE1, 0x00, 0x16, 'E', 'x', 'i', 'f', 0, 0,    'M', 'M',
+      0x00, 0x2A, 0x00, 0x00, 0x00, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+  return std::string(reinterpret_cast<const char*>(segment), sizeof(segment));
+}
+
+std::string EncodeTestImage(uint8_t value) {
+  std::vector<uint8_t> rgba(kWidth * kHeight * 4, value);
+  std::string jpeg;
+  EXPECT_TRUE(EncodeRGBAJpeg(rgba.data(), 0, 0, kWidth, kHeight, kWidth * 4,
+                             /*quality=*/90, &jpeg));
+  return jpeg;
+}
+
+xmpmeta::PanoMetaData GetMetadata() {
+  xmpmeta::PanoMetaData metadata;
+  metadata.full_width = kWidth * 4;
+  metadata.full_height = kWidth * 2;
+  metadata.cropped_width = kWidth;
+  metadata.cropped_height = kHeight;
+  metadata.cropped_left = (metadata.full_width - kWidth) / 2;
+  metadata.cropped_top = (metadata.full_height - kHeight) / 2;
+  metadata.initial_heading_degrees = 180;
+  return metadata;
+}
+
+// Parses the segments from the SOI marker up to the start of the image data.
+std::vector<Segment> ParseSegments(const std::string& jpeg) {
+  std::vector<Segment> segments;
+  EXPECT_GE(jpeg.size(), 2u);
+  EXPECT_EQ(0xFF, static_cast<uint8_t>(jpeg[0]));
+  EXPECT_EQ(0xD8, static_cast<uint8_t>(jpeg[1]));
+  size_t position = 2;
+  while (position + 4 <= jpeg.size()) {
+    EXPECT_EQ(0xFF, static_cast<uint8_t>(jpeg[position]));
+    const int marker = static_cast<uint8_t>(jpeg[position + 1]);
+    const size_t length = (static_cast<uint8_t>(jpeg[position + 2]) << 8) |
+                          static_cast<uint8_t>(jpeg[position + 3]);
+    EXPECT_LE(position + 2 + length, jpeg.size());
+    segments.push_back({marker, jpeg.substr(position + 4, length - 2)});
+    if (marker == 0xDA) {
+      break;
+    }
+    position += 2 + length;
+  }
+  return segments;
+}
+
+bool HasHeader(const Segment& segment, const char* header) {
+  const std::string prefix(header, strlen(header) + 1);
+  return segment.marker == 0xE1 &&
+         segment.data.compare(0, prefix.size(), prefix) == 0;
+}
+
+TEST(VRPhotoTest, InsertExifSegmentAfterSoi) {
+  const std::string original = EncodeTestImage(128);
+  std::string jpeg = original;
+  ASSERT_TRUE(InsertExifSegment(GetExifSegment(), &jpeg));
+
+  EXPECT_EQ(original.size() + GetExifSegment().size(), jpeg.size());
+  EXPECT_EQ(GetExifSegment(), jpeg.substr(2, GetExifSegment().size()));
+  EXPECT_EQ(original.substr(2), jpeg.substr(2 + GetExifSegment().size()));
+  const std::vector<Segment> segments = ParseSegments(jpeg);
+  ASSERT_FALSE(segments.empty());
+  EXPECT_TRUE(HasHeader(segments[0], "Exif"));
+  EXPECT_EQ(GetExifSegment().substr(4), segments[0].data);
+}
+
+TEST(VRPhotoTest, InsertExifSegmentRejectsInvalidData) {
+  std::string jpeg = EncodeTestImage(128);
+  const std::string original = jpeg;
+  std::string not_jpeg = "not a jpeg";
+  EXPECT_FALSE(InsertExifSegment(GetExifSegment(), &not_jpeg));
+  // Not an APP1 segment.
+  std::string exif = GetExifSegment();
+  exif[1] = static_cast<char>(0xE0);
+  EXPECT_FALSE(InsertExifSegment(exif, &jpeg));
+  // The length does not match the segment.
+  exif = GetExifSegment();
+  exif[3] = 0x10;
+  EXPECT_FALSE(InsertExifSegment(exif, &jpeg));
+  EXPECT_EQ(original, jpeg);
+}
+
+TEST(VRPhotoTest, CreateStereoPhotoWithExifAndXmp) {
+  std::string photo;
+  ASSERT_TRUE(CreateVRPhoto(EncodeTestImage(64), EncodeTestImage(192),
+                            GetMetadata(), GetExifSegment(), &photo));
+
+  const std::vector<Segment> segments = ParseSegments(photo);
+  ASSERT_FALSE(segments.empty());
+  // The exif segment comes first, followed by the main and extended XMP.
+  EXPECT_TRUE(HasHeader(segments[0], "Exif"));
+  EXPECT_EQ(GetExifSegment().substr(4), segments[0].data);
+  int exif_count = 0;
+  const Segment* xmp = nullptr;
+  std::string extended_xmp;
+  for (const Segment& segment : segments) {
+    if (HasHeader(segment, "Exif")) {
+      exif_count++;
+    } else if (HasHeader(segment, kXmpHeader)) {
+      EXPECT_TRUE(xmp == nullptr);
+      xmp = &segment;
+    } else if (HasHeader(segment, kExtendedXmpHeader)) {
+      extended_xmp += segment.data;
+    }
+  }
+  EXPECT_EQ(1, exif_count);
+  ASSERT_TRUE(xmp != nullptr);
+  EXPECT_NE(std::string::npos, xmp->data.find("GPano"));
+  EXPECT_NE(std::string::npos, xmp->data.find("HasExtendedXMP"));
+  // The right eye image is in the extended XMP.
+  EXPECT_NE(std::string::npos, extended_xmp.find("GImage"));
+}
+
+TEST(VRPhotoTest, CreateMonoPhotoWithoutExif) {
+  std::string photo;
+  ASSERT_TRUE(CreateVRPhoto(EncodeTestImage(64), /*right=*/"", GetMetadata(),
+                            /*exif_segment=*/"", &photo));
+
+  const std::vector<Segment> segments = ParseSegments(photo);
+  bool has_xmp = false;
+  for (const Segment& segment : segments) {
+    EXPECT_FALSE(HasHeader(segment, "Exif"));
+    if (HasHeader(segment, kXmpHeader)) {
+      has_xmp = true;
+      EXPECT_NE(std::string::npos, segment.data.find("GPano"));
+    }
+  }
+  EXPECT_TRUE(has_xmp);
+}
+
+}  // namespace
+}  // namespace vr180
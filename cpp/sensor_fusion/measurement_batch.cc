@@ -0,0 +1,49 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#include "cpp/sensor_fusion/measurement_batch.h"
+
+#include <Eigen/Core>
+
+namespace vr180 {
+namespace {
+const double kNanoSecondToSecond = 1e-9;
+}  // namespace
+
+void AddMeasurement(OnlineSensorFusion* filter, int type, const float* sample,
+                    int64_t timestamp_ns) {
+  const Eigen::Vector3d vec3(sample[0], sample[1], sample[2]);
+  const double timestamp_s = timestamp_ns * kNanoSecondToSecond;
+  if (type == kMeasurementGyro) {
+    filter->AddGyroMeasurement(vec3, timestamp_s);
+  } else {
+    filter->AddAccelMeasurement(vec3, timestamp_s);
+  }
+}
+
+void AddMeasurements(OnlineSensorFusion* filter, int count,
+                     const int32_t* types, const float* samples,
+                     const int64_t* timestamps_ns, float* orientations) {
+  for (int i = 0; i < count; ++i) {
+    AddMeasurement(filter, types[i], samples + 3 * i, timestamps_ns[i]);
+    if (types[i] == kMeasurementGyro) {
+      const Eigen::Vector3f v = filter->GetOrientation();
+      orientations[3 * i] = v[0];
+      orientations[3 * i + 1] = v[1];
+      orientations[3 * i + 2] = v[2];
+    }
+  }
+}
+
+}  // namespace vr180
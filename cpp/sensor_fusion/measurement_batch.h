@@ -0,0 +1,48 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#ifndef VR180_CPP_SENSOR_FUSION_MEASUREMENT_BATCH_H_
+#define VR180_CPP_SENSOR_FUSION_MEASUREMENT_BATCH_H_
+
+#include <stdint.h>
+
+#include "cpp/sensor_fusion/online_sensor_fusion.h"
+
+namespace vr180 {
+
+// Types of the measurements in a batch. Match SensorFusion.MEASUREMENT_GYRO and
+// SensorFusion.MEASUREMENT_ACCEL in Java.
+enum MeasurementType {
+  kMeasurementGyro = 0,
+  kMeasurementAccel = 1,
+};
+
+// Adds one measurement as Android delivers it, with three float values and a
+// timestamp in nanoseconds.
+void AddMeasurement(OnlineSensorFusion* filter, int type, const float* sample,
+                    int64_t timestamp_ns);
+
+// Adds |count| measurements in order. |samples| holds three values for each
+// measurement. After each gyroscope measurement, the orientation is written to
+// the three floats at the same position of |orientations|.
+//
+// The result is bit-identical to calling AddMeasurement and GetOrientation for
+// each measurement.
+void AddMeasurements(OnlineSensorFusion* filter, int count,
+                     const int32_t* types, const float* samples,
+                     const int64_t* timestamps_ns, float* orientations);
+
+}  // namespace vr180
+
+#endif  // VR180_CPP_SENSOR_FUSION_MEASUREMENT_BATCH_H_
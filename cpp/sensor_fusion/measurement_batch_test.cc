@@ -0,0 +1,104 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#include "cpp/sensor_fusion/measurement_batch.h"
+
+#include <stdint.h>
+#include <algorithm>
+#include <cstring>
+#include <random>
+#include <vector>
+#include "gtest/gtest.h"
+#include <Eigen/Core>
+
+namespace vr180 {
+
+namespace {
+
+static const int64_t kStartNs = 1000000000;
+
+// Measurements of a 400Hz gyroscope and a 250Hz accelerometer with jittered
+// timestamps, merged in timestamp order.
+struct Measurements {
+  std::vector<int32_t> types;
+  std::vector<float> samples;
+  std::vector<int64_t> timestamps_ns;
+};
+
+Measurements CreateMeasurements() {
+  std::mt19937 random(1234);
+  std::uniform_real_distribution<float> value(-1, 1);
+  std::uniform_int_distribution<int64_t> jitter(-100000, 100000);
+  Measurements measurements;
+  int64_t gyro_ns = kStartNs;
+  int64_t accel_ns = kStartNs;
+  for (int i = 0; i < 4000; ++i) {
+    const bool gyro = gyro_ns <= accel_ns;
+    int64_t& timestamp_ns = gyro ? gyro_ns : accel_ns;
+    timestamp_ns += (gyro ? 2500000 : 4000000) + jitter(random);
+    measurements.types.push_back(gyro ? kMeasurementGyro : kMeasurementAccel);
+    measurements.timestamps_ns.push_back(timestamp_ns);
+    for (int j = 0; j < 3; ++j) {
+      // Gravity along -z, plus noise.
+      const float offset = !gyro && j == 2 ? -9.81f : 0;
+      measurements.samples.push_back(offset + value(random));
+    }
+  }
+  return measurements;
+}
+
+}  // namespace
+
+TEST(MeasurementBatchTest, BatchedOrientationsAreBitIdentical) {
+  const Measurements measurements = CreateMeasurements();
+  const int count = measurements.types.size();
+
+  // One measurement at a time, as the single measurement JNI methods do.
+  OnlineSensorFusion reference((OnlineSensorFusion::Options()));
+  std::vector<float> expected(3 * count);
+  for (int i = 0; i < count; ++i) {
+    AddMeasurement(&reference, measurements.types[i],
+                   &measurements.samples[3 * i], measurements.timestamps_ns[i]);
+    if (measurements.types[i] == kMeasurementGyro) {
+      const Eigen::Vector3f v = reference.GetOrientation();
+      std::copy(v.data(), v.data() + 3, &expected[3 * i]);
+    }
+  }
+
+  // Batches of varying size, as the fusion thread drains its queue.
+  OnlineSensorFusion batched((OnlineSensorFusion::Options()));
+  std::vector<float> actual(3 * count);
+  std::mt19937 random(5678);
+  std::uniform_int_distribution<int> batch_size(1, 64);
+  for (int start = 0; start < count;) {
+    const int size = std::min(batch_size(random), count - start);
+    AddMeasurements(&batched, size, &measurements.types[start],
+                    &measurements.samples[3 * start],
+                    &measurements.timestamps_ns[start], &actual[3 * start]);
+    start += size;
+  }
+
+  for (int i = 0; i < 3 * count; ++i) {
+    uint32_t expected_bits;
+    uint32_t actual_bits;
+    std::memcpy(&expected_bits, &expected[i], sizeof(float));
+    std::memcpy(&actual_bits, &actual[i], sizeof(float));
+    ASSERT_EQ(expected_bits, actual_bits) << "at value " << i;
+  }
+  // The orientations are not all zero, so that the comparison means something.
+  EXPECT_TRUE(std::any_of(expected.begin(), expected.end(),
+                          [](float value) { return value != 0; }));
+}
+
+}  // namespace vr180
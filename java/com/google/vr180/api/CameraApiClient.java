@@ -27,6 +27,7 @@ import com.google.vr180.CameraApi.CameraApiRequest.ConfigurationRequest.WifiNetw
 import com.google.vr180.CameraApi.CameraApiRequest.ConnectionTestRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.DebugLogsRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.DeleteMediaRequest;
+import com.google.vr180.CameraApi.CameraApiRequest.FileChecksumsRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.KeyExchangeRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.RequestHeader;
@@ -45,6 +46,7 @@ import com.google.vr180.CameraApi.CameraStatus;
 import com.google.vr180.CameraApi.CaptureMode;
 import com.google.vr180.CameraApi.CaptureMode.CaptureType;
 import com.google.vr180.CameraApi.DebugLogMessage;
+import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.CameraApi.LiveStreamMode;
 import com.google.vr180.CameraApi.Media;
 import com.google.vr180.CameraApi.MeteringMode;
@@ -373,15 +375,21 @@ public class CameraApiClient {
 
   public ListMediaResponse listMedia(long startIndex, long count)
       throws CameraApiException, IOException {
+    return listMedia(
+        ListMediaRequest.newBuilder().setStartIndex(startIndex).setMediaCount(count).build());
+  }
+
+  /**
+   * Lists media items with a page token from a previous response, or the changes since a change
+   * token from a previous response.
+   */
+  public ListMediaResponse listMedia(ListMediaRequest listMediaRequest)
+      throws CameraApiException, IOException {
     CameraApiRequest request =
         CameraApiRequest.newBuilder()
             .setType(RequestType.LIST_MEDIA)
             .setHeader(createRequestHeader(ExpirationType.REQUIRED))
-            .setListMediaRequest(
-                ListMediaRequest.newBuilder()
-                    .setStartIndex(startIndex)
-                    .setMediaCount(count)
-                    .build())
+            .setListMediaRequest(listMediaRequest)
             .build();
     CameraApiResponse response = endpoint.doRequest(request, Priority.PRIORITY_DEFAULT);
     checkResponseStatus(request, response);
@@ -411,6 +419,23 @@ public class CameraApiClient {
     }
   }
 
+  /**
+   * Fetches all checksums of a media item, with the block hashes of its block list checksum, which
+   * LIST_MEDIA leaves out.
+   */
+  public List<FileChecksum> getFileChecksums(Media media) throws CameraApiException, IOException {
+    CameraApiRequest request =
+        CameraApiRequest.newBuilder()
+            .setType(RequestType.GET_FILE_CHECKSUMS)
+            .setHeader(createRequestHeader(ExpirationType.REQUIRED))
+            .setFileChecksumsRequest(
+                FileChecksumsRequest.newBuilder().setFilename(media.getFilename()))
+            .build();
+    CameraApiResponse response = endpoint.doRequest(request, Priority.PRIORITY_DEFAULT);
+    checkResponseStatus(request, response);
+    return response.getFileChecksumList();
+  }
+
   /**
    * Fetch an entire thumbnail.
    *
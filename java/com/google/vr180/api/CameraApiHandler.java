@@ -26,12 +26,12 @@ import com.google.vr180.CameraApi.CameraApiRequest.ConfigurationRequest.WifiHots
 import com.google.vr180.CameraApi.CameraApiRequest.ConnectionTestRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.DebugLogsRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.DeleteMediaRequest;
+import com.google.vr180.CameraApi.CameraApiRequest.FileChecksumsRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.RequestType;
 import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.WebRtcRequest;
 import com.google.vr180.CameraApi.CameraApiResponse;
-import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
 import com.google.vr180.CameraApi.CameraApiResponse.ResponseStatus;
 import com.google.vr180.CameraApi.CameraApiResponse.St3DBoxResponse;
 import com.google.vr180.CameraApi.CameraApiResponse.Sv3DBoxResponse;
@@ -42,8 +42,8 @@ import com.google.vr180.CameraApi.CameraStatus.MobileNetworkStatus;
 import com.google.vr180.CameraApi.CameraStatus.RecordingStatus;
 import com.google.vr180.CameraApi.CameraStatus.RecordingStatus.LiveStreamStatus;
 import com.google.vr180.CameraApi.CaptureMode;
+import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.CameraApi.IndicatorBrightnessConfiguration;
-import com.google.vr180.CameraApi.Media;
 import com.google.vr180.CameraApi.SleepConfiguration;
 import com.google.vr180.CameraApi.Vector3;
 import com.google.vr180.CameraApi.WebRtcSessionDescription;
@@ -198,6 +198,9 @@ public class CameraApiHandler {
       case DELETE_MEDIA:
         response = handleDeleteMediaRequest(request.getDeleteMediaRequestList());
         break;
+      case GET_FILE_CHECKSUMS:
+        response = handleGetFileChecksumsRequest(request.getFileChecksumsRequest());
+        break;
       case WIFI_NETWORK_STATUS:
         response = handleWifiNetworkStatusRequest();
         break;
@@ -513,16 +516,12 @@ public class CameraApiHandler {
   }
 
   private CameraApiResponse.Builder handleListMediaRequest(ListMediaRequest listMediaRequest) {
-    MediaProvider provider = interfaceFactory.getMediaProvider();
-    ListMediaResponse.Builder result = ListMediaResponse.newBuilder();
-    List<Media> media =
-        provider.getMedia(listMediaRequest.getStartIndex(), listMediaRequest.getMediaCount());
-    for (Media mediaItem : media) {
-      result.addMedia(mediaItem);
+    try {
+      return okResponse()
+          .setMedia(interfaceFactory.getMediaProvider().listMedia(listMediaRequest));
+    } catch (InvalidRequestException e) {
+      return invalidRequestResponse();
     }
-    result.setTotalCount(provider.getMediaCount());
-    result.setLastModifiedTime(provider.getLastModified().getTime());
-    return okResponse().setMedia(result.build());
   }
 
   private CameraApiResponse.Builder handleDeleteMediaRequest(
@@ -541,6 +540,20 @@ public class CameraApiHandler {
     return result;
   }
 
+  private CameraApiResponse.Builder handleGetFileChecksumsRequest(FileChecksumsRequest request) {
+    List<FileChecksum> checksums;
+    try {
+      checksums = interfaceFactory.getMediaProvider().getFileChecksums(request.getFilename());
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to get checksums of " + request.getFilename(), e);
+      return createResponse(ResponseStatus.StatusCode.ERROR);
+    }
+    if (checksums == null) {
+      return invalidRequestResponse();
+    }
+    return okResponse().addAllFileChecksum(checksums);
+  }
+
   private CameraApiResponse.Builder handleWifiNetworkStatusRequest() {
     WifiNetworkStatus wifiNetworkStatus =
         interfaceFactory.getNetworkManager().getWifiNetworkStatus();
@@ -571,6 +584,10 @@ public class CameraApiHandler {
         Log.e(TAG, "Error generating thumbnail.", e);
         return createResponse(ResponseStatus.StatusCode.ERROR);
       }
+      if (thumbnail == null) {
+        Log.e(TAG, "Unable to generate thumbnail: " + request.getFilename());
+        return createResponse(ResponseStatus.StatusCode.ERROR);
+      }
 
       int offset = Math.min(thumbnail.length, request.getStartIndex());
       int end;
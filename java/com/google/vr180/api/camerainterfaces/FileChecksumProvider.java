@@ -16,11 +16,18 @@ package com.google.vr180.api.camerainterfaces;
 
 import com.google.vr180.CameraApi.FileChecksum;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface that helps computing file checksums.
  */
 public interface FileChecksumProvider {
+  /** The priority of checksums computed in the background, such as for a whole media listing. */
+  int PRIORITY_BACKGROUND = 0;
+  /** The priority of checksums a client is waiting for, which are computed first. */
+  int PRIORITY_REQUESTED = 1;
+
   /**
    * Gets the checksum of a file.
    * If possible, the checksum should be precomputed for media items. If precomputation isn't
@@ -29,4 +36,27 @@ public interface FileChecksumProvider {
    *   opened).
    */
   FileChecksum getFileChecksum(String path) throws IOException;
+
+  /**
+   * Gets all checksums of a file which are available, such as the SHA1 checksum and the block list
+   * checksum. The checksums which are not available are computed in the background.
+   * @param priority PRIORITY_REQUESTED or PRIORITY_BACKGROUND, for computing missing checksums.
+   * @throws IOException If there is an error accessing the file (it's not found or cannot be
+   *   opened).
+   */
+  List<FileChecksum> getFileChecksums(String path, int priority) throws IOException;
+
+  /**
+   * Gets all checksums of several files which are available, like getFileChecksums(String, int),
+   * with a single lookup for a page of media.
+   * @param priority PRIORITY_REQUESTED or PRIORITY_BACKGROUND, for computing missing checksums.
+   * @return The checksums of each path, which are empty if none are available.
+   */
+  Map<String, List<FileChecksum>> getFileChecksums(List<String> paths, int priority);
+
+  /**
+   * Gets the checksums of a file which are already computed, without computing the missing ones.
+   * @return The checksums, which are empty if none are available.
+   */
+  List<FileChecksum> getCachedFileChecksums(String path);
 }
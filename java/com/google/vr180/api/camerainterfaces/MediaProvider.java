@@ -14,8 +14,13 @@
 
 package com.google.vr180.api.camerainterfaces;
 
+import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
+import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.CameraApi.Media;
+import com.google.vr180.api.camerainterfaces.Exceptions.InvalidRequestException;
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
 import javax.annotation.Nullable;
@@ -44,6 +49,16 @@ public interface MediaProvider {
    */
   List<Media> getMedia(long startIndex, long count);
 
+  /**
+   * Lists media items, newest first, by index or after a page token, or the items changed since a
+   * change token.
+   *
+   * @param request The LIST_MEDIA request.
+   * @return The LIST_MEDIA response, with the total count and modified time set.
+   * @throws InvalidRequestException if the page token of the request is not valid.
+   */
+  ListMediaResponse listMedia(ListMediaRequest request) throws InvalidRequestException;
+
   /**
    * Gets the Media for the given media store ID, or null if it does not exist
    * in the Media Store.
@@ -72,10 +87,24 @@ public interface MediaProvider {
   long getMediaStoreId(String filename);
 
   /**
-   * Produces a thumbnail of the requested size for the given filename.
+   * Produces a thumbnail of the requested size for the given filename, or null if it can't be
+   * generated.
    */
+  @Nullable
   byte[] getThumbnail(ThumbnailRequest request);
 
+  /**
+   * Gets all checksums of a media item which are available, with the block hashes of its block list
+   * checksum, which media listings leave out. Missing checksums are computed before background
+   * work.
+   *
+   * @param filename The name of the media item (as returned from LIST_MEDIA).
+   * @return The checksums, or null if the filename is not a media item.
+   * @throws IOException If the file cannot be read.
+   */
+  @Nullable
+  List<FileChecksum> getFileChecksums(String filename) throws IOException;
+
   /**
    * Notifies that the media state has changed.
    */
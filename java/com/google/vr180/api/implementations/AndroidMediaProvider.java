@@ -14,9 +14,11 @@
 
 package com.google.vr180.api.implementations;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -26,21 +28,27 @@ import android.os.Looper;
 import android.provider.MediaStore.Files;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
+import android.support.v4.content.LocalBroadcastManager;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.load.resource.bitmap.CenterCrop;
 import com.bumptech.glide.request.RequestOptions;
 import com.google.common.base.Optional;
+import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
 import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
 import com.google.vr180.CameraApi.CameraCalibration;
 import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.CameraApi.Media;
+import com.google.vr180.api.camerainterfaces.CaptureManager;
+import com.google.vr180.api.camerainterfaces.Exceptions.InvalidRequestException;
 import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
 import com.google.vr180.api.camerainterfaces.MediaProvider;
 import com.google.vr180.api.camerainterfaces.StatusNotifier;
 import com.google.vr180.api.camerainterfaces.StorageStatusProvider;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.common.media.BitmapIO;
+import com.google.vr180.common.media.MediaStoreUtil;
 import com.google.vr180.common.media.St3dBoxParser;
 import com.google.vr180.common.media.StereoMode;
 import com.google.vr180.common.media.VrVideoCrop;
@@ -48,22 +56,43 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.annotation.Nullable;
 
 /** A helper class for fetching media on the phone. */
 public class AndroidMediaProvider implements MediaProvider {
   private static final String TAG = "MediaProvider";
 
-  private static final String[] COUNT_PROJECTION = {"count(*)"};
+  private static final String[] INDEX_PROJECTION = {
+    Video.VideoColumns._ID,
+    Video.VideoColumns.DATA,
+    Video.VideoColumns.SIZE,
+    Video.VideoColumns.DATE_TAKEN,
+    Video.VideoColumns.DURATION,
+    Video.VideoColumns.HEIGHT,
+    Video.VideoColumns.WIDTH
+  };
+  private static final String SELECT_ID = Video.VideoColumns._ID + " = ?";
+  private static final String SELECT_PATH = Video.VideoColumns.DATA + " = ?";
+  /** The number of deleted items remembered for LIST_MEDIA change requests. */
+  private static final int MAX_INDEX_DELETIONS = 1000;
+  /** The largest LIST_MEDIA page whose missing checksums are computed before background work. */
+  private static final int REQUESTED_PAGE_SIZE = 50;
   private static final Uri URI = Files.getContentUri("external");
   private static final String SORT_ORDER = Video.VideoColumns.DATE_TAKEN + " DESC";
   private static final String SELECT_DATA = Video.VideoColumns.DATA + " like ? ";
   private static final String SELECT_BOTH = SELECT_DATA + " OR " + SELECT_DATA;
   private static final String SELECT_VIDEO = "%.vr.mp4";
   private static final String SELECT_IMAGE = "%.vr.jpg";
+  private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+  private static final long THUMBNAIL_DISK_BYTES = 64 * 1024 * 1024;
+  private static final int THUMBNAIL_MEMORY_BYTES = 4 * 1024 * 1024;
 
   private final Context context;
   private final Handler mainHandler = new Handler(Looper.getMainLooper());
@@ -71,6 +100,11 @@ public class AndroidMediaProvider implements MediaProvider {
   private final int videoStereoMode;
   private final @Nullable StatusNotifier notifier;
   private final StorageStatusProvider storageStatusProvider;
+  private final ThumbnailCache thumbnailCache;
+  private final MediaIndex mediaIndex = new MediaIndex(MAX_INDEX_DELETIONS);
+  // Runs the media store queries which update the index, in order.
+  private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+  private volatile boolean mediaIndexLoaded;
   /**
    * Keep track of the last time we observed a change to the content. Assume content changed on
    * startup.
@@ -94,28 +128,45 @@ public class AndroidMediaProvider implements MediaProvider {
       FileChecksumProvider checksumProvider,
       CameraCalibration cameraCalibration,
       @Nullable StatusNotifier notifier) {
+    this(context, storageStatusProvider, checksumProvider, cameraCalibration, notifier, null);
+  }
+
+  /**
+   * Implementation of MediaProvider that uses the android media store, and prepares the thumbnails
+   * of newly captured media in the background.
+   *
+   * @param captureManager The capture manager, whose recordings take priority over preparing
+   *     thumbnails, or null to only generate thumbnails when they are requested.
+   */
+  public AndroidMediaProvider(
+      Context context,
+      StorageStatusProvider storageStatusProvider,
+      FileChecksumProvider checksumProvider,
+      CameraCalibration cameraCalibration,
+      @Nullable StatusNotifier notifier,
+      @Nullable CaptureManager captureManager) {
     this.context = context;
     this.storageStatusProvider = storageStatusProvider;
     this.checksumProvider = checksumProvider;
     this.notifier = notifier;
     this.videoStereoMode = parseStereoModeOrDefault(cameraCalibration);
+    this.thumbnailCache =
+        new ThumbnailCache(
+            new File(context.getCacheDir(), THUMBNAIL_DIRECTORY),
+            THUMBNAIL_DISK_BYTES,
+            THUMBNAIL_MEMORY_BYTES,
+            this::generateThumbnail);
+    if (captureManager != null) {
+      new ThumbnailPregenerator(context, thumbnailCache, captureManager).start();
+    }
     Log.d(TAG, "StereoMode = " + videoStereoMode);
     registerForContentChanges();
   }
 
   @Override
   public long getMediaCount() {
-    Cursor cursor = queryMedia(URI, COUNT_PROJECTION);
-    if (cursor == null) {
-      Log.e(TAG, "Unable to get media count cursor.");
-      return 0;
-    }
-    int count = 0;
-    if (cursor.moveToFirst()) {
-      count = cursor.getInt(0);
-    }
-    cursor.close();
-    return count;
+    loadMediaIndex();
+    return mediaIndex.size();
   }
 
   @Override
@@ -125,10 +176,38 @@ public class AndroidMediaProvider implements MediaProvider {
 
   @Override
   public List<Media> getMedia(long startIndex, long count) {
-    String[] projection = null;
-    Uri uri = URI.buildUpon().encodedQuery("limit=" + startIndex + "," + count).build();
-    Cursor cursor = queryMedia(uri, projection);
-    return buildMediaListFromCursor(cursor);
+    ListMediaRequest request =
+        ListMediaRequest.newBuilder().setStartIndex(startIndex).setMediaCount(count).build();
+    try {
+      return listMedia(request).getMediaList();
+    } catch (InvalidRequestException e) {
+      // Only page tokens are invalid.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public ListMediaResponse listMedia(ListMediaRequest request) throws InvalidRequestException {
+    loadMediaIndex();
+    ListMediaResponse.Builder response = mediaIndex.list(request);
+    if (response == null) {
+      throw new InvalidRequestException();
+    }
+    List<String> paths = new ArrayList<>();
+    for (Media media : response.getMediaList()) {
+      paths.add(media.getFilename());
+    }
+    Map<String, List<FileChecksum>> checksums =
+        checksumProvider.getFileChecksums(paths, getChecksumPriority(request));
+    for (int i = 0; i < response.getMediaCount(); i++) {
+      List<FileChecksum> mediaChecksums = checksums.get(paths.get(i));
+      if (mediaChecksums != null && !mediaChecksums.isEmpty()) {
+        response.setMedia(
+            i,
+            response.getMedia(i).toBuilder().addAllChecksum(withoutBlockHashes(mediaChecksums)));
+      }
+    }
+    return response.setLastModifiedTime(lastChangeTime.getTime()).build();
   }
 
   @Override
@@ -185,9 +264,18 @@ public class AndroidMediaProvider implements MediaProvider {
     return mediaStoreId;
   }
 
-  /** Gets a webp encoded thumbnail of a media item based on it's path. */
+  /**
+   * Gets a webp encoded thumbnail of a media item based on it's path. Thumbnails are cached, so the
+   * chunks of a thumbnail are served from one render.
+   */
   @Override
+  @Nullable
   public byte[] getThumbnail(ThumbnailRequest request) {
+    return thumbnailCache.getThumbnail(request);
+  }
+
+  @Nullable
+  private byte[] generateThumbnail(ThumbnailRequest request) {
     Bitmap thumbnail = null;
     try {
       File filePath = new File(request.getFilename());
@@ -202,11 +290,21 @@ public class AndroidMediaProvider implements MediaProvider {
       thumbnail = glideRequest.submit(request.getWidth(), request.getHeight()).get();
     } catch (ExecutionException | InterruptedException e) {
       Log.e(TAG, "Failed to create thumbnail with glide");
-      thumbnail = null;
+      return null;
     }
     return BitmapIO.toWebpByteArray(thumbnail, request.getQuality());
   }
 
+  @Override
+  @Nullable
+  public List<FileChecksum> getFileChecksums(String filename) throws IOException {
+    if (getMediaStoreId(filename) < 0) {
+      Log.e(TAG, "Checksums requested for unknown media: " + filename);
+      return null;
+    }
+    return checksumProvider.getFileChecksums(filename, FileChecksumProvider.PRIORITY_REQUESTED);
+  }
+
   @Override
   public void onMediaStateChanged() {
     lastChangeTime = new Date();
@@ -215,7 +313,9 @@ public class AndroidMediaProvider implements MediaProvider {
     }
   }
 
-  protected boolean buildMediaItem(Media.Builder mediaBuilder, long id, Cursor cursor) {
+  // Reads the media item at the cursor, without checksums, or returns null if it is not valid.
+  @Nullable
+  private Media readMediaItem(Cursor cursor) {
     int dataIndex = cursor.getColumnIndex(Video.VideoColumns.DATA);
     int sizeIndex = cursor.getColumnIndex(Video.VideoColumns.SIZE);
     int dateTakenIndex = cursor.getColumnIndex(Video.VideoColumns.DATE_TAKEN);
@@ -224,14 +324,12 @@ public class AndroidMediaProvider implements MediaProvider {
     int widthIndex = cursor.getColumnIndex(Video.VideoColumns.WIDTH);
     String path = cursor.getString(dataIndex);
     if (!storageStatusProvider.isValidPath(path)) {
-      return false;
+      return null;
     }
     long size = cursor.getLong(sizeIndex);
     long dateTaken = cursor.getLong(dateTakenIndex);
-    mediaBuilder
-        .setFilename(path)
-        .setSize(size)
-        .setTimestamp(dateTaken);
+    Media.Builder mediaBuilder =
+        Media.newBuilder().setFilename(path).setSize(size).setTimestamp(dateTaken);
     if (!cursor.isNull(durationIndex)) {
       mediaBuilder.setDuration(cursor.getLong(durationIndex));
     }
@@ -241,16 +339,42 @@ public class AndroidMediaProvider implements MediaProvider {
     if (!cursor.isNull(widthIndex)) {
       mediaBuilder.setWidth(cursor.getLong(widthIndex));
     }
+    return mediaBuilder.build();
+  }
+
+  // Clients show small pages and changes right away, while whole listings are synced.
+  private static int getChecksumPriority(ListMediaRequest request) {
+    return request.hasChangedSince()
+            || (request.hasMediaCount() && request.getMediaCount() <= REQUESTED_PAGE_SIZE)
+        ? FileChecksumProvider.PRIORITY_REQUESTED
+        : FileChecksumProvider.PRIORITY_BACKGROUND;
+  }
+
+  // Media items carry the block list checksum over the block hashes, and its block size. The block
+  // hashes grow with the file size, so they are only served by getFileChecksums.
+  private static List<FileChecksum> withoutBlockHashes(List<FileChecksum> checksums) {
+    List<FileChecksum> result = new ArrayList<>(checksums.size());
+    for (FileChecksum checksum : checksums) {
+      result.add(
+          checksum.getBlockChecksumCount() > 0
+              ? checksum.toBuilder().clearBlockChecksum().build()
+              : checksum);
+    }
+    return result;
+  }
 
+  // Adds the checksums of the media file which are known.
+  private Media addChecksum(Media media, int priority) {
     try {
-      FileChecksum checksum = checksumProvider.getFileChecksum(path);
-      if (checksum != null) {
-        mediaBuilder.addChecksum(checksum);
+      List<FileChecksum> checksums =
+          checksumProvider.getFileChecksums(media.getFilename(), priority);
+      if (!checksums.isEmpty()) {
+        return media.toBuilder().addAllChecksum(withoutBlockHashes(checksums)).build();
       }
     } catch (IOException e) {
-      Log.e(TAG, "Unable to get checksum for " + path, e);
+      Log.e(TAG, "Unable to get checksum for " + media.getFilename(), e);
     }
-    return true;
+    return media;
   }
 
   private List<Media> buildMediaListFromCursor(Cursor cursor) {
@@ -260,20 +384,111 @@ public class AndroidMediaProvider implements MediaProvider {
       return media;
     }
 
-    int index = cursor.getColumnIndex(Video.VideoColumns._ID);
     while (cursor.moveToNext()) {
-      long id = cursor.getLong(index);
-      Media.Builder mediaBuilder = Media.newBuilder();
-      boolean isValid = buildMediaItem(mediaBuilder, id, cursor);
-      if (!isValid) {
-        return media;
+      Media mediaItem = readMediaItem(cursor);
+      if (mediaItem != null) {
+        media.add(addChecksum(mediaItem, FileChecksumProvider.PRIORITY_REQUESTED));
       }
-      media.add(mediaBuilder.build());
     }
     cursor.close();
     return media;
   }
 
+  // Loads the media index on the first request. Later changes are applied by syncMedia().
+  private void loadMediaIndex() {
+    if (mediaIndexLoaded) {
+      return;
+    }
+    try {
+      indexExecutor
+          .submit(
+              () -> {
+                if (!mediaIndexLoaded) {
+                  mediaIndexLoaded = syncAllMedia();
+                }
+              })
+          .get();
+    } catch (ExecutionException | InterruptedException e) {
+      Log.e(TAG, "Failed to load the media index.", e);
+    }
+  }
+
+  // Updates the index after a media store change, on the index executor.
+  private void syncMedia(@Nullable Uri uri) {
+    if (!mediaIndexLoaded) {
+      return;
+    }
+    long mediaStoreId = parseMediaStoreId(uri);
+    if (mediaStoreId < 0) {
+      syncAllMedia();
+      return;
+    }
+    Cursor cursor = queryMedia(URI, INDEX_PROJECTION, SELECT_ID, String.valueOf(mediaStoreId));
+    if (cursor == null) {
+      Log.e(TAG, "Unable to get media cursor.");
+      return;
+    }
+    Media media = cursor.moveToNext() ? readMediaItem(cursor) : null;
+    cursor.close();
+    if (media != null) {
+      mediaIndex.put(mediaStoreId, media);
+    } else {
+      mediaIndex.removeById(mediaStoreId);
+    }
+  }
+
+  // Adds a newly captured file to the index, if the media scanner has added it already.
+  private void syncMediaFile(String path) {
+    if (!mediaIndexLoaded) {
+      return;
+    }
+    Cursor cursor = queryMedia(URI, INDEX_PROJECTION, SELECT_PATH, path);
+    if (cursor == null) {
+      Log.e(TAG, "Unable to get media cursor.");
+      return;
+    }
+    if (cursor.moveToNext()) {
+      Media media = readMediaItem(cursor);
+      if (media != null) {
+        mediaIndex.put(cursor.getLong(cursor.getColumnIndex(Video.VideoColumns._ID)), media);
+      }
+    }
+    cursor.close();
+  }
+
+  // Replaces the index with all media in the media store. Returns whether the query succeeded.
+  private boolean syncAllMedia() {
+    Cursor cursor = queryMedia(URI, INDEX_PROJECTION);
+    if (cursor == null) {
+      Log.e(TAG, "Unable to get media cursor.");
+      return false;
+    }
+    List<MediaIndex.Item> items = new ArrayList<>();
+    int idIndex = cursor.getColumnIndex(Video.VideoColumns._ID);
+    while (cursor.moveToNext()) {
+      Media media = readMediaItem(cursor);
+      if (media != null) {
+        items.add(new MediaIndex.Item(cursor.getLong(idIndex), media));
+      }
+    }
+    cursor.close();
+    mediaIndex.replaceAll(items);
+    return true;
+  }
+
+  // Returns the media store ID of an item URI, or -1 for other URIs.
+  private static long parseMediaStoreId(@Nullable Uri uri) {
+    String segment = uri != null ? uri.getLastPathSegment() : null;
+    if (segment == null) {
+      return -1;
+    }
+    try {
+      return Math.max(Long.parseLong(segment), -1);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   private Cursor resolveQuery(
       Uri uri, String[] projection, String selection, String[] selectionArgs) {
     ContentResolver resolver = context.getContentResolver();
@@ -292,6 +507,9 @@ public class AndroidMediaProvider implements MediaProvider {
     MediaContentObserver mediaContentObserver = new MediaContentObserver();
     resolver.registerContentObserver(Images.Media.EXTERNAL_CONTENT_URI, true, mediaContentObserver);
     resolver.registerContentObserver(Video.Media.EXTERNAL_CONTENT_URI, true, mediaContentObserver);
+    IntentFilter filter = new IntentFilter(MediaStoreUtil.ACTION_MEDIA_FINALIZED);
+    filter.addAction(MediaStoreUtil.ACTION_MEDIA_DELETED);
+    LocalBroadcastManager.getInstance(context).registerReceiver(new MediaFileReceiver(), filter);
   }
 
   private static int parseStereoModeOrDefault(CameraCalibration cameraCalibration) {
@@ -317,13 +535,36 @@ public class AndroidMediaProvider implements MediaProvider {
     @Override
     public void onChange(boolean selfChange, Uri uri) {
       Log.d(TAG, "Media content changed: " + uri);
+      indexExecutor.execute(() -> syncMedia(uri));
       onMediaStateChanged();
       // Notify that there was a media store change.
       context.sendBroadcast(new Intent(MediaProvider.ACTION_NEW_MEDIA));
     }
   }
 
+  /** Receiver that keeps the index current with captured and deleted files. */
+  private class MediaFileReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      String path = intent.getStringExtra(MediaStoreUtil.EXTRA_PATH);
+      if (path == null) {
+        return;
+      }
+      if (MediaStoreUtil.ACTION_MEDIA_FINALIZED.equals(intent.getAction())) {
+        indexExecutor.execute(() -> syncMediaFile(path));
+      } else if (MediaStoreUtil.ACTION_MEDIA_DELETED.equals(intent.getAction())) {
+        indexExecutor.execute(() -> mediaIndex.remove(path));
+      }
+    }
+  }
+
   private Cursor queryMedia(Uri uri, String[] projection) {
+    return queryMedia(uri, projection, null);
+  }
+
+  // Queries the media files on the camera storage, which also match the selection if it is set.
+  private Cursor queryMedia(
+      Uri uri, String[] projection, @Nullable String selection, String... selectionArgs) {
     Optional<String> internalStoragePath = storageStatusProvider.getInternalStoragePath();
     Optional<String> externalStoragePath = storageStatusProvider.getExternalStoragePath();
 
@@ -338,18 +579,27 @@ public class AndroidMediaProvider implements MediaProvider {
       paths.add(externalStoragePath.get() + SELECT_IMAGE);
     }
 
-    String selection;
+    String pathSelection;
     switch (paths.size()) {
       case 2:
-        selection = SELECT_BOTH;
+        pathSelection = SELECT_BOTH;
         break;
       case 4:
-        selection = SELECT_BOTH + " OR " + SELECT_BOTH;
+        pathSelection = SELECT_BOTH + " OR " + SELECT_BOTH;
         break;
       default:
-        selection = "";
+        pathSelection = "";
         break;
     }
+    if (selection != null) {
+      List<String> args = new ArrayList<>(Arrays.asList(selectionArgs));
+      args.addAll(paths);
+      paths = args;
+      selection =
+          pathSelection.isEmpty() ? selection : "(" + selection + ") AND (" + pathSelection + ")";
+    } else {
+      selection = pathSelection;
+    }
 
     return resolveQuery(
         uri,
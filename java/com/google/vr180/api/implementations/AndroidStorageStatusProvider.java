@@ -23,11 +23,16 @@ import android.os.Environment;
 import android.os.StatFs;
 import com.google.common.base.Optional;
 import com.google.vr180.CameraApi.CameraStatus.StorageStatus;
+import com.google.vr180.CameraApi.CameraStatus.StorageStatus.MediaScanProgress;
 import com.google.vr180.CameraApi.CameraStatus.StorageStatus.SdCardStatus;
 import com.google.vr180.api.camerainterfaces.StatusNotifier;
 import com.google.vr180.api.camerainterfaces.StorageStatusProvider;
 import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaRescanner;
 import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Implements StorageStatusProvider using the android file apis. */
 public class AndroidStorageStatusProvider implements StorageStatusProvider {
@@ -37,6 +42,9 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
   private final String mediaFolderRelativePath;
   private final String internalStoragePath;
   private final Context context;
+  private final MediaRescanner mediaRescanner;
+  // Runs one rescan at a time.
+  private final ExecutorService rescanExecutor = Executors.newSingleThreadExecutor();
   private final BroadcastReceiver sdCardReceiver = new BroadcastReceiver(){
     @Override
     public void onReceive(Context arg0, Intent intent) {
@@ -52,6 +60,8 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
   };
 
   private String externalStoragePath;
+  // The progress of the current media rescan, or null if there is none.
+  private volatile MediaScanProgress mediaScanProgress;
 
   /**
    * Constructs a storage status provider that looks at the available and total storage and provides
@@ -66,6 +76,7 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
     this.context = context;
     this.statusNotifier = statusNotifier;
     this.mediaFolderRelativePath = mediaFolderRelativePath;
+    this.mediaRescanner = new MediaRescanner(context);
     this.internalStoragePath =
         Environment.getExternalStorageDirectory().getAbsolutePath() + mediaFolderRelativePath;
     createFolderIfMissing(internalStoragePath);
@@ -75,6 +86,8 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
     filter.addAction(Intent.ACTION_MEDIA_EJECT);
     filter.addDataScheme("file");
     context.registerReceiver(sdCardReceiver, filter);
+    // The MediaStore may have lost the captures, e.g. after a factory reset.
+    rescanMedia(internalStoragePath);
     checkExternalSdCard();
   }
 
@@ -104,6 +117,10 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
         .setFreeSpace(statFs.getAvailableBytes())
         .setTotalSpace(statFs.getTotalBytes());
 
+    MediaScanProgress progress = mediaScanProgress;
+    if (progress != null) {
+      storageStatus.setMediaScanProgress(progress);
+    }
     return storageStatus.build();
   }
 
@@ -183,6 +200,7 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
     }
     this.externalStoragePath = mediaFolderPath;
     statusNotifier.notifyStatusChanged();
+    rescanMedia(mediaFolderPath);
   }
 
   private void onSdCardEjected() {
@@ -191,6 +209,31 @@ public class AndroidStorageStatusProvider implements StorageStatusProvider {
     statusNotifier.notifyStatusChanged();
   }
 
+  // Brings the MediaStore up to date with the media of a storage, in the background.
+  private void rescanMedia(String mediaFolderPath) {
+    rescanExecutor.execute(
+        () -> {
+          Log.d(TAG, "Rescanning media in " + mediaFolderPath);
+          if (!mediaRescanner.rescan(
+              Collections.singletonList(new File(mediaFolderPath)), this::onMediaScanProgress)) {
+            Log.e(TAG, "Failed to rescan media in " + mediaFolderPath);
+          }
+          if (mediaScanProgress != null) {
+            mediaScanProgress = null;
+            statusNotifier.notifyStatusChanged();
+          }
+        });
+  }
+
+  private void onMediaScanProgress(int scannedFiles, int totalFiles) {
+    mediaScanProgress =
+        MediaScanProgress.newBuilder()
+            .setScannedFiles(scannedFiles)
+            .setTotalFiles(totalFiles)
+            .build();
+    statusNotifier.notifyStatusChanged();
+  }
+
   private void createFolderIfMissing(String path) {
     File file = new File(path);
     if (!file.exists()) {
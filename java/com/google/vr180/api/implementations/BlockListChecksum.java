@@ -0,0 +1,176 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.vr180.CameraApi.FileChecksum;
+import com.google.vr180.CameraApi.FileChecksum.ChecksumType;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Computes and verifies SHA1 block list checksums, which hash each fixed size block of a file, and
+ * then the concatenated block hashes. Clients can verify each block of a download on its own.
+ *
+ * <p>Verifying a block needs the whole list of block hashes, which is why media listings only
+ * carry the hash over the list and the block size.
+ *
+ * <p>The blocks are hashed from memory mapped regions of the file, in parallel on the threads of
+ * the given executor.
+ */
+public final class BlockListChecksum {
+  /** The block size of the checksums computed by the camera. */
+  public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+  /** Called before each block is hashed, to pause or stop the computation. */
+  public interface Checkpoint {
+    /** Returns whether to continue hashing, possibly after waiting. */
+    boolean proceed();
+  }
+
+  private BlockListChecksum() {}
+
+  /**
+   * Computes the block list checksum of a file.
+   *
+   * @param file The file to hash.
+   * @param executor The executor which hashes the blocks, in parallel if it has multiple threads.
+   */
+  public static FileChecksum compute(File file, Executor executor) throws IOException {
+    return compute(file, BLOCK_SIZE, executor, () -> true);
+  }
+
+  /**
+   * Computes the block list checksum of a file, which can be paused or stopped between blocks.
+   *
+   * @param file The file to hash.
+   * @param executor The executor which hashes the blocks, in parallel if it has multiple threads.
+   * @param checkpoint The checkpoint before each block. If it returns false, the computation fails
+   *     with an {@link InterruptedIOException}.
+   */
+  public static FileChecksum compute(File file, Executor executor, Checkpoint checkpoint)
+      throws IOException {
+    return compute(file, BLOCK_SIZE, executor, checkpoint);
+  }
+
+  @VisibleForTesting
+  static FileChecksum compute(File file, int blockSize, Executor executor) throws IOException {
+    return compute(file, blockSize, executor, () -> true);
+  }
+
+  private static FileChecksum compute(
+      File file, int blockSize, Executor executor, Checkpoint checkpoint) throws IOException {
+    List<FutureTask<byte[]>> blocks = new ArrayList<>();
+    try (FileInputStream input = new FileInputStream(file)) {
+      FileChannel channel = input.getChannel();
+      long size = channel.size();
+      for (long offset = 0; offset < size; offset += blockSize) {
+        long start = offset;
+        long length = Math.min(blockSize, size - offset);
+        FutureTask<byte[]> block =
+            new FutureTask<>(
+                () -> {
+                  if (!checkpoint.proceed()) {
+                    throw new InterruptedIOException("Checksum computation stopped");
+                  }
+                  return hashBlock(channel, start, length);
+                });
+        blocks.add(block);
+        executor.execute(block);
+      }
+
+      FileChecksum.Builder checksum =
+          FileChecksum.newBuilder()
+              .setChecksumType(ChecksumType.SHA1_BLOCK_LIST)
+              .setBlockSize(blockSize);
+      Hasher root = Hashing.sha1().newHasher();
+      for (FutureTask<byte[]> block : blocks) {
+        byte[] hash = getBlockHash(block);
+        root.putBytes(hash);
+        checksum.addBlockChecksum(ByteString.copyFrom(hash));
+      }
+      return checksum.setChecksum(ByteString.copyFrom(root.hash().asBytes())).build();
+    } finally {
+      // Don't hash the remaining blocks after a failure.
+      for (FutureTask<byte[]> block : blocks) {
+        block.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the data of a block matches a block list checksum.
+   *
+   * @param checksum The block list checksum of the file.
+   * @param blockIndex The index of the block, which starts at blockIndex * block_size in the file.
+   * @param data The data of the block.
+   */
+  public static boolean verifyBlock(FileChecksum checksum, int blockIndex, byte[] data) {
+    if (checksum.getChecksumType() != ChecksumType.SHA1_BLOCK_LIST
+        || blockIndex < 0
+        || blockIndex >= checksum.getBlockChecksumCount()
+        || data.length > checksum.getBlockSize()) {
+      return false;
+    }
+    return Arrays.equals(
+        Hashing.sha1().hashBytes(data).asBytes(),
+        checksum.getBlockChecksum(blockIndex).toByteArray());
+  }
+
+  /** Returns whether the block hashes of a block list checksum match its checksum. */
+  public static boolean verifyTree(FileChecksum checksum) {
+    if (checksum.getChecksumType() != ChecksumType.SHA1_BLOCK_LIST) {
+      return false;
+    }
+    Hasher root = Hashing.sha1().newHasher();
+    for (ByteString hash : checksum.getBlockChecksumList()) {
+      root.putBytes(hash.toByteArray());
+    }
+    return Arrays.equals(root.hash().asBytes(), checksum.getChecksum().toByteArray());
+  }
+
+  private static byte[] hashBlock(FileChannel channel, long offset, long length)
+      throws IOException {
+    return Hashing.sha1()
+        .hashBytes(channel.map(FileChannel.MapMode.READ_ONLY, offset, length))
+        .asBytes();
+  }
+
+  private static byte[] getBlockHash(FutureTask<byte[]> block) throws IOException {
+    try {
+      return block.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof InterruptedIOException) {
+        throw (InterruptedIOException) e.getCause();
+      }
+      throw new IOException("Failed to hash block", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing blocks");
+    }
+  }
+}
@@ -14,37 +14,68 @@
 
 package com.google.vr180.api.implementations;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
+import android.util.LruCache;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.vr180.CameraApi.FileChecksum;
+import com.google.vr180.api.camerainterfaces.CaptureManager;
 import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
 import com.google.vr180.api.camerainterfaces.FileProvider;
 import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 
 /**
- * Provider for file checksums that computes the checksum on the first request and caches it in a
- * local database.
+ * Provider for file checksums that caches them in a local database.
+ *
+ * <p>Each file has a SHA1 checksum and a block list checksum (see {@link BlockListChecksum}).
+ * The SHA1 checksum computed while a captured file was written is passed in-process with {@link
+ * #onChecksumComputed}, and the others are computed right away when the capture is finalized,
+ * while the file is still in the page cache. The checksums of other files are computed on the first request.
+ *
+ * <p>Lookups of whole media pages take one query by the path index, and recently used checksums
+ * are kept in memory as long as the file is not modified.
+ *
+ * <p>Computations are scheduled by a {@link ChecksumScheduler}, which gives way to recordings and
+ * live streams, and computes the checksums that clients wait for first.
  */
 public class CachedFileChecksumProvider implements FileChecksumProvider, AutoCloseable {
   private static final String TAG = "CachedFileChecksumProvider";
 
-  private static final int VERSION = 1;
+  private static final int VERSION = 3;
   /** The name of the table (and database) containing checksum caches. */
   private static final String TABLE_NAME = "ChecksumDatabase";
+  /** The name of the unique index of the path column. */
+  private static final String PATH_INDEX_NAME = TABLE_NAME + "_path";
   /** Name of the id column. */
   private static final String ROW_ID = "_id";
   /** Name of the path column, containing the media path for the cached checksum. */
@@ -56,13 +87,50 @@ public class CachedFileChecksumProvider implements FileChecksumProvider, AutoClo
    * computed the checksum.
    */
   private static final String LAST_MODIFIED = "last_modified";
+  /**
+   * Name of the block_tree_checksum column, which contains a protobuf of the block list checksum,
+   * or null if it is not computed yet.
+   */
+  private static final String BLOCK_TREE_CHECKSUM = "block_tree_checksum";
 
-  /** Selection query to find a specific checksum. */
-  private static final String SELECT_PATH_AND_DATE = PATH + " like ? AND " + LAST_MODIFIED + " = ?";
+  /** The columns read by checksum lookups. */
+  private static final String[] LOOKUP_COLUMNS =
+      new String[] {PATH, CHECKSUM, LAST_MODIFIED, BLOCK_TREE_CHECKSUM};
+  /** The most paths looked up by a query, within the SQLite limit of 999 parameters. */
+  private static final int MAX_QUERY_PATHS = 500;
+  /** The number of files whose checksums are kept in memory. */
+  private static final int MAX_MEMORY_CACHE_FILES = 2000;
+  /** The number of bytes hashed between checkpoints of the scheduler, for SHA1 checksums. */
+  private static final int CHECKPOINT_BYTES = 1024 * 1024;
 
+  private final Context context;
   private final FileProvider fileProvider;
   private final SQLiteDatabase db;
-  private Executor computationExecutor = Executors.newSingleThreadExecutor();
+  @Nullable private final CaptureManager captureManager;
+  private ChecksumScheduler scheduler;
+  // Recently used checksums by path, with the last modified time they are valid for.
+  private final LruCache<String, CachedChecksums> memoryCache =
+      new LruCache<>(MAX_MEMORY_CACHE_FILES);
+  // Hashes the blocks of block list checksums in parallel.
+  private final ExecutorService blockExecutor =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+  private final BroadcastReceiver mediaReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          String path = intent.getStringExtra(MediaStoreUtil.EXTRA_PATH);
+          if (path == null) {
+            return;
+          }
+          if (MediaStoreUtil.ACTION_MEDIA_FINALIZED.equals(intent.getAction())) {
+            onMediaFinalized(path);
+          } else {
+            scheduler.cancel(path);
+            deleteChecksums(path);
+          }
+        }
+      };
 
   /**
    * Constructs a new FileChecksumProvider using the specified fileProvider for opening the file to
@@ -72,27 +140,103 @@ public class CachedFileChecksumProvider implements FileChecksumProvider, AutoClo
    * @param fileProvider A FileProvider instance to open the file.
    */
   public CachedFileChecksumProvider(Context context, FileProvider fileProvider) {
+    this(context, fileProvider, null);
+  }
+
+  /**
+   * Constructs a new FileChecksumProvider which pauses computations while the camera is recording
+   * or streaming.
+   *
+   * @param context The android context for accessing MediaStore.
+   * @param fileProvider A FileProvider instance to open the file.
+   * @param captureManager The capture manager, or null to compute checksums at any time.
+   */
+  public CachedFileChecksumProvider(
+      Context context, FileProvider fileProvider, @Nullable CaptureManager captureManager) {
+    this.context = context;
     this.fileProvider = fileProvider;
+    this.captureManager = captureManager;
+    scheduler =
+        new ChecksumScheduler(
+            Executors.newSingleThreadExecutor(), captureManager, ChecksumScheduler.SYSTEM_CLOCK);
     ChecksumDatabaseHelper dbHelper = new ChecksumDatabaseHelper(context);
     db = dbHelper.getWritableDatabase();
+    IntentFilter filter = new IntentFilter(MediaStoreUtil.ACTION_MEDIA_FINALIZED);
+    filter.addAction(MediaStoreUtil.ACTION_MEDIA_DELETED);
+    LocalBroadcastManager.getInstance(context).registerReceiver(mediaReceiver, filter);
   }
 
-  /** Returns the SHA256 checksum of the file, caching it in a database if not already computed. */
+  /** Returns the SHA1 checksum of the file, caching it in a database if not already computed. */
   @Override
   public FileChecksum getFileChecksum(String path) throws IOException {
-    long lastModified = fileProvider.getLastModified(path).getTime();
-    FileChecksum result = getCachedChecksum(path, lastModified);
-    if (result != null) {
-      return result;
+    List<FileChecksum> checksums = getFileChecksums(path, PRIORITY_REQUESTED);
+    return checksums.isEmpty() ? null : checksums.get(0);
+  }
+
+  /**
+   * Returns the SHA1 checksum and the block list checksum of the file, as far as they are computed,
+   * and schedules the computation of the missing ones.
+   */
+  @Override
+  public List<FileChecksum> getFileChecksums(String path, int priority) throws IOException {
+    return getFileChecksums(Collections.singletonList(path), priority).get(path);
+  }
+
+  /**
+   * Returns the checksums of several files like {@link #getFileChecksums(String, int)}, with at
+   * most one query for each {@link #MAX_QUERY_PATHS} files which are not cached in memory.
+   */
+  @Override
+  public Map<String, List<FileChecksum>> getFileChecksums(List<String> paths, int priority) {
+    Map<String, Long> lastModifiedTimes = new HashMap<>();
+    for (String path : paths) {
+      lastModifiedTimes.put(path, fileProvider.getLastModified(path).getTime());
+    }
+    Map<String, List<FileChecksum>> checksums = getCachedChecksums(lastModifiedTimes);
+    for (String path : paths) {
+      List<FileChecksum> fileChecksums = checksums.get(path);
+      if (fileChecksums.size() < 2) {
+        queueChecksums(
+            path,
+            lastModifiedTimes.get(path),
+            fileChecksums.isEmpty() ? null : fileChecksums.get(0),
+            priority);
+      }
     }
+    return checksums;
+  }
+
+  /** Returns the checksums of the file which are cached, without scheduling any computation. */
+  @Override
+  public List<FileChecksum> getCachedFileChecksums(String path) {
+    return getCachedChecksums(
+            Collections.singletonMap(path, fileProvider.getLastModified(path).getTime()))
+        .get(path);
+  }
 
-    computationExecutor.execute(() -> updateCachedChecksum(path, lastModified));
-    return null;
+  /**
+   * Stores the SHA-1 of a captured file, which was computed while the file was written. It must be
+   * called by the writer of the file in-process, before the file is finalized.
+   */
+  public void onChecksumComputed(String path, byte[] sha1) {
+    long lastModified = fileProvider.getLastModified(path).getTime();
+    saveChecksums(path, lastModified, createChecksum(sha1), null);
+  }
+
+  /**
+   * Computes the checksums of a newly captured file which were not computed while the file was
+   * written.
+   */
+  public void onMediaFinalized(String path) {
+    long lastModified = fileProvider.getLastModified(path).getTime();
+    queueChecksums(path, lastModified, null, PRIORITY_REQUESTED);
   }
 
   /** Releases the database. */
   @Override
   public void close() {
+    LocalBroadcastManager.getInstance(context).unregisterReceiver(mediaReceiver);
+    blockExecutor.shutdown();
     db.close();
   }
 
@@ -104,74 +248,208 @@ public class CachedFileChecksumProvider implements FileChecksumProvider, AutoClo
    */
   @VisibleForTesting
   void setComputationExecutor(Executor executor) {
-    computationExecutor = executor;
+    scheduler = new ChecksumScheduler(executor, captureManager, ChecksumScheduler.SYSTEM_CLOCK);
   }
 
-  /** Returns the cached file checksum, or null if no cache is available. */
-  private FileChecksum getCachedChecksum(String path, long lastModified) {
+  /**
+   * Returns the cached checksums of files, the SHA1 checksum first, or none if none are cached.
+   *
+   * @param lastModifiedTimes The last modified times of the files by path, which the checksums
+   *     must match.
+   * @return The checksums of each path.
+   */
+  private Map<String, List<FileChecksum>> getCachedChecksums(Map<String, Long> lastModifiedTimes) {
+    Map<String, List<FileChecksum>> checksums = new HashMap<>();
+    List<String> uncachedPaths = new ArrayList<>();
+    for (Map.Entry<String, Long> entry : lastModifiedTimes.entrySet()) {
+      CachedChecksums cached = memoryCache.get(entry.getKey());
+      if (cached != null && cached.lastModified == entry.getValue()) {
+        checksums.put(entry.getKey(), cached.checksums);
+      } else {
+        checksums.put(entry.getKey(), Collections.emptyList());
+        uncachedPaths.add(entry.getKey());
+      }
+    }
+    for (List<String> paths : Lists.partition(uncachedPaths, MAX_QUERY_PATHS)) {
+      queryChecksums(paths, lastModifiedTimes, checksums);
+    }
+    return checksums;
+  }
+
+  /** Reads the checksums of files from the database, and keeps them in memory. */
+  private void queryChecksums(
+      List<String> paths,
+      Map<String, Long> lastModifiedTimes,
+      Map<String, List<FileChecksum>> checksums) {
     SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
     qb.setTables(TABLE_NAME);
+    String selection =
+        PATH + " IN (" + TextUtils.join(",", Collections.nCopies(paths.size(), "?")) + ")";
     Cursor cursor = null;
     try {
       cursor =
           qb.query(
-              db,
-              null,
-              SELECT_PATH_AND_DATE,
-              new String[] {path, Long.toString(lastModified)},
-              null,
-              null,
-              null);
+              db, LOOKUP_COLUMNS, selection, paths.toArray(new String[0]), null, null, null);
     } catch (Exception e) {
       Log.e(TAG, "Error querying cached checksums.", e);
-      return null;
+      return;
     }
 
-    Preconditions.checkState(cursor.getCount() <= 1);
-    int checksumIndex = cursor.getColumnIndex(CHECKSUM);
-    while (cursor.moveToNext()) {
-      try {
-        return FileChecksum.parseFrom(cursor.getBlob(checksumIndex));
-      } catch (InvalidProtocolBufferException e) {
-        Log.e(TAG, "Unable to parse file checksum.", e);
-        continue;
+    try {
+      while (cursor.moveToNext()) {
+        String path = cursor.getString(0);
+        long lastModified = cursor.getLong(2);
+        // Checksums of an older version of the file are replaced once they are computed again.
+        if (lastModified != lastModifiedTimes.get(path)) {
+          continue;
+        }
+        List<FileChecksum> fileChecksums = new ArrayList<>();
+        fileChecksums.add(FileChecksum.parseFrom(cursor.getBlob(1)));
+        if (!cursor.isNull(3)) {
+          fileChecksums.add(FileChecksum.parseFrom(cursor.getBlob(3)));
+        }
+        checksums.put(path, fileChecksums);
+        memoryCache.put(path, new CachedChecksums(lastModified, fileChecksums));
       }
+    } catch (InvalidProtocolBufferException e) {
+      Log.e(TAG, "Unable to parse file checksum.", e);
+    } finally {
+      cursor.close();
     }
+  }
 
-    return null;
+  /** Schedules the computation of the checksums of a file, unless it is scheduled already. */
+  private void queueChecksums(
+      String path, long lastModified, @Nullable FileChecksum sha1, int priority) {
+    scheduler.submit(path, priority, job -> updateCachedChecksums(path, lastModified, sha1, job));
   }
 
-  /** Computes the checkusm and saves it to the cache. */
-  private void updateCachedChecksum(String path, long lastModified) {
+  /** Computes the checksums, except for a known SHA1 checksum, and saves them to the cache. */
+  private void updateCachedChecksums(
+      String path, long lastModified, @Nullable FileChecksum sha1, ChecksumScheduler.Job job) {
+    // A stopped job runs again, with the SHA1 checksum it saved.
+    List<FileChecksum> cached =
+        getCachedChecksums(Collections.singletonMap(path, lastModified)).get(path);
+    if (sha1 == null && !cached.isEmpty()) {
+      sha1 = cached.get(0);
+    }
+    if (sha1 == null) {
+      try {
+        sha1 = computeChecksum(path, job);
+      } catch (InterruptedIOException e) {
+        return;
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to compute checksum: " + path, e);
+        return;
+      }
+      // Serve the SHA1 checksum while the block list checksum is computed.
+      saveChecksums(path, lastModified, sha1, null);
+    }
     try {
-      ContentValues values = new ContentValues();
-      values.put(PATH, path);
-      values.put(CHECKSUM, computeChecksum(path).toByteArray());
-      values.put(LAST_MODIFIED, lastModified);
-      db.insertWithOnConflict(TABLE_NAME, "", values, SQLiteDatabase.CONFLICT_REPLACE);
+      File file = fileProvider.getFileForPath(path);
+      if (file == null) {
+        throw new FileNotFoundException(path);
+      }
+      FileChecksum blockList =
+          BlockListChecksum.compute(file, blockExecutor, () -> scheduler.awaitTurn(job));
+      saveChecksums(path, lastModified, sha1, blockList);
+    } catch (InterruptedIOException e) {
+      // The job was stopped or cancelled by the scheduler.
     } catch (IOException e) {
-      Log.e(TAG, "Unable to compute checksum: " + path, e);
+      Log.e(TAG, "Unable to compute block list checksum: " + path, e);
     }
   }
 
+  /** Saves the checksums of a file to the cache. */
+  private void saveChecksums(
+      String path, long lastModified, FileChecksum sha1, @Nullable FileChecksum blockList) {
+    ContentValues values = new ContentValues();
+    values.put(PATH, path);
+    values.put(CHECKSUM, sha1.toByteArray());
+    values.put(LAST_MODIFIED, lastModified);
+    values.put(BLOCK_TREE_CHECKSUM, blockList != null ? blockList.toByteArray() : null);
+    db.insertWithOnConflict(TABLE_NAME, "", values, SQLiteDatabase.CONFLICT_REPLACE);
+
+    List<FileChecksum> checksums = new ArrayList<>();
+    checksums.add(sha1);
+    if (blockList != null) {
+      checksums.add(blockList);
+    }
+    memoryCache.put(path, new CachedChecksums(lastModified, checksums));
+  }
+
+  /** Removes the checksums of a deleted file from the cache. */
+  private void deleteChecksums(String path) {
+    memoryCache.remove(path);
+    db.delete(TABLE_NAME, PATH + " = ?", new String[] {path});
+  }
+
   /** Compute the file checksum. */
-  private FileChecksum computeChecksum(String path) throws IOException {
-    byte[] hash = byteSourceForFile(path).hash(Hashing.sha1()).asBytes();
+  private FileChecksum computeChecksum(String path, ChecksumScheduler.Job job) throws IOException {
+    return createChecksum(byteSourceForFile(path, job).hash(Hashing.sha1()).asBytes());
+  }
+
+  private static FileChecksum createChecksum(byte[] sha1) {
     return FileChecksum.newBuilder()
         .setChecksumType(FileChecksum.ChecksumType.SHA1)
-        .setChecksum(ByteString.copyFrom(hash))
+        .setChecksum(ByteString.copyFrom(sha1))
         .build();
   }
 
-  private ByteSource byteSourceForFile(String path) {
+  private ByteSource byteSourceForFile(String path, ChecksumScheduler.Job job) {
     return new ByteSource() {
       @Override
       public InputStream openStream() throws IOException {
-        return fileProvider.openFile(path);
+        return new CheckpointInputStream(fileProvider.openFile(path), job);
       }
     };
   }
 
+  /** Passes the checkpoints of the scheduler while a file is read. */
+  private class CheckpointInputStream extends FilterInputStream {
+    private final ChecksumScheduler.Job job;
+    private long bytesUntilCheckpoint = CHECKPOINT_BYTES;
+
+    CheckpointInputStream(InputStream input, ChecksumScheduler.Job job) {
+      super(input);
+      this.job = job;
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkpoint(1);
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      checkpoint(length);
+      return super.read(buffer, offset, length);
+    }
+
+    private void checkpoint(int length) throws IOException {
+      bytesUntilCheckpoint -= length;
+      if (bytesUntilCheckpoint > 0) {
+        return;
+      }
+      bytesUntilCheckpoint = CHECKPOINT_BYTES;
+      if (!scheduler.awaitTurn(job)) {
+        throw new InterruptedIOException("Checksum computation stopped");
+      }
+    }
+  }
+
+  /** Checksums kept in memory, which are valid for one version of a file. */
+  private static final class CachedChecksums {
+    private final long lastModified;
+    private final List<FileChecksum> checksums;
+
+    private CachedChecksums(long lastModified, List<FileChecksum> checksums) {
+      this.lastModified = lastModified;
+      this.checksums = Collections.unmodifiableList(checksums);
+    }
+  }
+
   private static class ChecksumDatabaseHelper extends SQLiteOpenHelper {
     /** Instantiates an open helper for the provider's SQLite data repository. */
     ChecksumDatabaseHelper(Context context) {
@@ -180,6 +458,37 @@ public class CachedFileChecksumProvider implements FileChecksumProvider, AutoClo
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+      createTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion < 2) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + BLOCK_TREE_CHECKSUM + " BLOB");
+      }
+      if (oldVersion < 3) {
+        // Rebuild the table with the path index, which exact path lookups use.
+        String oldTableName = TABLE_NAME + "_v2";
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + oldTableName);
+        createTable(db);
+        String columns = PATH + "," + CHECKSUM + "," + LAST_MODIFIED + "," + BLOCK_TREE_CHECKSUM;
+        db.execSQL(
+            "INSERT INTO "
+                + TABLE_NAME
+                + " ("
+                + columns
+                + ") SELECT "
+                + columns
+                + " FROM "
+                + oldTableName
+                + " WHERE "
+                + PATH
+                + " IS NOT NULL");
+        db.execSQL("DROP TABLE " + oldTableName);
+      }
+    }
+
+    private static void createTable(SQLiteDatabase db) {
       db.execSQL(
           "CREATE TABLE "
               + TABLE_NAME
@@ -187,17 +496,16 @@ public class CachedFileChecksumProvider implements FileChecksumProvider, AutoClo
               + ROW_ID
               + " INTEGER PRIMARY KEY,"
               + PATH
-              + " TEXT UNIQUE,"
+              + " TEXT NOT NULL,"
               + CHECKSUM
               + " BLOB NOT NULL,"
               + LAST_MODIFIED
-              + " INTEGER NOT NULL"
+              + " INTEGER NOT NULL,"
+              + BLOCK_TREE_CHECKSUM
+              + " BLOB"
               + ")");
-    }
-
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      throw new UnsupportedOperationException("Upgrade should not be called.");
+      db.execSQL(
+          "CREATE UNIQUE INDEX " + PATH_INDEX_NAME + " ON " + TABLE_NAME + " (" + PATH + ")");
     }
   }
 }
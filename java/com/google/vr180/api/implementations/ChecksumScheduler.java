@@ -0,0 +1,290 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.vr180.api.camerainterfaces.CaptureManager;
+import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
+import com.google.vr180.common.logging.Log;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * Schedules checksum computations, one file at a time, with the files that clients asked for before
+ * the background work.
+ *
+ * <p>Each file has at most one job, and submitting it again only raises its priority. Computations
+ * call {@link #awaitTurn} between parts of the file, where they are paused, stopped or throttled:
+ * while the camera is recording or streaming, background jobs stop and wait for it to finish, and
+ * requested jobs only run for a fraction of the time. Background jobs also make way for requested
+ * ones. Stopped jobs are queued again, unless they were cancelled.
+ *
+ * <p>While only background jobs are queued during a recording, the worker is left idle, and a
+ * timer checks again later.
+ */
+final class ChecksumScheduler {
+  private static final String TAG = "ChecksumScheduler";
+
+  /** How often to check whether recording has finished. */
+  private static final long RECORDING_POLL_MS = 1000;
+  /** While recording, requested jobs pause this many times as long as they ran. */
+  @VisibleForTesting static final int RECORDING_PAUSE_RATIO = 3;
+
+  /** The time source of the scheduler, which tests can fake. */
+  interface Clock {
+    long elapsedMillis();
+
+    void sleep(long ms) throws InterruptedException;
+
+    /** Runs a short task on another thread after a delay. */
+    void postDelayed(Runnable task, long delayMs);
+  }
+
+  /** Computes the checksums of a file. */
+  interface Task {
+    /**
+     * Computes the checksums. Stops early if {@link ChecksumScheduler#awaitTurn} returns false.
+     *
+     * @param job The job of the computation, to pass to {@link ChecksumScheduler#awaitTurn}.
+     */
+    void run(Job job);
+  }
+
+  /** A queued or running computation. */
+  static final class Job {
+    private final String path;
+    private final Task task;
+    private volatile int priority;
+    private long sequence;
+    private volatile boolean cancelled;
+    private volatile boolean stopped;
+    // The time the job last started or continued running. Guarded by this.
+    private long turnStartMs;
+
+    private Job(String path, Task task, int priority) {
+      this.path = path;
+      this.task = task;
+      this.priority = priority;
+    }
+  }
+
+  static final Clock SYSTEM_CLOCK =
+      new Clock() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long elapsedMillis() {
+          return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void sleep(long ms) throws InterruptedException {
+          Thread.sleep(ms);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+          handler.postDelayed(task, delayMs);
+        }
+      };
+
+  /** Highest priority first, and then in order of submission. */
+  private static final Comparator<Job> JOB_ORDER =
+      (a, b) -> {
+        int result = Integer.compare(b.priority, a.priority);
+        return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+      };
+
+  private final Executor worker;
+  @Nullable private final CaptureManager captureManager;
+  private final Clock clock;
+  private final Object lock = new Object();
+  // Queued jobs. Guarded by lock.
+  private final TreeSet<Job> queue = new TreeSet<>(JOB_ORDER);
+  // Queued and running jobs by path. Guarded by lock.
+  private final Map<String, Job> jobs = new HashMap<>();
+  // Guarded by lock.
+  private long nextSequence;
+  // Whether a timer will run the queued jobs once recording may have finished. Guarded by lock.
+  private boolean retryPending;
+
+  /**
+   * @param worker The executor which runs the jobs, which should have a single thread.
+   * @param captureManager The capture manager, whose recordings and live streams take priority
+   *     over checksums, or null to compute checksums at any time.
+   * @param clock The time source.
+   */
+  ChecksumScheduler(Executor worker, @Nullable CaptureManager captureManager, Clock clock) {
+    this.worker = worker;
+    this.captureManager = captureManager;
+    this.clock = clock;
+  }
+
+  /**
+   * Queues a computation for a file, or raises the priority of the job which is already queued or
+   * running for the file.
+   *
+   * @param priority One of the priorities of {@link FileChecksumProvider}.
+   */
+  void submit(String path, int priority, Task task) {
+    synchronized (lock) {
+      Job job = jobs.get(path);
+      if (job != null) {
+        if (priority > job.priority) {
+          boolean isQueued = queue.remove(job);
+          job.priority = priority;
+          if (isQueued) {
+            queue.add(job);
+          }
+        }
+        return;
+      }
+      job = new Job(path, task, priority);
+      jobs.put(path, job);
+      enqueue(job);
+    }
+    worker.execute(this::runJobs);
+  }
+
+  /** Cancels the queued or running job for a file, if there is one. */
+  void cancel(String path) {
+    synchronized (lock) {
+      Job job = jobs.remove(path);
+      if (job != null) {
+        job.cancelled = true;
+        queue.remove(job);
+      }
+    }
+  }
+
+  /**
+   * Called by running jobs between parts of their computation. Waits while a requested job is
+   * throttled.
+   *
+   * @return Whether the job may continue. If not, the job should return, and is queued again unless
+   *     it was cancelled.
+   */
+  boolean awaitTurn(Job job) {
+    if (job.cancelled || job.stopped) {
+      return false;
+    }
+    if (job.priority < FileChecksumProvider.PRIORITY_REQUESTED && shouldYield()) {
+      job.stopped = true;
+      return false;
+    }
+    if (isRecording()) {
+      long pauseMs;
+      synchronized (job) {
+        pauseMs = (clock.elapsedMillis() - job.turnStartMs) * RECORDING_PAUSE_RATIO;
+      }
+      try {
+        clock.sleep(pauseMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        job.stopped = true;
+        return false;
+      }
+      synchronized (job) {
+        job.turnStartMs = clock.elapsedMillis();
+      }
+    }
+    return !job.cancelled;
+  }
+
+  @VisibleForTesting
+  boolean hasPendingJobs() {
+    synchronized (lock) {
+      return !jobs.isEmpty();
+    }
+  }
+
+  // Runs the queued jobs in order. Returns when only background jobs are left while recording, and
+  // schedules a retry for them, so that the worker is free for requested jobs in the meantime.
+  private void runJobs() {
+    while (true) {
+      Job job;
+      synchronized (lock) {
+        if (queue.isEmpty()) {
+          return;
+        }
+        job = queue.first();
+        if (job.priority < FileChecksumProvider.PRIORITY_REQUESTED && isRecording()) {
+          if (!retryPending) {
+            retryPending = true;
+            clock.postDelayed(this::retryJobs, RECORDING_POLL_MS);
+          }
+          return;
+        }
+        queue.remove(job);
+      }
+      runJob(job);
+    }
+  }
+
+  private void retryJobs() {
+    synchronized (lock) {
+      retryPending = false;
+    }
+    worker.execute(this::runJobs);
+  }
+
+  private void runJob(Job job) {
+    synchronized (job) {
+      job.turnStartMs = clock.elapsedMillis();
+    }
+    job.stopped = false;
+    try {
+      job.task.run(job);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Checksum computation failed: " + job.path, e);
+    }
+
+    synchronized (lock) {
+      if (job.stopped && !job.cancelled) {
+        enqueue(job);
+      } else if (jobs.get(job.path) == job) {
+        jobs.remove(job.path);
+      }
+    }
+  }
+
+  // Whether a background job should stop for recording or for requested jobs.
+  private boolean shouldYield() {
+    if (isRecording()) {
+      return true;
+    }
+    synchronized (lock) {
+      return !queue.isEmpty()
+          && queue.first().priority >= FileChecksumProvider.PRIORITY_REQUESTED;
+    }
+  }
+
+  private boolean isRecording() {
+    return captureManager != null && captureManager.isRecording();
+  }
+
+  // Called with lock.
+  private void enqueue(Job job) {
+    job.sequence = nextSequence++;
+    queue.add(job);
+  }
+}
@@ -0,0 +1,331 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
+import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
+import com.google.vr180.CameraApi.Media;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+
+/**
+ * A sorted in-memory index of the media items on the camera, newest first, which is kept current by
+ * incremental updates.
+ *
+ * <p>Each update gets a new change token, and the index remembers the latest change of each item,
+ * so that clients can list only the items changed since an earlier response. Deleted items are
+ * remembered up to a limit, after which older tokens can no longer be answered. Pages continue
+ * after the position of the last item of the previous page, so that concurrent updates don't make
+ * clients skip or repeat items.
+ */
+final class MediaIndex {
+  /** A media item with its media store ID. */
+  static final class Item {
+    public final long mediaStoreId;
+    public final Media media;
+
+    Item(long mediaStoreId, Media media) {
+      this.mediaStoreId = mediaStoreId;
+      this.media = media;
+    }
+  }
+
+  // A position in one of the orders of the index, which is also the format of page tokens.
+  private static final class Position {
+    public final long key;
+    public final String filename;
+
+    Position(long key, String filename) {
+      this.key = key;
+      this.filename = filename;
+    }
+
+    @Nullable
+    static Position parse(String token) {
+      int separator = token.indexOf(TOKEN_SEPARATOR);
+      if (separator < 0) {
+        return null;
+      }
+      try {
+        return new Position(
+            Long.parseLong(token.substring(0, separator)), token.substring(separator + 1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return key + TOKEN_SEPARATOR + filename;
+    }
+  }
+
+  private static final String TOKEN_SEPARATOR = ":";
+
+  /** Newest first, and then by filename, so that the order is total. */
+  private static final Comparator<Item> MEDIA_ORDER =
+      (a, b) -> {
+        int result = Long.compare(b.media.getTimestamp(), a.media.getTimestamp());
+        return result != 0 ? result : a.media.getFilename().compareTo(b.media.getFilename());
+      };
+
+  /** Oldest change first, and then by filename. */
+  private static final Comparator<Position> CHANGE_ORDER =
+      (a, b) -> {
+        int result = Long.compare(a.key, b.key);
+        return result != 0 ? result : a.filename.compareTo(b.filename);
+      };
+
+  private final int maxDeletions;
+  private final Map<String, Item> itemsByFilename = new HashMap<>();
+  private final Map<Long, String> filenamesById = new HashMap<>();
+  private final TreeSet<Item> sortedItems = new TreeSet<>(MEDIA_ORDER);
+  // The latest change of each item, including the deleted items which are remembered.
+  private final TreeSet<Position> changes = new TreeSet<>(CHANGE_ORDER);
+  private final Map<String, Long> changeTokensByFilename = new HashMap<>();
+  private final TreeSet<Position> deletions = new TreeSet<>(CHANGE_ORDER);
+  private long changeToken;
+  // Tokens before this one can't be answered, because some of the changes since were forgotten.
+  private long oldestChangeToken;
+  // The sorted items as a list, for requests by index. Null when out of date.
+  @Nullable private List<Item> itemList;
+
+  /** @param maxDeletions The number of deleted items to remember for change requests. */
+  MediaIndex(int maxDeletions) {
+    this(maxDeletions, System.currentTimeMillis() * 1000);
+  }
+
+  /**
+   * @param maxDeletions The number of deleted items to remember for change requests.
+   * @param initialChangeToken The change token of the empty index, which must be greater than the
+   *     tokens of earlier indexes, so that clients can't confuse them.
+   */
+  @VisibleForTesting
+  MediaIndex(int maxDeletions, long initialChangeToken) {
+    this.maxDeletions = maxDeletions;
+    changeToken = initialChangeToken;
+    oldestChangeToken = initialChangeToken;
+  }
+
+  /** Returns the number of items. */
+  synchronized int size() {
+    return sortedItems.size();
+  }
+
+  /** Returns the token of the latest change. */
+  synchronized long getChangeToken() {
+    return changeToken;
+  }
+
+  /** Adds or updates an item, identified by its filename. */
+  synchronized void put(long mediaStoreId, Media media) {
+    if (putItem(mediaStoreId, media, changeToken + 1)) {
+      changeToken++;
+    }
+  }
+
+  /** Removes the item with a filename, if it is indexed. */
+  synchronized void remove(String filename) {
+    if (removeItem(filename, changeToken + 1)) {
+      changeToken++;
+    }
+  }
+
+  /** Removes the item with a media store ID, if it is indexed. */
+  synchronized void removeById(long mediaStoreId) {
+    String filename = filenamesById.get(mediaStoreId);
+    if (filename != null) {
+      remove(filename);
+    }
+  }
+
+  /**
+   * Updates the index to contain exactly the given items, as one change. Unchanged items keep their
+   * change tokens.
+   */
+  synchronized void replaceAll(List<Item> items) {
+    long token = changeToken + 1;
+    boolean changed = false;
+    Map<String, Item> newItems = new HashMap<>();
+    for (Item item : items) {
+      newItems.put(item.media.getFilename(), item);
+    }
+    for (String filename : new ArrayList<>(itemsByFilename.keySet())) {
+      if (!newItems.containsKey(filename)) {
+        changed |= removeItem(filename, token);
+      }
+    }
+    for (Item item : newItems.values()) {
+      changed |= putItem(item.mediaStoreId, item.media, token);
+    }
+    if (changed) {
+      changeToken = token;
+    }
+  }
+
+  /**
+   * Lists items for a LIST_MEDIA request, without checksums.
+   *
+   * @return The response, or null if the page token of the request is not valid.
+   */
+  @Nullable
+  synchronized ListMediaResponse.Builder list(ListMediaRequest request) {
+    ListMediaResponse.Builder response =
+        ListMediaResponse.newBuilder()
+            .setTotalCount(sortedItems.size())
+            .setChangeToken(changeToken);
+    long count = request.hasMediaCount() ? request.getMediaCount() : Long.MAX_VALUE;
+    Position after = null;
+    if (request.hasPageToken()) {
+      after = Position.parse(request.getPageToken());
+      if (after == null) {
+        return null;
+      }
+    }
+    if (request.hasChangedSince()) {
+      listChanges(request.getChangedSince(), after, count, response);
+    } else {
+      listItems(request.getStartIndex(), after, count, response);
+    }
+    return response;
+  }
+
+  private void listItems(
+      long startIndex, @Nullable Position after, long count, ListMediaResponse.Builder response) {
+    Iterator<Item> items;
+    if (after != null) {
+      Media position =
+          Media.newBuilder().setTimestamp(after.key).setFilename(after.filename).build();
+      items = sortedItems.tailSet(new Item(0, position), false).iterator();
+    } else {
+      List<Item> list = getItemList();
+      int start = (int) Math.min(Math.max(startIndex, 0), list.size());
+      items = list.subList(start, list.size()).iterator();
+    }
+    Item last = null;
+    for (long i = 0; i < count && items.hasNext(); i++) {
+      last = items.next();
+      response.addMedia(last.media);
+    }
+    if (last != null && items.hasNext()) {
+      response.setNextPageToken(
+          new Position(last.media.getTimestamp(), last.media.getFilename()).toString());
+    }
+  }
+
+  private void listChanges(
+      long changedSince,
+      @Nullable Position after,
+      long count,
+      ListMediaResponse.Builder response) {
+    if (changedSince < oldestChangeToken || changedSince > changeToken) {
+      response.setChangesUnavailable(true);
+      return;
+    }
+    Iterator<Position> changed;
+    if (after != null && after.key >= changedSince) {
+      changed = changes.tailSet(after, false).iterator();
+    } else {
+      // The empty filename is before all others.
+      changed = changes.tailSet(new Position(changedSince + 1, ""), true).iterator();
+    }
+    Position last = null;
+    for (long i = 0; i < count && changed.hasNext(); i++) {
+      last = changed.next();
+      Item item = itemsByFilename.get(last.filename);
+      if (item != null) {
+        response.addMedia(item.media);
+      } else {
+        response.addDeletedFilename(last.filename);
+      }
+    }
+    if (last != null && changed.hasNext()) {
+      response.setNextPageToken(last.toString());
+    }
+  }
+
+  // Returns whether the item was added or changed.
+  private boolean putItem(long mediaStoreId, Media media, long token) {
+    String filename = media.getFilename();
+    Item previous = itemsByFilename.get(filename);
+    if (previous != null && previous.mediaStoreId == mediaStoreId && previous.media.equals(media)) {
+      return false;
+    }
+    if (previous != null) {
+      removeIndexedItem(previous);
+    }
+    Item item = new Item(mediaStoreId, media);
+    itemsByFilename.put(filename, item);
+    filenamesById.put(mediaStoreId, filename);
+    sortedItems.add(item);
+    setChange(filename, token, false);
+    itemList = null;
+    return true;
+  }
+
+  // Returns whether the item was indexed.
+  private boolean removeItem(String filename, long token) {
+    Item item = itemsByFilename.remove(filename);
+    if (item == null) {
+      return false;
+    }
+    removeIndexedItem(item);
+    setChange(filename, token, true);
+    itemList = null;
+    while (deletions.size() > maxDeletions) {
+      Position forgotten = deletions.pollFirst();
+      changes.remove(forgotten);
+      changeTokensByFilename.remove(forgotten.filename);
+      oldestChangeToken = Math.max(oldestChangeToken, forgotten.key);
+    }
+    return true;
+  }
+
+  private void removeIndexedItem(Item item) {
+    sortedItems.remove(item);
+    if (item.media.getFilename().equals(filenamesById.get(item.mediaStoreId))) {
+      filenamesById.remove(item.mediaStoreId);
+    }
+  }
+
+  // Replaces the latest change of an item.
+  private void setChange(String filename, long token, boolean isDeletion) {
+    Long previousToken = changeTokensByFilename.put(filename, token);
+    if (previousToken != null) {
+      Position previous = new Position(previousToken, filename);
+      changes.remove(previous);
+      deletions.remove(previous);
+    }
+    Position change = new Position(token, filename);
+    changes.add(change);
+    if (isDeletion) {
+      deletions.add(change);
+    }
+  }
+
+  private List<Item> getItemList() {
+    if (itemList == null) {
+      itemList = new ArrayList<>(sortedItems);
+    }
+    return itemList;
+  }
+}
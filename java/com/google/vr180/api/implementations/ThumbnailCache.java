@@ -0,0 +1,276 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import android.util.LruCache;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import com.google.vr180.common.logging.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.annotation.Nullable;
+
+/**
+ * A cache of encoded thumbnails, so that the chunks of a thumbnail are served from one render.
+ *
+ * <p>Thumbnails are keyed by the path, size and last modified time of the media file, and the
+ * width, height and quality of the request, so that changed files get new thumbnails. Recently used
+ * thumbnails are kept in memory, and all thumbnails are kept on disk up to a size budget, evicting
+ * the least recently used ones. Concurrent requests for the same thumbnail wait for a single
+ * generation.
+ */
+public class ThumbnailCache {
+  private static final String TAG = "ThumbnailCache";
+  private static final String EXTENSION = ".webp";
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  /** Generates the encoded thumbnail of a media file. */
+  public interface ThumbnailGenerator {
+    /** Returns the encoded thumbnail, or null if it can't be generated. */
+    @Nullable
+    byte[] generateThumbnail(ThumbnailRequest request);
+  }
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final ThumbnailGenerator generator;
+  private final LruCache<String, byte[]> memoryCache;
+  // Sizes of the thumbnail files by name, in least recently used order. Guarded by diskIndex.
+  private final LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+  private long diskBytes;
+  private boolean diskIndexLoaded;
+  // Generations in progress by key, which concurrent requests wait for. Guarded by pendingLoads.
+  private final Map<String, FutureTask<byte[]>> pendingLoads = new HashMap<>();
+
+  /**
+   * @param directory The directory for thumbnail files, which is created if needed.
+   * @param maxDiskBytes The size budget of the thumbnail files.
+   * @param maxMemoryBytes The size budget of the thumbnails kept in memory.
+   * @param generator Generates thumbnails which are not cached.
+   */
+  public ThumbnailCache(
+      File directory, long maxDiskBytes, int maxMemoryBytes, ThumbnailGenerator generator) {
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    this.generator = generator;
+    memoryCache =
+        new LruCache<String, byte[]>(maxMemoryBytes) {
+          @Override
+          protected int sizeOf(String key, byte[] value) {
+            return value.length;
+          }
+        };
+  }
+
+  /** Returns the encoded thumbnail for the request, or null if it can't be generated. */
+  @Nullable
+  public byte[] getThumbnail(ThumbnailRequest request) {
+    File file = new File(request.getFilename());
+    if (!file.isFile()) {
+      return generator.generateThumbnail(request);
+    }
+    String key = getKey(request, file.length(), file.lastModified());
+    byte[] thumbnail = memoryCache.get(key);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+
+    FutureTask<byte[]> load;
+    boolean isOwner = false;
+    synchronized (pendingLoads) {
+      load = pendingLoads.get(key);
+      if (load == null) {
+        load = new FutureTask<>(() -> load(key, request));
+        pendingLoads.put(key, load);
+        isOwner = true;
+      }
+    }
+    if (isOwner) {
+      try {
+        load.run();
+      } finally {
+        synchronized (pendingLoads) {
+          pendingLoads.remove(key);
+        }
+      }
+    }
+    try {
+      return load.get();
+    } catch (ExecutionException e) {
+      Log.e(TAG, "Failed to load thumbnail: " + request.getFilename(), e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /** Removes all cached thumbnails. */
+  public void clear() {
+    memoryCache.evictAll();
+    synchronized (diskIndex) {
+      loadDiskIndex();
+      for (String name : diskIndex.keySet()) {
+        new File(directory, name).delete();
+      }
+      diskIndex.clear();
+      diskBytes = 0;
+    }
+  }
+
+  @VisibleForTesting
+  long getDiskBytes() {
+    synchronized (diskIndex) {
+      loadDiskIndex();
+      return diskBytes;
+    }
+  }
+
+  // Reads the thumbnail from disk, or generates and saves it.
+  @Nullable
+  private byte[] load(String key, ThumbnailRequest request) {
+    // A concurrent load may have finished while this one was starting.
+    byte[] thumbnail = memoryCache.get(key);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+    String name = getFileName(key);
+    thumbnail = readFile(name);
+    if (thumbnail == null) {
+      thumbnail = generator.generateThumbnail(request);
+      if (thumbnail == null || thumbnail.length == 0) {
+        return thumbnail;
+      }
+      writeFile(name, thumbnail);
+    }
+    memoryCache.put(key, thumbnail);
+    return thumbnail;
+  }
+
+  @Nullable
+  private byte[] readFile(String name) {
+    synchronized (diskIndex) {
+      loadDiskIndex();
+      if (diskIndex.get(name) == null) {
+        return null;
+      }
+    }
+    File file = new File(directory, name);
+    try {
+      byte[] thumbnail = Files.toByteArray(file);
+      // The modified time keeps the order of use across restarts.
+      file.setLastModified(System.currentTimeMillis());
+      return thumbnail;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read thumbnail file: " + file, e);
+      synchronized (diskIndex) {
+        Long size = diskIndex.remove(name);
+        if (size != null) {
+          diskBytes -= size;
+        }
+      }
+      file.delete();
+      return null;
+    }
+  }
+
+  private void writeFile(String name, byte[] thumbnail) {
+    File file = new File(directory, name);
+    File tempFile = new File(directory, name + TEMP_EXTENSION);
+    try {
+      Files.write(thumbnail, tempFile);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write thumbnail file: " + file, e);
+      tempFile.delete();
+      return;
+    }
+    synchronized (diskIndex) {
+      if (!tempFile.renameTo(file)) {
+        Log.e(TAG, "Failed to rename thumbnail file: " + file);
+        tempFile.delete();
+        return;
+      }
+      Long previousSize = diskIndex.put(name, (long) thumbnail.length);
+      diskBytes += thumbnail.length - (previousSize == null ? 0 : previousSize);
+      trimDisk();
+    }
+  }
+
+  // Deletes the least recently used files until the rest fit the budget. Called with diskIndex.
+  private void trimDisk() {
+    Iterator<Map.Entry<String, Long>> iterator = diskIndex.entrySet().iterator();
+    while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      new File(directory, eldest.getKey()).delete();
+      diskBytes -= eldest.getValue();
+      iterator.remove();
+    }
+  }
+
+  // Lists the thumbnail files in order of use, once. Called with diskIndex.
+  private void loadDiskIndex() {
+    if (diskIndexLoaded) {
+      return;
+    }
+    diskIndexLoaded = true;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.e(TAG, "Unable to create thumbnail directory: " + directory);
+      return;
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    for (File file : files) {
+      if (file.getName().endsWith(EXTENSION)) {
+        diskIndex.put(file.getName(), file.length());
+        diskBytes += file.length();
+      } else {
+        // A thumbnail which was not completely written.
+        file.delete();
+      }
+    }
+    trimDisk();
+  }
+
+  private static String getKey(ThumbnailRequest request, long size, long lastModified) {
+    return request.getFilename()
+        + "|"
+        + size
+        + "|"
+        + lastModified
+        + "|"
+        + request.getWidth()
+        + "x"
+        + request.getHeight()
+        + "|"
+        + request.getQuality();
+  }
+
+  private static String getFileName(String key) {
+    return Hashing.sha1().hashString(key, StandardCharsets.UTF_8) + EXTENSION;
+  }
+}
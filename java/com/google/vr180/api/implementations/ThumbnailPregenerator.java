@@ -0,0 +1,189 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Process;
+import android.support.v4.content.LocalBroadcastManager;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import com.google.vr180.api.camerainterfaces.CaptureManager;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates the thumbnails of newly captured media in the background, so that the first request
+ * for them is served from the {@link ThumbnailCache}.
+ *
+ * <p>Thumbnails are generated one at a time on a low priority thread, and wait while the camera is
+ * recording. Deleting a file cancels the thumbnails it is still waiting for.
+ */
+public class ThumbnailPregenerator {
+  private static final String TAG = "ThumbnailPregenerator";
+
+  /** The thumbnail sizes prepared for new media, without filenames. */
+  private static final List<ThumbnailRequest> DEFAULT_SIZES =
+      Arrays.asList(
+          ThumbnailRequest.newBuilder().setWidth(256).setHeight(256).setQuality(80).build(),
+          ThumbnailRequest.newBuilder().setWidth(512).setHeight(512).setQuality(80).build());
+  private static final long RECORDING_POLL_MS = 1000;
+
+  private final Context context;
+  private final ThumbnailCache cache;
+  private final CaptureManager captureManager;
+  private final List<ThumbnailRequest> sizes;
+  private final long recordingPollMs;
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          runnable ->
+              new Thread(
+                  () -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                  },
+                  TAG));
+  // Cancellation flags of the files with thumbnails to generate. Guarded by pendingFiles.
+  private final Map<String, AtomicBoolean> pendingFiles = new HashMap<>();
+
+  private final BroadcastReceiver receiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          String path = intent.getStringExtra(MediaStoreUtil.EXTRA_PATH);
+          if (path == null) {
+            return;
+          }
+          if (MediaStoreUtil.ACTION_MEDIA_FINALIZED.equals(intent.getAction())) {
+            onMediaFinalized(path);
+          } else if (MediaStoreUtil.ACTION_MEDIA_DELETED.equals(intent.getAction())) {
+            onMediaDeleted(path);
+          }
+        }
+      };
+
+  /**
+   * @param context The application context, whose {@link LocalBroadcastManager} delivers the
+   *     finalized and deleted media broadcasts.
+   * @param cache The cache to generate thumbnails into.
+   * @param captureManager The capture manager, whose recordings take priority over thumbnails.
+   */
+  public ThumbnailPregenerator(
+      Context context, ThumbnailCache cache, CaptureManager captureManager) {
+    this(context, cache, captureManager, DEFAULT_SIZES, RECORDING_POLL_MS);
+  }
+
+  @VisibleForTesting
+  ThumbnailPregenerator(
+      Context context,
+      ThumbnailCache cache,
+      CaptureManager captureManager,
+      List<ThumbnailRequest> sizes,
+      long recordingPollMs) {
+    this.context = context;
+    this.cache = cache;
+    this.captureManager = captureManager;
+    this.sizes = sizes;
+    this.recordingPollMs = recordingPollMs;
+  }
+
+  /** Starts listening for finalized and deleted media. */
+  public void start() {
+    IntentFilter filter = new IntentFilter(MediaStoreUtil.ACTION_MEDIA_FINALIZED);
+    filter.addAction(MediaStoreUtil.ACTION_MEDIA_DELETED);
+    LocalBroadcastManager.getInstance(context).registerReceiver(receiver, filter);
+  }
+
+  /** Stops listening for media and cancels the thumbnails that were not generated. */
+  public void stop() {
+    LocalBroadcastManager.getInstance(context).unregisterReceiver(receiver);
+    synchronized (pendingFiles) {
+      for (AtomicBoolean cancelled : pendingFiles.values()) {
+        cancelled.set(true);
+      }
+      pendingFiles.clear();
+    }
+    executor.shutdown();
+  }
+
+  /** Queues the thumbnails of a newly captured file. */
+  public void onMediaFinalized(String path) {
+    AtomicBoolean cancelled = new AtomicBoolean();
+    synchronized (pendingFiles) {
+      if (pendingFiles.containsKey(path)) {
+        return;
+      }
+      pendingFiles.put(path, cancelled);
+    }
+    executor.execute(() -> generateThumbnails(path, cancelled));
+  }
+
+  /** Cancels the thumbnails of a deleted file which have not been generated. */
+  public void onMediaDeleted(String path) {
+    synchronized (pendingFiles) {
+      AtomicBoolean cancelled = pendingFiles.remove(path);
+      if (cancelled != null) {
+        cancelled.set(true);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  boolean hasPendingThumbnails() {
+    synchronized (pendingFiles) {
+      return !pendingFiles.isEmpty();
+    }
+  }
+
+  private void generateThumbnails(String path, AtomicBoolean cancelled) {
+    for (ThumbnailRequest size : sizes) {
+      if (!waitWhileRecording(cancelled) || !new File(path).isFile()) {
+        break;
+      }
+      if (cache.getThumbnail(size.toBuilder().setFilename(path).build()) == null) {
+        Log.e(TAG, "Unable to generate thumbnail: " + path);
+        break;
+      }
+    }
+    synchronized (pendingFiles) {
+      if (pendingFiles.get(path) == cancelled) {
+        pendingFiles.remove(path);
+      }
+    }
+  }
+
+  // Returns false if the thumbnails were cancelled while waiting.
+  private boolean waitWhileRecording(AtomicBoolean cancelled) {
+    while (!cancelled.get() && captureManager.isRecording()) {
+      try {
+        Thread.sleep(recordingPollMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return !cancelled.get();
+  }
+}
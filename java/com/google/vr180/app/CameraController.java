@@ -31,11 +31,14 @@ import com.google.vr180.api.CameraCore;
 import com.google.vr180.api.camerainterfaces.CameraInterfaceFactory;
 import com.google.vr180.api.camerainterfaces.CameraSettings;
 import com.google.vr180.api.camerainterfaces.CapabilitiesProvider;
+import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
 import com.google.vr180.api.camerainterfaces.FileProvider;
 import com.google.vr180.api.camerainterfaces.SslManager;
 import com.google.vr180.api.camerainterfaces.StorageStatusProvider;
+import com.google.vr180.api.implementations.AndroidFileProvider;
 import com.google.vr180.api.implementations.AndroidStorageStatusProvider;
 import com.google.vr180.api.implementations.BroadcastStatusNotifier;
+import com.google.vr180.api.implementations.CachedFileChecksumProvider;
 import com.google.vr180.api.implementations.SelfSignedSslManager;
 import com.google.vr180.api.implementations.Settings;
 import com.google.vr180.api.implementations.StatusNotificationChannel;
@@ -61,6 +64,7 @@ import com.google.vr180.communication.http.HttpSocketServer;
 import com.google.vr180.communication.http.MediaDownloadHandler;
 import com.google.vr180.device.DeviceInfo;
 import com.google.vr180.media.metadata.ProjectionMetadataProvider;
+import com.google.vr180.media.muxer.MediaMuxFactory;
 import io.reactivex.Observable;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.schedulers.Schedulers;
@@ -150,12 +154,19 @@ public class CameraController implements CameraCore {
                 cameraCoreListener.onInternalError();
               }
             });
+    // Shared by the media listing and the media downloads.
+    CachedFileChecksumProvider fileChecksumProvider =
+        new CachedFileChecksumProvider(
+            context, new AndroidFileProvider(context, storageStatusProvider), captureManager);
+    // Videos are hashed while they are written, so their checksums are ready when they are listed.
+    MediaMuxFactory.getInstance().setChecksumListener(fileChecksumProvider::onChecksumComputed);
     interfaceFactory =
         new CameraInterfaceFactoryImpl(
             context,
             capabilitiesProvider,
             captureManager,
             storageStatusProvider,
+            fileChecksumProvider,
             logger,
             sslManager,
             captureManager.getViewfinderCaptureSource(),
@@ -175,7 +186,8 @@ public class CameraController implements CameraCore {
 
     // Set up the HTTP API server.
     httpSocketServer =
-        createHttpsServer(sslManager, apiHandler, interfaceFactory.getFileProvider());
+        createHttpsServer(
+            sslManager, apiHandler, interfaceFactory.getFileProvider(), fileChecksumProvider);
 
     // Set up notification channels
     notificationChannel.addStatusNotifier(
@@ -325,12 +337,16 @@ public class CameraController implements CameraCore {
   }
 
   private HttpSocketServer createHttpsServer(
-      SslManager sslManager, CameraApiHandler apiHandler, FileProvider fileProvider) {
+      SslManager sslManager,
+      CameraApiHandler apiHandler,
+      FileProvider fileProvider,
+      FileChecksumProvider fileChecksumProvider) {
     AuthorizationValidator authValidator = new AuthorizationValidator(cameraSettings);
     Map<String, HttpRequestHandler> handlerMap = new HashMap<String, HttpRequestHandler>();
     handlerMap.put(CAMERA_API_URL, new HttpCameraApiHandler(apiHandler, authValidator));
     handlerMap.put(
-        MediaDownloadHandler.PREFIX + "*", new MediaDownloadHandler(fileProvider, authValidator));
+        MediaDownloadHandler.PREFIX + "*",
+        new MediaDownloadHandler(fileProvider, fileChecksumProvider, authValidator));
     HttpService httpService = HttpServiceFactory.constructHttpService(handlerMap);
     return new HttpSocketServer(context, httpService, sslManager.getServerSocketFactory());
   }
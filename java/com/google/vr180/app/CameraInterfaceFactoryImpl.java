@@ -19,6 +19,7 @@ import com.google.vr180.api.camerainterfaces.CameraSettings;
 import com.google.vr180.api.camerainterfaces.CapabilitiesProvider;
 import com.google.vr180.api.camerainterfaces.CaptureManager;
 import com.google.vr180.api.camerainterfaces.DebugLogsProvider;
+import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
 import com.google.vr180.api.camerainterfaces.PairingManager;
 import com.google.vr180.api.camerainterfaces.SslManager;
 import com.google.vr180.api.camerainterfaces.StatusNotifier;
@@ -35,7 +36,6 @@ import com.google.vr180.api.implementations.AndroidMobileNetworkManager;
 import com.google.vr180.api.implementations.AndroidNetworkManager;
 import com.google.vr180.api.implementations.AndroidWakeManager;
 import com.google.vr180.api.implementations.BaseCameraInterfaceFactory;
-import com.google.vr180.api.implementations.CachedFileChecksumProvider;
 import com.google.vr180.api.implementations.MemoryDebugLogsProvider;
 import com.google.vr180.api.implementations.ViewfinderManager;
 import com.google.vr180.api.implementations.WifiDirectHotspotManager;
@@ -60,6 +60,7 @@ public class CameraInterfaceFactoryImpl extends BaseCameraInterfaceFactory {
       CapabilitiesProvider capabilitiesProvider,
       CaptureManager captureManager,
       StorageStatusProvider storageStatusProvider,
+      FileChecksumProvider fileChecksumProvider,
       MemoryLogger logger,
       SslManager sslManager,
       ViewfinderCaptureSource viewfinderCaptureSource,
@@ -82,10 +83,10 @@ public class CameraInterfaceFactoryImpl extends BaseCameraInterfaceFactory {
         new AndroidMediaProvider(
             context,
             storageStatusProvider,
-            new CachedFileChecksumProvider(
-                context, new AndroidFileProvider(context, storageStatusProvider)),
+            fileChecksumProvider,
             cameraSettings.getCameraCalibration(),
-            statusChangeNotifier),
+            statusChangeNotifier,
+            captureManager),
         new AndroidNetworkManager(context, httpServerPort, sslManager, statusChangeNotifier),
         new AndroidMobileNetworkManager(context, statusChangeNotifier),
         pairingManager,
@@ -19,16 +19,24 @@ import android.hardware.camera2.CaptureResult;
 import android.media.MediaScannerConnection;
 import android.os.Build;
 import com.google.common.collect.ImmutableMap;
+import com.google.vr180.capture.calibration.CalibrationDataFormat;
+import com.google.vr180.capture.calibration.CalibrationDataWriter;
 import com.google.vr180.capture.motion.MotionCaptureSource;
 import com.google.vr180.capture.video.VideoCaptureSource;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.media.motion.MotionEvent;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.EnumMap;
 
-/** A class for recording camera calibration data. */
+/**
+ * A class for recording camera calibration data. IMU samples and frame timestamps are written in
+ * the binary {@link CalibrationDataFormat}, which keeps up with the sensors at full rate, and can
+ * be converted to text with {@link com.google.vr180.capture.calibration.CalibrationDataReader}.
+ */
 public class CalibrationRecorder
     implements MotionCaptureSource.MotionEventListener, VideoCaptureSource.CaptureResultCallback {
 
@@ -43,13 +51,31 @@ public class CalibrationRecorder
 
   private static final ImmutableMap<DataType, String> FILENAMES =
       ImmutableMap.of(
-          DataType.ACCEL, "accel_data.txt",
-          DataType.GYRO, "gyro_data.txt",
-          DataType.FRAME, "calibration_frame_timestamps.txt",
+          DataType.ACCEL, "accel_data.bin",
+          DataType.GYRO, "gyro_data.bin",
+          DataType.FRAME, "calibration_frame_timestamps.bin",
           DataType.METADATA, "metadata.txt");
 
+  private static final String[] IMU_COLUMN_NAMES = {"timestamp_ns", "x", "y", "z"};
+  private static final byte[] IMU_COLUMN_TYPES = {
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32
+  };
+  private static final String[] FRAME_COLUMN_NAMES = {
+    "timestamp_ns", "frame_number", "exposure_time_ns", "rolling_shutter_skew_ns"
+  };
+  private static final byte[] FRAME_COLUMN_TYPES = {
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_INT64
+  };
+
   private final Context context;
-  private final EnumMap<DataType, BufferedWriter> writers;
+  private final EnumMap<DataType, CalibrationDataWriter> writers;
+  private BufferedWriter metadataWriter;
   private final EnumMap<DataType, String> filepaths;
   private final VideoCaptureSource videoCaptureSource;
   private final MotionCaptureSource motionCaptureSource;
@@ -62,11 +88,11 @@ public class CalibrationRecorder
     this.context = context;
     this.videoCaptureSource = videoCaptureSource;
     this.motionCaptureSource = motionCaptureSource;
-    writers = new EnumMap<DataType, BufferedWriter>(DataType.class);
+    writers = new EnumMap<DataType, CalibrationDataWriter>(DataType.class);
     filepaths = new EnumMap<DataType, String>(DataType.class);
   }
 
-  public boolean open(String outputDir) {
+  public synchronized boolean open(String outputDir) {
     File dir = new File(outputDir);
     if (!dir.exists()) {
       Log.e(TAG, "Calibration output directory does not exist: " + outputDir);
@@ -85,7 +111,17 @@ public class CalibrationRecorder
       for (DataType type : DataType.values()) {
         String filename = String.format("%s/%s", outputDir, FILENAMES.get(type));
         filepaths.put(type, filename);
-        writers.put(type, new BufferedWriter(new FileWriter(filename)));
+        switch (type) {
+          case METADATA:
+            metadataWriter = new BufferedWriter(new FileWriter(filename));
+            break;
+          case FRAME:
+            writers.put(type, newWriter(filename, FRAME_COLUMN_NAMES, FRAME_COLUMN_TYPES));
+            break;
+          default:
+            writers.put(type, newWriter(filename, IMU_COLUMN_NAMES, IMU_COLUMN_TYPES));
+            break;
+        }
       }
       if (videoCaptureSource != null) {
         videoCaptureSource.setCaptureResultCallback(this, /* handler= */ null);
@@ -101,14 +137,16 @@ public class CalibrationRecorder
     return false;
   }
 
-  public void close() {
+  public synchronized void close() {
     if (isOpen()) {
       writeMetadata();
       // Close all the files.
-      for (BufferedWriter writer : writers.values()) {
+      for (CalibrationDataWriter writer : writers.values()) {
         tryClose(writer);
       }
       writers.clear();
+      tryClose(metadataWriter);
+      metadataWriter = null;
 
       // Scan the files so they are visible to the system immediately.
       MediaScannerConnection.scanFile(
@@ -125,7 +163,13 @@ public class CalibrationRecorder
     }
   }
 
-  private void tryClose(BufferedWriter writer) {
+  private static CalibrationDataWriter newWriter(String filename, String[] names, byte[] types)
+      throws IOException {
+    return new CalibrationDataWriter(
+        new File(filename), names, types, CalibrationDataWriter.DEFAULT_BLOCK_ROWS);
+  }
+
+  private void tryClose(Closeable writer) {
     if (writer != null) {
       try {
         writer.close();
@@ -135,8 +179,8 @@ public class CalibrationRecorder
     }
   }
 
-  public void writeMetadata() {
-    BufferedWriter writer = writers.get(DataType.METADATA);
+  public synchronized void writeMetadata() {
+    BufferedWriter writer = metadataWriter;
     tryWrite(writer, String.format("%s=%s", "DutSerial", Build.SERIAL));
     tryWrite(writer, String.format("%s=%s", "DutBuildFingerprint", Build.FINGERPRINT));
 
@@ -163,46 +207,70 @@ public class CalibrationRecorder
     }
   }
 
+  // Ends a row of a data file, closing the recorder on failure.
+  private void tryEndRow(CalibrationDataWriter writer) {
+    try {
+      writer.endRow();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write calibration data", e);
+      close();
+    }
+  }
+
   @Override
-  public void onCaptureResult(CaptureResult result) {
-    tryWrite(
-        writers.get(DataType.FRAME),
-        String.format(
-            "%d %d %d %d",
-            result.get(CaptureResult.SENSOR_TIMESTAMP),
-            result.getFrameNumber(),
-            result.get(CaptureResult.SENSOR_EXPOSURE_TIME),
-            result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW)));
+  public synchronized void onCaptureResult(CaptureResult result) {
+    CalibrationDataWriter writer = writers.get(DataType.FRAME);
+    if (writer == null) {
+      Log.e(TAG, "Attempting to write to inactive calibration recorder.");
+      return;
+    }
+    writer.putLong(0, getLong(result, CaptureResult.SENSOR_TIMESTAMP));
+    writer.putLong(1, result.getFrameNumber());
+    writer.putLong(2, getLong(result, CaptureResult.SENSOR_EXPOSURE_TIME));
+    writer.putLong(3, getLong(result, CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW));
+    tryEndRow(writer);
   }
 
   @Override
-  public void onMotionEvent(MotionEvent e) {
+  public synchronized void onMotionEvent(MotionEvent e) {
+    CalibrationDataWriter writer;
     switch (e.type) {
       case ACCELEROMETER:
         if (e.values.length < 3) {
           Log.e(TAG, "Invalid accel data.");
           return;
         }
-        tryWrite(
-            writers.get(DataType.ACCEL),
-            String.format("%d %a %a %a", e.timestamp, e.values[0], e.values[1], e.values[2]));
+        writer = writers.get(DataType.ACCEL);
+        if (writer != null) {
+          writer.putLong(0, e.timestamp);
+          writer.putFloat(1, e.values[0]);
+          writer.putFloat(2, e.values[1]);
+          writer.putFloat(3, e.values[2]);
+          tryEndRow(writer);
+        }
         break;
       case GYROSCOPE:
         if (e.values.length < 6) {
           Log.e(TAG, "Invalid gyro data.");
           return;
         }
-        tryWrite(
-            writers.get(DataType.GYRO),
-            String.format(
-                "%d %a %a %a",
-                e.timestamp,
-                e.values[0] - e.values[3],
-                e.values[1] - e.values[4],
-                e.values[2] - e.values[5]));
+        writer = writers.get(DataType.GYRO);
+        if (writer != null) {
+          writer.putLong(0, e.timestamp);
+          writer.putFloat(1, e.values[0] - e.values[3]);
+          writer.putFloat(2, e.values[1] - e.values[4]);
+          writer.putFloat(3, e.values[2] - e.values[5]);
+          tryEndRow(writer);
+        }
         break;
       default:
         break;
     }
   }
+
+  // Returns a long capture result value, or 0 if the result does not have it.
+  private static long getLong(CaptureResult result, CaptureResult.Key<Long> key) {
+    Long value = result.get(key);
+    return value != null ? value : 0;
+  }
 }
@@ -15,6 +15,7 @@
 package com.google.vr180.capture;
 
 import android.content.Context;
+import android.media.MediaFormat;
 import android.opengl.GLSurfaceView;
 import com.google.vr180.CameraApi.CameraCalibration;
 import com.google.vr180.CameraApi.CameraStatus.RecordingStatus.LiveStreamStatus;
@@ -32,6 +33,7 @@ import com.google.vr180.capture.camera.CameraCapture;
 import com.google.vr180.capture.camera.CameraConfigurator;
 import com.google.vr180.capture.camera.PreviewConfigProvider;
 import com.google.vr180.capture.motion.MotionCaptureSource;
+import com.google.vr180.capture.motion.MotionCaptureSource.LatencyMode;
 import com.google.vr180.capture.video.SurfaceVideoCaptureSource;
 import com.google.vr180.capture.video.SurfaceViewfinderCaptureSource;
 import com.google.vr180.common.logging.Log;
@@ -40,6 +42,7 @@ import com.google.vr180.device.DeviceInfo;
 import com.google.vr180.media.metadata.ProjectionMetadata;
 import com.google.vr180.media.metadata.ProjectionMetadataProvider;
 import com.google.vr180.media.metadata.VrMetadataInjector;
+import com.google.vr180.media.muxer.MediaMuxFactory;
 import java.util.Date;
 
 /** A implementation of CaptureManager. */
@@ -63,6 +66,7 @@ public class CaptureManagerImpl implements CaptureManager {
   private final CapturePathProvider capturePathProvider;
   private final CalibrationRecorder calibrationRecorder;
   private final FreeSpaceChecker freeSpaceChecker;
+  private final PreRollPolicy preRollPolicy;
   private ProjectionMetadata projectionMetadata;
   private boolean recording;
   private Date recordingStartTime;
@@ -84,6 +88,14 @@ public class CaptureManagerImpl implements CaptureManager {
     motionCaptureSource =
         new MotionCaptureSource(
             context, deviceInfo.deviceToImuTransform(), deviceInfo.getImuTimestampOffsetNs());
+    if (DebugConfig.getMotionViewfinderLatencyUs() > 0) {
+      motionCaptureSource.setLatencyBudget(
+          LatencyMode.VIEWFINDER, DebugConfig.getMotionViewfinderLatencyUs());
+    }
+    if (DebugConfig.getMotionRecordingLatencyUs() > 0) {
+      motionCaptureSource.setLatencyBudget(
+          LatencyMode.RECORDING, DebugConfig.getMotionRecordingLatencyUs());
+    }
     cameraCapture =
         new CameraCapture(
             context,
@@ -102,21 +114,33 @@ public class CaptureManagerImpl implements CaptureManager {
             context, videoCaptureSource, motionCaptureSource, status -> notifyCaptureError(status));
     freeSpaceChecker = new FreeSpaceChecker(storageStatusProvider);
     capturePathProvider = new CapturePathProvider(storageStatusProvider);
+    int minBatteryPercent = DebugConfig.getPreRollMinBatteryPercent();
+    int maxTemperatureC = DebugConfig.getPreRollMaxTemperatureC();
+    preRollPolicy =
+        new PreRollPolicy(
+            context,
+            DebugConfig.getPreRollMs(),
+            minBatteryPercent > 0 ? minBatteryPercent : PreRollPolicy.DEFAULT_MIN_BATTERY_PERCENT,
+            maxTemperatureC > 0
+                ? maxTemperatureC
+                : PreRollPolicy.DEFAULT_MAX_BATTERY_TEMPERATURE_C);
   }
 
   public void onResume() {
     Log.d(TAG, "onResume");
     cameraCapture.onResume();
     updateCaptureMode(getActiveCaptureMode());
-    motionCaptureSource.configureLatency(true);
+    motionCaptureSource.configureLatency(LatencyMode.VIEWFINDER);
     paused = false;
+    updatePreRoll();
   }
 
   public void onPause() {
     paused = true;
     Log.d(TAG, "onPause");
+    capturePipelineManager.stopPreRoll();
     stopCapture();
-    motionCaptureSource.configureLatency(false);
+    motionCaptureSource.configureLatency(LatencyMode.IDLE);
     cameraCapture.onPause();
   }
 
@@ -163,6 +187,10 @@ public class CaptureManagerImpl implements CaptureManager {
         notifyError("Failed to open calibration recorder.");
         return;
       }
+      MediaMuxFactory.getInstance().setFragmentedMp4Enabled(DebugConfig.isFragmentedMp4Enabled());
+      MediaMuxFactory.getInstance()
+          .setInterleaveWindow(
+              DebugConfig.getInterleaveWindowMs(), DebugConfig.isInterleaveOverflowDropped());
       capturePipelineManager.startCapture(
           MediaFormatFactory.createVideoFormat(captureMode.getConfiguredVideoMode()),
           MediaFormatFactory.createAudioFormat(captureMode.getConfiguredVideoMode()),
@@ -171,6 +199,8 @@ public class CaptureManagerImpl implements CaptureManager {
           null,
           new VrMetadataInjector(projectionMetadata));
       recording = true;
+      // Recorded motion is only needed by the time it is muxed, so the sensors can batch more.
+      motionCaptureSource.configureLatency(LatencyMode.RECORDING);
       freeSpaceChecker.scheduleRepeatingFreeSpaceCheck(
           () -> {
             stopCapture();
@@ -184,6 +214,11 @@ public class CaptureManagerImpl implements CaptureManager {
         errorCallback.onError();
         return;
       }
+      MediaMuxFactory.getInstance()
+          .setLiveArchivePath(
+              DebugConfig.isLiveArchiveEnabled()
+                  ? capturePathProvider.getVideoPath(recordingStartTime, false)
+                  : null);
       capturePipelineManager.startCapture(
           MediaFormatFactory.createVideoFormat(mode.getVideoMode()),
           MediaFormatFactory.createAudioFormat(mode.getVideoMode()),
@@ -213,6 +248,10 @@ public class CaptureManagerImpl implements CaptureManager {
       statusNotifier.notifyStatusChanged();
       settings.clearLiveEndPoint();
       calibrationRecorder.close();
+      if (!paused) {
+        motionCaptureSource.configureLatency(LatencyMode.VIEWFINDER);
+      }
+      updatePreRoll();
     }
   }
 
@@ -245,6 +284,7 @@ public class CaptureManagerImpl implements CaptureManager {
     settings.setActiveCaptureMode(mode);
     statusNotifier.notifyStatusChanged();
     updateCaptureMode(getActiveCaptureMode());
+    updatePreRoll();
   }
 
   @Override
@@ -269,6 +309,7 @@ public class CaptureManagerImpl implements CaptureManager {
     recordingStartTime = null;
     statusNotifier.notifyStatusChanged();
     errorCallback.onError();
+    updatePreRoll();
   }
 
   // Update preview configuration according to capture mode.
@@ -288,6 +329,28 @@ public class CaptureManagerImpl implements CaptureManager {
     videoCaptureSource.setStereoReprojectionConfig(projectionMetadata.stereoReprojectionConfig);
   }
 
+  // Keep the encoders running for the next video capture if the pre-roll policy allows it.
+  private synchronized void updatePreRoll() {
+    CaptureMode mode = getActiveCaptureMode();
+    if (paused
+        || recording
+        || mode.getActiveCaptureType() != CaptureType.VIDEO
+        || DebugConfig.isCalibrationEnabled()
+        || !preRollPolicy.shouldPreRoll()) {
+      capturePipelineManager.stopPreRoll();
+      return;
+    }
+    MediaFormat videoFormat = MediaFormatFactory.createVideoFormat(mode.getConfiguredVideoMode());
+    MediaFormat audioFormat = MediaFormatFactory.createAudioFormat(mode.getConfiguredVideoMode());
+    MediaFormat motionFormat = MediaFormatFactory.createMotionFormat(mode.getConfiguredVideoMode());
+    capturePipelineManager.startPreRoll(
+        videoFormat,
+        audioFormat,
+        motionFormat,
+        preRollPolicy.getPreRollMs(),
+        preRollPolicy.getCapacityBytes(videoFormat, audioFormat, motionFormat));
+  }
+
   public ViewfinderCaptureSource getViewfinderCaptureSource() {
     return viewfinderCaptureSource;
   }
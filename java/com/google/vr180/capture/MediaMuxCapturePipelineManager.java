@@ -37,8 +37,11 @@ import com.google.vr180.media.metadata.MetadataInjector;
 import com.google.vr180.media.motion.MotionEncoder;
 import com.google.vr180.media.motion.MotionEncoderFactory;
 import com.google.vr180.media.muxer.ChapteredFileMuxer;
+import com.google.vr180.media.muxer.FragmentedMp4Muxer;
 import com.google.vr180.media.muxer.MediaMux;
 import com.google.vr180.media.muxer.MediaMuxFactory;
+import com.google.vr180.media.muxer.PreRollMediaMux;
+import com.google.vr180.media.muxer.RtmpMuxer;
 import com.google.vr180.media.rtmp.RealClock;
 import com.google.vr180.media.video.VideoEncoder;
 import com.google.vr180.media.video.VideoEncoderFactory;
@@ -85,6 +88,10 @@ final class MediaMuxCapturePipelineManager {
   private MediaMux mediaMux;
   private boolean needPartialResultCleanup;
   private AbrController abrController;
+  private PreRollMediaMux preRollMux;
+  // The pre-roll muxer kept between captures, so its ring is not reallocated for each pre-roll.
+  private PreRollMediaMux idlePreRollMux;
+  private PreRollRequest preRollRequest;
 
   /** Whether the camera is currently capturing. */
   private boolean captureActive = false;
@@ -128,6 +135,91 @@ final class MediaMuxCapturePipelineManager {
                 videoFormat, audioFormat, motionFormat, targetUri, targetKey, metadataInjector));
   }
 
+  /**
+   * Keeps the encoders running into a pre-roll ring while no capture is active, so that the next
+   * capture starts with the given period before it was requested. The pre-roll is re-armed after
+   * each capture until {@link #stopPreRoll} is called.
+   */
+  public synchronized void startPreRoll(
+      final MediaFormat videoFormat,
+      final MediaFormat audioFormat,
+      final MediaFormat motionFormat,
+      final int preRollMs,
+      final int capacityBytes) {
+    Log.i(TAG, "startPreRoll " + preRollMs + " ms, " + capacityBytes + " bytes");
+    codecHandler.post(
+        () -> {
+          preRollRequest =
+              new PreRollRequest(videoFormat, audioFormat, motionFormat, preRollMs, capacityBytes);
+          if (!captureActive) {
+            doStartPreRoll();
+          }
+        });
+  }
+
+  /** Stops the pre-roll and releases its encoders and memory. An active capture continues. */
+  public synchronized void stopPreRoll() {
+    codecHandler.post(
+        () -> {
+          preRollRequest = null;
+          if (!captureActive && preRollMux != null) {
+            resetAll();
+          }
+          releaseIdlePreRoll();
+        });
+  }
+
+  private void doStartPreRoll() {
+    verifyBackground();
+    resetAll();
+    needPartialResultCleanup = false;
+
+    PreRollRequest request = preRollRequest;
+    int status = prepareAudioInput(request.audioFormat);
+    if (status == MediaConstants.STATUS_SUCCESS) {
+      int trackCount = request.motionFormat != null ? 3 : 2;
+      if (idlePreRollMux != null
+          && idlePreRollMux.hasConfiguration(
+              trackCount, request.preRollMs, request.capacityBytes)) {
+        preRollMux = idlePreRollMux;
+        idlePreRollMux = null;
+      } else {
+        releaseIdlePreRoll();
+        preRollMux = new PreRollMediaMux(trackCount, request.preRollMs, request.capacityBytes);
+      }
+      mediaMux = preRollMux;
+      status = mediaMux.prepare();
+    }
+    if (status == MediaConstants.STATUS_SUCCESS) {
+      status = prepareEncoders(request.videoFormat, request.audioFormat, request.motionFormat);
+    }
+    if (status == MediaConstants.STATUS_SUCCESS) {
+      status = startCodecPipeline();
+    }
+    if (status != MediaConstants.STATUS_SUCCESS) {
+      // Captures still work without the pre-roll, so don't report an error.
+      Log.e(TAG, "Could not start pre-roll: " + status);
+      preRollRequest = null;
+      resetAll();
+    }
+  }
+
+  // Starts the capture from the running pre-roll by attaching the muxer for the target to it.
+  private int attachPreRoll(String targetUri, String targetKey, MetadataInjector metadataInjector) {
+    // The encoders keep writing to the pre-roll muxer, which forwards to the new muxer.
+    mediaMux = null;
+    int status = prepareMuxer(targetUri, targetKey, metadataInjector);
+    MediaMux targetMux = mediaMux;
+    mediaMux = preRollMux;
+    if (status == MediaConstants.STATUS_SUCCESS && !preRollMux.attach(targetMux)) {
+      status = MediaConstants.STATUS_IO_ERROR;
+    }
+    if (targetMux != null && !preRollMux.isAttached()) {
+      targetMux.release();
+    }
+    return status;
+  }
+
   private void doStartCapture(
       MediaFormat videoFormat,
       MediaFormat audioFormat,
@@ -143,6 +235,20 @@ final class MediaMuxCapturePipelineManager {
       return;
     }
 
+    // Continue from the pre-roll if it runs. Live streams need rate control and start from scratch.
+    if (preRollMux != null
+        && !preRollMux.isAttached()
+        && !targetUri.startsWith(RtmpMuxer.SCHEME)) {
+      needPartialResultCleanup = true;
+      int status = attachPreRoll(targetUri, targetKey, metadataInjector);
+      if (status != MediaConstants.STATUS_SUCCESS) {
+        sendCaptureError(status);
+        return;
+      }
+      captureActive = true;
+      return;
+    }
+
     // Start clean for good measure.
     resetAll();
 
@@ -162,42 +268,13 @@ final class MediaMuxCapturePipelineManager {
       return;
     }
 
-    // Set up the audio encoder.
-    status = prepareAudioEncoder(audioFormat, mediaMux);
-    if (status != MediaConstants.STATUS_SUCCESS) {
-      sendCaptureError(status);
-      return;
-    }
-
-    // Set up the video encoder.
-    status = prepareVideoEncoder(videoFormat, mediaMux);
-    if (status != MediaConstants.STATUS_SUCCESS) {
-      sendCaptureError(status);
-      return;
-    }
-
-    // Set up the video source.
-    status = prepareVideoSource();
+    // Set up the encoders and sources.
+    status = prepareEncoders(videoFormat, audioFormat, motionFormat);
     if (status != MediaConstants.STATUS_SUCCESS) {
       sendCaptureError(status);
       return;
     }
 
-    // Set up the motion encoder.
-    if (motionFormat != null) {
-      status = prepareMotionEncoder(motionFormat, mediaMux);
-      if (status != MediaConstants.STATUS_SUCCESS) {
-        sendCaptureError(status);
-        return;
-      }
-      // Set up the motion source.
-      status = prepareMotionSource();
-      if (status != MediaConstants.STATUS_SUCCESS) {
-        sendCaptureError(status);
-        return;
-      }
-    }
-
     // Create AbrController if required.
     if (requiresAbrController()) {
       abrController =
@@ -222,6 +299,42 @@ final class MediaMuxCapturePipelineManager {
     captureActive = true;
   }
 
+  private int prepareEncoders(
+      MediaFormat videoFormat, MediaFormat audioFormat, MediaFormat motionFormat) {
+    // Set up the audio encoder.
+    int status = prepareAudioEncoder(audioFormat, mediaMux);
+    if (status != MediaConstants.STATUS_SUCCESS) {
+      return status;
+    }
+
+    // Set up the video encoder.
+    status = prepareVideoEncoder(videoFormat, mediaMux);
+    if (status != MediaConstants.STATUS_SUCCESS) {
+      return status;
+    }
+
+    // Set up the video source.
+    status = prepareVideoSource();
+    if (status != MediaConstants.STATUS_SUCCESS) {
+      return status;
+    }
+
+    // Set up the motion encoder.
+    if (motionFormat != null) {
+      status = prepareMotionEncoder(motionFormat, mediaMux);
+      if (status != MediaConstants.STATUS_SUCCESS) {
+        return status;
+      }
+      // Set up the motion source.
+      status = prepareMotionSource();
+      if (status != MediaConstants.STATUS_SUCCESS) {
+        return status;
+      }
+    }
+
+    return MediaConstants.STATUS_SUCCESS;
+  }
+
   public void stopCapture() {
     codecHandler.post(() -> doStopCapture());
   }
@@ -295,6 +408,11 @@ final class MediaMuxCapturePipelineManager {
     }
     needPartialResultCleanup = false;
     captureActive = false;
+
+    // Capture the pre-roll for the next capture.
+    if (preRollRequest != null) {
+      doStartPreRoll();
+    }
   }
 
   protected void finalize() throws Throwable {
@@ -349,6 +467,16 @@ final class MediaMuxCapturePipelineManager {
     if (status == MediaConstants.STATUS_SUCCESS) {
       return;
     }
+    if (preRollMux != null && !needPartialResultCleanup) {
+      // Only the pre-roll is running. Stop it instead of failing a capture that has not started.
+      Log.e(TAG, "Pre-roll error: " + status);
+      codecHandler.post(
+          () -> {
+            preRollRequest = null;
+            resetAll();
+          });
+      return;
+    }
     codecHandler.post(() -> resetAll());
     mainHandler.post(
         () -> {
@@ -393,7 +521,7 @@ final class MediaMuxCapturePipelineManager {
   }
 
   private boolean hasMotionComponentIfRequiredByMuxer() {
-    if (mediaMux instanceof ChapteredFileMuxer) {
+    if (isFileMuxer()) {
       return motionCaptureSource != null && motionEncoder != null;
     } else {
       // Muxer does not need motion component.
@@ -483,7 +611,11 @@ final class MediaMuxCapturePipelineManager {
   }
 
   private boolean requiresAbrController() {
-    return !(mediaMux instanceof ChapteredFileMuxer);
+    return !isFileMuxer();
+  }
+
+  private boolean isFileMuxer() {
+    return mediaMux instanceof ChapteredFileMuxer || mediaMux instanceof FragmentedMp4Muxer;
   }
 
   private void resetAbrController() {
@@ -574,10 +706,48 @@ final class MediaMuxCapturePipelineManager {
   }
 
   private void resetMuxer() {
-    if (mediaMux != null) {
+    if (mediaMux != null && mediaMux == preRollMux && preRollRequest != null) {
+      // Keep the pre-roll ring for the next pre-roll.
+      preRollMux.reset();
+      releaseIdlePreRoll();
+      idlePreRollMux = preRollMux;
+    } else if (mediaMux != null) {
       stopMuxer();
       mediaMux.release();
-      mediaMux = null;
+    }
+    mediaMux = null;
+    preRollMux = null;
+    if (preRollRequest == null) {
+      releaseIdlePreRoll();
+    }
+  }
+
+  private void releaseIdlePreRoll() {
+    if (idlePreRollMux != null) {
+      idlePreRollMux.release();
+      idlePreRollMux = null;
+    }
+  }
+
+  /** The configuration of the pre-roll. */
+  private static final class PreRollRequest {
+    final MediaFormat videoFormat;
+    final MediaFormat audioFormat;
+    final MediaFormat motionFormat;
+    final int preRollMs;
+    final int capacityBytes;
+
+    PreRollRequest(
+        MediaFormat videoFormat,
+        MediaFormat audioFormat,
+        MediaFormat motionFormat,
+        int preRollMs,
+        int capacityBytes) {
+      this.videoFormat = videoFormat;
+      this.audioFormat = audioFormat;
+      this.motionFormat = motionFormat;
+      this.preRollMs = preRollMs;
+      this.capacityBytes = capacityBytes;
     }
   }
 }
@@ -0,0 +1,115 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaFormat;
+import android.os.BatteryManager;
+import com.google.vr180.common.logging.Log;
+
+/**
+ * Decides whether video captures use a pre-roll. The pre-roll keeps the camera and the encoders
+ * running while no capture is active, which trades battery life and heat for not missing the start
+ * of a recording. It only runs while the battery is charging or above the minimum level, and while
+ * the battery is not hotter than the maximum temperature.
+ */
+final class PreRollPolicy {
+  private static final String TAG = "PreRollPolicy";
+
+  /** Default minimum battery level in percent. */
+  static final int DEFAULT_MIN_BATTERY_PERCENT = 30;
+  /** Default maximum battery temperature in degrees Celsius. */
+  static final int DEFAULT_MAX_BATTERY_TEMPERATURE_C = 40;
+
+  // Upper bound of the pre-roll ring.
+  private static final int MAX_CAPACITY_BYTES = 64 * 1024 * 1024;
+  // Headroom for bitrate overshoot and key frames on top of the nominal bitrate.
+  private static final int CAPACITY_HEADROOM_PERCENT = 150;
+
+  private final Context context;
+  private final int preRollMs;
+  private final int minBatteryPercent;
+  private final int maxBatteryTemperatureC;
+
+  /**
+   * @param preRollMs The pre-roll duration, or 0 to disable the pre-roll.
+   * @param minBatteryPercent The battery level below which the pre-roll stops when not charging.
+   * @param maxBatteryTemperatureC The battery temperature above which the pre-roll stops.
+   */
+  PreRollPolicy(
+      Context context, int preRollMs, int minBatteryPercent, int maxBatteryTemperatureC) {
+    this.context = context.getApplicationContext();
+    this.preRollMs = preRollMs;
+    this.minBatteryPercent = minBatteryPercent;
+    this.maxBatteryTemperatureC = maxBatteryTemperatureC;
+  }
+
+  int getPreRollMs() {
+    return preRollMs;
+  }
+
+  /** Returns whether the pre-roll may run now. */
+  boolean shouldPreRoll() {
+    if (preRollMs <= 0) {
+      return false;
+    }
+    Intent batteryStatus =
+        context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (batteryStatus == null) {
+      return true;
+    }
+    int temperatureDeciC = batteryStatus.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+    if (temperatureDeciC > maxBatteryTemperatureC * 10) {
+      Log.i(TAG, "Battery too hot for pre-roll: " + temperatureDeciC / 10.0f + "C");
+      return false;
+    }
+    if (batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+      return true;
+    }
+    int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    if (level >= 0 && scale > 0 && level * 100 < minBatteryPercent * scale) {
+      Log.i(TAG, "Battery too low for pre-roll: " + level * 100 / scale + "%");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the ring size for the given formats. The ring holds the pre-roll plus up to one key
+   * frame interval, since it always starts at a key frame.
+   */
+  int getCapacityBytes(MediaFormat... formats) {
+    long bitsPerSecond = 0;
+    long keyFrameIntervalMs = 0;
+    for (MediaFormat format : formats) {
+      if (format == null) {
+        continue;
+      }
+      if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+        bitsPerSecond += format.getInteger(MediaFormat.KEY_BIT_RATE);
+      }
+      if (format.containsKey(MediaFormat.KEY_I_FRAME_INTERVAL)) {
+        long intervalMs = format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) * 1000L;
+        keyFrameIntervalMs = Math.max(keyFrameIntervalMs, intervalMs);
+      }
+    }
+    long bytes = bitsPerSecond / 8 * (preRollMs + keyFrameIntervalMs) / 1000;
+    bytes = bytes * CAPACITY_HEADROOM_PERCENT / 100;
+    return (int) Math.min(MAX_CAPACITY_BYTES, bytes);
+  }
+}
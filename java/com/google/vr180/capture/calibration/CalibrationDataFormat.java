@@ -0,0 +1,61 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.calibration;
+
+import java.nio.ByteOrder;
+
+/**
+ * The binary calibration data format. All values are little endian.
+ *
+ * <pre>
+ * header:
+ *   int32   magic "VRCD"
+ *   int16   version
+ *   int16   column count
+ *   per column:
+ *     int8    type, TYPE_INT64 or TYPE_FLOAT32
+ *     int16   name length
+ *     byte[]  name, UTF-8
+ * blocks, until the end of the file:
+ *   int32   row count
+ *   per column, in header order:
+ *     the values of the column for each row, 8 bytes for TYPE_INT64 and 4 bytes for TYPE_FLOAT32
+ * </pre>
+ */
+public final class CalibrationDataFormat {
+  /** "VRCD" as a little-endian int. */
+  public static final int MAGIC = 'V' | ('R' << 8) | ('C' << 16) | ('D' << 24);
+  public static final short VERSION = 1;
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /** A column of 64-bit signed integers. */
+  public static final byte TYPE_INT64 = 0;
+  /** A column of 32-bit floats. */
+  public static final byte TYPE_FLOAT32 = 1;
+
+  private CalibrationDataFormat() {}
+
+  /** Returns the size of a value of the given type in bytes, or 0 for an unknown type. */
+  public static int getValueSize(byte type) {
+    switch (type) {
+      case TYPE_INT64:
+        return 8;
+      case TYPE_FLOAT32:
+        return 4;
+      default:
+        return 0;
+    }
+  }
+}
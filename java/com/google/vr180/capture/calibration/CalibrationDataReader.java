@@ -0,0 +1,233 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.calibration;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads files in the {@link CalibrationDataFormat} a block at a time, and converts them to the text
+ * form the calibration tools read: one row per line, with int64 values in decimal and float32
+ * values in hexadecimal floating point, separated by spaces.
+ *
+ * <p>Run as a program to convert files: {@code CalibrationDataReader <file.bin>...} writes each
+ * file next to it with a .txt extension.
+ */
+public final class CalibrationDataReader implements Closeable {
+  private static final String BINARY_EXTENSION = ".bin";
+  private static final String TEXT_EXTENSION = ".txt";
+
+  private final FileInputStream stream;
+  private final FileChannel channel;
+  private final int version;
+  private final String[] names;
+  private final byte[] types;
+  private final int rowBytes;
+  private final ByteBuffer rowCountBuffer = allocate(4);
+  private ByteBuffer block = allocate(0);
+  private int rowCount;
+  // Offset of each column in the current block.
+  private final int[] columnOffsets;
+
+  /** Opens the file and reads the header. */
+  public CalibrationDataReader(File file) throws IOException {
+    stream = new FileInputStream(file);
+    channel = stream.getChannel();
+    try {
+      ByteBuffer header = allocate(8);
+      read(header, /* allowEnd= */ false);
+      if (header.getInt() != CalibrationDataFormat.MAGIC) {
+        throw new IOException("Not a calibration data file: " + file);
+      }
+      version = header.getShort();
+      if (version < 1 || version > CalibrationDataFormat.VERSION) {
+        throw new IOException("Unsupported calibration data version: " + version);
+      }
+      int columnCount = header.getShort();
+      names = new String[columnCount];
+      types = new byte[columnCount];
+      columnOffsets = new int[columnCount];
+      int bytes = 0;
+      for (int i = 0; i < columnCount; i++) {
+        ByteBuffer column = allocate(3);
+        read(column, /* allowEnd= */ false);
+        types[i] = column.get();
+        if (CalibrationDataFormat.getValueSize(types[i]) == 0) {
+          throw new IOException("Unknown column type: " + types[i]);
+        }
+        bytes += CalibrationDataFormat.getValueSize(types[i]);
+        ByteBuffer name = allocate(column.getShort());
+        read(name, /* allowEnd= */ false);
+        names[i] = new String(name.array(), 0, name.limit(), StandardCharsets.UTF_8);
+      }
+      rowBytes = bytes;
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public String[] getColumnNames() {
+    return names.clone();
+  }
+
+  public byte[] getColumnTypes() {
+    return types.clone();
+  }
+
+  /**
+   * Reads the next block of rows.
+   *
+   * @return the number of rows in the block, or -1 at the end of the file
+   * @throws EOFException if the file ends within a block
+   */
+  public int readBlock() throws IOException {
+    rowCount = 0;
+    if (!read(rowCountBuffer, /* allowEnd= */ true)) {
+      return -1;
+    }
+    int rows = rowCountBuffer.getInt();
+    if (rows < 0 || (long) rows * rowBytes > Integer.MAX_VALUE) {
+      throw new IOException("Invalid block row count: " + rows);
+    }
+    if (block.capacity() < rows * rowBytes) {
+      block = allocate(rows * rowBytes);
+    }
+    block.clear();
+    block.limit(rows * rowBytes);
+    read(block, /* allowEnd= */ false);
+    int offset = 0;
+    for (int i = 0; i < types.length; i++) {
+      columnOffsets[i] = offset;
+      offset += rows * CalibrationDataFormat.getValueSize(types[i]);
+    }
+    rowCount = rows;
+    return rows;
+  }
+
+  /** Returns a value of an int64 column in the current block. */
+  public long getLong(int column, int row) {
+    checkRow(row);
+    if (types[column] != CalibrationDataFormat.TYPE_INT64) {
+      throw new IllegalArgumentException("Not an int64 column: " + column);
+    }
+    return block.getLong(columnOffsets[column] + row * 8);
+  }
+
+  /** Returns a value of a float32 column in the current block. */
+  public float getFloat(int column, int row) {
+    checkRow(row);
+    if (types[column] != CalibrationDataFormat.TYPE_FLOAT32) {
+      throw new IllegalArgumentException("Not a float32 column: " + column);
+    }
+    return block.getFloat(columnOffsets[column] + row * 4);
+  }
+
+  /** Writes the remaining rows as text. */
+  public void writeText(Writer writer) throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (readBlock() >= 0) {
+      for (int row = 0; row < rowCount; row++) {
+        line.setLength(0);
+        for (int column = 0; column < types.length; column++) {
+          if (column > 0) {
+            line.append(' ');
+          }
+          if (types[column] == CalibrationDataFormat.TYPE_INT64) {
+            line.append(getLong(column, row));
+          } else {
+            line.append(String.format("%a", getFloat(column, row)));
+          }
+        }
+        line.append('\n');
+        writer.write(line.toString());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  /** Converts the binary file to a text file. */
+  public static void convertToText(File binaryFile, File textFile) throws IOException {
+    try (CalibrationDataReader reader = new CalibrationDataReader(binaryFile);
+        Writer writer = new BufferedWriter(new FileWriter(textFile))) {
+      reader.writeText(writer);
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: CalibrationDataReader <file" + BINARY_EXTENSION + ">...");
+      System.exit(1);
+    }
+    boolean success = true;
+    for (String path : args) {
+      String textPath =
+          (path.endsWith(BINARY_EXTENSION)
+                  ? path.substring(0, path.length() - BINARY_EXTENSION.length())
+                  : path)
+              + TEXT_EXTENSION;
+      try {
+        convertToText(new File(path), new File(textPath));
+        System.out.println(path + " -> " + textPath);
+      } catch (IOException e) {
+        System.err.println("Failed to convert " + path + ": " + e.getMessage());
+        success = false;
+      }
+    }
+    System.exit(success ? 0 : 1);
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+    }
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocate(size).order(CalibrationDataFormat.BYTE_ORDER);
+  }
+
+  // Fills the buffer up to its limit and flips it. Returns false at the end of the file if allowed.
+  private boolean read(ByteBuffer buffer, boolean allowEnd) throws IOException {
+    buffer.position(0);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        if (allowEnd && buffer.position() == 0) {
+          return false;
+        }
+        throw new EOFException("Calibration data ends within a block or header");
+      }
+    }
+    buffer.flip();
+    return true;
+  }
+}
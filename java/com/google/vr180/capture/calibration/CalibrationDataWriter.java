@@ -0,0 +1,164 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.calibration;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rows of typed columns in the {@link CalibrationDataFormat}. Rows are collected in
+ * primitive column arrays and written a block at a time through a reused direct buffer, so adding
+ * a row does not allocate.
+ *
+ * <p>This class is not thread safe.
+ */
+public final class CalibrationDataWriter implements Closeable {
+  /** Default number of rows per block, about 2 seconds of samples at 2kHz. */
+  public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+  private final FileOutputStream stream;
+  private final FileChannel channel;
+  private final byte[] types;
+  private final int blockRows;
+  // The values of each column, in the array matching its type.
+  private final long[][] longColumns;
+  private final float[][] floatColumns;
+  private final ByteBuffer buffer;
+  private int rowCount;
+
+  /**
+   * Creates the file and writes the header.
+   *
+   * @param file the file to write, which is replaced if it exists
+   * @param names the name of each column
+   * @param types the {@link CalibrationDataFormat} type of each column
+   * @param blockRows the number of rows collected before they are written
+   */
+  public CalibrationDataWriter(File file, String[] names, byte[] types, int blockRows)
+      throws IOException {
+    if (names.length != types.length || blockRows < 1) {
+      throw new IllegalArgumentException("Invalid columns or block size");
+    }
+    this.types = types.clone();
+    this.blockRows = blockRows;
+    longColumns = new long[types.length][];
+    floatColumns = new float[types.length][];
+    int rowBytes = 0;
+    for (int i = 0; i < types.length; i++) {
+      switch (types[i]) {
+        case CalibrationDataFormat.TYPE_INT64:
+          longColumns[i] = new long[blockRows];
+          break;
+        case CalibrationDataFormat.TYPE_FLOAT32:
+          floatColumns[i] = new float[blockRows];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown column type: " + types[i]);
+      }
+      rowBytes += CalibrationDataFormat.getValueSize(types[i]);
+    }
+
+    byte[][] nameBytes = new byte[names.length][];
+    int headerBytes = 8;
+    for (int i = 0; i < names.length; i++) {
+      nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+      headerBytes += 3 + nameBytes[i].length;
+    }
+    buffer =
+        ByteBuffer.allocateDirect(Math.max(headerBytes, 4 + blockRows * rowBytes))
+            .order(CalibrationDataFormat.BYTE_ORDER);
+
+    stream = new FileOutputStream(file);
+    channel = stream.getChannel();
+    try {
+      buffer.putInt(CalibrationDataFormat.MAGIC);
+      buffer.putShort(CalibrationDataFormat.VERSION);
+      buffer.putShort((short) names.length);
+      for (int i = 0; i < names.length; i++) {
+        buffer.put(types[i]);
+        buffer.putShort((short) nameBytes[i].length);
+        buffer.put(nameBytes[i]);
+      }
+      writeBuffer();
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+  }
+
+  /** Sets a value of the current row in an int64 column. */
+  public void putLong(int column, long value) {
+    longColumns[column][rowCount] = value;
+  }
+
+  /** Sets a value of the current row in a float32 column. */
+  public void putFloat(int column, float value) {
+    floatColumns[column][rowCount] = value;
+  }
+
+  /** Ends the current row, and writes a block when it is full. */
+  public void endRow() throws IOException {
+    rowCount++;
+    if (rowCount == blockRows) {
+      flush();
+    }
+  }
+
+  /** Writes the complete rows that have not been written yet. */
+  public void flush() throws IOException {
+    if (rowCount == 0) {
+      return;
+    }
+    buffer.putInt(rowCount);
+    for (int column = 0; column < types.length; column++) {
+      if (types[column] == CalibrationDataFormat.TYPE_INT64) {
+        long[] values = longColumns[column];
+        for (int row = 0; row < rowCount; row++) {
+          buffer.putLong(values[row]);
+        }
+      } else {
+        float[] values = floatColumns[column];
+        for (int row = 0; row < rowCount; row++) {
+          buffer.putFloat(values[row]);
+        }
+      }
+    }
+    rowCount = 0;
+    writeBuffer();
+  }
+
+  /** Writes the remaining rows and closes the file. */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      stream.close();
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
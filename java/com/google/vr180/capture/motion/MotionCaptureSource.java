@@ -20,31 +20,60 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.os.Handler;
+import android.os.SystemClock;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.device.DebugConfig;
 import com.google.vr180.media.motion.MotionEvent;
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.Set;
+import com.google.vr180.media.motion.MotionEvent.CammType;
+import com.google.vr180.media.motion.MotionEventPool;
+import java.util.ArrayList;
 import javax.annotation.Nullable;
 
 /**
  * Implemenation of {@link SensorEventListener2} that performs sensor fusion of gyroscope and
- * accelerometer data to produce a camera orientation angle axis.
+ * accelerometer data to produce a camera orientation angle axis. The fusion runs on a {@link
+ * SensorFusionThread}, and motion events are delivered on the configured handler.
  */
 public class MotionCaptureSource implements SensorEventListener2 {
   private static final String TAG = "MotionCaptureSource";
   private static final int GYRO_BIAS_OFFSET = 3;
-  private static final int LATENCY_US_LOW = 100_000;
+  private static final int GYRO_VALUE_COUNT = 6;
   private static final int SAMPLE_INTERNVAL_US_HIGH = 1_000_000 / 50;
-  private static final int LATENCY_US_HIGH = 120_000_000;
   private static final int WARNING_INTERVAL_MS = SAMPLE_INTERNVAL_US_HIGH * 2 / 1000;
+  private static final int GYRO_INDEX = 0;
+  private static final int ACCEL_INDEX = 1;
+  private static final int MAGNETIC_INDEX = 2;
+  // Samples of a batch arrive back to back, so a longer gap between callbacks is a new wakeup.
+  private static final long WAKEUP_GAP_NS = 1_000_000L;
+  private static final long WAKEUP_LOG_INTERVAL_NS = 10_000_000_000L;
 
   public static final int DEFAULT_SAMPLE_INTERNVAL_US = 1_000_000 / 200;
+  /** Default report latency for {@link LatencyMode#VIEWFINDER}. */
+  public static final int DEFAULT_VIEWFINDER_LATENCY_US = 20_000;
+  /** Default report latency for {@link LatencyMode#RECORDING}. */
+  public static final int DEFAULT_RECORDING_LATENCY_US = 100_000;
+  /** Default report latency for {@link LatencyMode#IDLE}. */
+  public static final int DEFAULT_IDLE_LATENCY_US = 120_000_000;
 
-  /** Callback to notify client when new motion data is available. */
+  /**
+   * How long the sensor hub may batch samples in its FIFO before waking up the application
+   * processor. Each mode has its own report latency budget.
+   */
+  public enum LatencyMode {
+    /** The viewfinder and photo capture need recent orientations. */
+    VIEWFINDER,
+    /** Recorded motion is only needed by the time it is muxed. */
+    RECORDING,
+    /** Nothing needs motion right away, so the sensors run at a low rate with long batches. */
+    IDLE
+  }
+
+  /**
+   * Callback to notify client when new motion data is available. The event is recycled when the
+   * call returns, unless the listener takes ownership with {@link MotionEvent#retain}.
+   */
   public interface MotionEventListener {
     void onMotionEvent(MotionEvent e);
   }
@@ -55,14 +84,18 @@ public class MotionCaptureSource implements SensorEventListener2 {
     void onError(int errorCode);
   }
 
-  private final SensorManager sensorManager;
+  private final MotionSensorManager sensorManager;
   private final Sensor accelSensor;
   private final Sensor gyroSensor;
+  // Only recorded as extra CAMM data, so null unless that is enabled and the device has one.
+  @Nullable private final Sensor magneticSensor;
   private final SensorFusion filter;
   private final float[] gyroBias;
-  private final ArrayDeque<MotionEvent> gyroQueue;
-  private final ArrayDeque<MotionEvent> accelQueue;
-  private final Set<MotionEventListener> motionEventListeners;
+  private final SensorFusionThread fusionThread;
+  private final MotionEventPool eventPool;
+  private final ArrayList<MotionEventListener> motionEventListeners;
+  // Scratch space for gyro samples and their bias.
+  private final float[] gyroInput;
   private final long imuTimestampOffsetNs;
   private long timestampOffsetNs;
   private int sampleIntervalUs;
@@ -70,8 +103,17 @@ public class MotionCaptureSource implements SensorEventListener2 {
   private long lastGyroTimestamp = -1L;
   private long lastAccelTimestamp = -1L;
   private volatile boolean isActive;
-  private boolean lowLatency;
-  private boolean reconfigureAfterFlush;
+  private LatencyMode latencyMode = LatencyMode.VIEWFINDER;
+  private final int[] latencyBudgetsUs;
+  // The sampling period and report latency each sensor is registered with, by sensor index.
+  private final int[] registeredIntervalsUs = new int[3];
+  private final int[] registeredLatenciesUs = new int[3];
+  // Callback wakeups, only counted when enabled in the debug config.
+  private final boolean isWakeupLoggingEnabled;
+  private long wakeupLogStartNs;
+  private long lastCallbackNs;
+  private int wakeupCount;
+  private int callbackCount;
 
   public MotionCaptureSource(
       Context context, float[] deviceToImuTransform, long imuTimestampOffsetNs) {
@@ -80,50 +122,76 @@ public class MotionCaptureSource implements SensorEventListener2 {
 
   @VisibleForTesting
   public MotionCaptureSource(Context context, SensorFusion filter, long imuTimestampOffsetNs) {
+    this(
+        new MotionSensorManager(
+            (SensorManager) context.getSystemService(Context.SENSOR_SERVICE)),
+        filter,
+        imuTimestampOffsetNs);
+  }
+
+  @VisibleForTesting
+  MotionCaptureSource(
+      MotionSensorManager sensorManager, SensorFusion filter, long imuTimestampOffsetNs) {
+    this.sensorManager = sensorManager;
     this.filter = filter;
     this.imuTimestampOffsetNs = imuTimestampOffsetNs;
     filter.init();
-    sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
     accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
     gyroSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
+    magneticSensor =
+        DebugConfig.isExtraCammDataEnabled()
+            ? sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD)
+            : null;
     gyroBias = new float[3];
     timestampOffsetNs = imuTimestampOffsetNs;
-    gyroQueue = new ArrayDeque<>();
-    accelQueue = new ArrayDeque<>();
-    motionEventListeners = new HashSet<>();
+    eventPool = new MotionEventPool();
+    motionEventListeners = new ArrayList<>();
+    gyroInput = new float[GYRO_VALUE_COUNT];
     sampleIntervalUs = DEFAULT_SAMPLE_INTERNVAL_US;
+    latencyBudgetsUs = new int[LatencyMode.values().length];
+    latencyBudgetsUs[LatencyMode.VIEWFINDER.ordinal()] = DEFAULT_VIEWFINDER_LATENCY_US;
+    latencyBudgetsUs[LatencyMode.RECORDING.ordinal()] = DEFAULT_RECORDING_LATENCY_US;
+    latencyBudgetsUs[LatencyMode.IDLE.ordinal()] = DEFAULT_IDLE_LATENCY_US;
+    isWakeupLoggingEnabled = DebugConfig.isSensorWakeupLoggingEnabled();
+    fusionThread = new SensorFusionThread(filter, this::notifyMotionEvent);
   }
 
   /**
    * Sets the rate for sampling from the gyroscope and accelerometer
    *
-   * @param sampleRateHz the rate to sample the motion sensors for low-latency mode.
+   * @param sampleRateHz the rate to sample the motion sensors outside of {@link LatencyMode#IDLE}.
    * @param handler the handler with which to execute sensor and orientation callbacks
    */
   public synchronized boolean configure(int sampleRateHz, Handler handler) {
     this.sampleIntervalUs = (1000 * 1000) / sampleRateHz;
     this.handler = handler;
-    // Starts at low-latency mode.
-    Preconditions.checkArgument(
-        sensorManager.registerListener(
-            this, gyroSensor, sampleIntervalUs, LATENCY_US_LOW, handler));
-    Preconditions.checkArgument(
-        sensorManager.registerListener(
-            this, accelSensor, sampleIntervalUs, LATENCY_US_LOW, handler));
-    lowLatency = true;
+    fusionThread.setOutputHandler(handler);
+    registerSensor(gyroSensor);
+    registerSensor(accelSensor);
+    if (magneticSensor != null) {
+      registerSensor(magneticSensor);
+    }
     return true;
   }
 
+  /**
+   * Sets the report latency budget of a mode. Takes effect the next time the sensors switch to the
+   * mode.
+   */
+  public synchronized void setLatencyBudget(LatencyMode mode, int maxReportLatencyUs) {
+    latencyBudgetsUs[mode.ordinal()] = maxReportLatencyUs;
+  }
+
   /** Changes the latency of sensor reporting. */
-  public synchronized void configureLatency(boolean lowLatency) {
-    if (this.lowLatency == lowLatency) {
+  public synchronized void configureLatency(LatencyMode latencyMode) {
+    if (this.latencyMode == latencyMode) {
       return;
     }
-    this.lowLatency = lowLatency;
-    reconfigureAfterFlush = true;
+    this.latencyMode = latencyMode;
 
-    // Flush the readings and change latency when flush is done.
-    Log.i(TAG, "Change latency mode to " + (lowLatency ? "low" : "high"));
+    // Flush the readings and change latency when flush is done, so that no batched samples are
+    // lost when the sensors are registered again.
+    Log.i(TAG, "Change latency mode to " + latencyMode);
     if (!sensorManager.flush(this)) {
       Log.e(TAG, "Failed to flush SensorManger");
     }
@@ -132,8 +200,7 @@ public class MotionCaptureSource implements SensorEventListener2 {
   /** Start the motion source, enabling notifications to sensor and orientation event listeners. */
   public synchronized boolean start() {
     // Reset the filter whenever we start capture.
-    filter.recenter();
-    filter.setGyroBias(gyroBias);
+    fusionThread.requestRecenter(gyroBias);
     timestampOffsetNs = DebugConfig.isCalibrationEnabled() ? 0 : imuTimestampOffsetNs;
     isActive = true;
     return true;
@@ -145,15 +212,18 @@ public class MotionCaptureSource implements SensorEventListener2 {
    */
   public synchronized boolean stop() {
     // Stop sending sample updates, but keep reading and filtering sensor data.
-    reconfigureAfterFlush = false;
     sensorManager.flush(this);
     isActive = false;
     return true;
   }
 
   /** Releases the motion source, unregistering all senser listeners. */
-  public synchronized boolean release() {
-    sensorManager.unregisterListener(this);
+  public boolean release() {
+    synchronized (this) {
+      sensorManager.unregisterListener(this);
+    }
+    // Not holding the lock, since the fusion thread may be delivering events.
+    fusionThread.release();
     filter.release();
     return true;
   }
@@ -170,90 +240,162 @@ public class MotionCaptureSource implements SensorEventListener2 {
   @Override
   public synchronized void onFlushCompleted(final Sensor sensor) {
     Log.i(TAG, "onFlushCompleted #" + sensor.getType());
-    if (!reconfigureAfterFlush) {
+    int index = getSensorIndex(sensor);
+    if (index < 0
+        || (registeredIntervalsUs[index] == getSampleIntervalUs()
+            && registeredLatenciesUs[index] == latencyBudgetsUs[latencyMode.ordinal()])) {
       return;
     }
-
-    int intervalUs = lowLatency ? sampleIntervalUs : SAMPLE_INTERNVAL_US_HIGH;
-    int latencyUs = lowLatency ? LATENCY_US_LOW : LATENCY_US_HIGH;
     sensorManager.unregisterListener(this, sensor);
-
-    Log.i(TAG, "Changing #" + sensor.getType() + " to I=" + intervalUs + ",L=" + latencyUs);
-    Preconditions.checkArgument(
-        sensorManager.registerListener(this, sensor, intervalUs, latencyUs, handler));
+    registerSensor(sensor);
   }
 
   @Override
   public synchronized void onSensorChanged(SensorEvent event) {
-    // TODO: It might be more efficient to keep a queue of free and full buffer instead of
-    // allocating a new buffer every time. See MicInput.java
-    MotionEvent motionEvent =
-        new MotionEvent(
-            MotionEvent.getCammType(event.sensor.getType()), event.values, event.timestamp);
-    onMotionEvent(motionEvent);
+    if (isWakeupLoggingEnabled) {
+      countWakeup();
+    }
+    onSensorSample(MotionEvent.getCammType(event.sensor.getType()), event.values, event.timestamp);
   }
 
   @VisibleForTesting
   public void onMotionEvent(MotionEvent event) {
+    onSensorSample(event.type, event.values, event.timestamp);
+  }
+
+  // Queues a sensor sample for the fusion thread without allocating.
+  @VisibleForTesting
+  synchronized void onSensorSample(CammType type, float[] values, long timestamp) {
     long lastTimestamp = -1L;
-    switch (event.type) {
+    switch (type) {
       case GYROSCOPE:
-        if (event.timestamp > lastGyroTimestamp) {
-          updateGyroBias(event);
-          gyroQueue.addLast(event);
+        if (timestamp > lastGyroTimestamp) {
+          System.arraycopy(values, 0, gyroInput, 0, Math.min(values.length, gyroInput.length));
+          updateGyroBias(gyroInput);
+          fusionThread.addGyroSample(gyroInput, timestamp);
           lastTimestamp = lastGyroTimestamp;
-          lastGyroTimestamp = event.timestamp;
+          lastGyroTimestamp = timestamp;
           break;
         } else {
-          Log.e(TAG, "Gyro data went backward: " + lastGyroTimestamp + "->" + event.timestamp);
+          Log.e(TAG, "Gyro data went backward: " + lastGyroTimestamp + "->" + timestamp);
           return;
         }
       case ACCELEROMETER:
-        if (event.timestamp > lastAccelTimestamp) {
-          accelQueue.addLast(event);
+        if (timestamp > lastAccelTimestamp) {
+          fusionThread.addAccelSample(values, timestamp);
           lastTimestamp = lastAccelTimestamp;
-          lastAccelTimestamp = event.timestamp;
+          lastAccelTimestamp = timestamp;
           break;
         } else {
-          Log.e(TAG, "Accel data went backward: " + lastAccelTimestamp + "->" + event.timestamp);
+          Log.e(TAG, "Accel data went backward: " + lastAccelTimestamp + "->" + timestamp);
           return;
         }
+      case MAGNETIC_FIELD:
+        // Not fused, only merged into the output in timestamp order.
+        fusionThread.addMagneticSample(values, timestamp);
+        return;
       default:
         return;
     }
 
     // Give a warning about large timestamp jumps, which happends when changing latency.
-    long deltaMs = (event.timestamp - lastTimestamp) / 1_000_000L;
+    long deltaMs = (timestamp - lastTimestamp) / 1_000_000L;
     if (lastTimestamp >= 0 && deltaMs > WARNING_INTERVAL_MS) {
-      Log.w(TAG, "Time jump for #" + event.type + " @" + lastTimestamp + ": " + deltaMs + "ms");
+      Log.w(TAG, "Time jump for #" + type + " @" + lastTimestamp + ": " + deltaMs + "ms");
+    }
+  }
+
+  /** Waits until the queued samples are fused and delivered. Returns false on timeout. */
+  @VisibleForTesting
+  boolean awaitFusionIdle(long timeoutMillis) throws InterruptedException {
+    return fusionThread.awaitIdle(timeoutMillis);
+  }
+
+  @VisibleForTesting
+  Thread getFusionThread() {
+    return fusionThread.getThread();
+  }
+
+  /**
+   * Estimates how often a sensor wakes up the application processor. Without a FIFO every sample
+   * is a wakeup, otherwise a batch is reported when the latency budget runs out or the FIFO fills.
+   */
+  @VisibleForTesting
+  static float estimateWakeupsPerSecond(
+      int samplingPeriodUs, int maxReportLatencyUs, int fifoMaxEventCount) {
+    long batchPeriodUs = samplingPeriodUs;
+    if (fifoMaxEventCount > 1 && maxReportLatencyUs > samplingPeriodUs) {
+      batchPeriodUs = Math.min(maxReportLatencyUs, (long) fifoMaxEventCount * samplingPeriodUs);
     }
+    return 1_000_000f / Math.max(1L, batchPeriodUs);
+  }
 
-    // TODO: Maybe proccess the buffer queues on a separate thread.
-    processEvents();
+  private int getSampleIntervalUs() {
+    return latencyMode == LatencyMode.IDLE ? SAMPLE_INTERNVAL_US_HIGH : sampleIntervalUs;
   }
 
-  private void processEvents() {
-    MotionEvent event = null;
-    while (!gyroQueue.isEmpty() && !accelQueue.isEmpty()) {
-      if (gyroQueue.getFirst().timestamp < accelQueue.getFirst().timestamp) {
-        event = gyroQueue.removeFirst();
-        filter.addGyroMeasurement(event.values, event.timestamp);
-        // Notify gyro update and orientation update.
-        maybeNotifyMotionEvent(event);
-        maybeNotifyMotionEvent(
-            new MotionEvent(
-                MotionEvent.CammType.ORIENTATION, filter.getOrientation(), event.timestamp));
-      } else {
-        event = accelQueue.removeFirst();
-        filter.addAccelMeasurement(event.values, event.timestamp);
-        maybeNotifyMotionEvent(event);
-      }
+  private int getSensorIndex(Sensor sensor) {
+    if (sensor == gyroSensor) {
+      return GYRO_INDEX;
+    } else if (sensor == accelSensor) {
+      return ACCEL_INDEX;
+    } else if (sensor != null && sensor == magneticSensor) {
+      return MAGNETIC_INDEX;
+    }
+    return -1;
+  }
+
+  private void registerSensor(Sensor sensor) {
+    int index = getSensorIndex(sensor);
+    int intervalUs = getSampleIntervalUs();
+    int latencyUs = latencyBudgetsUs[latencyMode.ordinal()];
+    Log.i(TAG, "Registering #" + sensor.getType() + " with I=" + intervalUs + ",L=" + latencyUs);
+    Preconditions.checkArgument(
+        sensorManager.registerListener(this, sensor, intervalUs, latencyUs, handler));
+    registeredIntervalsUs[index] = intervalUs;
+    registeredLatenciesUs[index] = latencyUs;
+    int fifoMaxEventCount = sensor.getFifoMaxEventCount();
+    Log.d(
+        TAG,
+        "Estimated wakeups for #"
+            + sensor.getType()
+            + " with FIFO of "
+            + fifoMaxEventCount
+            + ": "
+            + estimateWakeupsPerSecond(intervalUs, latencyUs, fifoMaxEventCount)
+            + "/s");
+  }
+
+  // Counts callbacks that follow a gap as wakeups, and logs the wakeup rate now and then.
+  private void countWakeup() {
+    long nowNs = SystemClock.elapsedRealtimeNanos();
+    if (callbackCount == 0) {
+      wakeupLogStartNs = nowNs;
+    }
+    if (callbackCount == 0 || nowNs - lastCallbackNs > WAKEUP_GAP_NS) {
+      wakeupCount++;
+    }
+    lastCallbackNs = nowNs;
+    callbackCount++;
+    long elapsedNs = nowNs - wakeupLogStartNs;
+    if (elapsedNs >= WAKEUP_LOG_INTERVAL_NS) {
+      Log.d(
+          TAG,
+          "Sensor wakeups in "
+              + latencyMode
+              + ": "
+              + wakeupCount * 1e9f / elapsedNs
+              + "/s, "
+              + (float) callbackCount / wakeupCount
+              + " samples per wakeup");
+      wakeupCount = 0;
+      callbackCount = 0;
     }
   }
 
   /** Adds a client to be notified when a new sensor data is available. */
   public synchronized void addMotionEventListener(MotionEventListener callback) {
-    if (callback != null) {
+    if (callback != null && !motionEventListeners.contains(callback)) {
       motionEventListeners.add(callback);
     }
   }
@@ -265,27 +407,29 @@ public class MotionCaptureSource implements SensorEventListener2 {
     }
   }
 
-  private void updateGyroBias(MotionEvent event) {
+  private void updateGyroBias(float[] values) {
     for (int i = 0; i < gyroBias.length; i++) {
       if (isActive) {
         // When capture is active override online gyro bias with the static gyro bias.
-        event.values[i + GYRO_BIAS_OFFSET] = gyroBias[i];
+        values[i + GYRO_BIAS_OFFSET] = gyroBias[i];
       } else {
         // When capture is inactive, update the static gyro bias.
-        gyroBias[i] = event.values[i + GYRO_BIAS_OFFSET];
+        gyroBias[i] = values[i + GYRO_BIAS_OFFSET];
       }
     }
   }
 
-  private void maybeNotifyMotionEvent(MotionEvent event) {
-    if (isActive) {
-      // Apply timestamp offset.
-      event.timestamp += timestampOffsetNs;
-      for (MotionEventListener listener : motionEventListeners) {
-        listener.onMotionEvent(event);
-      }
-      // Undo the timestamp offset.
-      event.timestamp -= timestampOffsetNs;
+  // Called with fused samples on the handler thread.
+  private synchronized void notifyMotionEvent(CammType type, float[] values, long timestamp) {
+    if (!isActive || motionEventListeners.isEmpty()) {
+      return;
+    }
+    // Apply timestamp offset.
+    MotionEvent event = eventPool.obtain(type, values, timestamp + timestampOffsetNs);
+    // Index the listeners, since an iterator would be allocated for every event.
+    for (int i = 0; i < motionEventListeners.size(); i++) {
+      motionEventListeners.get(i).onMotionEvent(event);
     }
+    event.release();
   }
 }
@@ -0,0 +1,115 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import java.util.Arrays;
+
+/**
+ * FIFO of timestamped sensor samples stored in primitive arrays. Each sample holds a fixed number
+ * of values, shorter samples are padded with zeros, and an int tag for the sample type. The ring
+ * doubles in size when full, so it only allocates while a new high-water mark is reached.
+ */
+final class MotionSampleRing {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int stride;
+  private long[] timestamps;
+  private int[] tags;
+  private float[] values;
+  private int head;
+  private int size;
+
+  MotionSampleRing(int stride) {
+    this.stride = stride;
+    timestamps = new long[INITIAL_CAPACITY];
+    tags = new int[INITIAL_CAPACITY];
+    values = new float[INITIAL_CAPACITY * stride];
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Appends a sample with a zero tag, copying up to {@code stride} values. */
+  void add(float[] sample, long timestamp) {
+    add(sample, 0, sample.length, timestamp, 0);
+  }
+
+  /** Appends a sample, copying up to {@code stride} values from {@code sample} at offset. */
+  void add(float[] sample, int offset, int length, long timestamp, int tag) {
+    if (size == timestamps.length) {
+      grow();
+    }
+    int index = (head + size) % timestamps.length;
+    timestamps[index] = timestamp;
+    tags[index] = tag;
+    int count = Math.min(length, stride);
+    System.arraycopy(sample, offset, values, index * stride, count);
+    Arrays.fill(values, index * stride + count, (index + 1) * stride, 0f);
+    size++;
+  }
+
+  /** Returns the timestamp of the oldest sample. The ring must not be empty. */
+  long peekTimestamp() {
+    return timestamps[head];
+  }
+
+  /** Returns the tag of the oldest sample. The ring must not be empty. */
+  int peekTag() {
+    return tags[head];
+  }
+
+  /**
+   * Removes the oldest sample, copying its values into {@code sample}, and returns its timestamp.
+   * The ring must not be empty.
+   */
+  long remove(float[] sample) {
+    long timestamp = timestamps[head];
+    System.arraycopy(values, head * stride, sample, 0, Math.min(sample.length, stride));
+    head = (head + 1) % timestamps.length;
+    size--;
+    return timestamp;
+  }
+
+  /** Moves all samples to the end of {@code other}, which must have the same stride. */
+  void transferTo(MotionSampleRing other) {
+    while (size > 0) {
+      other.add(values, head * stride, stride, timestamps[head], tags[head]);
+      head = (head + 1) % timestamps.length;
+      size--;
+    }
+  }
+
+  private void grow() {
+    int capacity = timestamps.length;
+    long[] newTimestamps = new long[capacity * 2];
+    int[] newTags = new int[capacity * 2];
+    float[] newValues = new float[capacity * 2 * stride];
+    for (int i = 0; i < size; i++) {
+      int index = (head + i) % capacity;
+      newTimestamps[i] = timestamps[index];
+      newTags[i] = tags[index];
+      System.arraycopy(values, index * stride, newValues, i * stride, stride);
+    }
+    timestamps = newTimestamps;
+    tags = newTags;
+    values = newValues;
+    head = 0;
+  }
+}
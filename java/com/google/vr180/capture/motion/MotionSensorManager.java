@@ -0,0 +1,57 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import javax.annotation.Nullable;
+
+/** The {@link SensorManager} calls of {@link MotionCaptureSource}, so tests can fake the sensors. */
+class MotionSensorManager {
+  private final SensorManager sensorManager;
+
+  MotionSensorManager(SensorManager sensorManager) {
+    this.sensorManager = sensorManager;
+  }
+
+  @Nullable
+  Sensor getDefaultSensor(int type) {
+    return sensorManager.getDefaultSensor(type);
+  }
+
+  boolean registerListener(
+      SensorEventListener2 listener,
+      Sensor sensor,
+      int samplingPeriodUs,
+      int maxReportLatencyUs,
+      @Nullable Handler handler) {
+    return sensorManager.registerListener(
+        listener, sensor, samplingPeriodUs, maxReportLatencyUs, handler);
+  }
+
+  void unregisterListener(SensorEventListener2 listener) {
+    sensorManager.unregisterListener(listener);
+  }
+
+  void unregisterListener(SensorEventListener2 listener, Sensor sensor) {
+    sensorManager.unregisterListener(listener, sensor);
+  }
+
+  boolean flush(SensorEventListener2 listener) {
+    return sensorManager.flush(listener);
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+/**
+ * A bounded, time-indexed history of orientations, which interpolates the orientation at any time
+ * between two samples. Orientations are angle axis (x,y,z) values, as in {@link
+ * com.google.vr180.media.motion.MotionEvent.CammType#ORIENTATION} events, and are stored as unit
+ * quaternions in primitive arrays. When the history is full, the oldest sample is overwritten.
+ *
+ * <p>This class is thread safe, and does not allocate after construction.
+ */
+public final class OrientationHistory {
+  // Below this angle, sin(angle) is replaced by angle to avoid dividing by zero.
+  private static final double SMALL_ANGLE = 1e-6;
+
+  private final int capacity;
+  private final long[] timestamps;
+  // x, y, z, w of each sample, with w >= 0 for the first sample and each sample in the same
+  // hemisphere as the previous one, so that interpolation takes the shortest path.
+  private final float[] quaternions;
+  private int head;
+  private int size;
+
+  /** @param capacity the maximum number of samples kept */
+  public OrientationHistory(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    timestamps = new long[capacity];
+    quaternions = new float[capacity * 4];
+  }
+
+  /**
+   * Adds the orientation at the given time. Samples that are not newer than the last sample are
+   * ignored.
+   *
+   * @param timestampNs the time of the sample
+   * @param angleAxis the orientation as an angle axis (x,y,z)
+   */
+  public synchronized void add(long timestampNs, float[] angleAxis) {
+    if (size > 0 && timestampNs <= timestamps[physicalIndex(size - 1)]) {
+      return;
+    }
+    int index;
+    if (size < capacity) {
+      index = physicalIndex(size);
+      size++;
+    } else {
+      index = head;
+      head = (head + 1) % capacity;
+    }
+    timestamps[index] = timestampNs;
+    int offset = index * 4;
+    angleAxisToQuaternion(angleAxis, quaternions, offset);
+    if (size > 1) {
+      int previous = physicalIndex(size - 2) * 4;
+      float dot = 0;
+      for (int i = 0; i < 4; i++) {
+        dot += quaternions[previous + i] * quaternions[offset + i];
+      }
+      if (dot < 0) {
+        for (int i = 0; i < 4; i++) {
+          quaternions[offset + i] = -quaternions[offset + i];
+        }
+      }
+    }
+  }
+
+  /** Removes all samples. */
+  public synchronized void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Gets the orientation at the given time, interpolated between the samples before and after it.
+   * Times outside of the history get the oldest or newest orientation.
+   *
+   * @param timestampNs the time to get the orientation for
+   * @param angleAxis receives the orientation as an angle axis (x,y,z), or zeros if the history is
+   *     empty
+   * @return whether the time is within the history
+   */
+  public synchronized boolean getOrientation(long timestampNs, float[] angleAxis) {
+    if (size == 0) {
+      angleAxis[0] = angleAxis[1] = angleAxis[2] = 0;
+      return false;
+    }
+    if (timestampNs <= timestamps[head]) {
+      quaternionToAngleAxis(quaternions, head * 4, angleAxis);
+      return timestampNs == timestamps[head];
+    }
+    int last = physicalIndex(size - 1);
+    if (timestampNs >= timestamps[last]) {
+      quaternionToAngleAxis(quaternions, last * 4, angleAxis);
+      return timestampNs == timestamps[last];
+    }
+
+    // Find the last sample at or before the time. The first sample is before it, and the last
+    // sample is after it.
+    int low = 0;
+    int high = size - 1;
+    while (high - low > 1) {
+      int middle = (low + high) >>> 1;
+      if (timestamps[physicalIndex(middle)] <= timestampNs) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+    int before = physicalIndex(low);
+    int after = physicalIndex(high);
+    double fraction =
+        (double) (timestampNs - timestamps[before]) / (timestamps[after] - timestamps[before]);
+    slerpToAngleAxis(before * 4, after * 4, fraction, angleAxis);
+    return true;
+  }
+
+  private int physicalIndex(int logicalIndex) {
+    return (head + logicalIndex) % capacity;
+  }
+
+  // Spherical linear interpolation between two stored quaternions in the same hemisphere.
+  private void slerpToAngleAxis(int from, int to, double fraction, float[] angleAxis) {
+    double dot = 0;
+    for (int i = 0; i < 4; i++) {
+      dot += (double) quaternions[from + i] * quaternions[to + i];
+    }
+    dot = Math.min(1.0, dot);
+    double theta = Math.acos(dot);
+    double fromWeight;
+    double toWeight;
+    if (theta < SMALL_ANGLE) {
+      // Nearly identical, where linear interpolation is as accurate.
+      fromWeight = 1 - fraction;
+      toWeight = fraction;
+    } else {
+      double sinTheta = Math.sin(theta);
+      fromWeight = Math.sin((1 - fraction) * theta) / sinTheta;
+      toWeight = Math.sin(fraction * theta) / sinTheta;
+    }
+    double x = fromWeight * quaternions[from] + toWeight * quaternions[to];
+    double y = fromWeight * quaternions[from + 1] + toWeight * quaternions[to + 1];
+    double z = fromWeight * quaternions[from + 2] + toWeight * quaternions[to + 2];
+    double w = fromWeight * quaternions[from + 3] + toWeight * quaternions[to + 3];
+    quaternionToAngleAxis(x, y, z, w, angleAxis);
+  }
+
+  private static void angleAxisToQuaternion(float[] angleAxis, float[] quaternion, int offset) {
+    double x = angleAxis[0];
+    double y = angleAxis[1];
+    double z = angleAxis[2];
+    double angle = Math.sqrt(x * x + y * y + z * z);
+    // sin(angle / 2) / angle, which tends to 1/2 for small angles.
+    double scale = angle < SMALL_ANGLE ? 0.5 : Math.sin(angle / 2) / angle;
+    quaternion[offset] = (float) (x * scale);
+    quaternion[offset + 1] = (float) (y * scale);
+    quaternion[offset + 2] = (float) (z * scale);
+    quaternion[offset + 3] = (float) Math.cos(angle / 2);
+  }
+
+  private static void quaternionToAngleAxis(float[] quaternion, int offset, float[] angleAxis) {
+    quaternionToAngleAxis(
+        quaternion[offset],
+        quaternion[offset + 1],
+        quaternion[offset + 2],
+        quaternion[offset + 3],
+        angleAxis);
+  }
+
+  private static void quaternionToAngleAxis(
+      double x, double y, double z, double w, float[] angleAxis) {
+    if (w < 0) {
+      // Use the rotation angle in [0, pi].
+      x = -x;
+      y = -y;
+      z = -z;
+      w = -w;
+    }
+    double sinHalfAngle = Math.sqrt(x * x + y * y + z * z);
+    double angle = 2 * Math.atan2(sinHalfAngle, w);
+    // angle / sin(angle / 2), which tends to 2 for small angles.
+    double scale = sinHalfAngle < SMALL_ANGLE ? 2 : angle / sinHalfAngle;
+    angleAxis[0] = (float) (x * scale);
+    angleAxis[1] = (float) (y * scale);
+    angleAxis[2] = (float) (z * scale);
+  }
+}
@@ -16,9 +16,10 @@ package com.google.vr180.capture.motion;
 
 /** A Java object wrapper for the native implementation of sensor fusion. */
 public class SensorFusion {
-  static {
-    System.loadLibrary("camera");
-  }
+  /** Measurement type of a gyroscope sample in {@link #addMeasurements}. */
+  public static final int MEASUREMENT_GYRO = 0;
+  /** Measurement type of an accelerometer sample in {@link #addMeasurements}. */
+  public static final int MEASUREMENT_ACCEL = 1;
 
   private final float[] deviceToImuTransform;
   private long nativeFilterPtr;
@@ -29,6 +30,7 @@ public class SensorFusion {
 
   /** Initialized the native sensor fusion. Must be called before this object can be used. */
   public void init() {
+    System.loadLibrary("camera");
     nativeFilterPtr = nativeInit(deviceToImuTransform);
   }
 
@@ -62,13 +64,42 @@ public class SensorFusion {
     nativeAddAccelMeasurement(nativeFilterPtr, sample, timestampNs);
   }
 
+  /**
+   * Adds a batch of measurements in order, crossing into native code once. The result is the same
+   * as adding each measurement on its own, and reading the orientation after each gyroscope
+   * measurement.
+   *
+   * @param count the number of measurements
+   * @param types the {@link #MEASUREMENT_GYRO} or {@link #MEASUREMENT_ACCEL} type of each
+   *     measurement
+   * @param samples 3 values per measurement, packed
+   * @param timestampsNs the timestamp (in ns) of each measurement
+   * @param orientations receives 3 values per measurement, packed, with the orientation after each
+   *     gyroscope measurement. Values for accelerometer measurements are left unchanged.
+   */
+  public void addMeasurements(
+      int count, int[] types, float[] samples, long[] timestampsNs, float[] orientations) {
+    nativeAddMeasurements(nativeFilterPtr, count, types, samples, timestampsNs, orientations);
+  }
+
   /**
    * Retrieves the sensor-fused device orientation converted to camera orientation coordinates.
    *
    * @return the camera coorindate orientation an angle axis (x,y,z)
    */
   public float[] getOrientation() {
-    return nativeGetOrientation(nativeFilterPtr);
+    float[] orientation = new float[3];
+    getOrientation(orientation);
+    return orientation;
+  }
+
+  /**
+   * Retrieves the sensor-fused device orientation without allocating.
+   *
+   * @param orientation receives the camera coordinate orientation as an angle axis (x,y,z)
+   */
+  public void getOrientation(float[] orientation) {
+    nativeGetOrientation(nativeFilterPtr, orientation);
   }
 
   /** Sets the gyro bias to use when filtering sensor samples. */
@@ -98,7 +129,15 @@ public class SensorFusion {
   private native void nativeAddAccelMeasurement(
       long nativeFilterPtr, float[] accel, long timestampNs);
 
-  private native float[] nativeGetOrientation(long nativeFilterPtr);
+  private native void nativeAddMeasurements(
+      long nativeFilterPtr,
+      int count,
+      int[] types,
+      float[] samples,
+      long[] timestampsNs,
+      float[] orientations);
+
+  private native void nativeGetOrientation(long nativeFilterPtr, float[] orientation);
 
   private native void nativeSetGyroBias(long nativeFilterPtr, float[] bias);
 
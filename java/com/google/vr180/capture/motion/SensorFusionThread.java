@@ -0,0 +1,365 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import android.os.Handler;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.media.motion.MotionEvent.CammType;
+import javax.annotation.Nullable;
+
+/**
+ * Runs {@link SensorFusion} on its own thread. Sensor callbacks only queue raw samples. The fusion
+ * thread merges the gyroscope and accelerometer samples in timestamp order, feeds them to the
+ * filter in batches, and hands the samples and the resulting orientations to the {@link Output} on
+ * the output handler. Magnetic field samples are not fused, and are merged into the output in
+ * timestamp order.
+ */
+final class SensorFusionThread {
+  private static final String TAG = "SensorFusionThread";
+  private static final String THREAD_NAME = "SensorFusionThread";
+  private static final long JOIN_WAIT_TIME_MILLIS = 250L;
+  private static final int INITIAL_BATCH_CAPACITY = 64;
+  private static final int GYRO_VALUE_COUNT = 6;
+  private static final int ACCEL_VALUE_COUNT = 3;
+  private static final int MAGNETIC_VALUE_COUNT = 3;
+  private static final int MEASUREMENT_VALUE_COUNT = 3;
+  private static final CammType[] CAMM_TYPES = CammType.values();
+
+  /** Receives fused samples, in timestamp order. */
+  interface Output {
+    /** The values are only valid for the duration of the call. */
+    void onFusedSample(CammType type, float[] values, long timestampNs);
+  }
+
+  private final SensorFusion filter;
+  private final Output output;
+  private final Thread thread;
+  private final Runnable deliverAction = () -> deliver();
+  private volatile Handler outputHandler;
+
+  // Samples queued by the sensor callbacks, guarded by inputLock.
+  private final Object inputLock = new Object();
+  private final MotionSampleRing pendingGyro = new MotionSampleRing(GYRO_VALUE_COUNT);
+  private final MotionSampleRing pendingAccel = new MotionSampleRing(ACCEL_VALUE_COUNT);
+  private final MotionSampleRing pendingMagnetic = new MotionSampleRing(MAGNETIC_VALUE_COUNT);
+  private final float[] pendingGyroBias = new float[3];
+  private boolean hasPendingInput;
+  private boolean isRecenterRequested;
+  private boolean isFusing;
+  private boolean isQuit;
+
+  // Accessed only by the fusion thread.
+  private final MotionSampleRing gyroQueue = new MotionSampleRing(GYRO_VALUE_COUNT);
+  private final MotionSampleRing accelQueue = new MotionSampleRing(ACCEL_VALUE_COUNT);
+  private final MotionSampleRing magneticQueue = new MotionSampleRing(MAGNETIC_VALUE_COUNT);
+  private final float[] gyroSample = new float[GYRO_VALUE_COUNT];
+  private final float[] accelSample = new float[ACCEL_VALUE_COUNT];
+  private final float[] magneticSample = new float[MAGNETIC_VALUE_COUNT];
+  private long lastOutputTimestampNs = -1L;
+  private final float[] gyroBias = new float[3];
+  private int[] batchTypes;
+  private long[] batchTimestamps;
+  private float[] batchSamples;
+  private float[] batchBiases;
+  private float[] batchOrientations;
+
+  // Fused samples tagged with their CammType ordinal, guarded by outputLock. The output ring is
+  // swapped with the empty delivery ring on delivery.
+  private final Object outputLock = new Object();
+  private MotionSampleRing outputQueue = new MotionSampleRing(GYRO_VALUE_COUNT);
+  private boolean isDeliveryScheduled;
+
+  // Accessed only while holding deliverLock.
+  private final Object deliverLock = new Object();
+  private MotionSampleRing deliveryQueue = new MotionSampleRing(GYRO_VALUE_COUNT);
+  private final float[] outputGyro = new float[GYRO_VALUE_COUNT];
+  private final float[] outputAccel = new float[ACCEL_VALUE_COUNT];
+  private final float[] outputMagnetic = new float[MAGNETIC_VALUE_COUNT];
+  private final float[] outputOrientation = new float[3];
+
+  SensorFusionThread(SensorFusion filter, Output output) {
+    this.filter = filter;
+    this.output = output;
+    allocateBatch(INITIAL_BATCH_CAPACITY);
+    thread = new Thread(() -> fusionLoop(), THREAD_NAME);
+    thread.start();
+  }
+
+  /**
+   * Sets the handler on which fused samples are delivered, or null to deliver them on the fusion
+   * thread.
+   */
+  void setOutputHandler(@Nullable Handler handler) {
+    outputHandler = handler;
+  }
+
+  /** Queues a gyroscope sample with the sensor values followed by the bias values. */
+  void addGyroSample(float[] values, long timestampNs) {
+    synchronized (inputLock) {
+      pendingGyro.add(values, timestampNs);
+      signalInput();
+    }
+  }
+
+  /** Queues an accelerometer sample. */
+  void addAccelSample(float[] values, long timestampNs) {
+    synchronized (inputLock) {
+      pendingAccel.add(values, timestampNs);
+      signalInput();
+    }
+  }
+
+  /** Queues a magnetic field sample. */
+  void addMagneticSample(float[] values, long timestampNs) {
+    synchronized (inputLock) {
+      pendingMagnetic.add(values, timestampNs);
+      signalInput();
+    }
+  }
+
+  /** Recenters the filter and sets its gyroscope bias before the next queued samples are fused. */
+  void requestRecenter(float[] bias) {
+    synchronized (inputLock) {
+      System.arraycopy(bias, 0, pendingGyroBias, 0, pendingGyroBias.length);
+      isRecenterRequested = true;
+      inputLock.notify();
+    }
+  }
+
+  /** Stops the fusion thread. Queued samples are dropped. */
+  void release() {
+    synchronized (inputLock) {
+      isQuit = true;
+      inputLock.notify();
+    }
+    while (true) {
+      try {
+        thread.join(JOIN_WAIT_TIME_MILLIS);
+        break;
+      } catch (InterruptedException e) {
+        // Ignore
+      }
+    }
+    if (thread.isAlive()) {
+      Log.e(TAG, "Fusion thread did not stop");
+    }
+  }
+
+  /**
+   * Waits until all queued samples that can be fused are fused and delivered. Returns false on
+   * timeout.
+   */
+  // Visible for testing.
+  boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (System.currentTimeMillis() < deadline) {
+      boolean isIdle;
+      synchronized (inputLock) {
+        isIdle = !hasPendingInput && !isRecenterRequested && !isFusing;
+      }
+      synchronized (outputLock) {
+        isIdle &= !isDeliveryScheduled;
+      }
+      if (isIdle) {
+        // Wait for a delivery in progress.
+        synchronized (deliverLock) {
+          return true;
+        }
+      }
+      Thread.sleep(1);
+    }
+    return false;
+  }
+
+  // Visible for testing.
+  Thread getThread() {
+    return thread;
+  }
+
+  private void signalInput() {
+    if (!hasPendingInput) {
+      hasPendingInput = true;
+      inputLock.notify();
+    }
+  }
+
+  private void fusionLoop() {
+    while (true) {
+      boolean recenter;
+      synchronized (inputLock) {
+        isFusing = false;
+        while (!hasPendingInput && !isRecenterRequested && !isQuit) {
+          try {
+            inputLock.wait();
+          } catch (InterruptedException e) {
+            Log.w(TAG, "Fusion thread interrupted");
+            return;
+          }
+        }
+        if (isQuit) {
+          return;
+        }
+        isFusing = true;
+        pendingGyro.transferTo(gyroQueue);
+        pendingAccel.transferTo(accelQueue);
+        pendingMagnetic.transferTo(magneticQueue);
+        hasPendingInput = false;
+        recenter = isRecenterRequested;
+        isRecenterRequested = false;
+        if (recenter) {
+          System.arraycopy(pendingGyroBias, 0, gyroBias, 0, gyroBias.length);
+        }
+      }
+      if (recenter) {
+        filter.recenter();
+        filter.setGyroBias(gyroBias);
+      }
+      fuseQueuedSamples();
+    }
+  }
+
+  // Merges the queued samples in timestamp order for as long as both sensors have samples, and
+  // feeds them to the filter in a single batch.
+  private void fuseQueuedSamples() {
+    int count = 0;
+    while (!gyroQueue.isEmpty() && !accelQueue.isEmpty()) {
+      if (count == batchTypes.length) {
+        growBatch();
+      }
+      int offset = count * MEASUREMENT_VALUE_COUNT;
+      if (gyroQueue.peekTimestamp() < accelQueue.peekTimestamp()) {
+        batchTimestamps[count] = gyroQueue.remove(gyroSample);
+        batchTypes[count] = SensorFusion.MEASUREMENT_GYRO;
+        System.arraycopy(gyroSample, 0, batchSamples, offset, MEASUREMENT_VALUE_COUNT);
+        System.arraycopy(
+            gyroSample, MEASUREMENT_VALUE_COUNT, batchBiases, offset, MEASUREMENT_VALUE_COUNT);
+      } else {
+        batchTimestamps[count] = accelQueue.remove(accelSample);
+        batchTypes[count] = SensorFusion.MEASUREMENT_ACCEL;
+        System.arraycopy(accelSample, 0, batchSamples, offset, MEASUREMENT_VALUE_COUNT);
+      }
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+
+    filter.addMeasurements(count, batchTypes, batchSamples, batchTimestamps, batchOrientations);
+
+    boolean scheduleDelivery;
+    synchronized (outputLock) {
+      for (int i = 0; i < count; i++) {
+        int offset = i * MEASUREMENT_VALUE_COUNT;
+        long timestamp = batchTimestamps[i];
+        addMagneticSamples(timestamp);
+        lastOutputTimestampNs = timestamp;
+        if (batchTypes[i] == SensorFusion.MEASUREMENT_GYRO) {
+          System.arraycopy(batchSamples, offset, gyroSample, 0, MEASUREMENT_VALUE_COUNT);
+          System.arraycopy(
+              batchBiases, offset, gyroSample, MEASUREMENT_VALUE_COUNT, MEASUREMENT_VALUE_COUNT);
+          outputQueue.add(
+              gyroSample, 0, GYRO_VALUE_COUNT, timestamp, CammType.GYROSCOPE.ordinal());
+          outputQueue.add(
+              batchOrientations,
+              offset,
+              MEASUREMENT_VALUE_COUNT,
+              timestamp,
+              CammType.ORIENTATION.ordinal());
+        } else {
+          outputQueue.add(
+              batchSamples,
+              offset,
+              MEASUREMENT_VALUE_COUNT,
+              timestamp,
+              CammType.ACCELEROMETER.ordinal());
+        }
+      }
+      scheduleDelivery = !isDeliveryScheduled;
+      isDeliveryScheduled = true;
+    }
+    if (scheduleDelivery) {
+      Handler handler = outputHandler;
+      if (handler == null || !handler.post(deliverAction)) {
+        deliver();
+      }
+    }
+  }
+
+  // Adds the queued magnetic field samples before the given time to the output. Samples that are
+  // older than a fused sample that was output already are dropped, to keep the output in order.
+  private void addMagneticSamples(long beforeTimestampNs) {
+    while (!magneticQueue.isEmpty() && magneticQueue.peekTimestamp() < beforeTimestampNs) {
+      long timestamp = magneticQueue.remove(magneticSample);
+      if (timestamp > lastOutputTimestampNs) {
+        outputQueue.add(
+            magneticSample, 0, MAGNETIC_VALUE_COUNT, timestamp, CammType.MAGNETIC_FIELD.ordinal());
+        lastOutputTimestampNs = timestamp;
+      }
+    }
+  }
+
+  // Runs on the output handler and hands all fused samples to the output.
+  private void deliver() {
+    synchronized (deliverLock) {
+      synchronized (outputLock) {
+        isDeliveryScheduled = false;
+        MotionSampleRing ready = outputQueue;
+        outputQueue = deliveryQueue;
+        deliveryQueue = ready;
+      }
+      while (!deliveryQueue.isEmpty()) {
+        CammType type = CAMM_TYPES[deliveryQueue.peekTag()];
+        float[] values;
+        switch (type) {
+          case GYROSCOPE:
+            values = outputGyro;
+            break;
+          case ACCELEROMETER:
+            values = outputAccel;
+            break;
+          case MAGNETIC_FIELD:
+            values = outputMagnetic;
+            break;
+          default:
+            values = outputOrientation;
+            break;
+        }
+        long timestamp = deliveryQueue.remove(values);
+        output.onFusedSample(type, values, timestamp);
+      }
+    }
+  }
+
+  private void allocateBatch(int capacity) {
+    batchTypes = new int[capacity];
+    batchTimestamps = new long[capacity];
+    batchSamples = new float[capacity * MEASUREMENT_VALUE_COUNT];
+    batchBiases = new float[capacity * MEASUREMENT_VALUE_COUNT];
+    batchOrientations = new float[capacity * MEASUREMENT_VALUE_COUNT];
+  }
+
+  // Only happens when a batch is larger than any before.
+  private void growBatch() {
+    int[] types = batchTypes;
+    long[] timestamps = batchTimestamps;
+    float[] samples = batchSamples;
+    float[] biases = batchBiases;
+    allocateBatch(types.length * 2);
+    System.arraycopy(types, 0, batchTypes, 0, types.length);
+    System.arraycopy(timestamps, 0, batchTimestamps, 0, timestamps.length);
+    System.arraycopy(samples, 0, batchSamples, 0, samples.length);
+    System.arraycopy(biases, 0, batchBiases, 0, biases.length);
+  }
+}
@@ -18,6 +18,7 @@
 #include <Eigen/Core>
 #include <Eigen/Geometry>
 #include "cpp/jni/macros.h"
+#include "cpp/sensor_fusion/measurement_batch.h"
 #include "cpp/sensor_fusion/online_sensor_fusion.h"
 
 #undef JNI_PACKAGE_NAME
@@ -27,12 +28,12 @@
 #define JNI_CLASS_NAME SensorFusion
 
 using vr180::OnlineSensorFusion;
+using vr180::kMeasurementAccel;
+using vr180::kMeasurementGyro;
 
 extern "C" {
 
 namespace {
-static const double kNanoSecondToSecond = 1e-9;
-
 static Eigen::Vector3d JNIFloatArrayToVector3d(JNIEnv* env, jfloatArray array) {
   float tmp[3];
   env->GetFloatArrayRegion(array, 0, 3, tmp);
@@ -76,9 +77,9 @@ JNIEXPORT void JNICALL JNI_METHOD(nativeAddGyroMeasurement)(
   if (filter == nullptr) {
     return;
   }
-  const auto gyro_vec3 = JNIFloatArrayToVector3d(env, gyro);
-  const double timestamp_s = timestamp_ns * kNanoSecondToSecond;
-  filter->AddGyroMeasurement(gyro_vec3, timestamp_s);
+  float sample[3];
+  env->GetFloatArrayRegion(gyro, 0, 3, sample);
+  vr180::AddMeasurement(filter, kMeasurementGyro, sample, timestamp_ns);
 }
 
 JNIEXPORT void JNICALL JNI_METHOD(nativeAddAccelMeasurement)(
@@ -88,22 +89,45 @@ JNIEXPORT void JNICALL JNI_METHOD(nativeAddAccelMeasurement)(
   if (filter == nullptr) {
     return;
   }
-  const auto accel_vec3 = JNIFloatArrayToVector3d(env, accel);
-  const double timestamp_s = timestamp_ns * kNanoSecondToSecond;
-  filter->AddAccelMeasurement(accel_vec3, timestamp_s);
+  float sample[3];
+  env->GetFloatArrayRegion(accel, 0, 3, sample);
+  vr180::AddMeasurement(filter, kMeasurementAccel, sample, timestamp_ns);
 }
 
-JNIEXPORT jfloatArray JNICALL JNI_METHOD(nativeGetOrientation)(
-    JNIEnv* env, jobject obj, jlong native_object) {
+JNIEXPORT void JNICALL JNI_METHOD(nativeAddMeasurements)(
+    JNIEnv* env, jobject obj, jlong native_object, jint count, jintArray types,
+    jfloatArray samples, jlongArray timestamps_ns, jfloatArray orientations) {
+  OnlineSensorFusion* filter = native(native_object);
+  if (filter == nullptr || count <= 0) {
+    return;
+  }
+  // The same code as the single measurement methods, so that the output is
+  // bit-identical, which measurement_batch_test checks.
+  jint* type_data =
+      static_cast<jint*>(env->GetPrimitiveArrayCritical(types, nullptr));
+  jfloat* sample_data =
+      static_cast<jfloat*>(env->GetPrimitiveArrayCritical(samples, nullptr));
+  jlong* timestamp_data =
+      static_cast<jlong*>(env->GetPrimitiveArrayCritical(timestamps_ns, nullptr));
+  jfloat* orientation_data =
+      static_cast<jfloat*>(env->GetPrimitiveArrayCritical(orientations, nullptr));
+  vr180::AddMeasurements(filter, count, type_data, sample_data, timestamp_data,
+                         orientation_data);
+  env->ReleasePrimitiveArrayCritical(orientations, orientation_data, 0);
+  env->ReleasePrimitiveArrayCritical(timestamps_ns, timestamp_data, JNI_ABORT);
+  env->ReleasePrimitiveArrayCritical(samples, sample_data, JNI_ABORT);
+  env->ReleasePrimitiveArrayCritical(types, type_data, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL JNI_METHOD(nativeGetOrientation)(
+    JNIEnv* env, jobject obj, jlong native_object, jfloatArray out) {
   OnlineSensorFusion* filter = native(native_object);
-  jfloatArray out = env->NewFloatArray(3);
   if (filter == nullptr) {
-    return out;
+    return;
   }
   Eigen::Vector3f v = filter->GetOrientation();
   float carray[3] = {v[0], v[1], v[2]};
   env->SetFloatArrayRegion(out, 0, 3, carray);
-  return out;
 }
 
 JNIEXPORT void JNICALL JNI_METHOD(nativeRecenter)(JNIEnv* env, jobject obj,
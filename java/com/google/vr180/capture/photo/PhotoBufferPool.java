@@ -0,0 +1,102 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.photo;
+
+import com.google.vr180.common.logging.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of direct buffers for full resolution photos, which can be passed to native code
+ * without copying. Buffers are allocated when first needed, and reused for the following photos,
+ * so that bursts do not allocate tens of megabytes per photo.
+ */
+final class PhotoBufferPool {
+  private static final String TAG = "PhotoBufferPool";
+
+  private final int maxBuffers;
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+  private int bufferSize;
+  private int allocatedCount;
+  private int allocationCount;
+
+  /**
+   * @param maxBuffers the most buffers in use at once, such as the depth of the photo queue
+   * @param bufferSize the expected size of a photo, from the format of the image reader
+   */
+  PhotoBufferPool(int maxBuffers, int bufferSize) {
+    if (maxBuffers < 1) {
+      throw new IllegalArgumentException("Invalid buffer count: " + maxBuffers);
+    }
+    this.maxBuffers = maxBuffers;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Returns a cleared direct buffer of at least the given size, waiting for one to be released if
+   * all are in use. The caller must {@link #release} it.
+   */
+  synchronized ByteBuffer acquire(int size) throws InterruptedException {
+    while (freeBuffers.isEmpty() && allocatedCount == maxBuffers) {
+      wait();
+    }
+    ByteBuffer buffer = freeBuffers.pollFirst();
+    if (buffer != null && buffer.capacity() < size) {
+      // The photos got larger, so the buffer is replaced.
+      allocatedCount--;
+      buffer = null;
+    }
+    if (buffer == null) {
+      bufferSize = Math.max(bufferSize, size);
+      Log.i(TAG, "Allocating photo buffer #" + (allocatedCount + 1) + " of " + bufferSize);
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+      allocatedCount++;
+      allocationCount++;
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Returns a buffer to the pool. */
+  synchronized void release(ByteBuffer buffer) {
+    freeBuffers.addFirst(buffer);
+    notify();
+  }
+
+  /** Drops the buffers that are not in use, so that their memory can be freed. */
+  synchronized void trim() {
+    allocatedCount -= freeBuffers.size();
+    freeBuffers.clear();
+    notifyAll();
+  }
+
+  /**
+   * Copies up to the given size from the pixels of an image plane to the start of a pooled buffer,
+   * which is flipped for reading. The pixels keep their position and limit.
+   */
+  static void copy(ByteBuffer pixels, int size, ByteBuffer buffer) {
+    // The last row of a plane may not be padded to the full stride.
+    ByteBuffer source = pixels.duplicate();
+    source.limit(source.position() + Math.min(size, source.remaining()));
+    buffer.clear();
+    buffer.put(source);
+    buffer.flip();
+  }
+
+  // Visible for testing.
+  synchronized int getAllocationCount() {
+    return allocationCount;
+  }
+}
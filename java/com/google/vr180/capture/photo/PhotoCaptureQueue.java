@@ -16,14 +16,23 @@ package com.google.vr180.capture.photo;
 
 import android.media.Image;
 import android.media.ImageReader;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import com.google.vr180.common.logging.Log;
 import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
-/** Class for queueing photo requests and processing them on a separate io thread. */
+/**
+ * Class for queueing photo requests and processing them on a bounded pool of worker threads.
+ *
+ * <p>Photos are processed concurrently, but {@link PhotoCapturer#onPhotoSaved} is called in capture
+ * order. The queue is full, and the capturer stops accepting requests, while its requests and
+ * unfinished photos fill all of its slots.
+ */
 public class PhotoCaptureQueue implements ImageReader.OnImageAvailableListener {
 
   private static final String TAG = "PhotoCaptureQueue";
@@ -44,28 +53,51 @@ public class PhotoCaptureQueue implements ImageReader.OnImageAvailableListener {
 
   private final PhotoCapturer processor;
   private final int size;
+  private final int workerCount;
   private final ArrayDeque<PhotoRequest> requests;
   private final AtomicInteger processingRequests;
-  private final HandlerThread thread = new HandlerThread(TAG);
-  private final Handler handler;
+  private final ExecutorService workers;
+  // Saved paths of processed photos by sequence number, until the earlier photos are done. Null
+  // values are failed photos. Guarded by completedPaths.
+  private final Map<Integer, String> completedPaths = new HashMap<>();
+  private int nextSequence;
+  private int nextCompletedSequence;
 
   public PhotoCaptureQueue(PhotoCapturer processor) {
     this(processor, DEFAULT_QUEUE_SIZE);
   }
 
   public PhotoCaptureQueue(PhotoCapturer processor, int size) {
+    this(processor, size, getDefaultWorkerCount(size));
+  }
+
+  /**
+   * @param size the most photos requested and not yet finished
+   * @param workerCount the most photos processed at once, each of which holds a full resolution
+   *     image in memory
+   */
+  public PhotoCaptureQueue(PhotoCapturer processor, int size, int workerCount) {
     this.processor = processor;
     this.size = size;
+    this.workerCount = workerCount;
     requests = new ArrayDeque<>();
     processingRequests = new AtomicInteger();
-    thread.start();
-    handler = new Handler(thread.getLooper());
+    AtomicInteger threadCount = new AtomicInteger();
+    workers =
+        Executors.newFixedThreadPool(
+            workerCount,
+            runnable -> new Thread(runnable, TAG + "-" + threadCount.incrementAndGet()));
   }
 
   public int size() {
     return size;
   }
 
+  /** Returns the most photos processed at once. */
+  public int getWorkerCount() {
+    return workerCount;
+  }
+
   public synchronized boolean isFull() {
     return requests.size() + processingRequests.get() >= size;
   }
@@ -89,11 +121,23 @@ public class PhotoCaptureQueue implements ImageReader.OnImageAvailableListener {
       if (request != null) {
         Log.i(TAG, "Process photo #" + request.id + "@" + img.getFormat() + ": " + request.path);
         processingRequests.getAndIncrement();
-        handler.post(
+        // Images wait in the pool's queue for a free worker. The queue itself is unbounded, but it
+        // never holds more than size images, since no more requests are accepted while the queue is
+        // full, and the image readers of the capturers hold at most size images.
+        final int sequence = nextSequence++;
+        workers.execute(
             () -> {
-              processor.processPhoto(img, request.id, request.path);
-              processingRequests.getAndDecrement();
-              Log.i(TAG, "Latency=" + (SystemClock.elapsedRealtime() - request.timestampMs) + "ms");
+              String savedPath = null;
+              try {
+                savedPath = processor.processPhoto(img, request.id, request.path);
+              } catch (Exception e) {
+                Log.e(TAG, "Exception processing photo #" + request.id + ": ", e);
+              } finally {
+                // Returns the image to the reader if processPhoto failed before closing it. Closing
+                // an image again has no effect.
+                img.close();
+              }
+              onPhotoProcessed(sequence, request, savedPath);
             });
       } else {
         img.close();
@@ -103,7 +147,29 @@ public class PhotoCaptureQueue implements ImageReader.OnImageAvailableListener {
     }
   }
 
+  /** Stops the workers after the queued photos are processed. */
   public synchronized void close() {
-    thread.quitSafely();
+    workers.shutdown();
+  }
+
+  // Reports the photos that are done in capture order. Photos processed before earlier ones wait
+  // for them, and are reported by the worker that finishes the earliest one.
+  private void onPhotoProcessed(int sequence, PhotoRequest request, @Nullable String savedPath) {
+    synchronized (completedPaths) {
+      completedPaths.put(sequence, savedPath);
+      while (completedPaths.containsKey(nextCompletedSequence)) {
+        String path = completedPaths.remove(nextCompletedSequence++);
+        if (path != null) {
+          processor.onPhotoSaved(path);
+        }
+        processingRequests.getAndDecrement();
+      }
+    }
+    Log.i(TAG, "Latency=" + (SystemClock.elapsedRealtime() - request.timestampMs) + "ms");
+  }
+
+  // Half of the cores are used for photos, leaving the others for the camera and preview.
+  private static int getDefaultWorkerCount(int size) {
+    return Math.max(1, Math.min(size, Runtime.getRuntime().availableProcessors() / 2));
   }
 }
@@ -16,6 +16,7 @@ package com.google.vr180.capture.photo;
 
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
+import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.util.List;
 
@@ -48,6 +49,18 @@ public interface PhotoCapturer {
   /** Notifies the photo capturer that a camera capture result is ready for processing. */
   public void onCaptureResult(CaptureResult result);
 
-  /** Saves image to path and notifies callback on success. Must close image. */
-  public void processPhoto(Image image, int id, String path);
+  /**
+   * Saves image to path. Must close image. Called on a worker thread, possibly for several photos
+   * at once.
+   *
+   * @return the path of the saved photo, or null on failure
+   */
+  @Nullable
+  public String processPhoto(Image image, int id, String path);
+
+  /**
+   * Notifies the capturer that a photo was saved, such as to register it in the media store. Called
+   * in capture order, one photo at a time.
+   */
+  public void onPhotoSaved(String path);
 }
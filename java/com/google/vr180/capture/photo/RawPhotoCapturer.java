@@ -19,10 +19,10 @@ import android.graphics.ImageFormat;
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
-import android.media.MediaScannerConnection;
 import android.os.Handler;
 import android.view.Surface;
 import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
 import com.google.vr180.device.DebugConfig;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -117,7 +117,7 @@ public class RawPhotoCapturer implements PhotoCapturer {
   }
 
   @Override
-  public void processPhoto(Image image, int id, String path) {
+  public String processPhoto(Image image, int id, String path) {
     if (isRaw(image.getFormat())) {
       path = path.replaceFirst("vr.jpg", "raw");
     }
@@ -129,14 +129,20 @@ public class RawPhotoCapturer implements PhotoCapturer {
       }
       image.close();
       output.close();
-      // Trigger media scanner to update database.
-      MediaScannerConnection.scanFile(context, new String[] {path}, null, null);
+      return path;
     } catch (Exception e) {
       Log.e(TAG, "Exception getting image: ", e);
       image.close();
+      return null;
     }
   }
 
+  @Override
+  public void onPhotoSaved(String path) {
+    // Trigger media scanner to update database.
+    MediaStoreUtil.scanFinalizedFile(context, path);
+  }
+
   public static boolean handlesFormat(int format) {
     return format == ImageFormat.JPEG || format == ImageFormat.RAW10 || format == ImageFormat.RAW12;
   }
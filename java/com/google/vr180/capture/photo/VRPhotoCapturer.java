@@ -21,7 +21,6 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
-import android.media.MediaScannerConnection;
 import android.opengl.EGL14;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
@@ -30,8 +29,10 @@ import android.support.annotation.Nullable;
 import android.util.SizeF;
 import android.view.Surface;
 import com.google.vr180.capture.motion.MotionCaptureSource.MotionEventListener;
+import com.google.vr180.capture.motion.OrientationHistory;
 import com.google.vr180.capture.renderer.TextureRenderer;
 import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
 import com.google.vr180.common.media.StereoMode;
 import com.google.vr180.common.opengl.EglSurface;
 import com.google.vr180.common.opengl.Texture;
@@ -39,10 +40,9 @@ import com.google.vr180.media.metadata.StereoReprojectionConfig;
 import com.google.vr180.media.motion.MotionEvent;
 import com.google.vr180.media.photo.ExifWriter;
 import com.google.vr180.media.photo.PhotoWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 /** Handles image processing, reprojection, and formatting for VR photos. */
 public class VRPhotoCapturer
@@ -51,7 +51,10 @@ public class VRPhotoCapturer
     MotionEventListener {
 
   private static final String TAG = "VRPhotoCapturer";
-  private static final long BUFFER_LENGTH_NS = 1_000_000_000L; // 1 second in ns.
+  // About 10 seconds of orientations at 200Hz.
+  private static final int ORIENTATION_HISTORY_CAPACITY = 2048;
+  // Capture results kept for finding the exposure midpoint of a photo.
+  private static final int EXPOSURE_HISTORY_CAPACITY = 8;
 
   private final Context context;
   private final ImageReader imageReader;
@@ -63,8 +66,14 @@ public class VRPhotoCapturer
   private final float[] textureMatrix = new float[16];
   private final StereoReprojectionConfig stereoReprojectionConfig;
   private final PhotoCaptureQueue queue;
+  private final PhotoBufferPool bufferPool;
   private final ExifWriter exifWriter;
-  private final ConcurrentSkipListMap<Long, float[]> orientationMap;
+  private final OrientationHistory orientationHistory;
+  // Sensor timestamps of recent capture results, and the offset from each to the middle of its
+  // exposure, guarded by exposureTimestamps.
+  private final long[] exposureTimestamps = new long[EXPOSURE_HISTORY_CAPACITY];
+  private final long[] exposureMidpointOffsetsNs = new long[EXPOSURE_HISTORY_CAPACITY];
+  private int exposureCount;
 
   public VRPhotoCapturer(
       Context context,
@@ -79,7 +88,7 @@ public class VRPhotoCapturer
     queue = new PhotoCaptureQueue(this);
     exifWriter = new ExifWriter(cameraCharacteristics);
     this.stereoReprojectionConfig = stereoReprojectionConfig;
-    orientationMap = new ConcurrentSkipListMap<>();
+    orientationHistory = new OrientationHistory(ORIENTATION_HISTORY_CAPACITY);
 
     // If dewarp is disabled, the output size is the same as input.
     if (stereoReprojectionConfig == null) {
@@ -90,6 +99,12 @@ public class VRPhotoCapturer
     imageReader =
         ImageReader.newInstance(outputWidth, outputHeight, PixelFormat.RGBA_8888, queue.size());
     imageReader.setOnImageAvailableListener(queue, glHandler);
+    // Photos are copied out of the image reader into reused direct buffers, at most one for each
+    // photo being processed.
+    bufferPool =
+        new PhotoBufferPool(
+            queue.getWorkerCount(),
+            outputWidth * outputHeight * PixelFormat.getBytesPerPixel(PixelFormat.RGBA_8888));
     eglSurface = new EglSurface(EGL14.eglGetCurrentContext(), imageReader.getSurface(), true);
     eglSurface.makeCurrent();
     // Raw camera snapshots are drawn to a Texture and passed to the renderer via a SurfaceTexture.
@@ -138,6 +153,7 @@ public class VRPhotoCapturer
     eglSurface.release();
 
     queue.close();
+    bufferPool.trim();
   }
 
   @Override
@@ -158,25 +174,65 @@ public class VRPhotoCapturer
   @Override
   public void onCaptureResult(CaptureResult result) {
     exifWriter.onCaptureResult(result);
+    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+    Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+    if (timestamp == null || exposureTime == null) {
+      return;
+    }
+    // The sensor timestamp is the start of the exposure of the first row, and the last row starts
+    // its exposure after the rolling shutter skew.
+    Long skew = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+    long midpointOffsetNs = (exposureTime + (skew == null ? 0 : skew)) / 2;
+    synchronized (exposureTimestamps) {
+      int index = exposureCount++ % EXPOSURE_HISTORY_CAPACITY;
+      exposureTimestamps[index] = timestamp;
+      exposureMidpointOffsetsNs[index] = midpointOffsetNs;
+    }
   }
 
   @Override
-  public void processPhoto(Image image, int id, String path) {
+  public String processPhoto(Image image, int id, String path) {
     int width = image.getWidth();
     int height = image.getHeight();
     long timestamp = image.getTimestamp();
 
     Image.Plane plane = image.getPlanes()[0];
     int stride = plane.getRowStride();
-    byte[] data = new byte[stride * height];
-    plane.getBuffer().get(data);
-    image.close();
+    ByteBuffer data;
+    try {
+      data = bufferPool.acquire(stride * height);
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while waiting for a photo buffer: " + path);
+      image.close();
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    try {
+      PhotoBufferPool.copy(plane.getBuffer(), stride * height, data);
+      image.close();
+      return writePhoto(data, width, height, stride, timestamp, path) ? path : null;
+    } finally {
+      bufferPool.release(data);
+    }
+  }
+
+  @Override
+  public void onPhotoSaved(String path) {
+    // Trigger media scanner to update database.
+    MediaStoreUtil.scanFinalizedFile(context, path);
+  }
+
+  private boolean writePhoto(
+      ByteBuffer data, int width, int height, int stride, long timestamp, String path) {
     SizeF fov =
         stereoReprojectionConfig == null ? new SizeF(0, 0) : stereoReprojectionConfig.getFov();
     int stereoMode =
         stereoReprojectionConfig == null
             ? StereoMode.MONO
             : stereoReprojectionConfig.getStereoMode();
+    int monoWidth = width / (stereoMode == StereoMode.LEFT_RIGHT ? 2 : 1);
+    int monoHeight = height / (stereoMode == StereoMode.TOP_BOTTOM ? 2 : 1);
+    byte[] exifSegment = exifWriter.createExifSegment(monoWidth, monoHeight, timestamp);
     if (PhotoWriter.nativeWriteVRPhotoToFile(
         data,
         width,
@@ -186,15 +242,12 @@ public class VRPhotoCapturer
         fov.getHeight(),
         getOrientation(timestamp),
         stereoMode,
+        exifSegment,
         path)) {
-      int monoWidth = width / (stereoMode == StereoMode.LEFT_RIGHT ? 2 : 1);
-      int monoHeight = height / (stereoMode == StereoMode.TOP_BOTTOM ? 2 : 1);
-      exifWriter.onPhotoResult(path, monoWidth, monoHeight, timestamp);
-      // Trigger media scanner to update database.
-      MediaScannerConnection.scanFile(context, new String[] {path}, null, null);
-    } else {
-      Log.e(TAG, "Failed to capture photo: " + path);
+      return true;
     }
+    Log.e(TAG, "Failed to capture photo: " + path);
+    return false;
   }
 
   @Override
@@ -213,22 +266,31 @@ public class VRPhotoCapturer
     if (event.type != MotionEvent.CammType.ORIENTATION) {
       return;
     }
-    // Save the orientation for processing when we receive a photo.
-    orientationMap.put(event.timestamp, event.values);
-    // Delete old data whenever we double the buffer length and we have no pending photo requests.
-    if (!hasPendingRequests()
-        && orientationMap.firstKey() < event.timestamp - (BUFFER_LENGTH_NS * 2)) {
-      orientationMap.headMap(event.timestamp - BUFFER_LENGTH_NS).clear();
-    }
+    // Save the orientation for processing when we receive a photo. The history copies the values,
+    // since the event is recycled after this call.
+    orientationHistory.add(event.timestamp, event.values);
   }
 
+  // Returns the orientation in the middle of the exposure of the photo, or at its sensor timestamp
+  // if the exposure is unknown.
   private float[] getOrientation(long timestamp) {
-    Entry<Long, float[]> floorEntry = orientationMap.floorEntry(timestamp);
-    if (floorEntry != null) {
-      return floorEntry.getValue();
-    } else {
-      Log.e(TAG, "No photo orientation for timestamp");
-      return new float[] {0, 0, 0};
+    long orientationTimestamp = timestamp + getExposureMidpointOffsetNs(timestamp);
+    float[] orientation = new float[3];
+    if (!orientationHistory.getOrientation(orientationTimestamp, orientation)) {
+      Log.e(TAG, "No photo orientation history at " + orientationTimestamp);
+    }
+    return orientation;
+  }
+
+  private long getExposureMidpointOffsetNs(long timestamp) {
+    synchronized (exposureTimestamps) {
+      int count = Math.min(exposureCount, EXPOSURE_HISTORY_CAPACITY);
+      for (int i = 0; i < count; i++) {
+        if (exposureTimestamps[i] == timestamp) {
+          return exposureMidpointOffsetsNs[i];
+        }
+      }
     }
+    return 0;
   }
 }
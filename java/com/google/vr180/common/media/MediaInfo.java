@@ -22,6 +22,7 @@ import android.media.MediaMetadataRetriever;
 import android.provider.MediaStore;
 import com.google.vr180.common.logging.Log;
 import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
@@ -87,8 +88,38 @@ public class MediaInfo {
     extractVideoMetadata(file, values);
   }
 
-  /** Populate the values with the size and date of the video file, if available. */
+  /**
+   * Populate the values with the size and date of the video file, if available. MP4 files are
+   * parsed directly, which is much faster than the platform media extractor.
+   */
   private static void extractVideoMetadata(File file, ContentValues values) {
+    Mp4MetadataParser.Metadata metadata;
+    try {
+      metadata = Mp4MetadataParser.parse(file);
+    } catch (IOException | ParseException e) {
+      Log.w(TAG, "Unable to parse MP4 metadata from: " + file.getAbsolutePath(), e);
+      extractVideoMetadataWithRetriever(file, values);
+      return;
+    }
+
+    if (metadata.width > 0 && metadata.height > 0) {
+      values.put(MediaStore.MediaColumns.WIDTH, metadata.width);
+      values.put(MediaStore.MediaColumns.HEIGHT, metadata.height);
+    }
+    Long dateTaken = metadata.creationTimeMs > 0 ? metadata.creationTimeMs : null;
+    if (dateTaken == null) {
+      dateTaken = parseDateWithFormatter(file.getName(), FILENAME_DATE_FORMATTER.get());
+    }
+    if (dateTaken != null) {
+      values.put(MediaStore.Video.VideoColumns.DATE_TAKEN, dateTaken);
+    }
+    if (metadata.durationMs > 0) {
+      values.put(MediaStore.Video.VideoColumns.DURATION, metadata.durationMs);
+    }
+  }
+
+  /** Populate the values of a video file with the platform media extractor. */
+  private static void extractVideoMetadataWithRetriever(File file, ContentValues values) {
     MediaMetadataRetriever retriever = new MediaMetadataRetriever();
     try {
       retriever.setDataSource(file.getPath());
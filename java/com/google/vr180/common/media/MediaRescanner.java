@@ -0,0 +1,287 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.vr180.common.logging.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+
+/**
+ * Registers all media files of the capture directories in the MediaStore, e.g. after an SD card was
+ * mounted.
+ *
+ * <p>Unlike calling {@link MediaStoreUtil#updateFile} for each file, the existing entries are
+ * queried once, and only new and modified files are processed. Their metadata is extracted on a
+ * bounded pool of workers, and the changes are committed with {@link
+ * android.content.ContentResolver#applyBatch} in chunks. The entries of files which no longer exist
+ * are removed with one {@link MediaStoreUtil#deleteFiles} call, unless a scanned directory is gone,
+ * e.g. because its SD card was ejected during the rescan.
+ */
+public class MediaRescanner {
+  private static final String TAG = "MediaRescanner";
+
+  /** The number of MediaStore operations committed in each batch. */
+  @VisibleForTesting static final int BATCH_SIZE = 100;
+
+  private static final String[] ENTRY_PROJECTION = {
+    MediaStore.MediaColumns._ID,
+    MediaStore.MediaColumns.DATA,
+    MediaStore.MediaColumns.DATE_MODIFIED,
+    MediaStore.MediaColumns.SIZE,
+  };
+  private static final long MS_PER_SEC = 1000;
+
+  /** Receives the progress of a rescan. */
+  public interface ProgressListener {
+    /**
+     * Called when the files have been found, and after each committed batch.
+     *
+     * @param scannedFiles The number of files whose MediaStore entries are up to date.
+     * @param totalFiles The number of media files in the directories.
+     */
+    void onProgress(int scannedFiles, int totalFiles);
+  }
+
+  /** An existing MediaStore entry. */
+  private static final class Entry {
+    private final long id;
+    private final long dateModifiedSeconds;
+    private final long size;
+
+    private Entry(long id, long dateModifiedSeconds, long size) {
+      this.id = id;
+      this.dateModifiedSeconds = dateModifiedSeconds;
+      this.size = size;
+    }
+
+    private boolean isCurrent(File file) {
+      return dateModifiedSeconds == file.lastModified() / MS_PER_SEC && size == file.length();
+    }
+  }
+
+  private final Context context;
+  private final ExecutorService workers;
+
+  /** Creates a rescanner which extracts metadata with one worker for each processor. */
+  public MediaRescanner(Context context) {
+    this(context, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * @param workers The executor which extracts the metadata of the files. Its number of threads
+   *     bounds the files which are read at the same time.
+   */
+  @VisibleForTesting
+  MediaRescanner(Context context, ExecutorService workers) {
+    this.context = context;
+    this.workers = workers;
+  }
+
+  /**
+   * Brings the MediaStore up to date with the media files in the directories and their
+   * subdirectories. New and modified files are inserted or updated, and the entries of files which
+   * no longer exist are deleted. Blocks until the rescan is complete.
+   *
+   * <p>No entries are deleted if one of the directories no longer exists, since all of its files
+   * would appear to be missing when its storage is unmounted.
+   *
+   * @return Whether all changes were committed.
+   */
+  public boolean rescan(List<File> directories, ProgressListener listener) {
+    Map<String, Entry> entries = new HashMap<>();
+    List<File> files = new ArrayList<>();
+    for (File directory : directories) {
+      if (!queryEntries(directory, entries)) {
+        return false;
+      }
+      findMediaFiles(directory, files);
+    }
+
+    int totalFiles = files.size();
+    int scannedFiles = 0;
+    int pendingFiles = 0;
+    CompletionService<ContentProviderOperation> completionService =
+        new ExecutorCompletionService<>(workers);
+    for (File file : files) {
+      Entry entry = entries.remove(file.getAbsolutePath());
+      if (entry != null && entry.isCurrent(file)) {
+        scannedFiles++;
+        continue;
+      }
+      Long id = entry != null ? entry.id : null;
+      completionService.submit(() -> createOperation(file, id));
+      pendingFiles++;
+    }
+    listener.onProgress(scannedFiles, totalFiles);
+
+    boolean success = true;
+    ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+    while (pendingFiles > 0) {
+      try {
+        batch.add(completionService.take().get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        Log.e(TAG, "Media rescan interrupted");
+        return false;
+      } catch (ExecutionException e) {
+        Log.e(TAG, "Unable to read media file", e.getCause());
+        success = false;
+      }
+      pendingFiles--;
+      scannedFiles++;
+      if (batch.size() >= BATCH_SIZE || pendingFiles == 0) {
+        success &= applyBatch(batch);
+        batch.clear();
+        listener.onProgress(scannedFiles, totalFiles);
+      }
+    }
+
+    // The remaining entries are of files which were deleted while the storage was elsewhere.
+    success &= deleteMissingFiles(directories, entries);
+    return success;
+  }
+
+  // Adds the MediaStore entries of the files in a directory, by path.
+  private boolean queryEntries(File directory, Map<String, Entry> entries) {
+    String prefix = directory.getAbsolutePath() + File.separator;
+    Cursor cursor;
+    try {
+      cursor =
+          context
+              .getContentResolver()
+              .query(
+                  MediaStoreUtil.EXTERNAL_FILE_CONTENT_URI,
+                  ENTRY_PROJECTION,
+                  MediaStore.MediaColumns.DATA + " LIKE ?",
+                  new String[] {prefix + "%"},
+                  null);
+    } catch (SecurityException e) {
+      cursor = null;
+    }
+    if (cursor == null) {
+      Log.e(TAG, "Unable to query the MediaStore entries of " + directory);
+      return false;
+    }
+
+    try {
+      while (cursor.moveToNext()) {
+        String path = cursor.getString(1);
+        // LIKE also matches paths with any character in place of '_'.
+        if (path != null && path.startsWith(prefix)) {
+          entries.put(path, new Entry(cursor.getLong(0), cursor.getLong(2), cursor.getLong(3)));
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    return true;
+  }
+
+  private static void findMediaFiles(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.getName().startsWith(".")) {
+        continue;
+      }
+      if (child.isDirectory()) {
+        findMediaFiles(child, files);
+      } else if (isMediaFile(child)) {
+        files.add(child);
+      }
+    }
+  }
+
+  private static boolean isMediaFile(File file) {
+    String mime = MediaStoreUtil.getMimeType(file.getName());
+    return mime != null && (mime.startsWith("image/") || mime.startsWith("video/"));
+  }
+
+  // Runs on a worker to read the metadata of a new or modified file.
+  private static ContentProviderOperation createOperation(File file, @Nullable Long id) {
+    ContentValues values = MediaStoreUtil.getContentValues(file);
+    if (id == null) {
+      MediaStoreUtil.putDateAdded(values);
+      return ContentProviderOperation.newInsert(MediaStoreUtil.EXTERNAL_FILE_CONTENT_URI)
+          .withValues(values)
+          .build();
+    }
+    return ContentProviderOperation.newUpdate(MediaStoreUtil.EXTERNAL_FILE_CONTENT_URI)
+        .withSelection(MediaStore.MediaColumns._ID + " = ?", new String[] {Long.toString(id)})
+        .withValues(values)
+        .build();
+  }
+
+  private boolean applyBatch(ArrayList<ContentProviderOperation> batch) {
+    if (batch.isEmpty()) {
+      return true;
+    }
+    try {
+      context.getContentResolver().applyBatch(MediaStore.AUTHORITY, batch);
+      return true;
+    } catch (RemoteException | OperationApplicationException e) {
+      Log.e(TAG, "Unable to update " + batch.size() + " MediaStore entries", e);
+      return false;
+    }
+  }
+
+  private boolean deleteMissingFiles(List<File> directories, Map<String, Entry> entries) {
+    List<Long> ids = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      // Files which exist but aren't media keep their entries.
+      if (!new File(entry.getKey()).exists()) {
+        ids.add(entry.getValue().id);
+        paths.add(entry.getKey());
+      }
+    }
+    if (ids.isEmpty()) {
+      return true;
+    }
+    // Checked last, so that storage which was removed during the rescan is noticed.
+    for (File directory : directories) {
+      if (!directory.isDirectory()) {
+        Log.w(TAG, "Not deleting " + ids.size() + " MediaStore entries, " + directory + " is gone");
+        return false;
+      }
+    }
+    if (!MediaStoreUtil.deleteFiles(context, ids)) {
+      return false;
+    }
+    for (String path : paths) {
+      MediaStoreUtil.sendPathBroadcast(context, MediaStoreUtil.ACTION_MEDIA_DELETED, path);
+    }
+    return true;
+  }
+}
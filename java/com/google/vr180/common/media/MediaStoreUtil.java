@@ -18,9 +18,12 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.provider.MediaStore;
+import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 import com.google.vr180.common.logging.Log;
@@ -32,8 +35,18 @@ import java.util.Locale;
  * Helper functions to access and update the MediaStore.Files database.
  */
 public class MediaStoreUtil {
+  /**
+   * Broadcast with {@link LocalBroadcastManager} when a captured media file is complete, with its
+   * path.
+   */
+  public static final String ACTION_MEDIA_FINALIZED = "vr180.MEDIA_FINALIZED";
+  /** Broadcast with {@link LocalBroadcastManager} when a media file is deleted, with its path. */
+  public static final String ACTION_MEDIA_DELETED = "vr180.MEDIA_DELETED";
+  /** The absolute path of the media file of a broadcast. */
+  public static final String EXTRA_PATH = "path";
+
   private static final String TAG = "MediaStoreUtil";
-  private static final Uri EXTERNAL_FILE_CONTENT_URI = MediaStore.Files.getContentUri("external");
+  static final Uri EXTERNAL_FILE_CONTENT_URI = MediaStore.Files.getContentUri("external");
   private static final long MS_PER_SEC = 1000;
 
   /**
@@ -44,28 +57,14 @@ public class MediaStoreUtil {
    * less than 100 ms in a HTC One.
    */
   public static Uri updateFile(Context context, File file) {
-    String mime = getMimeType(file.getName());
-    long dateModifiedMilliSeconds = file.lastModified();
-    long dateModifiedSeconds = dateModifiedMilliSeconds / MS_PER_SEC;
-
-    ContentValues values = new ContentValues();
-    values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
-    values.put(MediaStore.MediaColumns.TITLE, file.getName());
-    values.put(MediaStore.MediaColumns.DISPLAY_NAME, file.getName());
-    values.put(MediaStore.MediaColumns.SIZE, file.length());
-    values.put(MediaStore.MediaColumns.DATE_MODIFIED, dateModifiedSeconds);
-    if (mime != null) {
-      values.put(MediaStore.MediaColumns.MIME_TYPE, mime);
-    }
-    MediaInfo.extractMediaStoreMetadata(file, mime, values);
+    ContentValues values = getContentValues(file);
 
     ContentResolver contentResolver = context.getContentResolver();
     // Check if the file is already in the database.
     Uri uri = getFileContentUri(context, file.getAbsolutePath());
     if (uri == null) {
       // The file is not in the database, so insert it.
-      long dateAddedSeconds = System.currentTimeMillis() / MS_PER_SEC;
-      values.put(MediaStore.MediaColumns.DATE_ADDED, dateAddedSeconds);
+      putDateAdded(values);
       return contentResolver.insert(EXTERNAL_FILE_CONTENT_URI, values);
     }
 
@@ -78,8 +77,44 @@ public class MediaStoreUtil {
     return uri;
   }
 
+  /** Returns the MediaStore.Files values of a file, including the metadata of the media. */
+  static ContentValues getContentValues(File file) {
+    String mime = getMimeType(file.getName());
+    long dateModifiedMilliSeconds = file.lastModified();
+    long dateModifiedSeconds = dateModifiedMilliSeconds / MS_PER_SEC;
+
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+    values.put(MediaStore.MediaColumns.TITLE, file.getName());
+    values.put(MediaStore.MediaColumns.DISPLAY_NAME, file.getName());
+    values.put(MediaStore.MediaColumns.SIZE, file.length());
+    values.put(MediaStore.MediaColumns.DATE_MODIFIED, dateModifiedSeconds);
+    if (mime != null) {
+      values.put(MediaStore.MediaColumns.MIME_TYPE, mime);
+    }
+    MediaInfo.extractMediaStoreMetadata(file, mime, values);
+    return values;
+  }
+
+  /** Sets the time a new file is added to the MediaStore. */
+  static void putDateAdded(ContentValues values) {
+    long dateAddedSeconds = System.currentTimeMillis() / MS_PER_SEC;
+    values.put(MediaStore.MediaColumns.DATE_ADDED, dateAddedSeconds);
+  }
+
   /**
-   * Deletes a file from the MediaStore database. It returns true on success.
+   * Adds a completed capture to the MediaStore with the media scanner, and broadcasts {@link
+   * #ACTION_MEDIA_FINALIZED} so that its thumbnails can be prepared.
+   */
+  public static void scanFinalizedFile(Context context, String path) {
+    MediaScannerConnection.scanFile(context, new String[] {path}, null, null);
+    Intent intent = new Intent(ACTION_MEDIA_FINALIZED).putExtra(EXTRA_PATH, path);
+    LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+  }
+
+  /**
+   * Deletes a file from the MediaStore database. It returns true on success, and broadcasts {@link
+   * #ACTION_MEDIA_DELETED}.
    */
   public static boolean deleteFile(Context context, File file) {
     // Check if the file is already in the database.
@@ -88,7 +123,11 @@ public class MediaStoreUtil {
       Log.e(TAG, "Cannot find the given file in the mediastore");
       return false;
     }
-    return deleteFile(context, uri);
+    if (!deleteFile(context, uri)) {
+      return false;
+    }
+    sendPathBroadcast(context, ACTION_MEDIA_DELETED, file.getAbsolutePath());
+    return true;
   }
 
   /**
@@ -229,4 +268,10 @@ public class MediaStoreUtil {
 
     return type;
   }
+
+  // The media broadcasts stay within the process, so other apps can neither send nor receive them.
+  static void sendPathBroadcast(Context context, String action, String path) {
+    LocalBroadcastManager.getInstance(context)
+        .sendBroadcast(new Intent(action).putExtra(EXTRA_PATH, path));
+  }
 }
@@ -0,0 +1,556 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import com.google.vr180.common.logging.Log;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import javax.annotation.Nullable;
+
+/**
+ * Helper method to extract the metadata of an MP4 file from its moov box.
+ *
+ * <p>Boxes are read with positioned reads of their headers, so the media data is skipped, and the
+ * moov box can be anywhere in the file. Fragmented files without a duration in the moov box get
+ * it from the last moof box. This implementation is designed to be standalone to avoid a
+ * dependency on the platform media extractor.
+ */
+public class Mp4MetadataParser {
+  private static final String TAG = "Mp4MetadataParser";
+
+  // Boxes have 4 bytes size and 4 bytes fourcc, and then 8 bytes size if the size is 1.
+  private static final int HEADER_SIZE = 8;
+  private static final int LARGE_HEADER_SIZE = 16;
+  // The largest box which is read into memory.
+  private static final int MAX_READ_SIZE = 4 * 1024 * 1024;
+  // Seconds from the MP4 epoch (1904-01-01) to the unix epoch.
+  private static final long MP4_EPOCH_OFFSET_SECONDS = 2082844800L;
+  // The size of a visual sample entry before its child boxes.
+  private static final int VISUAL_SAMPLE_ENTRY_SIZE = 86;
+  // The width and height of a visual sample entry follow the header and 24 reserved bytes.
+  private static final int VISUAL_SAMPLE_ENTRY_WIDTH_OFFSET = 32;
+
+  private static final int TFHD_BASE_DATA_OFFSET_PRESENT = 0x000001;
+  private static final int TFHD_SAMPLE_DESCRIPTION_INDEX_PRESENT = 0x000002;
+  private static final int TFHD_DEFAULT_SAMPLE_DURATION_PRESENT = 0x000008;
+  private static final int TRUN_DATA_OFFSET_PRESENT = 0x000001;
+  private static final int TRUN_FIRST_SAMPLE_FLAGS_PRESENT = 0x000004;
+  private static final int TRUN_SAMPLE_DURATION_PRESENT = 0x000100;
+  private static final int TRUN_SAMPLE_SIZE_PRESENT = 0x000200;
+  private static final int TRUN_SAMPLE_FLAGS_PRESENT = 0x000400;
+  private static final int TRUN_SAMPLE_COMPOSITION_TIME_OFFSET_PRESENT = 0x000800;
+
+  /** The metadata of an MP4 file. */
+  public static final class Metadata {
+    /** The duration in milliseconds, or 0 if it is unknown. */
+    public final long durationMs;
+    /** The width of the video track, or 0 if there is none. */
+    public final int width;
+    /** The height of the video track, or 0 if there is none. */
+    public final int height;
+    /** The creation time in milliseconds since the epoch, or 0 if it is unknown. */
+    public final long creationTimeMs;
+    /** The fourcc of the video sample entry, such as "avc1", or null if there is no video. */
+    @Nullable public final String videoCodec;
+    /** Whether the video sample entry has a st3d (stereoscopic 3D) box. */
+    public final boolean hasSt3d;
+    /** Whether the video sample entry has a sv3d (spherical video) box. */
+    public final boolean hasSv3d;
+
+    private Metadata(
+        long durationMs,
+        int width,
+        int height,
+        long creationTimeMs,
+        @Nullable String videoCodec,
+        boolean hasSt3d,
+        boolean hasSv3d) {
+      this.durationMs = durationMs;
+      this.width = width;
+      this.height = height;
+      this.creationTimeMs = creationTimeMs;
+      this.videoCodec = videoCodec;
+      this.hasSt3d = hasSt3d;
+      this.hasSv3d = hasSv3d;
+    }
+  }
+
+  /** The position and size of a box in the file. */
+  private static final class Box {
+    final String type;
+    final long position;
+    final long size;
+    final int headerSize;
+
+    Box(String type, long position, long size, int headerSize) {
+      this.type = type;
+      this.position = position;
+      this.size = size;
+      this.headerSize = headerSize;
+    }
+
+    long getDataPosition() {
+      return position + headerSize;
+    }
+
+    long getEnd() {
+      return position + size;
+    }
+  }
+
+  /** The parsed values of the moov box. */
+  private static final class Movie {
+    long timescale;
+    long duration;
+    long creationTime;
+    long fragmentDuration;
+    // The first video track.
+    int videoTrackId = -1;
+    long videoTimescale;
+    long videoDefaultSampleDuration;
+    int width;
+    int height;
+    String videoCodec;
+    boolean hasSt3d;
+    boolean hasSv3d;
+  }
+
+  /**
+   * Extracts the metadata of an MP4 file.
+   *
+   * @throws IOException If the file can't be read.
+   * @throws ParseException If the file is not an MP4 file or it has no moov box.
+   */
+  public static Metadata parse(File file) throws IOException, ParseException {
+    try (FileInputStream input = new FileInputStream(file)) {
+      return parse(input.getChannel());
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      // A box is shorter than its fields.
+      throw parseError("Truncated box in " + file.getName(), 0);
+    }
+  }
+
+  private static Metadata parse(FileChannel channel) throws IOException, ParseException {
+    long fileSize = channel.size();
+    Movie movie = null;
+    long lastMoofPosition = -1;
+    long position = 0;
+    while (position < fileSize) {
+      Box box = readBoxHeader(channel, position, fileSize);
+      if (position == 0 && !isTopLevelType(box.type)) {
+        throw parseError("Not an MP4 file", position);
+      }
+      if (box.type.equals("moov")) {
+        movie = parseMoov(channel, box);
+        if (movie.duration > 0 || movie.fragmentDuration > 0 || movie.videoTrackId == -1) {
+          break;
+        }
+      } else if (box.type.equals("moof")) {
+        lastMoofPosition = box.position;
+      }
+      position = box.getEnd();
+    }
+    if (movie == null) {
+      throw parseError("No moov box", position);
+    }
+
+    long durationMs = 0;
+    if (movie.duration > 0 && movie.timescale > 0) {
+      durationMs = movie.duration * 1000 / movie.timescale;
+    } else if (movie.fragmentDuration > 0 && movie.timescale > 0) {
+      durationMs = movie.fragmentDuration * 1000 / movie.timescale;
+    } else if (lastMoofPosition != -1 && movie.videoTimescale > 0) {
+      Box moof = readBoxHeader(channel, lastMoofPosition, fileSize);
+      durationMs = getFragmentEnd(channel, moof, movie) * 1000 / movie.videoTimescale;
+    }
+    long creationTimeMs =
+        movie.creationTime > MP4_EPOCH_OFFSET_SECONDS
+            ? (movie.creationTime - MP4_EPOCH_OFFSET_SECONDS) * 1000
+            : 0;
+    return new Metadata(
+        durationMs,
+        movie.width,
+        movie.height,
+        creationTimeMs,
+        movie.videoCodec,
+        movie.hasSt3d,
+        movie.hasSv3d);
+  }
+
+  private static Movie parseMoov(FileChannel channel, Box moov)
+      throws IOException, ParseException {
+    Movie movie = new Movie();
+    Box mvex = null;
+    for (long position = moov.getDataPosition(); position < moov.getEnd(); ) {
+      Box box = readBoxHeader(channel, position, moov.getEnd());
+      switch (box.type) {
+        case "mvhd":
+          parseMvhd(readBoxData(channel, box), movie);
+          break;
+        case "mvex":
+          mvex = box;
+          break;
+        case "trak":
+          if (movie.videoTrackId == -1) {
+            parseTrak(channel, box, movie);
+          }
+          break;
+        default:
+          break;
+      }
+      position = box.getEnd();
+    }
+    // The defaults of the fragments are for the video track.
+    if (mvex != null) {
+      parseMvex(channel, mvex, movie);
+    }
+    return movie;
+  }
+
+  private static void parseMvhd(ByteBuffer data, Movie movie) {
+    int version = data.getInt() >>> 24;
+    if (version == 1) {
+      movie.creationTime = data.getLong();
+      data.getLong(); // modification_time
+      movie.timescale = data.getInt() & 0xFFFFFFFFL;
+      movie.duration = data.getLong();
+      if (movie.duration == -1) {
+        // All ones means that the duration is unknown.
+        movie.duration = 0;
+      }
+    } else {
+      movie.creationTime = data.getInt() & 0xFFFFFFFFL;
+      data.getInt(); // modification_time
+      movie.timescale = data.getInt() & 0xFFFFFFFFL;
+      movie.duration = data.getInt() & 0xFFFFFFFFL;
+      if (movie.duration == 0xFFFFFFFFL) {
+        // All ones means that the duration is unknown.
+        movie.duration = 0;
+      }
+    }
+  }
+
+  private static void parseMvex(FileChannel channel, Box mvex, Movie movie)
+      throws IOException, ParseException {
+    for (long position = mvex.getDataPosition(); position < mvex.getEnd(); ) {
+      Box box = readBoxHeader(channel, position, mvex.getEnd());
+      if (box.type.equals("mehd")) {
+        ByteBuffer data = readBoxData(channel, box);
+        int version = data.getInt() >>> 24;
+        movie.fragmentDuration = version == 1 ? data.getLong() : data.getInt() & 0xFFFFFFFFL;
+      } else if (box.type.equals("trex")) {
+        ByteBuffer data = readBoxData(channel, box);
+        data.getInt(); // version and flags
+        int trackId = data.getInt();
+        data.getInt(); // default_sample_description_index
+        int defaultSampleDuration = data.getInt();
+        if (trackId == movie.videoTrackId) {
+          movie.videoDefaultSampleDuration = defaultSampleDuration & 0xFFFFFFFFL;
+        }
+      }
+      position = box.getEnd();
+    }
+  }
+
+  // Reads the track, and keeps its values if it is a video track.
+  private static void parseTrak(FileChannel channel, Box trak, Movie movie)
+      throws IOException, ParseException {
+    int trackId = -1;
+    int tkhdWidth = 0;
+    int tkhdHeight = 0;
+    Box mdia = null;
+    for (long position = trak.getDataPosition(); position < trak.getEnd(); ) {
+      Box box = readBoxHeader(channel, position, trak.getEnd());
+      if (box.type.equals("tkhd")) {
+        ByteBuffer data = readBoxData(channel, box);
+        int version = data.getInt() >>> 24;
+        // Skip creation_time and modification_time.
+        data.position(data.position() + (version == 1 ? 16 : 8));
+        trackId = data.getInt();
+        // Skip reserved, duration, reserved, layer, alternate_group, volume, reserved, matrix.
+        data.position(data.position() + 4 + (version == 1 ? 8 : 4) + 52);
+        tkhdWidth = data.getInt() >>> 16;
+        tkhdHeight = data.getInt() >>> 16;
+      } else if (box.type.equals("mdia")) {
+        mdia = box;
+      }
+      position = box.getEnd();
+    }
+    if (mdia == null) {
+      return;
+    }
+
+    long timescale = 0;
+    boolean isVideo = false;
+    Box minf = null;
+    for (long position = mdia.getDataPosition(); position < mdia.getEnd(); ) {
+      Box box = readBoxHeader(channel, position, mdia.getEnd());
+      if (box.type.equals("mdhd")) {
+        ByteBuffer data = readBoxData(channel, box);
+        int version = data.getInt() >>> 24;
+        data.position(data.position() + (version == 1 ? 16 : 8));
+        timescale = data.getInt() & 0xFFFFFFFFL;
+      } else if (box.type.equals("hdlr")) {
+        ByteBuffer data = readBoxData(channel, box);
+        data.position(8); // version, flags and pre_defined
+        isVideo = readFourCc(data).equals("vide");
+      } else if (box.type.equals("minf")) {
+        minf = box;
+      }
+      position = box.getEnd();
+    }
+    if (!isVideo) {
+      return;
+    }
+
+    movie.videoTrackId = trackId;
+    movie.videoTimescale = timescale;
+    movie.width = tkhdWidth;
+    movie.height = tkhdHeight;
+    Box stsd = minf != null ? findBox(channel, minf, "stbl", "stsd") : null;
+    if (stsd != null) {
+      parseVisualSampleEntry(readBoxData(channel, stsd), movie);
+    }
+  }
+
+  // Reads the first sample entry of a video stsd box.
+  private static void parseVisualSampleEntry(ByteBuffer stsd, Movie movie) throws ParseException {
+    // The first entry follows the version, flags and entry_count.
+    int entryStart = 8;
+    if (stsd.limit() - entryStart < VISUAL_SAMPLE_ENTRY_SIZE) {
+      throw parseError("Visual sample entry too small", entryStart);
+    }
+    int entryEnd =
+        (int) Math.min(entryStart + (stsd.getInt(entryStart) & 0xFFFFFFFFL), stsd.limit());
+    stsd.position(entryStart + 4);
+    movie.videoCodec = readFourCc(stsd);
+    int width = stsd.getShort(entryStart + VISUAL_SAMPLE_ENTRY_WIDTH_OFFSET) & 0xFFFF;
+    int height = stsd.getShort(entryStart + VISUAL_SAMPLE_ENTRY_WIDTH_OFFSET + 2) & 0xFFFF;
+    if (width > 0 && height > 0) {
+      movie.width = width;
+      movie.height = height;
+    }
+
+    int position = entryStart + VISUAL_SAMPLE_ENTRY_SIZE;
+    while (position + HEADER_SIZE <= entryEnd) {
+      int size = stsd.getInt(position);
+      stsd.position(position + 4);
+      String type = readFourCc(stsd);
+      if (type.equals("st3d")) {
+        movie.hasSt3d = true;
+      } else if (type.equals("sv3d")) {
+        movie.hasSv3d = true;
+      }
+      if (size < HEADER_SIZE) {
+        break;
+      }
+      position += size;
+    }
+  }
+
+  // Returns the end of the video track in the fragment, in the timescale of the track.
+  private static long getFragmentEnd(FileChannel channel, Box moof, Movie movie)
+      throws IOException, ParseException {
+    long end = 0;
+    for (long position = moof.getDataPosition(); position < moof.getEnd(); ) {
+      Box traf = readBoxHeader(channel, position, moof.getEnd());
+      if (traf.type.equals("traf")) {
+        end = Math.max(end, getTrackFragmentEnd(readBoxData(channel, traf), movie));
+      }
+      position = traf.getEnd();
+    }
+    return end;
+  }
+
+  // Returns the end of the track fragment if it is for the video track, or 0.
+  private static long getTrackFragmentEnd(ByteBuffer traf, Movie movie) {
+    long baseMediaDecodeTime = 0;
+    long defaultSampleDuration = movie.videoDefaultSampleDuration;
+    long duration = 0;
+    while (traf.remaining() >= HEADER_SIZE + 4) {
+      int boxStart = traf.position();
+      long size = traf.getInt() & 0xFFFFFFFFL;
+      String type = readFourCc(traf);
+      if (size < HEADER_SIZE || size > traf.limit() - boxStart) {
+        break;
+      }
+      // The boxes which are read are full boxes, with the version and flags.
+      int versionAndFlags = traf.getInt();
+      int flags = versionAndFlags & 0xFFFFFF;
+      switch (type) {
+        case "tfhd":
+          if (traf.getInt() != movie.videoTrackId) {
+            return 0;
+          }
+          if ((flags & TFHD_BASE_DATA_OFFSET_PRESENT) != 0) {
+            traf.getLong();
+          }
+          if ((flags & TFHD_SAMPLE_DESCRIPTION_INDEX_PRESENT) != 0) {
+            traf.getInt();
+          }
+          if ((flags & TFHD_DEFAULT_SAMPLE_DURATION_PRESENT) != 0) {
+            defaultSampleDuration = traf.getInt() & 0xFFFFFFFFL;
+          }
+          break;
+        case "tfdt":
+          baseMediaDecodeTime =
+              (versionAndFlags >>> 24) == 1 ? traf.getLong() : traf.getInt() & 0xFFFFFFFFL;
+          break;
+        case "trun":
+          duration += getTrunDuration(traf, flags, defaultSampleDuration);
+          break;
+        default:
+          break;
+      }
+      traf.position(boxStart + (int) size);
+    }
+    return baseMediaDecodeTime + duration;
+  }
+
+  private static long getTrunDuration(ByteBuffer trun, int flags, long defaultSampleDuration) {
+    long sampleCount = trun.getInt() & 0xFFFFFFFFL;
+    if ((flags & TRUN_SAMPLE_DURATION_PRESENT) == 0) {
+      return sampleCount * defaultSampleDuration;
+    }
+    if ((flags & TRUN_DATA_OFFSET_PRESENT) != 0) {
+      trun.getInt();
+    }
+    if ((flags & TRUN_FIRST_SAMPLE_FLAGS_PRESENT) != 0) {
+      trun.getInt();
+    }
+    int sampleSize = 4; // duration
+    for (int flag :
+        new int[] {
+          TRUN_SAMPLE_SIZE_PRESENT,
+          TRUN_SAMPLE_FLAGS_PRESENT,
+          TRUN_SAMPLE_COMPOSITION_TIME_OFFSET_PRESENT
+        }) {
+      if ((flags & flag) != 0) {
+        sampleSize += 4;
+      }
+    }
+    long duration = 0;
+    for (long i = 0; i < sampleCount && trun.remaining() >= sampleSize; i++) {
+      int sampleStart = trun.position();
+      duration += trun.getInt() & 0xFFFFFFFFL;
+      trun.position(sampleStart + sampleSize);
+    }
+    return duration;
+  }
+
+  // Finds a box by its path from a parent box.
+  @Nullable
+  private static Box findBox(FileChannel channel, Box parent, String... path)
+      throws IOException, ParseException {
+    Box box = parent;
+    for (String type : path) {
+      Box child = null;
+      for (long position = box.getDataPosition(); position < box.getEnd(); ) {
+        Box candidate = readBoxHeader(channel, position, box.getEnd());
+        if (candidate.type.equals(type)) {
+          child = candidate;
+          break;
+        }
+        position = candidate.getEnd();
+      }
+      if (child == null) {
+        return null;
+      }
+      box = child;
+    }
+    return box;
+  }
+
+  // Reads the header of the box at the position, in a parent which ends at the given end.
+  private static Box readBoxHeader(FileChannel channel, long position, long end)
+      throws IOException, ParseException {
+    if (end - position < HEADER_SIZE) {
+      throw parseError("Box header truncated", position);
+    }
+    ByteBuffer header = read(channel, position, (int) Math.min(LARGE_HEADER_SIZE, end - position));
+    long size = header.getInt() & 0xFFFFFFFFL;
+    String type = readFourCc(header);
+    int headerSize = HEADER_SIZE;
+    if (size == 1) {
+      if (header.remaining() < 8) {
+        throw parseError("Box header truncated", position);
+      }
+      size = header.getLong();
+      headerSize = LARGE_HEADER_SIZE;
+    } else if (size == 0) {
+      // The box extends to the end of its parent.
+      size = end - position;
+    }
+    if (size < headerSize) {
+      throw parseError("Invalid size of " + type + " box: " + size, position);
+    }
+    // The last box of a truncated file is shorter.
+    return new Box(type, position, Math.min(size, end - position), headerSize);
+  }
+
+  // Reads the data of a box, after its header.
+  private static ByteBuffer readBoxData(FileChannel channel, Box box)
+      throws IOException, ParseException {
+    long size = box.size - box.headerSize;
+    if (size > MAX_READ_SIZE) {
+      throw parseError(box.type + " box too large: " + box.size, box.position);
+    }
+    return read(channel, box.getDataPosition(), (int) size);
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String readFourCc(ByteBuffer buffer) {
+    byte[] fourCc = new byte[4];
+    buffer.get(fourCc);
+    return new String(fourCc, StandardCharsets.US_ASCII);
+  }
+
+  private static boolean isTopLevelType(String type) {
+    switch (type) {
+      case "ftyp":
+      case "moov":
+      case "mdat":
+      case "free":
+      case "skip":
+      case "wide":
+      case "styp":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static ParseException parseError(String message, long position) {
+    Log.e(TAG, message + " at " + position);
+    return new ParseException(message, (int) Math.min(position, Integer.MAX_VALUE));
+  }
+}
@@ -14,7 +14,10 @@
 
 package com.google.vr180.communication.http;
 
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.google.vr180.CameraApi.FileChecksum;
+import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
 import com.google.vr180.api.camerainterfaces.FileProvider;
 import com.google.vr180.common.IoUtils;
 import com.google.vr180.common.logging.Log;
@@ -23,6 +26,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.annotation.Nullable;
 import org.apache.http.Header;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -30,7 +39,18 @@ import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 
-/** Hander that implements the file download "/media/[filename]" endpoint. */
+/**
+ * Hander that implements the file download "/media/[filename]" endpoint.
+ *
+ * <p>Downloads have validators, so that clients can revalidate the files they have with
+ * If-None-Match or If-Modified-Since, and resume them with If-Range without splicing two versions
+ * of a file. The ETag is strong and derived from the SHA1 checksum of the file once it is cached.
+ * Until then, it is a weak ETag from the size and modification time of the file. Downloads only
+ * use cached checksums, and never cause a file to be hashed. Both forms of the ETag are accepted
+ * by If-None-Match, and the strong one by If-Range. If-Range also accepts the Last-Modified date,
+ * but only once it is a strong validator, which is when the file was modified at least a second
+ * before the response.
+ */
 public class MediaDownloadHandler implements HttpRequestHandler {
   public static final String PREFIX = "/media/";
 
@@ -38,13 +58,45 @@ public class MediaDownloadHandler implements HttpRequestHandler {
   private static final String CONTENT_RANGE_FORMAT = "bytes %d-%d/%d";
   private static final String RANGE = "Range";
   private static final String CONTENT_RANGE = "Content-Range";
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+  private static final String ETAG = "ETag";
+  private static final String LAST_MODIFIED = "Last-Modified";
+  private static final String IF_NONE_MATCH = "If-None-Match";
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  private static final String IF_RANGE = "If-Range";
+  private static final String WEAK_ETAG_PREFIX = "W/";
+  private static final long MS_PER_SEC = 1000;
+
+  private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMATTER =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          SimpleDateFormat formatter =
+              new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+          formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+          return formatter;
+        }
+      };
 
   private final FileProvider fileProvider;
+  @Nullable private final FileChecksumProvider fileChecksumProvider;
   private final AuthorizationValidator authorizationValidator;
 
   public MediaDownloadHandler(
       FileProvider fileProvider, AuthorizationValidator authorizationValidator) {
+    this(fileProvider, null, authorizationValidator);
+  }
+
+  /**
+   * @param fileChecksumProvider The provider of the cached checksums of the files for the ETags,
+   *     or null to derive the ETags from the size and modification time only.
+   */
+  public MediaDownloadHandler(
+      FileProvider fileProvider,
+      @Nullable FileChecksumProvider fileChecksumProvider,
+      AuthorizationValidator authorizationValidator) {
     this.fileProvider = fileProvider;
+    this.fileChecksumProvider = fileChecksumProvider;
     this.authorizationValidator = authorizationValidator;
   }
 
@@ -81,10 +133,23 @@ public class MediaDownloadHandler implements HttpRequestHandler {
       return;
     }
 
-    // If the client specified a range header, handle it.
+    Validators validators = getValidators(path);
+    response.addHeader(ACCEPT_RANGES, "bytes");
+    response.addHeader(ETAG, validators.getEtag());
+    response.addHeader(LAST_MODIFIED, formatHttpDate(validators.lastModifiedSeconds));
+    if (isNotModified(request, validators)) {
+      response.setStatusCode(304);
+      response.setReasonPhrase("Not Modified");
+      IoUtils.closeSilently(resultStream);
+      return;
+    }
+
+    // If the client specified a range header for the current version of the file, handle it.
     long length = -1;
     Header rangeHeader = request.getFirstHeader(RANGE);
-    if (rangeHeader != null && rangeHeader.getValue() != null) {
+    if (rangeHeader != null
+        && rangeHeader.getValue() != null
+        && isRangeValid(request, validators)) {
       ByteRange range;
       try {
         range = ByteRange.parse(rangeHeader.getValue());
@@ -146,6 +211,118 @@ public class MediaDownloadHandler implements HttpRequestHandler {
     }
   }
 
+  /** The validators of the current version of a file. */
+  private static final class Validators {
+    // The strong ETag from the SHA1 checksum, or null if the checksum isn't cached.
+    @Nullable private final String checksumEtag;
+    // The opaque tag of the weak ETag, from the size and modification time.
+    private final String fileTag;
+    private final long lastModifiedSeconds;
+
+    private Validators(@Nullable String checksumEtag, String fileTag, long lastModifiedSeconds) {
+      this.checksumEtag = checksumEtag;
+      this.fileTag = fileTag;
+      this.lastModifiedSeconds = lastModifiedSeconds;
+    }
+
+    /** The ETag which is sent. */
+    private String getEtag() {
+      return checksumEtag != null ? checksumEtag : WEAK_ETAG_PREFIX + fileTag;
+    }
+
+    /** Weak comparison with an entity tag of a request, without its weak prefix. */
+    private boolean matchesWeak(String opaqueTag) {
+      return opaqueTag.equals(checksumEtag) || opaqueTag.equals(fileTag);
+    }
+
+    /** Strong comparison with an entity tag of a request. */
+    private boolean matchesStrong(String entityTag) {
+      return entityTag.equals(checksumEtag);
+    }
+  }
+
+  private Validators getValidators(String path) {
+    long lastModifiedMs = fileProvider.getLastModified(path).getTime();
+    String fileTag = String.format("\"%x-%x\"", fileProvider.getFileSize(path), lastModifiedMs);
+    return new Validators(getChecksumEtag(path), fileTag, lastModifiedMs / MS_PER_SEC);
+  }
+
+  // Returns the ETag from the cached SHA1 checksum of the file, or null if it isn't cached yet.
+  @Nullable
+  private String getChecksumEtag(String path) {
+    if (fileChecksumProvider == null) {
+      return null;
+    }
+    for (FileChecksum checksum : fileChecksumProvider.getCachedFileChecksums(path)) {
+      if (checksum.getChecksumType() == FileChecksum.ChecksumType.SHA1) {
+        return "\"sha1-"
+            + BaseEncoding.base16().lowerCase().encode(checksum.getChecksum().toByteArray())
+            + "\"";
+      }
+    }
+    return null;
+  }
+
+  // Evaluates If-None-Match, or If-Modified-Since if there is no If-None-Match.
+  private static boolean isNotModified(HttpRequest request, Validators validators) {
+    Header ifNoneMatch = request.getFirstHeader(IF_NONE_MATCH);
+    if (ifNoneMatch != null && ifNoneMatch.getValue() != null) {
+      for (String entityTag : ifNoneMatch.getValue().split(",")) {
+        entityTag = entityTag.trim();
+        if (entityTag.startsWith(WEAK_ETAG_PREFIX)) {
+          // If-None-Match uses the weak comparison.
+          entityTag = entityTag.substring(WEAK_ETAG_PREFIX.length());
+        }
+        if (entityTag.equals("*") || validators.matchesWeak(entityTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Header ifModifiedSince = request.getFirstHeader(IF_MODIFIED_SINCE);
+    if (ifModifiedSince != null && ifModifiedSince.getValue() != null) {
+      Long sinceSeconds = parseHttpDate(ifModifiedSince.getValue());
+      return sinceSeconds != null && validators.lastModifiedSeconds <= sinceSeconds;
+    }
+    return false;
+  }
+
+  // Whether a range may be served, which is only if If-Range matches the current file if it is set.
+  private static boolean isRangeValid(HttpRequest request, Validators validators) {
+    Header ifRange = request.getFirstHeader(IF_RANGE);
+    if (ifRange == null || ifRange.getValue() == null) {
+      return true;
+    }
+    String value = ifRange.getValue().trim();
+    if (value.startsWith("\"") || value.startsWith(WEAK_ETAG_PREFIX)) {
+      // Weak entity tags never match.
+      return validators.matchesStrong(value);
+    }
+    // A date is only a strong validator if the file was modified at least a second before the Date
+    // of the response (RFC 7233 section 3.2). Otherwise the file could be modified again within the
+    // same second. The Date header is added when the response is sent, so it is never before now.
+    Long dateSeconds = parseHttpDate(value);
+    return dateSeconds != null
+        && dateSeconds == validators.lastModifiedSeconds
+        && validators.lastModifiedSeconds < System.currentTimeMillis() / MS_PER_SEC;
+  }
+
+  private static String formatHttpDate(long seconds) {
+    return HTTP_DATE_FORMATTER.get().format(new Date(seconds * MS_PER_SEC));
+  }
+
+  // Returns the seconds since the epoch of an HTTP date, or null if it is invalid.
+  @Nullable
+  private static Long parseHttpDate(String date) {
+    try {
+      return HTTP_DATE_FORMATTER.get().parse(date).getTime() / MS_PER_SEC;
+    } catch (ParseException e) {
+      Log.w(TAG, "Invalid HTTP date: " + date);
+      return null;
+    }
+  }
+
   private String getPathFromRequest(HttpRequest request) {
     String requestPath = request.getRequestLine().getUri();
     return requestPath.substring(PREFIX.length());
@@ -43,6 +43,24 @@ public class DebugConfig {
   private static final String DISABLE_PHOTO_DEWARP_PROP = "debug.vr180.photo.disable_dewarp";
   private static final String ENABLE_EXTRA_CAMM_DATA_PROP =
       "debug.vr180.camm.enable_extra_camm_data";
+  private static final String ENABLE_FRAGMENTED_MP4_PROP = "debug.vr180.video.fragmented_mp4";
+  private static final String ENABLE_LIVE_ARCHIVE_PROP = "debug.vr180.live.archive";
+  // Format: ms
+  private static final String INTERLEAVE_WINDOW_MS_PROP = "debug.vr180.video.interleave_window_ms";
+  // Format: 1(drop) / 0(write out of order)
+  private static final String INTERLEAVE_DROP_OVERFLOW_PROP =
+      "debug.vr180.video.interleave_drop_overflow";
+  private static final String PRE_ROLL_MS_PROP = "debug.vr180.video.preroll_ms";
+  private static final String PRE_ROLL_MIN_BATTERY_PROP = "debug.vr180.video.preroll_min_battery";
+  private static final String PRE_ROLL_MAX_TEMPERATURE_PROP = "debug.vr180.video.preroll_max_temp";
+  // Format: us
+  private static final String MOTION_VIEWFINDER_LATENCY_US_PROP =
+      "debug.vr180.motion.viewfinder_latency_us";
+  // Format: us
+  private static final String MOTION_RECORDING_LATENCY_US_PROP =
+      "debug.vr180.motion.recording_latency_us";
+  // Format: 1(true) / 0(false)
+  private static final String LOG_SENSOR_WAKEUPS_PROP = "debug.vr180.motion.log_wakeups";
 
   public static Size getPreviewSize() {
     return readSizeProperty(PREVIEW_SIZE_RROP);
@@ -84,6 +102,46 @@ public class DebugConfig {
     return readIntProperty(ENABLE_EXTRA_CAMM_DATA_PROP) != 0;
   }
 
+  public static boolean isFragmentedMp4Enabled() {
+    return readIntProperty(ENABLE_FRAGMENTED_MP4_PROP) != 0;
+  }
+
+  public static boolean isLiveArchiveEnabled() {
+    return readIntProperty(ENABLE_LIVE_ARCHIVE_PROP) != 0;
+  }
+
+  public static int getInterleaveWindowMs() {
+    return readIntProperty(INTERLEAVE_WINDOW_MS_PROP);
+  }
+
+  public static boolean isInterleaveOverflowDropped() {
+    return readIntProperty(INTERLEAVE_DROP_OVERFLOW_PROP) != 0;
+  }
+
+  public static int getPreRollMs() {
+    return readIntProperty(PRE_ROLL_MS_PROP);
+  }
+
+  public static int getPreRollMinBatteryPercent() {
+    return readIntProperty(PRE_ROLL_MIN_BATTERY_PROP);
+  }
+
+  public static int getPreRollMaxTemperatureC() {
+    return readIntProperty(PRE_ROLL_MAX_TEMPERATURE_PROP);
+  }
+
+  public static int getMotionViewfinderLatencyUs() {
+    return readIntProperty(MOTION_VIEWFINDER_LATENCY_US_PROP);
+  }
+
+  public static int getMotionRecordingLatencyUs() {
+    return readIntProperty(MOTION_RECORDING_LATENCY_US_PROP);
+  }
+
+  public static boolean isSensorWakeupLoggingEnabled() {
+    return readIntProperty(LOG_SENSOR_WAKEUPS_PROP) != 0;
+  }
+
   // Read a property as an integer.
   public static int readIntProperty(String property) {
     int[] numbers = readIntArrayProperty(property, 1);
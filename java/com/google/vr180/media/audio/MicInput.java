@@ -28,13 +28,18 @@ import com.google.common.base.Preconditions;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.media.MediaConstants;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implementation of the {@link AudioInput} interface for a microphone source. Executes on its own
  * thread and posts results on a separate thread,
+ *
+ * <p>The mic thread reads into a fixed ring of preallocated direct buffers, which the client thread
+ * drains into the encoder's input buffers. The ring has a single producer and a single consumer and
+ * is indexed by volatile sequence numbers, so neither side locks and nothing is allocated once
+ * capture is running. When the client falls behind and the ring is full, the mic thread waits up to
+ * one buffer period for a free slot before dropping the newly read data.
  */
 public final class MicInput implements AudioInput {
 
@@ -45,13 +50,11 @@ public final class MicInput implements AudioInput {
   private static final long JOIN_WAIT_TIME_MILLIS = 250L;
   private static final String THREAD_NAME = "MicInputThread";
   private static final int MIC_BUFFER_COUNT = 30;
+  private static final int INITIAL_REQUEST_CAPACITY = 16;
   private static final int AUDIO_THREAD_PRIO_BOOST = 2;
-  private static final int MAX_ERROR_DRAIN_COUNT = 30;
-  private static final long DRAIN_ON_ERROR_DELAY_MILLIS = 100L;
   private static final int OVERFLOW_WARN_THRESHOLD = 8;
   private static final int OVERFLOW_ERROR_THRESHOLD = 40;
   private static final int OVERFLOW_UNERROR_THRESHOLD = 30;
-  private static final int INVALID_BUFFER_ID = -1;
 
   // Overflow states
   private static final int OVERFLOW_STATE_OK = 0;
@@ -61,6 +64,7 @@ public final class MicInput implements AudioInput {
   private final Handler clientHandler;
   private final AutomaticGainControl micGainControl;
   private final double microsPerByte;
+  private final long bufferPeriodNanos;
   private final Object threadLock = new Object();
   private final Runnable overflowOkRunnable =
       () -> sendOverflowStatus(MediaConstants.STATUS_AUDIO_RATE_GOOD);
@@ -68,42 +72,46 @@ public final class MicInput implements AudioInput {
       () -> sendOverflowStatus(MediaConstants.STATUS_AUDIO_RATE_LOW);
   private final Runnable overflowErrorRunnable =
       () -> sendOverflowStatus(MediaConstants.STATUS_AUDIO_RATE_POOR);
+  private final Runnable drainAction = () -> drainRequests();
 
   private volatile Thread micThread;
   private AudioRecord audioRecorder;
   private MovingAverage driftMicros;
   private boolean isReleased;
   private FillBufferCallback fillBufferCallback;
-  private byte[] zeroBuf;
+  private final byte[] zeroBuf;
   private ErrorCallback errorCallback;
   private volatile boolean isStarted;
   private volatile boolean shouldStop;
   private volatile boolean isStopped;
   private volatile boolean isEnabled;
   private volatile boolean encounteredError;
+  private volatile boolean isDrainScheduled;
+  private volatile boolean isMicWaiting;
+  private volatile long droppedBufferCount;
+
+  // Mic data ring. Slots in [micReadSequence, micWriteSequence) hold data and belong to the
+  // consumer; the remaining slots belong to the mic thread. Each side only advances its own
+  // sequence number, after it is done with the slot.
+  private final ByteBuffer[] micBuffers;
+  private final long[] micPtsMicros;
+  private final int[] micByteCounts;
+  private volatile long micWriteSequence;
+  private volatile long micReadSequence;
+  // Receives the mic data that is dropped while the ring is full.
+  private final ByteBuffer overflowBuffer;
+
+  // Pending fill requests from the encoder, guarded by this.
+  private int[] requestBufferIds = new int[INITIAL_REQUEST_CAPACITY];
+  private ByteBuffer[] requestBuffers = new ByteBuffer[INITIAL_REQUEST_CAPACITY];
+  private int requestHead;
+  private int requestCount;
+  private boolean isDraining;
 
   // Accessed only by reader thread
   private int overflowCount;
   private int overflowState;
 
-  private final Runnable processAudioResponsesAction = () -> processAudioInputResponses();
-
-  private static class AudioInputInfo {
-    ByteBuffer buffer;
-    int bufferId;
-    long ptsMicros;
-    int byteCount;
-    int flags;
-  }
-
-  private final ConcurrentLinkedQueue<AudioInputInfo> audioRequestQueue =
-      new ConcurrentLinkedQueue<>();
-  private final ConcurrentLinkedQueue<AudioInputInfo> audioResponseQueue =
-      new ConcurrentLinkedQueue<>();
-  private final LinkedList<AudioInputInfo> audioInputFreeList = new LinkedList<>();
-  private final LinkedList<AudioInputInfo> micFreeList = new LinkedList<>();
-  private final LinkedList<AudioInputInfo> micFullList = new LinkedList<>();
-
   MicInput(
       @NonNull AudioRecord audioRecorder,
       int channelIn,
@@ -115,6 +123,7 @@ public final class MicInput implements AudioInput {
 
     int channelCount = (channelIn == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1);
     microsPerByte = 1000000.0 / ((double) BYTES_PER_SAMPLE * audioSampleRate * channelCount);
+    bufferPeriodNanos = TimeUnit.MICROSECONDS.toNanos((long) (bufferSize * microsPerByte));
     // Try to add automatic gain control to the mic
     if (AutomaticGainControl.isAvailable()) {
       micGainControl = AutomaticGainControl.create(audioRecorder.getAudioSessionId());
@@ -123,13 +132,15 @@ public final class MicInput implements AudioInput {
       micGainControl = null;
     }
 
-    // Create some buffers to use when the client gets behind the capture
+    // Allocate all buffers up front, so that capture itself does not allocate.
+    micBuffers = new ByteBuffer[MIC_BUFFER_COUNT];
+    micPtsMicros = new long[MIC_BUFFER_COUNT];
+    micByteCounts = new int[MIC_BUFFER_COUNT];
     for (int i = 0; i < MIC_BUFFER_COUNT; i++) {
-      AudioInputInfo bufferInfo = new AudioInputInfo();
-      bufferInfo.bufferId = INVALID_BUFFER_ID;
-      bufferInfo.buffer = ByteBuffer.allocateDirect(bufferSize);
-      micFreeList.add(bufferInfo);
+      micBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
     }
+    overflowBuffer = ByteBuffer.allocateDirect(bufferSize);
+    zeroBuf = new byte[bufferSize];
   }
 
   @Override
@@ -138,71 +149,101 @@ public final class MicInput implements AudioInput {
   }
 
   @Override
-  public void fillBufferRequest(int bufferId, ByteBuffer buffer) {
-    AudioInputInfo request =
-        (audioInputFreeList.isEmpty() ? new AudioInputInfo() : audioInputFreeList.removeFirst());
-    request.buffer = buffer;
-    request.bufferId = bufferId;
-    request.byteCount = 0;
-    request.flags = 0;
-
-    if (encounteredError) {
-      // An error was encountered.  Return the buffer immediately with a bad count value
-      Log.w(TAG, "Received buffer fill request with pending error: bufferId=" + bufferId);
-      request.byteCount = -1;
-      sendAudioInputResponse(request);
-    } else if (isStopped) {
-      // When the input stops, set the EOS flag and just return the request.
-      Log.d(TAG, "Sending end of stream audio response: bufferIndex=" + request.bufferId);
-      request.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-      sendAudioInputResponse(request);
-    } else if (isStarted) {
-      // Send a request to fill the buffer to the mic thread
-      audioRequestQueue.add(request);
-    } else {
-      // Not started.  Just send buffer back to client.  This should not happen in a
-      // properly operating system.  Could throw an exception here, but try to keep
-      // things running.
-      Log.w(TAG, "Received buffer fill request before recorder started: bufferId=" + bufferId);
-      sendAudioInputResponse(request);
+  public synchronized void fillBufferRequest(int bufferId, ByteBuffer buffer) {
+    if (requestCount == requestBufferIds.length) {
+      growRequests();
+    }
+    int index = (requestHead + requestCount) % requestBufferIds.length;
+    requestBufferIds[index] = bufferId;
+    requestBuffers[index] = buffer;
+    requestCount++;
+    // A drain in progress picks up the new request before it returns.
+    if (!isDraining) {
+      scheduleDrain();
     }
   }
 
-  private synchronized void sendAudioInputResponse(AudioInputInfo response) {
-    audioResponseQueue.add(response);
-    clientHandler.post(processAudioResponsesAction);
+  // Only happens when the encoder holds more input buffers than any seen before.
+  private void growRequests() {
+    int capacity = requestBufferIds.length;
+    int[] bufferIds = new int[capacity * 2];
+    ByteBuffer[] buffers = new ByteBuffer[capacity * 2];
+    for (int i = 0; i < requestCount; i++) {
+      bufferIds[i] = requestBufferIds[(requestHead + i) % capacity];
+      buffers[i] = requestBuffers[(requestHead + i) % capacity];
+    }
+    requestBufferIds = bufferIds;
+    requestBuffers = buffers;
+    requestHead = 0;
   }
 
-  // Runs on the codec thread and processes audio input responses received from the mic thread, i.e.
-  // sends the data to the audio encoder.
-  private void processAudioInputResponses() {
-    Preconditions.checkState(Looper.myLooper() != Looper.getMainLooper());
+  // Asks the client thread to drain the ring. Safe to call from any thread.
+  private void scheduleDrain() {
+    if (!isDrainScheduled) {
+      isDrainScheduled = true;
+      clientHandler.post(drainAction);
+    }
+  }
 
-    clientHandler.removeCallbacks(processAudioResponsesAction);
-    while (!audioResponseQueue.isEmpty()) {
-      AudioInputInfo response;
-      try {
-        response = audioResponseQueue.remove();
-      } catch (NoSuchElementException e) {
-        Log.e(TAG, "Audio response queue unexpectedly empty");
-        return;
-      }
+  // Runs on the client thread and answers pending requests with mic data, in order, for as long as
+  // there is data to answer them with.
+  private synchronized void drainRequests() {
+    // Clear the flag before looking at the ring, so that data published after this point
+    // schedules another drain.
+    isDrainScheduled = false;
+    isDraining = true;
+    try {
+      while (requestCount > 0) {
+        int bufferId = requestBufferIds[requestHead];
+        ByteBuffer buffer = requestBuffers[requestHead];
+        int flags = 0;
+        int byteCount = 0;
+        long ptsMicros = 0;
+        if (encounteredError) {
+          // An error was encountered.  Return the buffer immediately with a bad count value
+          Log.w(TAG, "Received buffer fill request with pending error: bufferId=" + bufferId);
+          byteCount = -1;
+        } else if (micReadSequence < micWriteSequence) {
+          int slot = (int) (micReadSequence % MIC_BUFFER_COUNT);
+          ByteBuffer micBuffer = micBuffers[slot];
+          ptsMicros = micPtsMicros[slot];
+          byteCount = micByteCounts[slot];
+          try {
+            micBuffer.limit(byteCount);
+            buffer.put(micBuffer);
+          } catch (Exception e) {
+            Log.e(TAG, "Error copying mic data to client buffer", e);
+            encounteredError = true;
+            byteCount = -1;
+          }
+          micBuffer.clear();
+          micReadSequence++;
+          if (isMicWaiting) {
+            LockSupport.unpark(micThread);
+          }
+        } else if (isStopped) {
+          // When the input stops, set the EOS flag and just return the request.
+          Log.d(TAG, "Sending end of stream audio response: bufferIndex=" + bufferId);
+          flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        } else if (!isStarted) {
+          // Not started.  Just send buffer back to client.  This should not happen in a
+          // properly operating system.  Could throw an exception here, but try to keep
+          // things running.
+          Log.w(TAG, "Received buffer fill request before recorder started: bufferId=" + bufferId);
+        } else {
+          // Wait for the mic thread to publish more data.
+          return;
+        }
 
-      if (fillBufferCallback != null) {
-        fillBufferCallback.onBufferFilled(
-            response.bufferId,
-            response.buffer,
-            response.flags,
-            0, // offset
-            response.byteCount,
-            response.ptsMicros);
+        requestBuffers[requestHead] = null;
+        requestHead = (requestHead + 1) % requestBufferIds.length;
+        requestCount--;
+        if (fillBufferCallback != null) {
+          fillBufferCallback.onBufferFilled(bufferId, buffer, flags, 0, byteCount, ptsMicros);
+        }
       }
-
-      response.buffer = null;
-      response.byteCount = 0;
-      response.ptsMicros = 0;
-      response.bufferId = INVALID_BUFFER_ID;
-      audioInputFreeList.addLast(response);
+    } finally {
+      isDraining = false;
     }
   }
 
@@ -272,6 +313,8 @@ public final class MicInput implements AudioInput {
                     micThread = null;
                     isStopped = true;
                   }
+                  // Answer the remaining requests with the remaining data, then end of stream.
+                  scheduleDrain();
                 }
               }
             },
@@ -301,6 +344,7 @@ public final class MicInput implements AudioInput {
       }
 
       shouldStop = true;
+      LockSupport.unpark(micThread);
       while (true) {
         try {
           micThread.join(JOIN_WAIT_TIME_MILLIS);
@@ -327,6 +371,9 @@ public final class MicInput implements AudioInput {
     }
 
     isStopped = (micThread == null);
+    if (droppedBufferCount > 0) {
+      Log.w(TAG, "Dropped " + droppedBufferCount + " audio buffers on overflow");
+    }
     return isStopped;
   }
 
@@ -353,6 +400,11 @@ public final class MicInput implements AudioInput {
     return isReleased;
   }
 
+  /** Returns the number of mic buffers dropped because the client fell behind. */
+  public long getDroppedBufferCount() {
+    return droppedBufferCount;
+  }
+
   // Runs on handler thread and sends overflow state back to client
   private void sendOverflowStatus(int statusCode) {
     if (errorCallback != null) {
@@ -360,8 +412,8 @@ public final class MicInput implements AudioInput {
     }
   }
 
-  // Runs on the mic thread and reads the mic data as fast as possible.  Results are posted
-  // to incoming buffers from the client when available and to back buffers when not.
+  // Runs on the mic thread and reads the mic data as fast as possible into the ring.  Data is
+  // dropped when the ring stays full for a whole buffer period.
   private void mainLoop() {
     Preconditions.checkState(Looper.myLooper() != Looper.getMainLooper());
     Preconditions.checkState(isStarted);
@@ -369,7 +421,6 @@ public final class MicInput implements AudioInput {
     long bytesTransmitted = 0;
     long streamStartTimeMicros = 0;
     driftMicros = new MovingAverage(MOVING_AVG_WINDOW_SIZE);
-    int errorDrainCount = 0;
     overflowCount = 0;
     overflowState = OVERFLOW_STATE_OK;
 
@@ -380,179 +431,108 @@ public final class MicInput implements AudioInput {
         return;
       }
 
-      // When an error occurs, simply drain any pending requests
+      // Pending requests are answered with an error by the drain.
       if (encounteredError) {
-        while (!audioRequestQueue.isEmpty()) {
-          try {
-            AudioInputInfo request = audioRequestQueue.remove();
-            request.byteCount = -1;
-            sendAudioInputResponse(request);
-          } catch (NoSuchElementException e) {
-            Log.e(TAG, "Audio request queue unexpectedly empty while draining on error", e);
-            return;
-          }
-        }
-        if (errorDrainCount >= MAX_ERROR_DRAIN_COUNT) {
-          // If the mic thread spins too long after an error, just go ahead and exit
-          Log.e(TAG, "Waited too long for cleanup after error");
-          return;
-        }
-        if (errorDrainCount > 0) {
-          // After draining the first time, delay a little before spinning again.
-          try {
-            Thread.sleep(DRAIN_ON_ERROR_DELAY_MILLIS, 0);
-          } catch (InterruptedException e) {
-            // Ignore interruption
-            Log.w(TAG, "Interrupted while draining buffer queue on error.", e);
-          }
-        }
-        errorDrainCount++;
-        continue;
-      }
-
-      // If there is pending data and an available client buffer, copy out the results
-      while (!audioRequestQueue.isEmpty() && !micFullList.isEmpty() && !encounteredError) {
-        AudioInputInfo request;
-        try {
-          request = audioRequestQueue.remove();
-        } catch (NoSuchElementException e) {
-          Log.e(TAG, "Audio request queue unexpectedly empty while copying results", e);
-          encounteredError = true;
-          continue;
-        }
-
-        AudioInputInfo micData;
-        try {
-          micData = micFullList.removeFirst();
-        } catch (NoSuchElementException e) {
-          Log.e(TAG, "Mic queue unexpectedly empty while copying results", e);
-          encounteredError = true;
-          request.byteCount = -1;
-          sendAudioInputResponse(request);
-          continue;
-        }
-
-        request.ptsMicros = micData.ptsMicros;
-        request.byteCount = micData.byteCount;
-        try {
-          request.buffer.put(micData.buffer);
-        } catch (Exception e) {
-          Log.e(TAG, "Error copying mic data to client buffer", e);
-          encounteredError = true;
-          request.byteCount = -1;
-        }
-
-        micData.buffer.position(0);
-        micFreeList.add(micData);
-        sendAudioInputResponse(request);
-      }
-      if (encounteredError) {
-        continue;
+        return;
       }
 
       if (audioRecorder == null) {
         Log.e(TAG, "Skipping audio input request due to missing recorder");
         encounteredError = true;
+        scheduleDrain();
         continue;
       }
 
       // Select a buffer in which to store the result
-      boolean usingRequestBuffer = !audioRequestQueue.isEmpty();
-      long now = SystemClock.elapsedRealtimeNanos() / 1000;
-      final AudioInputInfo inputInfo;
-      if (usingRequestBuffer) {
-        // Read directly into a request buffer
-        try {
-          inputInfo = audioRequestQueue.remove();
-        } catch (NoSuchElementException e) {
-          Log.e(TAG, "Audio request queue unexpectedly empty");
-          encounteredError = true;
-          continue;
-        }
-
+      long sequence = micWriteSequence;
+      boolean hasFreeSlot = awaitFreeSlot(sequence);
+      if (shouldStop) {
+        continue;
+      }
+      int slot = (int) (sequence % MIC_BUFFER_COUNT);
+      ByteBuffer buffer;
+      if (hasFreeSlot) {
+        buffer = micBuffers[slot];
         // Buffer overflow is decreasing.
         reduceOverflow();
-      } else if (micFreeList.isEmpty()) {
-        // Nothing on the free list.  Pull the head of the full list
-        try {
-          inputInfo = micFullList.removeFirst();
-        } catch (NoSuchElementException e) {
-          Log.e(TAG, "Mic queue unexpectedly empty in overflow", e);
-          encounteredError = true;
-          continue;
-        }
-
+      } else {
+        // The ring is full.  Read anyway to keep up with the recorder, and drop the data.
+        buffer = overflowBuffer;
+        droppedBufferCount++;
         // Buffer overflow is increasing.
         increaseOverflow();
-      } else {
-        try {
-          inputInfo = micFreeList.removeFirst();
-        } catch (NoSuchElementException e) {
-          Log.e(TAG, "Mic free list unexpectedly empty", e);
-          encounteredError = true;
-          continue;
-        }
-
-        // Buffer overflow is decreasing.
-        reduceOverflow();
       }
 
-      // Start off with nothing in the response
-      inputInfo.byteCount = 0;
-      ByteBuffer buffer = inputInfo.buffer;
-
+      long now = SystemClock.elapsedRealtimeNanos() / 1000;
       if (streamStartTimeMicros <= 0) {
         streamStartTimeMicros = now;
         driftMicros.reset();
       }
-      inputInfo.ptsMicros = streamStartTimeMicros + (long) (bytesTransmitted * microsPerByte);
+      long ptsMicros = streamStartTimeMicros + (long) (bytesTransmitted * microsPerByte);
 
       // Track the sync slippage
       if (bytesTransmitted > 0) {
-        long deltaMicros = inputInfo.ptsMicros - now;
+        long deltaMicros = ptsMicros - now;
         driftMicros.addSample(deltaMicros);
       }
 
       // Read audio samples, catching any exceptions and turning them into a generic error
+      int byteCount;
       try {
-        inputInfo.byteCount = audioRecorder.read(buffer, buffer.capacity());
+        byteCount = audioRecorder.read(buffer, buffer.capacity());
       } catch (Exception e) {
         Log.e(TAG, "Error reading audio data", e);
-        inputInfo.byteCount = -1;
+        byteCount = -1;
       }
 
-      if (inputInfo.byteCount < 0) {
-        Log.e(TAG, "Error reading audio sample data: " + inputInfo.byteCount);
+      if (byteCount < 0) {
+        Log.e(TAG, "Error reading audio sample data: " + byteCount);
         encounteredError = true;
-        if (usingRequestBuffer) {
-          sendAudioInputResponse(inputInfo);
-        } else {
-          micFreeList.add(inputInfo);
-        }
+        scheduleDrain();
         continue;
       }
 
       if (!isEnabled) {
         // Zero out the mic data when it's disabled.  Easier to do this than manage the timing
         // since input buffers are delivered as fast as possible
-        if (zeroBuf == null || zeroBuf.length < buffer.capacity()) {
-          zeroBuf = new byte[buffer.capacity()];
-        }
-        buffer.position(0);
-        buffer.put(zeroBuf, 0, inputInfo.byteCount);
+        buffer.clear();
+        buffer.put(zeroBuf, 0, byteCount);
+        buffer.clear();
       }
 
-      // Send the final result to the codec thread with a valid byte count,
-      // or put it on the full list
-      bytesTransmitted += inputInfo.byteCount;
-      if (usingRequestBuffer) {
-        sendAudioInputResponse(inputInfo);
-      } else {
-        micFullList.addLast(inputInfo);
+      // Publish the result to the client thread
+      bytesTransmitted += byteCount;
+      if (hasFreeSlot) {
+        micPtsMicros[slot] = ptsMicros;
+        micByteCounts[slot] = byteCount;
+        micWriteSequence = sequence + 1;
+        scheduleDrain();
       }
     }
   }
 
+  // Waits up to one buffer period for the consumer to free the slot at the given sequence, and
+  // returns whether it is free.
+  private boolean awaitFreeSlot(long sequence) {
+    if (sequence - micReadSequence < MIC_BUFFER_COUNT) {
+      return true;
+    }
+    long deadlineNanos = System.nanoTime() + bufferPeriodNanos;
+    isMicWaiting = true;
+    try {
+      while (sequence - micReadSequence >= MIC_BUFFER_COUNT && !shouldStop) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(this, remainingNanos);
+      }
+    } finally {
+      isMicWaiting = false;
+    }
+    return sequence - micReadSequence < MIC_BUFFER_COUNT;
+  }
+
   private void increaseOverflow() {
     overflowCount++;
     if (overflowCount == OVERFLOW_WARN_THRESHOLD && overflowState != OVERFLOW_STATE_WARN) {
@@ -604,18 +584,15 @@ public final class MicInput implements AudioInput {
   }
 
   // Visible for testing.
-  LinkedList<AudioInputInfo> getAudioInputFreeList() {
-    return audioInputFreeList;
-  }
-
-  // Visible for testing.
-  ConcurrentLinkedQueue<AudioInputInfo> getAudioRequestQueue() {
-    return audioRequestQueue;
+  int getPendingRequestCount() {
+    synchronized (this) {
+      return requestCount;
+    }
   }
 
   // Visible for testing.
-  ConcurrentLinkedQueue<AudioInputInfo> getAudioResponseQueue() {
-    return audioResponseQueue;
+  int getBufferedMicDataCount() {
+    return (int) (micWriteSequence - micReadSequence);
   }
 
   // Visible for testing.
@@ -0,0 +1,548 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.metadata;
+
+import android.support.annotation.Nullable;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.StereoMode;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Injects the VR metadata into an MP4 file by editing its moov box in place through a memory mapped
+ * {@link FileChannel}.
+ *
+ * <p>The st3d/sv3d boxes are added to the visual sample entry of the first video track, the 'mett'
+ * sample entry of the first metadata track is replaced by a 'camm' sample entry and, optionally,
+ * the V1 spherical uuid box and edts boxes are added. The size difference is absorbed by a reserved
+ * 'free' box, either as the last child of moov or directly after it, or by growing the file when
+ * moov is the last box. Only the bytes between the edits and the reservation are moved, the sample
+ * data and chunk offsets are never touched. Files without enough reserved space are left unchanged.
+ */
+final class Mp4MoovPatcher {
+  private static final String TAG = "Mp4MoovPatcher";
+
+  /** The moov box was patched in place. */
+  static final int RESULT_PATCHED = 0;
+  /** There is not enough reserved space next to the moov box to patch it in place. */
+  static final int RESULT_NO_SPACE = 1;
+  /** The file is not a supported MP4 file or could not be written. */
+  static final int RESULT_ERROR = 2;
+
+  private static final int TYPE_MOOV = fourCc("moov");
+  private static final int TYPE_TRAK = fourCc("trak");
+  private static final int TYPE_TKHD = fourCc("tkhd");
+  private static final int TYPE_EDTS = fourCc("edts");
+  private static final int TYPE_MDIA = fourCc("mdia");
+  private static final int TYPE_HDLR = fourCc("hdlr");
+  private static final int TYPE_MINF = fourCc("minf");
+  private static final int TYPE_STBL = fourCc("stbl");
+  private static final int TYPE_STSD = fourCc("stsd");
+  private static final int TYPE_ST3D = fourCc("st3d");
+  private static final int TYPE_SV3D = fourCc("sv3d");
+  private static final int TYPE_UUID = fourCc("uuid");
+  private static final int TYPE_METT = fourCc("mett");
+  private static final int TYPE_CAMM = fourCc("camm");
+  private static final int TYPE_FREE = fourCc("free");
+  private static final int TYPE_SKIP = fourCc("skip");
+  private static final int HANDLER_VIDEO = fourCc("vide");
+  private static final int HANDLER_META = fourCc("meta");
+
+  // A visual sample entry has 78 bytes of fields before its child boxes.
+  private static final int VISUAL_SAMPLE_ENTRY_FIELDS_SIZE = 78;
+  // The stsd box has a version/flags field and an entry count before its sample entries.
+  private static final int STSD_FIELDS_SIZE = 8;
+
+  private static final byte[] SPHERICAL_V1_UUID = {
+    (byte) 0xff, (byte) 0xcc, (byte) 0x82, 0x63, (byte) 0xf8, 0x55, 0x4a, (byte) 0x93,
+    (byte) 0x88, 0x14, 0x58, 0x7a, 0x02, 0x52, 0x1f, (byte) 0xdd
+  };
+  private static final String SPHERICAL_V1_STITCHER = "VR180 Metadata Injector";
+  private static final String SPHERICAL_V1_XML =
+      "\n<rdf:SphericalVideo xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+          + "                    xmlns:GSpherical=\"http://ns.google.com/videos/1.0/spherical/\">\n"
+          + "  <GSpherical:Spherical>true</GSpherical:Spherical>\n"
+          + "  <GSpherical:Stitched>true</GSpherical:Stitched>\n"
+          + "  <GSpherical:ProjectionType>equirectangular</GSpherical:ProjectionType>\n"
+          + "  <GSpherical:StitchingSoftware>%s</GSpherical:StitchingSoftware>\n"
+          + "  <GSpherical:SourceCount>2</GSpherical:SourceCount>\n"
+          + "  <GSpherical:StereoMode>%s</GSpherical:StereoMode>\n"
+          + "  <GSpherical:CroppedAreaLeftPixels>%d</GSpherical:CroppedAreaLeftPixels>\n"
+          + "  <GSpherical:CroppedAreaTopPixels>%d</GSpherical:CroppedAreaTopPixels>\n"
+          + "  <GSpherical:CroppedAreaImageWidthPixels>%d"
+          + "</GSpherical:CroppedAreaImageWidthPixels>\n"
+          + "  <GSpherical:CroppedAreaImageHeightPixels>%d"
+          + "</GSpherical:CroppedAreaImageHeightPixels>\n"
+          + "  <GSpherical:FullPanoWidthPixels>%d</GSpherical:FullPanoWidthPixels>\n"
+          + "  <GSpherical:FullPanoHeightPixels>%d</GSpherical:FullPanoHeightPixels>\n"
+          + "</rdf:SphericalVideo>\n";
+
+  private Mp4MoovPatcher() {}
+
+  /**
+   * Patches the moov box of the file in place.
+   *
+   * @param stereoMode The stereo mode written to the st3d box.
+   * @param sv3d The serialized sv3d box.
+   * @param v1Uuid The serialized V1 spherical uuid box, or null to leave the video track's uuid
+   *     boxes unchanged.
+   * @return One of {@link #RESULT_PATCHED}, {@link #RESULT_NO_SPACE} or {@link #RESULT_ERROR}. The
+   *     file is only modified if {@link #RESULT_PATCHED} is returned.
+   */
+  static int patch(String path, int stereoMode, byte[] sv3d, @Nullable byte[] v1Uuid) {
+    try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+      FileChannel channel = file.getChannel();
+      long fileSize = channel.size();
+
+      // Find the moov box and the box that follows it.
+      long moovOffset = -1;
+      long moovSize = 0;
+      long nextSize = 0;
+      int nextType = 0;
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate(16);
+      while (position + 8 <= fileSize) {
+        long size = readBoxSize(channel, header, position, fileSize);
+        if (size <= 0) {
+          break;
+        }
+        if (moovOffset >= 0) {
+          nextSize = size;
+          nextType = header.getInt(4);
+          break;
+        }
+        if (header.getInt(4) == TYPE_MOOV) {
+          moovOffset = position;
+          moovSize = size;
+        }
+        position += size;
+      }
+      if (moovOffset < 0) {
+        Log.e(TAG, "No moov box found in " + path);
+        return RESULT_ERROR;
+      }
+      boolean moovIsLast = moovOffset + moovSize == fileSize;
+      boolean freeFollowsMoov = nextType == TYPE_FREE || nextType == TYPE_SKIP;
+      long regionSize = moovSize + (freeFollowsMoov ? nextSize : 0);
+      if (regionSize > Integer.MAX_VALUE) {
+        Log.e(TAG, "The moov box is too large to be mapped: " + moovSize);
+        return RESULT_ERROR;
+      }
+
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, moovOffset, regionSize);
+      Box moov = readBox(region, 0, (int) moovSize, null);
+      List<Edit> edits = new ArrayList<>();
+      if (moov == null || !collectEdits(region, moov, stereoMode, sv3d, v1Uuid, edits)) {
+        return RESULT_ERROR;
+      }
+      // Apply the edits from the end of moov so that the offsets of the remaining edits and their
+      // parent boxes stay valid. The moov box may temporarily grow more than its final size.
+      Collections.sort(edits, (a, b) -> Integer.compare(b.offset, a.offset));
+      int delta = 0;
+      int peakDelta = 0;
+      int lastEditEnd = 0;
+      for (Edit edit : edits) {
+        delta += edit.insert.length - edit.removeLength;
+        peakDelta = Math.max(peakDelta, delta);
+        lastEditEnd = Math.max(lastEditEnd, edit.offset + edit.removeLength);
+      }
+
+      // Pick the reservation that absorbs the size difference. A free box inside moov is
+      // preferred since moov keeps its size, then a free box after moov and finally the end of the
+      // file.
+      Box reservation = null;
+      for (Box child : moov.children(region)) {
+        if ((child.type == TYPE_FREE || child.type == TYPE_SKIP)
+            && child.offset >= lastEditEnd
+            && isValidReservation(child.size, delta, peakDelta)) {
+          reservation = child;
+        }
+      }
+      if (reservation == null && freeFollowsMoov) {
+        reservation = readBox(region, moov.end(), (int) regionSize, null);
+        if (reservation != null && !isValidReservation(reservation.size, delta, peakDelta)) {
+          reservation = null;
+        }
+      }
+      if (reservation == null && !moovIsLast) {
+        Log.w(TAG, "Not enough space reserved to grow moov by " + delta + " bytes in " + path);
+        return RESULT_NO_SPACE;
+      }
+      if (reservation == null && peakDelta > 0) {
+        // Grow the file. Mapping a region past the end of the file extends it.
+        region = channel.map(FileChannel.MapMode.READ_WRITE, moovOffset, moovSize + peakDelta);
+      }
+
+      int reservationOffset = reservation != null ? reservation.offset : moov.end();
+      Box stopBox = reservation != null ? reservation.parent : null;
+      for (Edit edit : edits) {
+        int editDelta = edit.insert.length - edit.removeLength;
+        int tailOffset = edit.offset + edit.removeLength;
+        move(region, tailOffset, tailOffset + editDelta, reservationOffset - tailOffset);
+        region.position(edit.offset);
+        region.put(edit.insert);
+        reservationOffset += editDelta;
+        for (Box box = edit.parent; box != null && box != stopBox; box = box.parent) {
+          box.addToSize(region, editDelta);
+        }
+      }
+      if (reservation != null && reservation.size != delta) {
+        region.putInt(reservationOffset, reservation.size - delta);
+        region.putInt(reservationOffset + 4, TYPE_FREE);
+      }
+      region.force();
+      if (reservation == null && delta < peakDelta) {
+        channel.truncate(fileSize + delta);
+      }
+      return RESULT_PATCHED;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to patch " + path, e);
+      return RESULT_ERROR;
+    }
+  }
+
+  /**
+   * Creates the V1 spherical metadata uuid box for a cropped equirectangular video.
+   *
+   * @return The serialized uuid box, or null if the parameters are not valid.
+   */
+  @Nullable
+  static byte[] createSphericalV1Uuid(
+      int stereoMode, int width, int height, float fovX, float fovY) {
+    if (width <= 0 || height <= 0 || fovX <= 0 || fovX > 360 || fovY <= 0 || fovY > 180) {
+      return null;
+    }
+    String mode;
+    switch (stereoMode) {
+      case StereoMode.LEFT_RIGHT:
+        mode = "left-right";
+        break;
+      case StereoMode.TOP_BOTTOM:
+        mode = "top-bottom";
+        break;
+      case StereoMode.MONO:
+        mode = "mono";
+        break;
+      default:
+        return null;
+    }
+    double fullWidth = width * 360.0 / fovX;
+    double fullHeight = height * 180.0 / fovY;
+    String xml =
+        String.format(
+            Locale.US,
+            SPHERICAL_V1_XML,
+            SPHERICAL_V1_STITCHER,
+            mode,
+            (int) ((fullWidth - width) / 2),
+            (int) ((fullHeight - height) / 2),
+            width,
+            height,
+            Math.round(fullWidth),
+            Math.round(fullHeight));
+    byte[] payload = xml.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer uuid = ByteBuffer.allocate(8 + SPHERICAL_V1_UUID.length + payload.length);
+    uuid.putInt(uuid.capacity());
+    uuid.putInt(TYPE_UUID);
+    uuid.put(SPHERICAL_V1_UUID);
+    uuid.put(payload);
+    return uuid.array();
+  }
+
+  // Collects the edits of the moov box. Returns false if a required box is missing.
+  private static boolean collectEdits(
+      ByteBuffer region,
+      Box moov,
+      int stereoMode,
+      byte[] sv3d,
+      @Nullable byte[] v1Uuid,
+      List<Edit> edits) {
+    Box videoTrak = null;
+    Box metaTrak = null;
+    for (Box trak : moov.children(region)) {
+      if (trak.type != TYPE_TRAK) {
+        continue;
+      }
+      List<Box> trakChildren = trak.children(region);
+      Box mdia = findBox(trakChildren, TYPE_MDIA);
+      Box tkhd = findBox(trakChildren, TYPE_TKHD);
+      Box hdlr = mdia != null ? findBox(mdia.children(region), TYPE_HDLR) : null;
+      if (mdia == null || tkhd == null || hdlr == null) {
+        Log.e(TAG, "Invalid trak box");
+        return false;
+      }
+      int handler = region.getInt(hdlr.payloadOffset() + 8);
+      if (handler == HANDLER_VIDEO && videoTrak == null) {
+        videoTrak = trak;
+      } else if (handler == HANDLER_META && metaTrak == null) {
+        metaTrak = trak;
+      }
+      // Add an edit list that maps the whole media to the track duration.
+      long duration = getTrackDuration(region, tkhd);
+      if (findBox(trakChildren, TYPE_EDTS) == null && duration > 0) {
+        edits.add(new Edit(mdia.offset, 0, createEdts(duration), trak));
+      }
+    }
+    if (videoTrak == null || metaTrak == null) {
+      Log.e(TAG, "The file must have a video track and a metadata track");
+      return false;
+    }
+
+    Box visualSampleEntry = getFirstSampleEntry(region, videoTrak);
+    if (visualSampleEntry == null
+        || visualSampleEntry.size < visualSampleEntry.headerSize + VISUAL_SAMPLE_ENTRY_FIELDS_SIZE) {
+      Log.e(TAG, "Video track has no visual sample entry");
+      return false;
+    }
+    for (Box child :
+        visualSampleEntry.children(
+            region, visualSampleEntry.payloadOffset() + VISUAL_SAMPLE_ENTRY_FIELDS_SIZE)) {
+      if (child.type == TYPE_ST3D || child.type == TYPE_SV3D) {
+        edits.add(new Edit(child.offset, child.size, new byte[0], visualSampleEntry));
+      }
+    }
+    ByteBuffer projection = ByteBuffer.allocate(13 + sv3d.length);
+    projection.putInt(13).putInt(TYPE_ST3D).putInt(0).put((byte) stereoMode);
+    projection.put(sv3d);
+    edits.add(new Edit(visualSampleEntry.end(), 0, projection.array(), visualSampleEntry));
+
+    if (v1Uuid != null) {
+      for (Box child : videoTrak.children(region)) {
+        if (child.type == TYPE_UUID) {
+          edits.add(new Edit(child.offset, child.size, new byte[0], videoTrak));
+        }
+      }
+      edits.add(new Edit(videoTrak.end(), 0, v1Uuid, videoTrak));
+    }
+
+    Box metaSampleEntry = getFirstSampleEntry(region, metaTrak);
+    if (metaSampleEntry == null
+        || metaSampleEntry.parent.children(region, metaSampleEntry.offset).size() != 1) {
+      Log.e(TAG, "File has no valid metadata track");
+      return false;
+    }
+    if (metaSampleEntry.type == TYPE_METT) {
+      ByteBuffer camm = ByteBuffer.allocate(16);
+      camm.putInt(16).putInt(TYPE_CAMM);
+      edits.add(
+          new Edit(
+              metaSampleEntry.offset, metaSampleEntry.size, camm.array(), metaSampleEntry.parent));
+    } else if (metaSampleEntry.type != TYPE_CAMM) {
+      Log.e(TAG, "Metadata track is not mett");
+      return false;
+    }
+    return true;
+  }
+
+  @Nullable
+  private static Box getFirstSampleEntry(ByteBuffer region, Box trak) {
+    Box box = findBox(trak.children(region), TYPE_MDIA);
+    box = box != null ? findBox(box.children(region), TYPE_MINF) : null;
+    box = box != null ? findBox(box.children(region), TYPE_STBL) : null;
+    box = box != null ? findBox(box.children(region), TYPE_STSD) : null;
+    if (box == null) {
+      return null;
+    }
+    List<Box> entries = box.children(region, box.payloadOffset() + STSD_FIELDS_SIZE);
+    return entries.isEmpty() ? null : entries.get(0);
+  }
+
+  private static long getTrackDuration(ByteBuffer region, Box tkhd) {
+    int version = region.get(tkhd.payloadOffset());
+    if (version == 1) {
+      // version/flags, creation_time, modification_time, track_ID, reserved.
+      return region.getLong(tkhd.payloadOffset() + 28);
+    }
+    return region.getInt(tkhd.payloadOffset() + 20) & 0xFFFFFFFFL;
+  }
+
+  private static byte[] createEdts(long duration) {
+    boolean largeDuration = duration > 0xFFFFFFFFL;
+    int size = largeDuration ? 44 : 36;
+    ByteBuffer edts = ByteBuffer.allocate(size);
+    edts.putInt(size).putInt(TYPE_EDTS);
+    edts.putInt(size - 8).putInt(fourCc("elst"));
+    edts.putInt(largeDuration ? 0x01000000 : 0); // version/flags
+    edts.putInt(1); // entry_count
+    if (largeDuration) {
+      edts.putLong(duration).putLong(0);
+    } else {
+      edts.putInt((int) duration).putInt(0);
+    }
+    edts.putShort((short) 1); // media_rate_integer
+    edts.putShort((short) 0); // media_rate_fraction
+    return edts.array();
+  }
+
+  private static boolean isValidReservation(int reservationSize, int delta, int peakDelta) {
+    int remainingSize = reservationSize - delta;
+    return peakDelta <= reservationSize && (remainingSize == 0 || remainingSize >= 8);
+  }
+
+  private static void move(ByteBuffer buffer, int from, int to, int length) {
+    if (from == to || length == 0) {
+      return;
+    }
+    byte[] bytes = new byte[length];
+    buffer.position(from);
+    buffer.get(bytes);
+    buffer.position(to);
+    buffer.put(bytes);
+  }
+
+  @Nullable
+  private static Box findBox(List<Box> boxes, int type) {
+    for (Box box : boxes) {
+      if (box.type == type) {
+        return box;
+      }
+    }
+    return null;
+  }
+
+  // Reads the box header at the given file position and returns the box size or 0 if the box is
+  // incomplete. The box type is left at offset 4 of the header buffer.
+  private static long readBoxSize(
+      FileChannel channel, ByteBuffer header, long position, long fileSize) throws IOException {
+    header.clear();
+    header.limit(8);
+    readFully(channel, header, position);
+    long size = header.getInt(0) & 0xFFFFFFFFL;
+    int headerSize = 8;
+    if (size == 1) {
+      if (position + 16 > fileSize) {
+        return 0;
+      }
+      header.limit(16);
+      readFully(channel, header, position + 8);
+      size = header.getLong(8);
+      headerSize = 16;
+    } else if (size == 0) {
+      size = fileSize - position;
+    }
+    return size >= headerSize && position + size <= fileSize ? size : 0;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      position += read;
+    }
+  }
+
+  // Reads the box at the given offset of the mapped region, or returns null if it is invalid.
+  @Nullable
+  private static Box readBox(ByteBuffer region, int offset, int limit, @Nullable Box parent) {
+    if (offset + 8 > limit) {
+      return null;
+    }
+    long size = region.getInt(offset) & 0xFFFFFFFFL;
+    int headerSize = 8;
+    if (size == 1) {
+      if (offset + 16 > limit) {
+        return null;
+      }
+      size = region.getLong(offset + 8);
+      headerSize = 16;
+    } else if (size == 0) {
+      size = limit - offset;
+    }
+    if (size < headerSize || offset + size > limit) {
+      return null;
+    }
+    return new Box(region.getInt(offset + 4), offset, headerSize, (int) size, parent);
+  }
+
+  private static int fourCc(String type) {
+    return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+  }
+
+  /** A box within the mapped moov region. */
+  private static final class Box {
+    final int type;
+    final int offset;
+    final int headerSize;
+    final int size;
+    @Nullable final Box parent;
+
+    Box(int type, int offset, int headerSize, int size, @Nullable Box parent) {
+      this.type = type;
+      this.offset = offset;
+      this.headerSize = headerSize;
+      this.size = size;
+      this.parent = parent;
+    }
+
+    int payloadOffset() {
+      return offset + headerSize;
+    }
+
+    int end() {
+      return offset + size;
+    }
+
+    List<Box> children(ByteBuffer region) {
+      return children(region, payloadOffset());
+    }
+
+    // Parses the child boxes starting at the given offset. Trailing bytes that are not a valid box
+    // are ignored.
+    List<Box> children(ByteBuffer region, int offset) {
+      List<Box> result = new ArrayList<>();
+      Box child;
+      while ((child = readBox(region, offset, end(), this)) != null) {
+        result.add(child);
+        offset = child.end();
+      }
+      return result;
+    }
+
+    // Updates the size field of the box in the region. The box header must not have moved.
+    void addToSize(ByteBuffer region, int delta) {
+      if (headerSize == 16) {
+        region.putLong(offset + 8, region.getLong(offset + 8) + delta);
+      } else {
+        region.putInt(offset, region.getInt(offset) + delta);
+      }
+    }
+  }
+
+  /** Replaces removeLength bytes at the given offset of the region with the inserted bytes. */
+  private static final class Edit {
+    final int offset;
+    final int removeLength;
+    final byte[] insert;
+    final Box parent;
+
+    Edit(int offset, int removeLength, byte[] insert, Box parent) {
+      this.offset = offset;
+      this.removeLength = removeLength;
+      this.insert = insert;
+      this.parent = parent;
+    }
+  }
+}
@@ -29,6 +29,11 @@ public class VrMetadataInjector implements MetadataInjector {
     this.projectionMetadata = projectionMetadata;
   }
 
+  /** Returns the projection metadata that is injected into the videos. */
+  public ProjectionMetadata getProjectionMetadata() {
+    return projectionMetadata;
+  }
+
   @Override
   public boolean injectMetadata(String filePath, int width, int height) {
     if (projectionMetadata == null || projectionMetadata.sv3d == null) {
@@ -36,13 +41,29 @@ public class VrMetadataInjector implements MetadataInjector {
       return false;
     }
     StereoReprojectionConfig reprojectionConfig = projectionMetadata.stereoReprojectionConfig;
+    float fovX = reprojectionConfig != null ? reprojectionConfig.getFov().getWidth() : 0;
+    float fovY = reprojectionConfig != null ? reprojectionConfig.getFov().getHeight() : 0;
+
+    // Patching the moov box in place only touches the metadata. Fall back to the native injector,
+    // which may need to move the moov box, if the file has no room for the new boxes.
+    int result =
+        Mp4MoovPatcher.patch(
+            filePath,
+            projectionMetadata.stereoMode,
+            projectionMetadata.sv3d,
+            Mp4MoovPatcher.createSphericalV1Uuid(
+                projectionMetadata.stereoMode, width, height, fovX, fovY));
+    if (result == Mp4MoovPatcher.RESULT_PATCHED) {
+      return true;
+    }
+    Log.w(TAG, "Unable to inject VR metadata in place, rewriting moov of " + filePath);
     return nativeInjectVRMetadataToVideo(
         projectionMetadata.stereoMode,
         projectionMetadata.sv3d,
         width,
         height,
-        reprojectionConfig != null ? reprojectionConfig.getFov().getWidth() : 0,
-        reprojectionConfig != null ? reprojectionConfig.getFov().getHeight() : 0,
+        fovX,
+        fovY,
         filePath);
   }
 
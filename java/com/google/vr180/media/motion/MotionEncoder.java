@@ -14,9 +14,11 @@
 
 package com.google.vr180.media.motion;
 
+import android.location.Location;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.media.BaseEncoder;
@@ -26,23 +28,54 @@ import com.google.vr180.media.muxer.MediaMux;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-/** An synchronous implementation of {@link MediaEncoder} for encoding motion data. */
+/**
+ * An synchronous implementation of {@link MediaEncoder} for encoding motion data.
+ *
+ * <p>Each sample is a CAMM packet (https://developers.google.com/streetview/publish/camm-spec),
+ * written into a fixed size slot of a direct memory slab. Packets are queued as they are encoded
+ * and handed to the muxer in a batch on the handler, so encoding does not allocate once the slabs
+ * hold as many packets as the muxer keeps at a time.
+ */
 public class MotionEncoder extends BaseEncoder {
   private static final String TAG = "MotionEncoder";
-  // https://github.com/google/spatial-media/blob/master/docs/vr180.md
-  private static final int BUFFER_SIZE = 16;
   // Key for indicating whether to save extra camm data.
   public static final String KEY_EXTRA_CAMM_DATA = "extra_camm_data";
 
+  // CAMM packets start with a uint16 reserved field and a uint16 type, and are little endian.
+  private static final int HEADER_SIZE = 4;
+  // GPS time, fix type, double latitude and longitude, and float altitude, accuracies and
+  // velocities.
+  private static final int GPS_PACKET_SIZE = HEADER_SIZE + 8 + 4 + 2 * 8 + 7 * 4;
+  private static final int GPS_PACKET_TYPE = 6;
+  private static final int GPS_FIX_2D = 2;
+  private static final int GPS_FIX_3D = 3;
+  // 1980-01-06T00:00:00Z in Unix time, and the GPS-UTC leap second offset since 2017.
+  private static final long GPS_EPOCH_UNIX_SECONDS = 315_964_800L;
+  private static final int GPS_LEAP_SECONDS = 18;
+  // Every slot holds the largest packet.
+  private static final int SLOT_SIZE = GPS_PACKET_SIZE;
+  private static final int SLAB_SLOTS = 64;
+
   private final Handler handler;
   private final int speedFactor;
   private final boolean isExtraCammDataEnabled;
-  // Output buffers.
+  private final Runnable drainAction = () -> drainPackets();
+  // Views of the slot of each buffer index, and a stack of the indices of the free ones.
   private final ArrayList<ByteBuffer> buffers = new ArrayList<>();
-  private final ArrayDeque<Integer> recycle = new ArrayDeque<>();
+  private int[] recycle = new int[SLAB_SLOTS];
+  private int recycleCount;
+  // Packets waiting for the handler, guarded by this. The queue is swapped with the empty batch
+  // when it is handed to the muxer.
+  private PacketQueue pendingPackets = new PacketQueue(SLAB_SLOTS);
+  private PacketQueue batch = new PacketQueue(SLAB_SLOTS);
+  private boolean isDrainScheduled;
+  private long lastQueuedTimestampNs = -1L;
+  // Muxers copy the info they need before returning, so a single instance is reused. Only used on
+  // the handler.
+  private final BufferInfo bufferInfo = new BufferInfo();
 
   public MotionEncoder(MediaFormat format, MediaMux muxer, Handler handler) throws IOException {
     super(format, muxer, /*useMediaCodec=*/ false);
@@ -51,6 +84,7 @@ public class MotionEncoder extends BaseEncoder {
     onOutputFormatChanged(null, format);
     isExtraCammDataEnabled =
         format.containsKey(KEY_EXTRA_CAMM_DATA) && format.getInteger(KEY_EXTRA_CAMM_DATA) != 0;
+    addSlab();
   }
 
   @Override
@@ -69,25 +103,28 @@ public class MotionEncoder extends BaseEncoder {
   }
 
   private void signalEndOfStreamBuffer() {
-    BufferInfo eosBufferInfo = new BufferInfo();
-    eosBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-
+    // Samples queued before the end of stream still go to the muxer.
+    drainPackets();
     int bufferIndex = getNextOutputBufferIndex();
-    ByteBuffer buffer = getOutputBuffer(bufferIndex);
-    buffer.clear();
-    onOutputBufferAvailable(null, bufferIndex, eosBufferInfo);
+    getOutputBuffer(bufferIndex).clear();
+    bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    onOutputBufferAvailable(null, bufferIndex, bufferInfo);
   }
 
+  /**
+   * Encodes the given event. The event is not retained, so the caller keeps ownership of it.
+   */
   public void onMotionEvent(MotionEvent e) {
     switch (e.type) {
       case ACCELEROMETER:
+      case MAGNETIC_FIELD:
         if (isExtraCammDataEnabled) {
-          sendCammData(e.type.getType(), e.values[0], e.values[1], e.values[2], e.timestamp);
+          queueVector(e.type.getType(), e.values[0], e.values[1], e.values[2], e.timestamp);
         }
         break;
       case GYROSCOPE:
         if (isExtraCammDataEnabled) {
-          sendCammData(
+          queueVector(
               e.type.getType(),
               e.values[0] - e.values[3],
               e.values[1] - e.values[4],
@@ -96,25 +133,102 @@ public class MotionEncoder extends BaseEncoder {
         }
         break;
       case ORIENTATION:
-        sendCammData(e.type.getType(), e.values[0], e.values[1], e.values[2], e.timestamp);
+        queueVector(e.type.getType(), e.values[0], e.values[1], e.values[2], e.timestamp);
         break;
     }
   }
 
-  private void sendCammData(int type, float x, float y, float z, long timestampNs) {
+  /**
+   * Encodes a GPS fix as extra CAMM data. The fix time is written in the packet, and the sample is
+   * timed at the fix unless newer samples were queued already, since a fix usually arrives late.
+   */
+  public void onLocation(Location location) {
+    if (!isExtraCammDataEnabled) {
+      return;
+    }
+    float velocityEast = 0;
+    float velocityNorth = 0;
+    if (location.hasSpeed() && location.hasBearing()) {
+      double bearing = Math.toRadians(location.getBearing());
+      velocityEast = (float) (location.getSpeed() * Math.sin(bearing));
+      velocityNorth = (float) (location.getSpeed() * Math.cos(bearing));
+    }
+    float verticalAccuracy = 0;
+    float speedAccuracy = 0;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      verticalAccuracy = location.hasVerticalAccuracy() ? location.getVerticalAccuracyMeters() : 0;
+      speedAccuracy =
+          location.hasSpeedAccuracy() ? location.getSpeedAccuracyMetersPerSecond() : 0;
+    }
+
     int bufferIndex = getNextOutputBufferIndex();
     ByteBuffer buffer = getOutputBuffer(bufferIndex);
+    buffer.clear();
+    putHeader(buffer, GPS_PACKET_TYPE);
+    buffer.putDouble(location.getTime() / 1000.0 - GPS_EPOCH_UNIX_SECONDS + GPS_LEAP_SECONDS);
+    buffer.putInt(location.hasAltitude() ? GPS_FIX_3D : GPS_FIX_2D);
+    buffer.putDouble(location.getLatitude());
+    buffer.putDouble(location.getLongitude());
+    buffer.putFloat((float) location.getAltitude());
+    buffer.putFloat(location.hasAccuracy() ? location.getAccuracy() : 0);
+    buffer.putFloat(verticalAccuracy);
+    buffer.putFloat(velocityEast);
+    buffer.putFloat(velocityNorth);
+    // Location does not report vertical speed.
+    buffer.putFloat(0);
+    buffer.putFloat(speedAccuracy);
+    buffer.flip();
+    queuePacket(bufferIndex, buffer.remaining(), location.getElapsedRealtimeNanos(), true);
+  }
 
+  private void queueVector(int type, float x, float y, float z, long timestampNs) {
+    int bufferIndex = getNextOutputBufferIndex();
+    ByteBuffer buffer = getOutputBuffer(bufferIndex);
     buffer.clear();
-    buffer.putInt(type);
+    putHeader(buffer, type);
     buffer.putFloat(x);
     buffer.putFloat(y);
     buffer.putFloat(z);
-    buffer.rewind();
+    buffer.flip();
+    queuePacket(bufferIndex, buffer.remaining(), timestampNs, false);
+  }
 
-    BufferInfo bufferInfo = new BufferInfo();
-    bufferInfo.set(0, BUFFER_SIZE, timestampNs * speedFactor / 1000, 0);
-    onOutputBufferAvailable(null, bufferIndex, bufferInfo);
+  private static void putHeader(ByteBuffer buffer, int type) {
+    buffer.putShort((short) 0);
+    buffer.putShort((short) type);
+  }
+
+  // Queues an encoded packet and schedules a drain if none is pending.
+  private void queuePacket(
+      int bufferIndex, int size, long timestampNs, boolean isLateTimestampAllowed) {
+    boolean scheduleDrain;
+    synchronized (this) {
+      if (isLateTimestampAllowed) {
+        timestampNs = Math.max(timestampNs, lastQueuedTimestampNs);
+      }
+      lastQueuedTimestampNs = Math.max(lastQueuedTimestampNs, timestampNs);
+      pendingPackets.add(bufferIndex, size, timestampNs * speedFactor / 1000);
+      scheduleDrain = !isDrainScheduled;
+      isDrainScheduled = true;
+    }
+    if (scheduleDrain && !handler.post(drainAction)) {
+      drainPackets();
+    }
+  }
+
+  // Runs on the handler, and hands all queued packets to the muxer.
+  private void drainPackets() {
+    synchronized (this) {
+      isDrainScheduled = false;
+      PacketQueue ready = pendingPackets;
+      pendingPackets = batch;
+      batch = ready;
+    }
+    for (int i = 0; i < batch.count; i++) {
+      bufferInfo.set(0, batch.sizes[i], batch.timestampsUs[i], 0);
+      onOutputBufferAvailable(null, batch.bufferIndices[i], bufferInfo);
+    }
+    batch.count = 0;
   }
 
   @Override
@@ -130,14 +244,63 @@ public class MotionEncoder extends BaseEncoder {
 
   @Override
   public synchronized void releaseOutputBuffer(int bufferIndex) {
-    recycle.add(bufferIndex);
+    recycle[recycleCount++] = bufferIndex;
+  }
+
+  // Visible for testing.
+  synchronized int getBufferCount() {
+    return buffers.size();
   }
 
   private synchronized int getNextOutputBufferIndex() {
-    if (!recycle.isEmpty()) {
-      return recycle.poll();
+    if (recycleCount == 0) {
+      Log.d(TAG, "All " + buffers.size() + " packet slots in use, adding a slab");
+      addSlab();
+    }
+    return recycle[--recycleCount];
+  }
+
+  // Adds a slab of slots to the free stack. Only happens when the muxer holds more packets than
+  // ever before.
+  private void addSlab() {
+    ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SLOTS * SLOT_SIZE);
+    int first = buffers.size();
+    for (int i = 0; i < SLAB_SLOTS; i++) {
+      slab.limit((i + 1) * SLOT_SIZE).position(i * SLOT_SIZE);
+      buffers.add(slab.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+    if (recycle.length < buffers.size()) {
+      recycle = Arrays.copyOf(recycle, buffers.size());
+    }
+    // Push in reverse, so that the lowest index is used first.
+    for (int i = buffers.size() - 1; i >= first; i--) {
+      recycle[recycleCount++] = i;
+    }
+  }
+
+  /** Encoded packets in parallel primitive arrays. */
+  private static final class PacketQueue {
+    int[] bufferIndices;
+    int[] sizes;
+    long[] timestampsUs;
+    int count;
+
+    PacketQueue(int capacity) {
+      bufferIndices = new int[capacity];
+      sizes = new int[capacity];
+      timestampsUs = new long[capacity];
+    }
+
+    void add(int bufferIndex, int size, long timestampUs) {
+      if (count == bufferIndices.length) {
+        bufferIndices = Arrays.copyOf(bufferIndices, count * 2);
+        sizes = Arrays.copyOf(sizes, count * 2);
+        timestampsUs = Arrays.copyOf(timestampsUs, count * 2);
+      }
+      bufferIndices[count] = bufferIndex;
+      sizes[count] = size;
+      timestampsUs[count] = timestampUs;
+      count++;
     }
-    buffers.add(ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
-    return buffers.size() - 1;
   }
 }
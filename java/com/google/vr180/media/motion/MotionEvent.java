@@ -16,17 +16,25 @@ package com.google.vr180.media.motion;
 
 import android.hardware.Sensor;
 
-/** MotionEvent to hold sensor event data for processing. */
+/**
+ * MotionEvent to hold sensor event data for processing.
+ *
+ * <p>Events obtained from a {@link MotionEventPool} are recycled once released. A listener that is
+ * handed an event may only use it for the duration of the call, unless it calls {@link #retain} and
+ * later {@link #release} to take shared ownership.
+ */
 public class MotionEvent {
   /**
    * Camm type https://developers.google.com/streetview/publish/camm-spec. We use
    * Sensor.TYPE_GYROSCOPE_UNCALIBRATED for CammType.GYROSCOPE which as a length of 6: xyz sensor
-   * values and xyz bias values.
+   * values and xyz bias values. Sensor.TYPE_MAGNETIC_FIELD gives CammType.MAGNETIC_FIELD in
+   * microtesla.
    */
   public enum CammType {
     ORIENTATION(0),
     GYROSCOPE(2),
-    ACCELEROMETER(3);
+    ACCELEROMETER(3),
+    MAGNETIC_FIELD(7);
 
     private final int value;
 
@@ -40,20 +48,47 @@ public class MotionEvent {
   }
 
   public MotionEvent(CammType type, float[] data, long timestamp) {
-    this.type = type;
+    this(type, data.length, null);
     this.timestamp = timestamp;
-    this.values = new float[data.length];
     for (int i = 0; i < data.length; i++) {
       this.values[i] = data[i];
     }
   }
 
+  MotionEvent(CammType type, int length, MotionEventPool pool) {
+    this.type = type;
+    this.values = new float[length];
+    this.pool = pool;
+  }
+
+  /** Takes shared ownership of this event, which keeps it from being recycled until released. */
+  public synchronized MotionEvent retain() {
+    refCount++;
+    return this;
+  }
+
+  /** Gives up ownership of this event, and recycles it when no other owner is left. */
+  public void release() {
+    synchronized (this) {
+      if (refCount <= 0) {
+        throw new IllegalStateException("MotionEvent released too often");
+      }
+      refCount--;
+      if (refCount > 0 || pool == null) {
+        return;
+      }
+    }
+    pool.recycle(this);
+  }
+
   public static CammType getCammType(int sensorType) {
     switch (sensorType) {
       case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
         return CammType.GYROSCOPE;
       case Sensor.TYPE_ACCELEROMETER:
         return CammType.ACCELEROMETER;
+      case Sensor.TYPE_MAGNETIC_FIELD:
+        return CammType.MAGNETIC_FIELD;
       default:
         return CammType.ORIENTATION;
     }
@@ -62,4 +97,8 @@ public class MotionEvent {
   public final CammType type;
   public long timestamp;
   public final float[] values;
+
+  private final MotionEventPool pool;
+  // Guarded by this. Unpooled events start out with a single owner, like pooled ones.
+  int refCount = 1;
 }
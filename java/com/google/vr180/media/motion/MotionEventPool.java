@@ -0,0 +1,61 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.motion;
+
+import com.google.vr180.media.motion.MotionEvent.CammType;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+
+/**
+ * Recycles {@link MotionEvent}s, so that motion sources can emit them at sensor rates without
+ * allocating. The pool grows to the largest number of events in use at once.
+ */
+public final class MotionEventPool {
+  private final EnumMap<CammType, ArrayDeque<MotionEvent>> freeEvents =
+      new EnumMap<>(CammType.class);
+
+  public MotionEventPool() {
+    for (CammType type : CammType.values()) {
+      freeEvents.put(type, new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Returns an event holding a copy of the given values. The caller owns the event and must
+   * {@link MotionEvent#release} it.
+   */
+  public MotionEvent obtain(CammType type, float[] data, long timestamp) {
+    MotionEvent event = null;
+    synchronized (this) {
+      ArrayDeque<MotionEvent> free = freeEvents.get(type);
+      // Sensors report a fixed number of values, so a mismatch only happens across sensors.
+      if (!free.isEmpty() && free.peekLast().values.length == data.length) {
+        event = free.removeLast();
+      }
+    }
+    if (event == null) {
+      event = new MotionEvent(type, data.length, this);
+    } else {
+      event.refCount = 1;
+    }
+    System.arraycopy(data, 0, event.values, 0, data.length);
+    event.timestamp = timestamp;
+    return event;
+  }
+
+  synchronized void recycle(MotionEvent event) {
+    freeEvents.get(event.type).addLast(event);
+  }
+}
@@ -21,11 +21,11 @@ import android.media.MediaCodec.BufferInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.MediaMuxer.OutputFormat;
-import android.media.MediaScannerConnection;
 import android.support.annotation.Nullable;
 import android.util.Pair;
 import com.google.common.base.Preconditions;
 import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
 import com.google.vr180.media.MediaConstants;
 import com.google.vr180.media.MediaCreationUtils;
 import com.google.vr180.media.MediaEncoder;
@@ -33,7 +33,6 @@ import com.google.vr180.media.metadata.MetadataInjector;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import javax.annotation.concurrent.NotThreadSafe;
 
 /**
@@ -61,6 +60,10 @@ public final class ChapteredFileMuxer implements MediaMux {
   private static final int AUDIO_TRACK_INDEX = 1;
   private static final int MOTION_TRACK_INDEX = 2;
 
+  // Capacity of the interleaver for each track, enough for about two seconds of motion samples.
+  private static final int INTERLEAVER_CAPACITY = 2048;
+  private static final int DEFAULT_INTERLEAVE_WINDOW_MS = 1000;
+
   // Remember the context for triggering a mediascan after each video.
   private final Context context;
   // The filename for the first chapter.
@@ -74,9 +77,25 @@ public final class ChapteredFileMuxer implements MediaMux {
   private final MediaFormat[] formats = new MediaFormat[3];
   // Encoder for each track for getting buffers.
   private final MediaEncoder[] encoders = new MediaEncoder[3];
-  // Buffered audio and motion metadata samples.
-  private final ArrayDeque<Pair<Integer, BufferInfo>> bufferedAudioSamples = new ArrayDeque<>();
-  private final ArrayDeque<Pair<Integer, BufferInfo>> bufferedMotionSamples = new ArrayDeque<>();
+  // Writes or discards the audio and motion metadata samples leaving the interleaver.
+  private final SampleInterleaver.Output interleaverOutput =
+      new SampleInterleaver.Output() {
+        @Override
+        public void writeSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+          writeBufferedSample(trackIndex, bufferIndex, bufferInfo);
+        }
+
+        @Override
+        public void dropSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+          encoders[trackIndex].releaseOutputBuffer(bufferIndex);
+        }
+      };
+
+  // Interleaving settings.
+  private int interleaveWindowMs = DEFAULT_INTERLEAVE_WINDOW_MS;
+  private int interleaveOverflowPolicy = SampleInterleaver.OVERFLOW_WRITE_OLDEST;
+  // Buffered audio and motion metadata samples that are ahead of the video track.
+  private SampleInterleaver interleaver;
 
   // Muxer for the active chapter file.
   private MediaMuxer muxer;
@@ -111,6 +130,19 @@ public final class ChapteredFileMuxer implements MediaMux {
     chapterPath = basePath;
   }
 
+  /**
+   * Sets how far, in milliseconds, audio and motion samples may run ahead of the video track and
+   * whether samples beyond that window are written or dropped. Must be called before {@link
+   * #prepare}.
+   *
+   * @param overflowPolicy {@link SampleInterleaver#OVERFLOW_WRITE_OLDEST} or {@link
+   *     SampleInterleaver#OVERFLOW_DROP_OLDEST}.
+   */
+  void setInterleaveWindow(int windowMs, int overflowPolicy) {
+    interleaveWindowMs = windowMs;
+    interleaveOverflowPolicy = overflowPolicy;
+  }
+
   @Override
   public void setErrorCallback(@Nullable ErrorCallback errorCallback) {
     // Ignore.  There are no asynchronous errors.
@@ -192,7 +224,9 @@ public final class ChapteredFileMuxer implements MediaMux {
       return MediaConstants.STATUS_ERROR;
     }
 
-    // Nothing to do.
+    interleaver =
+        new SampleInterleaver(
+            formats.length, INTERLEAVER_CAPACITY, interleaveWindowMs, interleaveOverflowPolicy);
     bytesWritten = 0;
     pastChapterBytes = 0;
     isPrepared = true;
@@ -279,16 +313,16 @@ public final class ChapteredFileMuxer implements MediaMux {
       return false;
     }
 
-    // Prescreen audio and motion sample data for chaptering.
-    if (prescreenSampleData(trackIndex, bufferIndex, bufferInfo)) {
-      return true;
-    }
-    // Start a new chapter if the size is approaching the limit.
-    if (!prepareChapter(trackIndex, bufferInfo)) {
-      return false;
-    }
-
     try {
+      // Prescreen audio and motion sample data for chaptering.
+      if (prescreenSampleData(trackIndex, bufferIndex, bufferInfo)) {
+        return true;
+      }
+      // Start a new chapter if the size is approaching the limit.
+      if (!prepareChapter(trackIndex, bufferInfo)) {
+        return false;
+      }
+
       ByteBuffer buffer = encoders[trackIndex].getOutputBuffer(bufferIndex);
       muxer.writeSampleData(trackIndex, buffer, bufferInfo);
       bytesWritten += (bufferInfo.size - bufferInfo.offset);
@@ -297,8 +331,7 @@ public final class ChapteredFileMuxer implements MediaMux {
       // Write audio and motion metadata up to the video timestamp.
       if (trackIndex == VIDEO_TRACK_INDEX) {
         lastVideoTimestamp = bufferInfo.presentationTimeUs;
-        writeBufferedSamples(AUDIO_TRACK_INDEX);
-        writeBufferedSamples(MOTION_TRACK_INDEX);
+        interleaver.writeUntil(lastVideoTimestamp, interleaverOutput);
       }
       return true;
     } catch (Exception e) {
@@ -338,6 +371,12 @@ public final class ChapteredFileMuxer implements MediaMux {
 
   private boolean stopMuxer() {
     Log.i(TAG, "Finishing " + chapterPath);
+    Log.i(
+        TAG,
+        "Max interleave backlog: "
+            + interleaver.getMaxBacklog()
+            + " samples, overflowed: "
+            + interleaver.getOverflowCount());
     try {
       muxer.stop();
       muxer.release();
@@ -355,7 +394,7 @@ public final class ChapteredFileMuxer implements MediaMux {
       Log.e(TAG, "Failed to format video: " + chapterPath);
     }
     // Trigger media scanner to update database.
-    MediaScannerConnection.scanFile(context, new String[] {chapterPath}, null, null);
+    MediaStoreUtil.scanFinalizedFile(context, chapterPath);
     return true;
   }
 
@@ -398,34 +437,26 @@ public final class ChapteredFileMuxer implements MediaMux {
       Log.i(TAG, "Discard sample @" + bufferInfo.presentationTimeUs + " of " + encoder.getName());
       encoder.releaseOutputBuffer(bufferIndex);
       return true;
-    } else if (firstVideoTimestamp == -1 || bufferInfo.presentationTimeUs > lastVideoTimestamp) {
-      if (trackIndex == AUDIO_TRACK_INDEX) {
-        bufferedAudioSamples.add(new Pair<>(bufferIndex, bufferInfo));
-      } else {
-        bufferedMotionSamples.add(new Pair<>(bufferIndex, bufferInfo));
-      }
+    } else if (firstVideoTimestamp == -1
+        || bufferInfo.presentationTimeUs > lastVideoTimestamp
+        || interleaver.size(trackIndex) > 0) {
+      // Samples can't overtake the buffered samples of their track.
+      interleaver.add(trackIndex, bufferIndex, bufferInfo, interleaverOutput);
       return true;
     }
     return false;
   }
 
-  private boolean writeBufferedSamples(int trackIndex) {
+  private void writeBufferedSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
     MediaEncoder encoder = encoders[trackIndex];
-    ArrayDeque<Pair<Integer, BufferInfo>> buffers =
-        trackIndex == AUDIO_TRACK_INDEX ? bufferedAudioSamples : bufferedMotionSamples;
-    while (!buffers.isEmpty() && buffers.peek().second.presentationTimeUs <= lastVideoTimestamp) {
-      Pair<Integer, BufferInfo> entry = buffers.poll();
-      ByteBuffer buffer = encoder.getOutputBuffer(entry.first);
-      BufferInfo bufferInfo = entry.second;
-      if (entry.second.presentationTimeUs >= firstVideoTimestamp) {
-        muxer.writeSampleData(trackIndex, buffer, entry.second);
-        bytesWritten += (bufferInfo.size - bufferInfo.offset);
-      } else {
-        Log.i(TAG, "Discard sample @" + bufferInfo.presentationTimeUs + " of " + encoder.getName());
-      }
-      encoder.releaseOutputBuffer(entry.first);
+    if (firstVideoTimestamp != -1 && bufferInfo.presentationTimeUs >= firstVideoTimestamp) {
+      ByteBuffer buffer = encoder.getOutputBuffer(bufferIndex);
+      muxer.writeSampleData(trackIndex, buffer, bufferInfo);
+      bytesWritten += (bufferInfo.size - bufferInfo.offset);
+    } else {
+      Log.i(TAG, "Discard sample @" + bufferInfo.presentationTimeUs + " of " + encoder.getName());
     }
-    return true;
+    encoder.releaseOutputBuffer(bufferIndex);
   }
 
   // Use basename_[chapter_index] as the name for the chapter file.
@@ -0,0 +1,928 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import android.util.Pair;
+import com.google.common.base.Preconditions;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.common.media.MediaStoreUtil;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaCreationUtils;
+import com.google.vr180.media.MediaEncoder;
+import com.google.vr180.media.metadata.ProjectionMetadata;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Implementation of the {@link MediaMux} interface that writes a fragmented MP4 file (or a
+ * collection of chaptered files) in pure Java. Unlike {@link ChapteredFileMuxer}, the ftyp and moov
+ * boxes, including the st3d/sv3d spherical metadata and the camm sample entry, are written when the
+ * muxer starts, and the samples are appended as self-contained moof/mdat fragments every few
+ * seconds. A recording that is interrupted by a crash or power loss therefore remains playable up
+ * to its last complete fragment (see {@link FragmentedMp4Recovery}), and no metadata injection pass
+ * is needed after recording.
+ *
+ * <p>Video must be AVC or HEVC, audio must be AAC. Presentation timestamps are expected to increase
+ * monotonically per track, which {@link com.google.vr180.media.BaseEncoder} guarantees.
+ *
+ * <p>This class traps all Exceptions and returns success/fail instead so that clients can be
+ * written in a clean fashion.
+ */
+@TargetApi(21)
+@NotThreadSafe
+public final class FragmentedMp4Muxer implements MediaMux {
+  private static final String TAG = "FragmentedMp4Muxer";
+
+  /** Default duration of a single moof/mdat fragment. */
+  public static final long DEFAULT_FRAGMENT_DURATION_US = 2_000_000L;
+
+  // Same chapter size as ChapteredFileMuxer, keeping files well below the FAT32 limit.
+  private static final long MAX_CHAPTER_SAMPLE_DATA_BYTES = 2000 * 1024L * 1024L;
+
+  // Use a predefined track index for video, audio and motion, to keep video track first.
+  private static final int VIDEO_TRACK_INDEX = 0;
+  private static final int AUDIO_TRACK_INDEX = 1;
+  private static final int MOTION_TRACK_INDEX = 2;
+  private static final int TRACK_COUNT = 3;
+
+  // Timescale of the movie and all the tracks.
+  static final int TIMESCALE = 90000;
+
+  // tfhd and trun flags.
+  private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+  private static final int TRUN_DATA_OFFSET_PRESENT = 0x000001;
+  private static final int TRUN_SAMPLE_DURATION_PRESENT = 0x000100;
+  private static final int TRUN_SAMPLE_SIZE_PRESENT = 0x000200;
+  private static final int TRUN_SAMPLE_FLAGS_PRESENT = 0x000400;
+  // Sample flags for samples that do (not) depend on other samples.
+  static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+  static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+  private static final int INITIAL_VIDEO_BUFFER_BYTES = 1024 * 1024;
+  private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+  private static final int INITIAL_HEADER_BYTES = 4096;
+
+  private static final int[] IDENTITY_MATRIX = {
+    0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+  };
+
+  /** Receives the checksums of the chapter files, which are computed while they are written. */
+  public interface ChecksumListener {
+    /** Called on the muxer thread when a chapter file is complete, before it is scanned. */
+    void onChecksumComputed(String path, byte[] sha1);
+  }
+
+  // Remember the context for triggering a mediascan after each video.
+  private final Context context;
+  // The filename for the first chapter.
+  private final String basePath;
+  // Whether the muxer wants a motion metadata track.
+  private final boolean requiresMotionTrack;
+  // Spherical metadata boxes for the video sample entry.
+  @Nullable private final byte[] st3d;
+  @Nullable private final byte[] sv3d;
+  // Target duration of each fragment.
+  private final long fragmentDurationUs;
+
+  // List for MediaFormat in the order of being added.
+  private final MediaFormat[] formats = new MediaFormat[TRACK_COUNT];
+  // Encoder for each track for getting buffers.
+  private final MediaEncoder[] encoders = new MediaEncoder[TRACK_COUNT];
+  // Samples of the pending fragment for each track.
+  private final TrackSamples[] samples = new TrackSamples[TRACK_COUNT];
+  // Scratch buffers for the box headers.
+  private final Mp4BoxWriter headerWriter = new Mp4BoxWriter(INITIAL_HEADER_BYTES);
+  private final int[] dataOffsetPositions = new int[TRACK_COUNT];
+  private final int[] fragmentSampleCounts = new int[TRACK_COUNT];
+  private final ByteBuffer[] gatherBuffers = new ByteBuffer[TRACK_COUNT + 1];
+
+  // Output for the active chapter file.
+  private RandomAccessFile file;
+  private FileChannel channel;
+  // Total bytes written of the active chapter file.
+  private long bytesWritten;
+  // SHA-1 of the bytes written to the active chapter file, if it is available. The file is written
+  // sequentially, so this is the checksum of the finished file.
+  @Nullable private MessageDigest digest;
+  // Total bytes written of the finished chapters.
+  private long pastChapterBytes;
+  // Sequence number of the last written fragment.
+  private int sequenceNumber;
+  // Receives the checksums of the finished chapters.
+  @Nullable private ChecksumListener checksumListener;
+
+  // Muxer state
+  private boolean isPrepared;
+  private boolean isStarted;
+  private boolean isStopped;
+  private boolean isReleased;
+
+  // The first video timestamp of the active chapter and of the pending fragment.
+  private long firstVideoTimestamp = -1;
+  private long fragmentStartTimestamp = -1;
+  // Current chapter index.
+  private int chapterIndex = 0;
+  // File name of the active chapter file.
+  private String chapterPath;
+
+  public FragmentedMp4Muxer(
+      Context context,
+      String path,
+      boolean requiresMotionTrack,
+      @Nullable ProjectionMetadata projectionMetadata,
+      long fragmentDurationUs) {
+    Preconditions.checkArgument(fragmentDurationUs > 0);
+    this.context = context;
+    this.basePath = path;
+    this.requiresMotionTrack = requiresMotionTrack;
+    this.fragmentDurationUs = fragmentDurationUs;
+    if (projectionMetadata != null && projectionMetadata.sv3d != null) {
+      st3d = createSt3d(projectionMetadata.stereoMode);
+      sv3d = projectionMetadata.sv3d;
+    } else {
+      st3d = null;
+      sv3d = null;
+    }
+    chapterPath = basePath;
+  }
+
+  /** Sets the listener for the chapter checksums. Must be called before {@link #start}. */
+  void setChecksumListener(@Nullable ChecksumListener listener) {
+    checksumListener = listener;
+  }
+
+  @Override
+  public void setErrorCallback(@Nullable ErrorCallback errorCallback) {
+    // Ignore.  There are no asynchronous errors.
+  }
+
+  @Override
+  public int addTrack(MediaFormat format, MediaEncoder encoder) {
+    if (isStarted) {
+      Log.e(TAG, "Cannot add a track once started");
+      return -1;
+    }
+    if (isStopped) {
+      Log.e(TAG, "Cannot add a track once stopped");
+      return -1;
+    }
+    if (isReleased) {
+      Log.e(TAG, "Cannot add a track after release");
+      return -1;
+    }
+
+    Preconditions.checkState(format != null && encoder != null);
+    int trackIndex = -1;
+    if (MediaCreationUtils.isVideoFormat(format)) {
+      trackIndex = VIDEO_TRACK_INDEX;
+    } else if (MediaCreationUtils.isAudioFormat(format)) {
+      trackIndex = AUDIO_TRACK_INDEX;
+    } else if (MediaCreationUtils.isMotionFormat(format)) {
+      trackIndex = MOTION_TRACK_INDEX;
+    } else {
+      Log.e(TAG, "Invalid MediaFormat");
+      return -1;
+    }
+    if (encoders[trackIndex] != null) {
+      Log.e(TAG, "Track #" + trackIndex + " was already added");
+      return -1;
+    }
+    formats[trackIndex] = format;
+    encoders[trackIndex] = encoder;
+    samples[trackIndex] =
+        new TrackSamples(
+            trackIndex == VIDEO_TRACK_INDEX ? INITIAL_VIDEO_BUFFER_BYTES : INITIAL_BUFFER_BYTES);
+    return trackIndex;
+  }
+
+  @Override
+  public boolean hasAllTracks() {
+    return (!isReleased
+        && !isStopped
+        && (encoders[VIDEO_TRACK_INDEX] != null)
+        && (encoders[AUDIO_TRACK_INDEX] != null)
+        && (!requiresMotionTrack || encoders[MOTION_TRACK_INDEX] != null));
+  }
+
+  @Override
+  public boolean release() {
+    if (isReleased) {
+      // Allow multiple calls without error.
+      return true;
+    }
+    isReleased = closeFile();
+    return isReleased;
+  }
+
+  @Override
+  public int prepare() {
+    if (isReleased) {
+      Log.e(TAG, "Cannot prepare once released");
+      return MediaConstants.STATUS_ERROR;
+    }
+    if (isStopped) {
+      Log.e(TAG, "Cannot prepare once stopped");
+      return MediaConstants.STATUS_ERROR;
+    }
+    if (isStarted) {
+      Log.e(TAG, "Cannot prepare once started");
+      return MediaConstants.STATUS_ERROR;
+    }
+
+    bytesWritten = 0;
+    pastChapterBytes = 0;
+    isPrepared = true;
+    return MediaConstants.STATUS_SUCCESS;
+  }
+
+  @Override
+  public boolean start() {
+    if (isReleased) {
+      Log.e(TAG, "Cannot start once released");
+      return false;
+    }
+    if (isStopped) {
+      Log.e(TAG, "Cannot restart once stopped");
+      return false;
+    }
+    if (!isPrepared) {
+      Log.e(TAG, "Muxer not prepared");
+      return false;
+    }
+    if (isStarted) {
+      // Allow multiple calls without error.
+      return true;
+    }
+    if (!hasAllTracks()) {
+      Log.e(TAG, "Cannot start without all tracks");
+      return false;
+    }
+    isStarted = startChapter();
+    return isStarted;
+  }
+
+  @Override
+  public boolean stop() {
+    if (isReleased) {
+      Log.e(TAG, "Cannot stop once released");
+      return false;
+    }
+    if (!isStarted) {
+      Log.e(TAG, "Muxer not started");
+      return false;
+    }
+    if (isStopped) {
+      // Allow multiple calls without error.
+      return true;
+    }
+
+    // Mark the muxer as stopped.
+    isStopped = true;
+    return stopChapter();
+  }
+
+  @Override
+  public boolean isStarted() {
+    return isStarted && !isStopped && !isReleased;
+  }
+
+  @Override
+  public int getOutputBufferUsed() {
+    return -1;
+  }
+
+  @Override
+  public Pair<Integer, Integer> getCurrentByteThroughput() {
+    // Not implemented.
+    return null;
+  }
+
+  @Override
+  public void setOutputBufferLimit(int bytes) {}
+
+  @Override
+  public boolean writeSampleDataAsync(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+    if (isReleased) {
+      Log.e(TAG, "Cannot write data once released");
+      return false;
+    }
+    if (isStopped) {
+      Log.e(TAG, "Cannot write data once stopped");
+      return false;
+    }
+    if (!isStarted) {
+      Log.e(TAG, "Muxer not started");
+      return false;
+    }
+
+    MediaEncoder encoder = encoders[trackIndex];
+    try {
+      return appendSample(trackIndex, encoder.getOutputBuffer(bufferIndex), bufferInfo);
+    } catch (Exception e) {
+      Log.e(TAG, "Writing sample data failed", e);
+      return false;
+    } finally {
+      // The sample data is copied into the pending fragment, so the buffer can be returned to the
+      // encoder right away.
+      encoder.releaseOutputBuffer(bufferIndex);
+    }
+  }
+
+  @Override
+  public void cleanupPartialResults() {
+    closeFile();
+    // The recovery truncates the file, so the checksum needs to be computed from the file.
+    digest = null;
+    // Keep everything up to the last complete fragment, and only delete the file if nothing could
+    // be recovered.
+    if (FragmentedMp4Recovery.recover(chapterPath) <= 0) {
+      deleteFile();
+    } else {
+      MediaStoreUtil.scanFinalizedFile(context, chapterPath);
+    }
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten + pastChapterBytes;
+  }
+
+  private boolean appendSample(int trackIndex, ByteBuffer buffer, BufferInfo bufferInfo)
+      throws IOException {
+    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) {
+      // Codec config is written to the sample entries in the moov box.
+      return true;
+    }
+    long timestampUs = bufferInfo.presentationTimeUs;
+    boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    if (trackIndex == VIDEO_TRACK_INDEX) {
+      if (firstVideoTimestamp == -1) {
+        // Every chapter must start with a video key frame.
+        if (!isKeyFrame) {
+          Log.i(TAG, "Discard video sample before first key frame @" + timestampUs);
+          return true;
+        }
+        firstVideoTimestamp = timestampUs;
+        fragmentStartTimestamp = timestampUs;
+        Log.i(TAG, "First video sample @" + timestampUs);
+      } else if (isKeyFrame && timestampUs - fragmentStartTimestamp >= fragmentDurationUs) {
+        if (!writeFragment(timestampUs)) {
+          return false;
+        }
+        fragmentStartTimestamp = timestampUs;
+        if (bytesWritten >= MAX_CHAPTER_SAMPLE_DATA_BYTES && !startNextChapter(timestampUs)) {
+          return false;
+        }
+      }
+    } else if (firstVideoTimestamp != -1 && timestampUs < firstVideoTimestamp) {
+      Log.i(TAG, "Discard sample @" + timestampUs + " of " + encoders[trackIndex].getName());
+      return true;
+    }
+
+    buffer.position(bufferInfo.offset);
+    buffer.limit(bufferInfo.offset + bufferInfo.size);
+    samples[trackIndex].add(
+        buffer,
+        timestampUs,
+        trackIndex != VIDEO_TRACK_INDEX || isKeyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+        trackIndex == VIDEO_TRACK_INDEX);
+    return true;
+  }
+
+  // Open the chapter file and write the ftyp and moov boxes.
+  private boolean startChapter() {
+    Log.i(TAG, "Start chapter " + chapterPath);
+    try {
+      file = new RandomAccessFile(chapterPath, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+      digest = createDigest();
+      headerWriter.clear();
+      writeFtyp(headerWriter);
+      if (!writeMoov(headerWriter)) {
+        Log.e(TAG, "Missing codec config for " + chapterPath);
+        closeFile();
+        deleteFile();
+        return false;
+      }
+      writeFully(new ByteBuffer[] {headerWriter.getBuffer()});
+      sequenceNumber = 0;
+      return true;
+    } catch (Exception e) {
+      Log.e(TAG, "Failed to create file for " + chapterPath, e);
+      closeFile();
+      return false;
+    }
+  }
+
+  private boolean stopChapter() {
+    return writeFragment(Long.MAX_VALUE) ? finishChapter() : finishChapterWithError();
+  }
+
+  // Close the chapter file once all its fragments are written.
+  private boolean finishChapter() {
+    Log.i(TAG, "Finishing " + chapterPath);
+    if (!closeFile()) {
+      return finishChapterWithError();
+    }
+    // Pass on the checksum before the file is announced, so that it isn't computed again.
+    if (digest != null && checksumListener != null) {
+      checksumListener.onChecksumComputed(chapterPath, digest.digest());
+    }
+    digest = null;
+    // Trigger media scanner to update database.
+    MediaStoreUtil.scanFinalizedFile(context, chapterPath);
+    return true;
+  }
+
+  private boolean finishChapterWithError() {
+    Log.e(TAG, "Muxer not stopped cleanly. Recovering media file: " + chapterPath);
+    cleanupPartialResults();
+    return false;
+  }
+
+  // Start a new chapter at the given video key frame. The pending fragment was already written, and
+  // any remaining audio and motion samples belong to the new chapter.
+  private boolean startNextChapter(long timestampUs) {
+    if (!finishChapter()) {
+      return false;
+    }
+    firstVideoTimestamp = timestampUs;
+    Log.i(TAG, "First video sample @" + timestampUs);
+
+    pastChapterBytes += bytesWritten;
+    bytesWritten = 0;
+    chapterIndex += 1;
+    chapterPath = getChapterPath();
+    return startChapter();
+  }
+
+  // Write all the pending samples before the given timestamp as a moof/mdat fragment.
+  private boolean writeFragment(long endTimestampUs) {
+    if (channel == null) {
+      return false;
+    }
+    if (firstVideoTimestamp == -1) {
+      // Nothing to write without video.
+      return true;
+    }
+    headerWriter.clear();
+    int moof = headerWriter.startBox("moof");
+    int mfhd = headerWriter.startFullBox("mfhd", 0, 0);
+    headerWriter.putInt(sequenceNumber + 1);
+    headerWriter.endBox(mfhd);
+    int totalSampleCount = 0;
+    for (int i = 0; i < TRACK_COUNT; ++i) {
+      fragmentSampleCounts[i] = 0;
+      TrackSamples track = samples[i];
+      if (track == null || formats[i] == null) {
+        continue;
+      }
+      // Drop audio and motion samples before the first video frame.
+      track.discardBefore(firstVideoTimestamp);
+      int count = track.countBefore(endTimestampUs);
+      if (count == 0) {
+        continue;
+      }
+      fragmentSampleCounts[i] = count;
+      totalSampleCount += count;
+      writeTraf(headerWriter, i, track, count, endTimestampUs);
+    }
+    headerWriter.endBox(moof);
+    if (totalSampleCount == 0) {
+      return true;
+    }
+
+    // Point each track run at its data in the mdat box that follows the moof box.
+    int mdatPayloadSize = 0;
+    int gatherCount = 1;
+    int moofSize = headerWriter.position();
+    for (int i = 0; i < TRACK_COUNT; ++i) {
+      if (fragmentSampleCounts[i] == 0) {
+        continue;
+      }
+      headerWriter.putIntAt(dataOffsetPositions[i], moofSize + 8 + mdatPayloadSize);
+      gatherBuffers[gatherCount++] = samples[i].getData(fragmentSampleCounts[i]);
+      mdatPayloadSize += samples[i].getByteCount(fragmentSampleCounts[i]);
+    }
+    headerWriter.putInt(8 + mdatPayloadSize);
+    headerWriter.putFourCc("mdat");
+    gatherBuffers[0] = headerWriter.getBuffer();
+
+    try {
+      writeFully(Arrays.copyOf(gatherBuffers, gatherCount));
+      // Make sure the fragment survives a power loss before acknowledging it.
+      channel.force(false);
+    } catch (Exception e) {
+      Log.e(TAG, "Writing fragment failed for " + chapterPath, e);
+      return false;
+    } finally {
+      Arrays.fill(gatherBuffers, null);
+    }
+    sequenceNumber++;
+    for (int i = 0; i < TRACK_COUNT; ++i) {
+      if (fragmentSampleCounts[i] > 0) {
+        samples[i].discard(fragmentSampleCounts[i]);
+      }
+    }
+    return true;
+  }
+
+  private void writeTraf(
+      Mp4BoxWriter writer, int trackIndex, TrackSamples track, int count, long endTimestampUs) {
+    int traf = writer.startBox("traf");
+    int tfhd = writer.startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+    writer.putInt(getTrackId(trackIndex));
+    writer.endBox(tfhd);
+    int tfdt = writer.startFullBox("tfdt", 1, 0);
+    writer.putLong(toMediaTime(track.getTimestamp(0)));
+    writer.endBox(tfdt);
+    int trun =
+        writer.startFullBox(
+            "trun",
+            0,
+            TRUN_DATA_OFFSET_PRESENT
+                | TRUN_SAMPLE_DURATION_PRESENT
+                | TRUN_SAMPLE_SIZE_PRESENT
+                | TRUN_SAMPLE_FLAGS_PRESENT);
+    writer.putInt(count);
+    dataOffsetPositions[trackIndex] = writer.position();
+    writer.putInt(0); // data_offset, filled in once the moof size is known.
+    for (int i = 0; i < count; ++i) {
+      writer.putInt(getSampleDuration(trackIndex, track, i, endTimestampUs));
+      writer.putInt(track.getSize(i));
+      writer.putInt(track.getFlags(i));
+    }
+    writer.endBox(trun);
+    writer.endBox(traf);
+  }
+
+  // Durations are derived from the absolute timestamps so that rounding errors do not accumulate.
+  private int getSampleDuration(
+      int trackIndex, TrackSamples track, int index, long endTimestampUs) {
+    long timestamp = track.getTimestamp(index);
+    long nextTimestamp;
+    if (index + 1 < track.getCount()) {
+      nextTimestamp = track.getTimestamp(index + 1);
+    } else if (trackIndex == VIDEO_TRACK_INDEX && endTimestampUs != Long.MAX_VALUE) {
+      nextTimestamp = endTimestampUs;
+    } else if (index > 0) {
+      // Repeat the previous duration for the last sample.
+      nextTimestamp = timestamp + (timestamp - track.getTimestamp(index - 1));
+    } else {
+      nextTimestamp = timestamp;
+    }
+    return (int) (toMediaTime(nextTimestamp) - toMediaTime(timestamp));
+  }
+
+  private long toMediaTime(long timestampUs) {
+    return (timestampUs - firstVideoTimestamp) * TIMESCALE / 1_000_000L;
+  }
+
+  private static int getTrackId(int trackIndex) {
+    return trackIndex + 1;
+  }
+
+  private void writeFtyp(Mp4BoxWriter writer) {
+    int ftyp = writer.startBox("ftyp");
+    writer.putFourCc("isom");
+    writer.putInt(0x200);
+    writer.putFourCc("isom");
+    writer.putFourCc("iso5");
+    writer.putFourCc("iso6");
+    writer.putFourCc("mp41");
+    writer.endBox(ftyp);
+  }
+
+  // Write the moov box with empty sample tables. All samples are described by the fragments.
+  private boolean writeMoov(Mp4BoxWriter writer) {
+    boolean success = true;
+    int moov = writer.startBox("moov");
+    int mvhd = writer.startFullBox("mvhd", 0, 0);
+    writer.putInt(0); // creation_time
+    writer.putInt(0); // modification_time
+    writer.putInt(TIMESCALE);
+    writer.putInt(0); // duration
+    writer.putInt(0x00010000); // rate
+    writer.putShort(0x0100); // volume
+    writer.putZeros(10); // reserved
+    putMatrix(writer);
+    writer.putZeros(24); // pre_defined
+    writer.putInt(TRACK_COUNT + 1); // next_track_ID
+    writer.endBox(mvhd);
+
+    for (int i = 0; i < TRACK_COUNT; ++i) {
+      if (formats[i] != null) {
+        success &= writeTrak(writer, i);
+      }
+    }
+
+    int mvex = writer.startBox("mvex");
+    for (int i = 0; i < TRACK_COUNT; ++i) {
+      if (formats[i] == null) {
+        continue;
+      }
+      int trex = writer.startFullBox("trex", 0, 0);
+      writer.putInt(getTrackId(i));
+      writer.putInt(1); // default_sample_description_index
+      writer.putInt(0); // default_sample_duration
+      writer.putInt(0); // default_sample_size
+      writer.putInt(0); // default_sample_flags
+      writer.endBox(trex);
+    }
+    writer.endBox(mvex);
+    writer.endBox(moov);
+    return success;
+  }
+
+  private boolean writeTrak(Mp4BoxWriter writer, int trackIndex) {
+    MediaFormat format = formats[trackIndex];
+    boolean isVideo = trackIndex == VIDEO_TRACK_INDEX;
+    boolean isAudio = trackIndex == AUDIO_TRACK_INDEX;
+    int trak = writer.startBox("trak");
+    int tkhd = writer.startFullBox("tkhd", 0, 0x000007 /* enabled, in movie and preview */);
+    writer.putInt(0); // creation_time
+    writer.putInt(0); // modification_time
+    writer.putInt(getTrackId(trackIndex));
+    writer.putInt(0); // reserved
+    writer.putInt(0); // duration
+    writer.putZeros(8); // reserved
+    writer.putShort(0); // layer
+    writer.putShort(0); // alternate_group
+    writer.putShort(isAudio ? 0x0100 : 0); // volume
+    writer.putShort(0); // reserved
+    putMatrix(writer);
+    writer.putInt(isVideo ? format.getInteger(MediaFormat.KEY_WIDTH) << 16 : 0);
+    writer.putInt(isVideo ? format.getInteger(MediaFormat.KEY_HEIGHT) << 16 : 0);
+    writer.endBox(tkhd);
+
+    int mdia = writer.startBox("mdia");
+    int mdhd = writer.startFullBox("mdhd", 0, 0);
+    writer.putInt(0); // creation_time
+    writer.putInt(0); // modification_time
+    writer.putInt(TIMESCALE);
+    writer.putInt(0); // duration
+    writer.putShort(0x55C4); // language "und"
+    writer.putShort(0); // pre_defined
+    writer.endBox(mdhd);
+
+    int hdlr = writer.startFullBox("hdlr", 0, 0);
+    writer.putInt(0); // pre_defined
+    writer.putFourCc(isVideo ? "vide" : isAudio ? "soun" : "meta");
+    writer.putZeros(12); // reserved
+    writer.putFourCc(isVideo ? "VideoHandle" : isAudio ? "SoundHandle" : "MetaHandle");
+    writer.putByte(0);
+    writer.endBox(hdlr);
+
+    int minf = writer.startBox("minf");
+    if (isVideo) {
+      int vmhd = writer.startFullBox("vmhd", 0, 1);
+      writer.putZeros(8); // graphicsmode, opcolor
+      writer.endBox(vmhd);
+    } else if (isAudio) {
+      int smhd = writer.startFullBox("smhd", 0, 0);
+      writer.putZeros(4); // balance, reserved
+      writer.endBox(smhd);
+    } else {
+      writer.endBox(writer.startFullBox("nmhd", 0, 0));
+    }
+    int dinf = writer.startBox("dinf");
+    int dref = writer.startFullBox("dref", 0, 0);
+    writer.putInt(1); // entry_count
+    writer.endBox(writer.startFullBox("url ", 0, 1 /* self contained */));
+    writer.endBox(dref);
+    writer.endBox(dinf);
+
+    boolean success = true;
+    int stbl = writer.startBox("stbl");
+    int stsd = writer.startFullBox("stsd", 0, 0);
+    writer.putInt(1); // entry_count
+    if (isVideo) {
+      success = Mp4CodecConfig.writeVisualSampleEntry(writer, format, st3d, sv3d);
+    } else if (isAudio) {
+      success = Mp4CodecConfig.writeAudioSampleEntry(writer, format);
+    } else {
+      Mp4CodecConfig.writeCammSampleEntry(writer);
+    }
+    writer.endBox(stsd);
+    for (String type : new String[] {"stts", "stsc", "stco"}) {
+      int box = writer.startFullBox(type, 0, 0);
+      writer.putInt(0); // entry_count
+      writer.endBox(box);
+    }
+    int stsz = writer.startFullBox("stsz", 0, 0);
+    writer.putInt(0); // sample_size
+    writer.putInt(0); // sample_count
+    writer.endBox(stsz);
+    writer.endBox(stbl);
+    writer.endBox(minf);
+    writer.endBox(mdia);
+    writer.endBox(trak);
+    return success;
+  }
+
+  private static void putMatrix(Mp4BoxWriter writer) {
+    for (int value : IDENTITY_MATRIX) {
+      writer.putInt(value);
+    }
+  }
+
+  private static byte[] createSt3d(int stereoMode) {
+    Mp4BoxWriter writer = new Mp4BoxWriter(13);
+    int st3d = writer.startFullBox("st3d", 0, 0);
+    writer.putByte(stereoMode);
+    writer.endBox(st3d);
+    ByteBuffer buffer = writer.getBuffer();
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  private void writeFully(ByteBuffer[] buffers) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+      if (digest != null) {
+        digest.update(buffer.duplicate());
+      }
+    }
+    while (remaining > 0) {
+      long written = channel.write(buffers);
+      remaining -= written;
+      bytesWritten += written;
+    }
+  }
+
+  private boolean closeFile() {
+    if (file == null) {
+      return true;
+    }
+    try {
+      file.close();
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Closing file failed: " + chapterPath, e);
+      return false;
+    } finally {
+      file = null;
+      channel = null;
+    }
+  }
+
+  @Nullable
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      Log.e(TAG, "SHA-1 is not available", e);
+      return null;
+    }
+  }
+
+  // Use basename_[chapter_index] as the name for the chapter file.
+  private String getChapterPath() {
+    int extensionIndex = basePath.indexOf('.', Math.max(basePath.lastIndexOf('/'), 0));
+    return basePath.substring(0, extensionIndex)
+        + String.format("_%04d", chapterIndex)
+        + basePath.substring(extensionIndex);
+  }
+
+  private void deleteFile() {
+    File chapterFile = new File(chapterPath);
+    if (chapterFile.delete()) {
+      Log.e(TAG, "Removed media file due to muxer failure: " + chapterPath);
+    }
+  }
+
+  /** Sample data and sample table of the pending fragment for a single track. */
+  private static final class TrackSamples {
+    private ByteBuffer data;
+    private long[] timestamps = new long[64];
+    private int[] sizes = new int[64];
+    private int[] flags = new int[64];
+    private int count;
+
+    TrackSamples(int initialCapacity) {
+      data = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    void add(ByteBuffer sample, long timestampUs, int sampleFlags, boolean isAnnexB) {
+      int maxSize =
+          isAnnexB ? Mp4CodecConfig.maxLengthPrefixedSize(sample.remaining()) : sample.remaining();
+      ensureDataCapacity(maxSize);
+      if (count == timestamps.length) {
+        int capacity = count * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+      }
+      int size;
+      if (isAnnexB) {
+        size = Mp4CodecConfig.copyAsLengthPrefixed(sample, data);
+      } else {
+        size = sample.remaining();
+        data.put(sample);
+      }
+      timestamps[count] = timestampUs;
+      sizes[count] = size;
+      flags[count] = sampleFlags;
+      count++;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    long getTimestamp(int index) {
+      return timestamps[index];
+    }
+
+    int getSize(int index) {
+      return sizes[index];
+    }
+
+    int getFlags(int index) {
+      return flags[index];
+    }
+
+    // Returns the number of leading samples before the given timestamp.
+    int countBefore(long timestampUs) {
+      int result = 0;
+      while (result < count && timestamps[result] < timestampUs) {
+        result++;
+      }
+      return result;
+    }
+
+    int getByteCount(int sampleCount) {
+      int bytes = 0;
+      for (int i = 0; i < sampleCount; ++i) {
+        bytes += sizes[i];
+      }
+      return bytes;
+    }
+
+    // Returns a view of the data of the leading samples.
+    ByteBuffer getData(int sampleCount) {
+      ByteBuffer result = data.duplicate();
+      result.flip();
+      result.limit(getByteCount(sampleCount));
+      return result;
+    }
+
+    void discardBefore(long timestampUs) {
+      discard(countBefore(timestampUs));
+    }
+
+    // Drop the leading samples, and move the remaining data to the front of the buffer.
+    void discard(int sampleCount) {
+      if (sampleCount == 0) {
+        return;
+      }
+      int bytes = getByteCount(sampleCount);
+      data.flip();
+      data.position(bytes);
+      data.compact();
+      count -= sampleCount;
+      System.arraycopy(timestamps, sampleCount, timestamps, 0, count);
+      System.arraycopy(sizes, sampleCount, sizes, 0, count);
+      System.arraycopy(flags, sampleCount, flags, 0, count);
+    }
+
+    private void ensureDataCapacity(int bytes) {
+      if (data.remaining() >= bytes) {
+        return;
+      }
+      int capacity = Math.max(data.capacity() * 2, data.position() + bytes);
+      ByteBuffer newData = ByteBuffer.allocateDirect(capacity);
+      data.flip();
+      newData.put(data);
+      data = newData;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import com.google.vr180.common.logging.Log;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Recovers a fragmented MP4 file written by {@link FragmentedMp4Muxer} that was not closed cleanly,
+ * e.g. due to a crash or power loss. The file is truncated after its last complete moof/mdat
+ * fragment, which leaves a valid file that contains all the samples written up to that point.
+ */
+public final class FragmentedMp4Recovery {
+  private static final String TAG = "FragmentedMp4Recovery";
+
+  private static final int TYPE_MOOV = fourCc("moov");
+  private static final int TYPE_MOOF = fourCc("moof");
+  private static final int TYPE_MDAT = fourCc("mdat");
+
+  private FragmentedMp4Recovery() {}
+
+  /**
+   * Truncates the file after its last complete fragment.
+   *
+   * @return The number of complete fragments in the file, or -1 if the file has no complete moov
+   *     box and cannot be recovered.
+   */
+  public static int recover(String path) {
+    try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+      FileChannel channel = file.getChannel();
+      long fileSize = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(16);
+      long position = 0;
+      long validEnd = 0;
+      boolean hasMoov = false;
+      boolean hasMoof = false;
+      int fragmentCount = 0;
+      while (position + 8 <= fileSize) {
+        header.clear();
+        header.limit(8);
+        readFully(channel, header, position);
+        long size = header.getInt(0) & 0xFFFFFFFFL;
+        int type = header.getInt(4);
+        int headerSize = 8;
+        if (size == 1) {
+          // 64-bit box size.
+          if (position + 16 > fileSize) {
+            break;
+          }
+          header.limit(16);
+          readFully(channel, header, position + 8);
+          size = header.getLong(8);
+          headerSize = 16;
+        }
+        if (size < headerSize || position + size > fileSize) {
+          // The box is incomplete or extends to the end of the file.
+          break;
+        }
+        position += size;
+        if (type == TYPE_MOOV) {
+          hasMoov = true;
+        } else if (type == TYPE_MOOF) {
+          hasMoof = true;
+          continue;
+        } else if (type == TYPE_MDAT && hasMoof) {
+          fragmentCount++;
+        }
+        hasMoof = false;
+        validEnd = position;
+      }
+
+      if (!hasMoov) {
+        Log.e(TAG, "No moov box found in " + path);
+        return -1;
+      }
+      if (validEnd < fileSize) {
+        Log.w(TAG, "Truncating " + path + " from " + fileSize + " to " + validEnd + " bytes");
+        channel.truncate(validEnd);
+      }
+      return fragmentCount;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to recover " + path, e);
+      return -1;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      position += read;
+    }
+  }
+
+  private static int fourCc(String type) {
+    return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+  }
+}
@@ -16,14 +16,24 @@ package com.google.vr180.media.muxer;
 
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 import com.google.vr180.common.logging.Log;
 import com.google.vr180.media.metadata.MetadataInjector;
+import com.google.vr180.media.metadata.VrMetadataInjector;
+import java.io.IOException;
+import java.util.Arrays;
 
 /** Factory for {@link MediaMux} implementations. */
 public class MediaMuxFactory {
   private static final String TAG = "MediaMuxFactory";
   private static MediaMuxFactory factory;
 
+  private boolean fragmentedMp4Enabled;
+  private String liveArchivePath;
+  private int interleaveWindowMs;
+  private boolean dropInterleaveOverflow;
+  private FragmentedMp4Muxer.ChecksumListener checksumListener;
+
   public static MediaMuxFactory getInstance() {
     if (factory == null) {
       factory = new MediaMuxFactory();
@@ -33,6 +43,37 @@ public class MediaMuxFactory {
 
   private MediaMuxFactory() {}
 
+  /**
+   * Set whether local recordings with VR metadata are written as fragmented MP4, which survives
+   * crashes and does not need to be rewritten to inject the metadata.
+   */
+  public void setFragmentedMp4Enabled(boolean enabled) {
+    fragmentedMp4Enabled = enabled;
+  }
+
+  /**
+   * Set the local file that live streams are recorded to at the same time, or {@code null} to only
+   * stream. The stream drops frames when the network falls behind, while the file gets all of them.
+   */
+  public void setLiveArchivePath(@Nullable String path) {
+    liveArchivePath = path;
+  }
+
+  /**
+   * Set how far, in milliseconds, audio and motion samples of local recordings may run ahead of the
+   * video track before they are written without waiting for it, or dropped if {@code dropOverflow}.
+   * A window of 0 keeps the default.
+   */
+  public void setInterleaveWindow(int windowMs, boolean dropOverflow) {
+    interleaveWindowMs = windowMs;
+    dropInterleaveOverflow = dropOverflow;
+  }
+
+  /** Set the listener for the checksums computed while fragmented MP4 files are written. */
+  public void setChecksumListener(@Nullable FragmentedMp4Muxer.ChecksumListener listener) {
+    checksumListener = listener;
+  }
+
   /**
    * Create a new media mux based on the format of the given target URI.
    *
@@ -43,9 +84,29 @@ public class MediaMuxFactory {
     try {
       if (targetUri.startsWith(RtmpMuxer.SCHEME)) {
         Uri uri = Uri.parse(targetUri);
-        return new AutoReconnectRtmpMuxer(context, uri, targetKey);
+        MediaMux rtmpMuxer = new AutoReconnectRtmpMuxer(context, uri, targetKey);
+        if (liveArchivePath == null) {
+          return rtmpMuxer;
+        }
+        MediaMux fileMuxer =
+            createChapteredFileMuxer(
+                context, liveArchivePath, false /* need motion */, metadataInjector);
+        return new TeeMediaMux(
+            Arrays.asList(fileMuxer, rtmpMuxer),
+            new boolean[] {false, true},
+            TeeMediaMux.DEFAULT_MAX_PENDING_SAMPLES);
+      } else if (fragmentedMp4Enabled && metadataInjector instanceof VrMetadataInjector) {
+        FragmentedMp4Muxer muxer =
+            new FragmentedMp4Muxer(
+                context,
+                targetUri,
+                true /* need motion */,
+                ((VrMetadataInjector) metadataInjector).getProjectionMetadata(),
+                FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US);
+        muxer.setChecksumListener(checksumListener);
+        return muxer;
       } else {
-        return new ChapteredFileMuxer(
+        return createChapteredFileMuxer(
             context, targetUri, true /* need motion */, metadataInjector);
       }
     } catch (Exception e) {
@@ -53,4 +114,19 @@ public class MediaMuxFactory {
       return null;
     }
   }
+
+  private ChapteredFileMuxer createChapteredFileMuxer(
+      Context context, String path, boolean requiresMotionTrack, MetadataInjector metadataInjector)
+      throws IOException {
+    ChapteredFileMuxer muxer =
+        new ChapteredFileMuxer(context, path, requiresMotionTrack, metadataInjector);
+    if (interleaveWindowMs > 0) {
+      muxer.setInterleaveWindow(
+          interleaveWindowMs,
+          dropInterleaveOverflow
+              ? SampleInterleaver.OVERFLOW_DROP_OLDEST
+              : SampleInterleaver.OVERFLOW_WRITE_OLDEST);
+    }
+    return muxer;
+  }
 }
@@ -0,0 +1,128 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helper for serializing ISO BMFF (MP4) boxes into a growable big-endian buffer. Boxes are opened
+ * with {@link #startBox} and their size is filled in by the matching {@link #endBox} call, so
+ * nested boxes can be written without computing sizes up front.
+ */
+final class Mp4BoxWriter {
+  private ByteBuffer buffer;
+
+  Mp4BoxWriter(int initialCapacity) {
+    buffer = ByteBuffer.allocate(initialCapacity);
+  }
+
+  /** Writes a box header with a placeholder size and returns the start offset of the box. */
+  int startBox(String type) {
+    int start = buffer.position();
+    putInt(0);
+    putFourCc(type);
+    return start;
+  }
+
+  /** Writes a full box header (box header + version + flags) and returns its start offset. */
+  int startFullBox(String type, int version, int flags) {
+    int start = startBox(type);
+    putInt((version << 24) | (flags & 0xFFFFFF));
+    return start;
+  }
+
+  /** Fills in the size of the box started at the given offset. */
+  void endBox(int start) {
+    buffer.putInt(start, buffer.position() - start);
+  }
+
+  Mp4BoxWriter putByte(int value) {
+    ensureCapacity(1);
+    buffer.put((byte) value);
+    return this;
+  }
+
+  Mp4BoxWriter putShort(int value) {
+    ensureCapacity(2);
+    buffer.putShort((short) value);
+    return this;
+  }
+
+  Mp4BoxWriter putInt(int value) {
+    ensureCapacity(4);
+    buffer.putInt(value);
+    return this;
+  }
+
+  Mp4BoxWriter putLong(long value) {
+    ensureCapacity(8);
+    buffer.putLong(value);
+    return this;
+  }
+
+  Mp4BoxWriter putBytes(byte[] bytes) {
+    return putBytes(bytes, 0, bytes.length);
+  }
+
+  Mp4BoxWriter putBytes(byte[] bytes, int offset, int length) {
+    ensureCapacity(length);
+    buffer.put(bytes, offset, length);
+    return this;
+  }
+
+  Mp4BoxWriter putZeros(int count) {
+    ensureCapacity(count);
+    for (int i = 0; i < count; ++i) {
+      buffer.put((byte) 0);
+    }
+    return this;
+  }
+
+  Mp4BoxWriter putFourCc(String type) {
+    return putBytes(type.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /** Overwrites a previously written 32-bit value at the given offset. */
+  void putIntAt(int offset, int value) {
+    buffer.putInt(offset, value);
+  }
+
+  int position() {
+    return buffer.position();
+  }
+
+  void clear() {
+    buffer.clear();
+  }
+
+  /** Returns a read-only view of the bytes written so far. */
+  ByteBuffer getBuffer() {
+    ByteBuffer result = buffer.duplicate();
+    result.flip();
+    return result.asReadOnlyBuffer();
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+    ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    newBuffer.put(buffer);
+    buffer = newBuffer;
+  }
+}
@@ -0,0 +1,317 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for writing MP4 sample entries from the codec specific data of a {@link MediaFormat},
+ * and for converting MediaCodec's Annex B video output to the length prefixed form used in MP4.
+ */
+final class Mp4CodecConfig {
+  private static final int AVC_NAL_TYPE_SPS = 7;
+  private static final int AVC_NAL_TYPE_PPS = 8;
+  private static final int HEVC_NAL_TYPE_VPS = 32;
+  private static final int HEVC_NAL_TYPE_SPS = 33;
+  private static final int HEVC_NAL_TYPE_PPS = 34;
+  // Size of general_profile_tier_level() in an HEVC SPS.
+  private static final int HEVC_GENERAL_PTL_SIZE = 12;
+
+  // ISO 14496-1 descriptor tags.
+  private static final int ES_DESCRIPTOR_TAG = 0x03;
+  private static final int DECODER_CONFIG_DESCRIPTOR_TAG = 0x04;
+  private static final int DECODER_SPECIFIC_INFO_TAG = 0x05;
+  private static final int SL_CONFIG_DESCRIPTOR_TAG = 0x06;
+  private static final int OBJECT_TYPE_AAC = 0x40;
+  private static final int STREAM_TYPE_AUDIO = 0x15;
+
+  private Mp4CodecConfig() {}
+
+  /** Whether the video format is HEVC (as opposed to AVC). */
+  static boolean isHevc(MediaFormat format) {
+    return MediaFormat.MIMETYPE_VIDEO_HEVC.equals(format.getString(MediaFormat.KEY_MIME));
+  }
+
+  /**
+   * Writes an avc1 or hvc1 sample entry for the video format, followed by the optional st3d and
+   * sv3d boxes of spherical video v2.
+   *
+   * @return {@code false} if the format does not carry the required parameter sets.
+   */
+  static boolean writeVisualSampleEntry(
+      Mp4BoxWriter writer, MediaFormat format, @Nullable byte[] st3d, @Nullable byte[] sv3d) {
+    List<byte[]> nalUnits = new ArrayList<>();
+    for (String key : new String[] {"csd-0", "csd-1", "csd-2"}) {
+      ByteBuffer csd = format.getByteBuffer(key);
+      if (csd != null) {
+        splitAnnexB(csd, nalUnits);
+      }
+    }
+    boolean hevc = isHevc(format);
+    int entry = writer.startBox(hevc ? "hvc1" : "avc1");
+    writer.putZeros(6); // reserved
+    writer.putShort(1); // data_reference_index
+    writer.putShort(0); // pre_defined
+    writer.putShort(0); // reserved
+    writer.putZeros(12); // pre_defined
+    writer.putShort(format.getInteger(MediaFormat.KEY_WIDTH));
+    writer.putShort(format.getInteger(MediaFormat.KEY_HEIGHT));
+    writer.putInt(0x00480000); // 72 dpi horizontal resolution
+    writer.putInt(0x00480000); // 72 dpi vertical resolution
+    writer.putInt(0); // reserved
+    writer.putShort(1); // frame_count
+    writer.putZeros(32); // compressorname
+    writer.putShort(0x0018); // depth
+    writer.putShort(-1); // pre_defined
+    boolean success = hevc ? writeHvcC(writer, nalUnits) : writeAvcC(writer, nalUnits);
+    if (st3d != null) {
+      writer.putBytes(st3d);
+    }
+    if (sv3d != null) {
+      writer.putBytes(sv3d);
+    }
+    writer.endBox(entry);
+    return success;
+  }
+
+  /**
+   * Writes an mp4a sample entry for the AAC format.
+   *
+   * @return {@code false} if the format does not carry the AudioSpecificConfig.
+   */
+  static boolean writeAudioSampleEntry(Mp4BoxWriter writer, MediaFormat format) {
+    ByteBuffer csd = format.getByteBuffer("csd-0");
+    byte[] audioSpecificConfig = csd != null ? toByteArray(csd) : new byte[0];
+    int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    int bitrate =
+        format.containsKey(MediaFormat.KEY_BIT_RATE)
+            ? format.getInteger(MediaFormat.KEY_BIT_RATE)
+            : 0;
+
+    int entry = writer.startBox("mp4a");
+    writer.putZeros(6); // reserved
+    writer.putShort(1); // data_reference_index
+    writer.putZeros(8); // reserved
+    writer.putShort(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+    writer.putShort(16); // samplesize
+    writer.putShort(0); // pre_defined
+    writer.putShort(0); // reserved
+    writer.putInt(sampleRate << 16);
+
+    int esds = writer.startFullBox("esds", 0, 0);
+    int decoderSpecificInfoSize = 2 + audioSpecificConfig.length;
+    int decoderConfigSize = 2 + 13 + decoderSpecificInfoSize;
+    int slConfigSize = 2 + 1;
+    writer.putByte(ES_DESCRIPTOR_TAG).putByte(3 + decoderConfigSize + slConfigSize);
+    writer.putShort(0); // ES_ID
+    writer.putByte(0); // flags
+    writer.putByte(DECODER_CONFIG_DESCRIPTOR_TAG).putByte(decoderConfigSize - 2);
+    writer.putByte(OBJECT_TYPE_AAC);
+    writer.putByte(STREAM_TYPE_AUDIO);
+    writer.putByte(0).putShort(0); // bufferSizeDB
+    writer.putInt(bitrate); // maxBitrate
+    writer.putInt(bitrate); // avgBitrate
+    writer.putByte(DECODER_SPECIFIC_INFO_TAG).putByte(audioSpecificConfig.length);
+    writer.putBytes(audioSpecificConfig);
+    writer.putByte(SL_CONFIG_DESCRIPTOR_TAG).putByte(1).putByte(2);
+    writer.endBox(esds);
+    writer.endBox(entry);
+    return audioSpecificConfig.length > 0;
+  }
+
+  /** Writes a camm sample entry for the camera motion metadata track. */
+  static void writeCammSampleEntry(Mp4BoxWriter writer) {
+    int entry = writer.startBox("camm");
+    writer.putZeros(6); // reserved
+    writer.putShort(1); // data_reference_index
+    writer.endBox(entry);
+  }
+
+  /**
+   * Copies one encoded video access unit to the destination buffer, replacing Annex B start codes
+   * with 4 byte NAL unit lengths. Input that does not start with a start code is copied verbatim.
+   * The destination must have at least {@link #maxLengthPrefixedSize} bytes remaining.
+   *
+   * @return The number of bytes written.
+   */
+  static int copyAsLengthPrefixed(ByteBuffer source, ByteBuffer destination) {
+    int start = source.position();
+    int end = source.limit();
+    int written = destination.position();
+    int nalStart = findNalStart(source, start, end);
+    if (nalStart < 0) {
+      destination.put(source);
+      return destination.position() - written;
+    }
+    while (nalStart < end) {
+      int nextStart = findNalStart(source, nalStart, end);
+      int nalEnd = end;
+      if (nextStart >= 0) {
+        // Trailing zero bytes belong to the next start code.
+        nalEnd = nextStart - 3;
+        while (nalEnd > nalStart && source.get(nalEnd - 1) == 0) {
+          nalEnd--;
+        }
+      }
+      destination.putInt(nalEnd - nalStart);
+      ByteBuffer nal = source.duplicate();
+      nal.limit(nalEnd).position(nalStart);
+      destination.put(nal);
+      nalStart = nextStart < 0 ? end : nextStart;
+    }
+    source.position(end);
+    return destination.position() - written;
+  }
+
+  /** Upper bound of the size of an access unit after {@link #copyAsLengthPrefixed}. */
+  static int maxLengthPrefixedSize(int annexBSize) {
+    // Each 3 byte start code grows by one byte.
+    return annexBSize + annexBSize / 3 + 4;
+  }
+
+  // Returns the offset of the first NAL unit byte after a 00 00 01 start code, or -1.
+  private static int findNalStart(ByteBuffer buffer, int start, int end) {
+    for (int i = start; i + 2 < end; ++i) {
+      if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+        return i + 3;
+      }
+    }
+    return -1;
+  }
+
+  private static void splitAnnexB(ByteBuffer csd, List<byte[]> nalUnits) {
+    ByteBuffer source = csd.duplicate();
+    ByteBuffer converted = ByteBuffer.allocate(maxLengthPrefixedSize(source.remaining()));
+    copyAsLengthPrefixed(source, converted);
+    converted.flip();
+    while (converted.remaining() > 4) {
+      int length = converted.getInt();
+      byte[] nal = new byte[length];
+      converted.get(nal);
+      nalUnits.add(nal);
+    }
+  }
+
+  private static boolean writeAvcC(Mp4BoxWriter writer, List<byte[]> nalUnits) {
+    List<byte[]> sps = filterAvc(nalUnits, AVC_NAL_TYPE_SPS);
+    List<byte[]> pps = filterAvc(nalUnits, AVC_NAL_TYPE_PPS);
+    int box = writer.startBox("avcC");
+    byte[] firstSps = sps.isEmpty() ? new byte[4] : sps.get(0);
+    writer.putByte(1); // configurationVersion
+    writer.putByte(firstSps[1]); // AVCProfileIndication
+    writer.putByte(firstSps[2]); // profile_compatibility
+    writer.putByte(firstSps[3]); // AVCLevelIndication
+    writer.putByte(0xFF); // 4 byte NAL unit lengths
+    writer.putByte(0xE0 | sps.size());
+    for (byte[] nal : sps) {
+      writer.putShort(nal.length).putBytes(nal);
+    }
+    writer.putByte(pps.size());
+    for (byte[] nal : pps) {
+      writer.putShort(nal.length).putBytes(nal);
+    }
+    writer.endBox(box);
+    return !sps.isEmpty() && !pps.isEmpty();
+  }
+
+  private static boolean writeHvcC(Mp4BoxWriter writer, List<byte[]> nalUnits) {
+    List<byte[]> vps = filterHevc(nalUnits, HEVC_NAL_TYPE_VPS);
+    List<byte[]> sps = filterHevc(nalUnits, HEVC_NAL_TYPE_SPS);
+    List<byte[]> pps = filterHevc(nalUnits, HEVC_NAL_TYPE_PPS);
+    // The SPS starts with a 2 byte NAL header, one byte with the sub layer info and the general
+    // profile, tier and level.
+    int spsHeaderSize = 3 + HEVC_GENERAL_PTL_SIZE;
+    byte[] spsHeader =
+        sps.isEmpty() ? new byte[spsHeaderSize] : unescape(sps.get(0), spsHeaderSize);
+    int maxSubLayers = ((spsHeader[2] >> 1) & 0x07) + 1;
+    int temporalIdNested = spsHeader[2] & 0x01;
+
+    int box = writer.startBox("hvcC");
+    writer.putByte(1); // configurationVersion
+    writer.putBytes(spsHeader, 3, HEVC_GENERAL_PTL_SIZE);
+    writer.putShort(0xF000); // min_spatial_segmentation_idc
+    writer.putByte(0xFC); // parallelismType
+    writer.putByte(0xFD); // chromaFormat 4:2:0
+    writer.putByte(0xF8); // bitDepthLumaMinus8
+    writer.putByte(0xF8); // bitDepthChromaMinus8
+    writer.putShort(0); // avgFrameRate
+    // constantFrameRate, numTemporalLayers, temporalIdNested, 4 byte NAL unit lengths.
+    writer.putByte((maxSubLayers << 3) | (temporalIdNested << 2) | 0x03);
+    writer.putByte(3); // numOfArrays
+    writeHevcArray(writer, HEVC_NAL_TYPE_VPS, vps);
+    writeHevcArray(writer, HEVC_NAL_TYPE_SPS, sps);
+    writeHevcArray(writer, HEVC_NAL_TYPE_PPS, pps);
+    writer.endBox(box);
+    return !vps.isEmpty() && !sps.isEmpty() && !pps.isEmpty();
+  }
+
+  private static void writeHevcArray(Mp4BoxWriter writer, int type, List<byte[]> nalUnits) {
+    writer.putByte(0x80 | type); // array_completeness
+    writer.putShort(nalUnits.size());
+    for (byte[] nal : nalUnits) {
+      writer.putShort(nal.length).putBytes(nal);
+    }
+  }
+
+  private static List<byte[]> filterAvc(List<byte[]> nalUnits, int type) {
+    List<byte[]> result = new ArrayList<>();
+    for (byte[] nal : nalUnits) {
+      // The SPS is used for the profile and level indications.
+      int minLength = type == AVC_NAL_TYPE_SPS ? 4 : 1;
+      if (nal.length >= minLength && (nal[0] & 0x1F) == type) {
+        result.add(nal);
+      }
+    }
+    return result;
+  }
+
+  private static List<byte[]> filterHevc(List<byte[]> nalUnits, int type) {
+    List<byte[]> result = new ArrayList<>();
+    for (byte[] nal : nalUnits) {
+      if (nal.length >= 2 && ((nal[0] >> 1) & 0x3F) == type) {
+        result.add(nal);
+      }
+    }
+    return result;
+  }
+
+  // Removes emulation prevention bytes from the first bytes of a NAL unit.
+  private static byte[] unescape(byte[] nal, int length) {
+    byte[] result = new byte[length];
+    int zeros = 0;
+    int j = 0;
+    for (int i = 0; i < nal.length && j < length; ++i) {
+      if (zeros >= 2 && nal[i] == 3) {
+        zeros = 0;
+        continue;
+      }
+      zeros = nal[i] == 0 ? zeros + 1 : 0;
+      result[j++] = nal[i];
+    }
+    return result;
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    ByteBuffer source = buffer.duplicate();
+    source.rewind();
+    byte[] result = new byte[source.remaining()];
+    source.get(result);
+    return result;
+  }
+}
@@ -0,0 +1,559 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import android.util.Pair;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaCreationUtils;
+import com.google.vr180.media.MediaEncoder;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Implementation of the {@link MediaMux} interface that keeps the encoders running before a
+ * recording starts. Encoded samples are copied into a bounded off-heap ring that holds the last
+ * pre-roll period, starting at a video key frame, and the codec buffers are released right away.
+ *
+ * <p>When a recording starts, {@link #attach} writes the ring into the target muxer and forwards
+ * all later samples to it, so the recording includes the moment before it was requested. After the
+ * recording, {@link #reset} prepares the muxer for the next pre-roll without reallocating the ring.
+ */
+public final class PreRollMediaMux implements MediaMux {
+  private static final String TAG = "PreRollMediaMux";
+
+  // Buffer indices at or above this value refer to samples in the ring instead of codec buffers.
+  // Codec buffer indices are small, so the two never collide.
+  private static final int RING_BUFFER_INDEX_BASE = 1 << 20;
+  // The highest sample rate of any track, above the 200 Hz motion track.
+  private static final int MAX_SAMPLE_RATE_HZ = 250;
+  // The ring holds up to one key frame interval beyond the pre-roll period.
+  private static final int MAX_KEY_FRAME_INTERVAL_MS = 2000;
+  // The size of the metadata of one sample in the parallel arrays.
+  private static final int SLOT_BYTES = 4 + 4 + 4 + 8 + 4 + 1 + 4;
+  // The metadata takes at most this part of the capacity.
+  private static final int MAX_METADATA_FRACTION = 4;
+
+  private final int expectedTrackCount;
+  private final int preRollMs;
+  private final long preRollUs;
+  private final int capacityBytes;
+  private final int ringBytes;
+  private final MediaFormat[] formats;
+  private final MediaEncoder[] encoders;
+  private final int[] targetTrackIndices;
+
+  // Sample metadata of the ring, in parallel arrays indexed by slot.
+  private final int[] trackIndices;
+  private final int[] offsets;
+  private final int[] sizes;
+  private final long[] timestamps;
+  private final int[] flags;
+  private final boolean[] heldByTarget;
+  // Slots of the video key frames in the ring, oldest first.
+  private final int[] keyFrameSlots;
+  private final BufferInfo bufferInfo = new BufferInfo();
+
+  private ByteBuffer ring;
+  private int head;
+  private int count;
+  private int keyFrameHead;
+  private int keyFrameCount;
+  private int writeOffset;
+  private int bufferedBytes;
+  private int heldCount;
+  private int droppedCount;
+  private int trackCount;
+  private int videoTrackIndex = INVALID_TRACK_INDEX;
+  private boolean isStarted;
+  private boolean isStopped;
+  private MediaMux target;
+  private ErrorCallback errorCallback;
+
+  /**
+   * Creates a pre-roll muxer.
+   *
+   * @param expectedTrackCount The number of tracks the encoders add.
+   * @param preRollMs The duration to keep before a recording starts.
+   * @param capacityBytes The memory for the pre-roll, including the off-heap ring and the sample
+   *     metadata. The pre-roll is shortened if the encoded samples do not fit.
+   */
+  public PreRollMediaMux(int expectedTrackCount, int preRollMs, int capacityBytes) {
+    Preconditions.checkArgument(expectedTrackCount > 0 && preRollMs >= 0);
+    Preconditions.checkArgument(capacityBytes >= 16 * SLOT_BYTES * MAX_METADATA_FRACTION);
+    this.expectedTrackCount = expectedTrackCount;
+    this.preRollMs = preRollMs;
+    this.preRollUs = preRollMs * 1000L;
+    this.capacityBytes = capacityBytes;
+    formats = new MediaFormat[expectedTrackCount];
+    encoders = new MediaEncoder[expectedTrackCount];
+    targetTrackIndices = new int[expectedTrackCount];
+    // Enough slots for the samples of all tracks in the pre-roll and one key frame interval.
+    long sampleCount =
+        (long) expectedTrackCount * (preRollMs + MAX_KEY_FRAME_INTERVAL_MS) * MAX_SAMPLE_RATE_HZ
+            / 1000;
+    int maxSamples =
+        (int)
+            Math.max(
+                16, Math.min(sampleCount, capacityBytes / MAX_METADATA_FRACTION / SLOT_BYTES));
+    ringBytes = capacityBytes - maxSamples * SLOT_BYTES;
+    trackIndices = new int[maxSamples];
+    offsets = new int[maxSamples];
+    sizes = new int[maxSamples];
+    timestamps = new long[maxSamples];
+    flags = new int[maxSamples];
+    heldByTarget = new boolean[maxSamples];
+    keyFrameSlots = new int[maxSamples];
+  }
+
+  @Override
+  public synchronized void setErrorCallback(@Nullable ErrorCallback errorCallback) {
+    this.errorCallback = errorCallback;
+  }
+
+  @Override
+  public synchronized int addTrack(MediaFormat format, MediaEncoder encoder) {
+    if (isStarted || trackCount == expectedTrackCount) {
+      Log.e(TAG, "Cannot add more tracks");
+      return INVALID_TRACK_INDEX;
+    }
+    if (MediaCreationUtils.isVideoFormat(format)) {
+      videoTrackIndex = trackCount;
+    }
+    formats[trackCount] = format;
+    encoders[trackCount] = encoder;
+    return trackCount++;
+  }
+
+  @Override
+  public synchronized boolean hasAllTracks() {
+    return trackCount == expectedTrackCount;
+  }
+
+  @Override
+  public synchronized int prepare() {
+    if (ring == null) {
+      try {
+        ring = ByteBuffer.allocateDirect(ringBytes);
+      } catch (OutOfMemoryError e) {
+        Log.e(TAG, "Could not allocate " + ringBytes + " bytes for pre-roll", e);
+        return MediaConstants.STATUS_ERROR;
+      }
+    }
+    return MediaConstants.STATUS_SUCCESS;
+  }
+
+  @Override
+  public synchronized boolean start() {
+    if (ring == null || isStopped || !hasAllTracks() || videoTrackIndex < 0) {
+      Log.e(TAG, "Cannot start pre-roll");
+      return false;
+    }
+    isStarted = true;
+    return true;
+  }
+
+  @Override
+  public synchronized boolean stop() {
+    if (isStopped) {
+      return true;
+    }
+    isStopped = true;
+    if (target != null) {
+      return target.stop();
+    }
+    clear();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean release() {
+    stop();
+    boolean success = target == null || target.release();
+    ring = null;
+    return success;
+  }
+
+  /**
+   * Stops the muxer and releases the target muxer, if any, and returns to the state before the
+   * tracks were added. The ring and the sample metadata are kept for the next pre-roll.
+   */
+  public synchronized void reset() {
+    stop();
+    if (target != null) {
+      target.release();
+      target = null;
+    }
+    // The released target no longer reads the ring.
+    Arrays.fill(heldByTarget, false);
+    heldCount = 0;
+    clear();
+    droppedCount = 0;
+    trackCount = 0;
+    videoTrackIndex = INVALID_TRACK_INDEX;
+    Arrays.fill(formats, null);
+    Arrays.fill(encoders, null);
+    isStarted = false;
+    isStopped = false;
+    errorCallback = null;
+  }
+
+  /** Returns whether the muxer can be reset for a pre-roll with the given configuration. */
+  public boolean hasConfiguration(int expectedTrackCount, int preRollMs, int capacityBytes) {
+    return this.expectedTrackCount == expectedTrackCount
+        && this.preRollMs == preRollMs
+        && this.capacityBytes == capacityBytes;
+  }
+
+  @Override
+  public synchronized boolean isStarted() {
+    return isStarted && !isStopped;
+  }
+
+  @Override
+  public synchronized boolean writeSampleDataAsync(
+      int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+    if (!isStarted()) {
+      Log.e(TAG, "Muxer not started");
+      return false;
+    }
+    if (target != null) {
+      return target.writeSampleDataAsync(targetTrackIndices[trackIndex], bufferIndex, bufferInfo);
+    }
+    MediaEncoder encoder = encoders[trackIndex];
+    ByteBuffer buffer = encoder.getOutputBuffer(bufferIndex);
+    if (buffer != null) {
+      addSample(trackIndex, buffer, bufferInfo);
+    }
+    encoder.releaseOutputBuffer(bufferIndex);
+    return true;
+  }
+
+  @Override
+  public synchronized void cleanupPartialResults() {
+    if (target != null) {
+      target.cleanupPartialResults();
+    }
+  }
+
+  @Override
+  public synchronized long getBytesWritten() {
+    return target != null ? target.getBytesWritten() : 0;
+  }
+
+  @Override
+  public synchronized int getOutputBufferUsed() {
+    return target != null ? target.getOutputBufferUsed() : -1;
+  }
+
+  @Override
+  public synchronized Pair<Integer, Integer> getCurrentByteThroughput() {
+    return target != null ? target.getCurrentByteThroughput() : null;
+  }
+
+  @Override
+  public synchronized void setOutputBufferLimit(int bytes) {
+    if (target != null) {
+      target.setOutputBufferLimit(bytes);
+    }
+  }
+
+  /**
+   * Adds the tracks to the target muxer, starts it, writes the buffered samples to it and forwards
+   * all later samples. The target must be prepared. Returns whether the target took the samples.
+   */
+  public synchronized boolean attach(MediaMux target) {
+    if (this.target != null || !isStarted()) {
+      Log.e(TAG, "Cannot attach to pre-roll");
+      return false;
+    }
+    for (int i = 0; i < trackCount; ++i) {
+      targetTrackIndices[i] = target.addTrack(formats[i], new RingEncoder(i));
+      if (targetTrackIndices[i] < 0) {
+        Log.e(TAG, "Target muxer rejected track " + formats[i]);
+        return false;
+      }
+    }
+    if (!target.hasAllTracks() || !target.start()) {
+      Log.e(TAG, "Could not start target muxer");
+      return false;
+    }
+    this.target = target;
+
+    Log.i(
+        TAG,
+        "Flushing pre-roll of "
+            + count
+            + " samples, "
+            + bufferedBytes
+            + " bytes, "
+            + getBufferedDurationUs() / 1000
+            + " ms, "
+            + droppedCount
+            + " samples dropped");
+    int flushCount = count;
+    for (int i = 0; i < flushCount; ++i) {
+      int slot = (head + i) % trackIndices.length;
+      heldByTarget[slot] = true;
+      heldCount++;
+    }
+    boolean success = true;
+    for (int i = 0; i < flushCount && success; ++i) {
+      int slot = (head + i) % trackIndices.length;
+      bufferInfo.set(offsets[slot], sizes[slot], timestamps[slot], flags[slot]);
+      success =
+          target.writeSampleDataAsync(
+              targetTrackIndices[trackIndices[slot]], RING_BUFFER_INDEX_BASE + slot, bufferInfo);
+    }
+    // The ring is only read from now on, until the target released all samples.
+    count = 0;
+    keyFrameCount = 0;
+    if (!success) {
+      Log.e(TAG, "Target muxer failed to write the pre-roll");
+      Arrays.fill(heldByTarget, false);
+      heldCount = 0;
+      bufferedBytes = 0;
+    }
+    return success;
+  }
+
+  /** Returns whether the muxer forwards samples to a target muxer. */
+  public synchronized boolean isAttached() {
+    return target != null;
+  }
+
+  /** Returns the memory of the pre-roll, including the off-heap ring and the sample metadata. */
+  public int getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  /** Returns the number of samples the ring can hold. */
+  @VisibleForTesting
+  int getMaxSampleCount() {
+    return trackIndices.length;
+  }
+
+  /** Returns the number of encoded bytes in the ring, including samples held by the target. */
+  public synchronized int getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /** Returns the time span of the samples in the ring. */
+  public synchronized long getBufferedDurationUs() {
+    if (count == 0) {
+      return 0;
+    }
+    int tail = (head + count - 1) % trackIndices.length;
+    return timestamps[tail] - timestamps[head];
+  }
+
+  /** Returns the number of samples that were dropped from the pre-roll or never entered it. */
+  public synchronized int getDroppedSampleCount() {
+    return droppedCount;
+  }
+
+  private void addSample(int trackIndex, ByteBuffer buffer, BufferInfo info) {
+    boolean isKeyFrame =
+        trackIndex == videoTrackIndex && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    if (info.size <= 0 || info.size > ringBytes) {
+      droppedCount++;
+      return;
+    }
+
+    // Make room, keeping the ring aligned to a key frame.
+    int offset = allocate(info.size);
+    boolean evicted = false;
+    while (offset < 0 || count == trackIndices.length) {
+      evictHead();
+      evicted = true;
+      offset = allocate(info.size);
+    }
+    if (evicted) {
+      while (count > 0 && !isKeyFrame(head)) {
+        evictHead();
+      }
+      offset = allocate(info.size);
+    }
+    if (count == 0 && !isKeyFrame) {
+      droppedCount++;
+      return;
+    }
+
+    buffer.clear();
+    buffer.limit(info.offset + info.size);
+    buffer.position(info.offset);
+    ring.clear();
+    ring.position(offset);
+    ring.put(buffer);
+
+    int slot = (head + count) % trackIndices.length;
+    trackIndices[slot] = trackIndex;
+    offsets[slot] = offset;
+    sizes[slot] = info.size;
+    timestamps[slot] = info.presentationTimeUs;
+    flags[slot] = info.flags;
+    count++;
+    bufferedBytes += info.size;
+    writeOffset = offset + info.size;
+    if (isKeyFrame) {
+      keyFrameSlots[(keyFrameHead + keyFrameCount) % keyFrameSlots.length] = slot;
+      keyFrameCount++;
+    }
+
+    // Drop the oldest group of pictures once the next one covers the pre-roll period.
+    while (keyFrameCount > 1
+        && timestamps[keyFrameSlots[(keyFrameHead + 1) % keyFrameSlots.length]]
+            <= info.presentationTimeUs - preRollUs) {
+      int nextKeyFrameSlot = keyFrameSlots[(keyFrameHead + 1) % keyFrameSlots.length];
+      while (head != nextKeyFrameSlot) {
+        evictHead();
+      }
+    }
+  }
+
+  // Returns the ring offset for a sample of the given size, or -1 if it does not fit.
+  private int allocate(int size) {
+    if (count == 0) {
+      writeOffset = 0;
+      return 0;
+    }
+    int headOffset = offsets[head];
+    if (writeOffset > headOffset) {
+      if (ringBytes - writeOffset >= size) {
+        return writeOffset;
+      }
+      // Wrap around to the start of the ring.
+      return headOffset >= size ? 0 : -1;
+    }
+    return headOffset - writeOffset >= size ? writeOffset : -1;
+  }
+
+  private boolean isKeyFrame(int slot) {
+    return keyFrameCount > 0 && keyFrameSlots[keyFrameHead] == slot;
+  }
+
+  private void evictHead() {
+    if (isKeyFrame(head)) {
+      keyFrameHead = (keyFrameHead + 1) % keyFrameSlots.length;
+      keyFrameCount--;
+    }
+    bufferedBytes -= sizes[head];
+    head = (head + 1) % trackIndices.length;
+    count--;
+    droppedCount++;
+  }
+
+  private void clear() {
+    count = 0;
+    keyFrameCount = 0;
+    if (heldCount == 0) {
+      bufferedBytes = 0;
+    }
+  }
+
+  private synchronized ByteBuffer getRingBuffer(int slot) {
+    if (ring == null || !heldByTarget[slot]) {
+      return null;
+    }
+    ByteBuffer buffer = ring.duplicate();
+    buffer.limit(offsets[slot] + sizes[slot]);
+    buffer.position(offsets[slot]);
+    return buffer;
+  }
+
+  private synchronized void releaseRingBuffer(int slot) {
+    if (!heldByTarget[slot]) {
+      return;
+    }
+    heldByTarget[slot] = false;
+    heldCount--;
+    bufferedBytes -= sizes[slot];
+  }
+
+  /** The encoder given to the target muxer, which serves both ring samples and codec buffers. */
+  private final class RingEncoder implements MediaEncoder {
+    private final int trackIndex;
+
+    RingEncoder(int trackIndex) {
+      this.trackIndex = trackIndex;
+    }
+
+    @Override
+    public String getName() {
+      return encoders[trackIndex].getName();
+    }
+
+    @Override
+    public boolean start() {
+      return false;
+    }
+
+    @Override
+    public void setErrorCallback(@Nullable MediaEncoder.ErrorCallback errorCallback) {}
+
+    @Override
+    public boolean stop() {
+      return false;
+    }
+
+    @Override
+    public boolean isActive() {
+      return encoders[trackIndex].isActive();
+    }
+
+    @Override
+    public boolean signalEndOfStream(EndOfStreamCallback callback) {
+      return false;
+    }
+
+    @Override
+    public boolean release() {
+      return false;
+    }
+
+    @Override
+    public int getTargetBitrate() {
+      return encoders[trackIndex].getTargetBitrate();
+    }
+
+    @Override
+    public void setTargetBitrate(int bitrate) {
+      encoders[trackIndex].setTargetBitrate(bitrate);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+      if (index >= RING_BUFFER_INDEX_BASE) {
+        return getRingBuffer(index - RING_BUFFER_INDEX_BASE);
+      }
+      return encoders[trackIndex].getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+      if (index >= RING_BUFFER_INDEX_BASE) {
+        releaseRingBuffer(index - RING_BUFFER_INDEX_BASE);
+      } else {
+        encoders[trackIndex].releaseOutputBuffer(index);
+      }
+    }
+  }
+}
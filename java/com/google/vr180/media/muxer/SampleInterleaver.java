@@ -0,0 +1,186 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec.BufferInfo;
+import com.google.common.base.Preconditions;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Holds encoded samples that are ahead of the video track until the video timestamp catches up, so
+ * that the tracks are interleaved in the output file. The samples of each track are kept in a fixed
+ * capacity ring of parallel primitive arrays, so buffering a sample does not allocate, and leave
+ * the interleaver in timestamp order across the tracks.
+ *
+ * <p>Once a track has buffered samples, all of its later samples have to go through the
+ * interleaver as well (see {@link #size(int)}), or they would be written ahead of the buffered ones.
+ *
+ * <p>The interleaver is bounded both in the number of samples and in time. When the ring of a track
+ * is full, or the oldest sample is more than the interleave window older than the newest one (e.g.
+ * because the video track stalled), the oldest sample is handled according to the overflow policy.
+ */
+@NotThreadSafe
+final class SampleInterleaver {
+  /** Write the oldest sample to the output without waiting for the video track. */
+  static final int OVERFLOW_WRITE_OLDEST = 0;
+  /** Drop the oldest sample. */
+  static final int OVERFLOW_DROP_OLDEST = 1;
+
+  /** Receives the samples that leave the interleaver. */
+  interface Output {
+    /** Writes the sample. The buffer info is only valid for the duration of the call. */
+    void writeSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo);
+
+    /** Discards the sample. The buffer info is only valid for the duration of the call. */
+    void dropSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo);
+  }
+
+  /** The buffered samples of one track, in arrival order. */
+  private static final class Ring {
+    private final int[] bufferIndices;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] timestamps;
+    private final int[] flags;
+
+    private int head;
+    private int count;
+
+    private Ring(int capacity) {
+      bufferIndices = new int[capacity];
+      offsets = new int[capacity];
+      sizes = new int[capacity];
+      timestamps = new long[capacity];
+      flags = new int[capacity];
+    }
+  }
+
+  private final Ring[] rings;
+  private final long windowUs;
+  private final int overflowPolicy;
+  // Reused for handing samples to the output.
+  private final BufferInfo bufferInfo = new BufferInfo();
+
+  private int count;
+  private int maxBacklog;
+  private int overflowCount;
+
+  /**
+   * @param trackCount The number of tracks, whose indices are in {@code [0, trackCount)}.
+   * @param capacity The number of samples buffered for each track.
+   */
+  SampleInterleaver(int trackCount, int capacity, int windowMs, int overflowPolicy) {
+    Preconditions.checkArgument(trackCount > 0 && capacity > 0 && windowMs >= 0);
+    Preconditions.checkArgument(
+        overflowPolicy == OVERFLOW_WRITE_OLDEST || overflowPolicy == OVERFLOW_DROP_OLDEST);
+    rings = new Ring[trackCount];
+    for (int i = 0; i < trackCount; ++i) {
+      rings[i] = new Ring(capacity);
+    }
+    windowUs = windowMs * 1000L;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Buffers a sample. Samples that no longer fit in the ring or the interleave window are passed to
+   * the output according to the overflow policy.
+   */
+  void add(int trackIndex, int bufferIndex, BufferInfo info, Output output) {
+    Ring ring = rings[trackIndex];
+    boolean writeOverflow = overflowPolicy == OVERFLOW_WRITE_OLDEST;
+    if (ring.count == ring.bufferIndices.length) {
+      // Older samples of the other tracks are written first to keep the timestamp order.
+      if (writeOverflow) {
+        writeUntil(ring.timestamps[ring.head] - 1, output);
+      }
+      overflowCount++;
+      poll(trackIndex, output, writeOverflow);
+    }
+    int oldestTrack;
+    while ((oldestTrack = getOldestTrack()) != -1
+        && rings[oldestTrack].timestamps[rings[oldestTrack].head]
+            < info.presentationTimeUs - windowUs) {
+      overflowCount++;
+      poll(oldestTrack, output, writeOverflow);
+    }
+    int tail = (ring.head + ring.count) % ring.bufferIndices.length;
+    ring.bufferIndices[tail] = bufferIndex;
+    ring.offsets[tail] = info.offset;
+    ring.sizes[tail] = info.size;
+    ring.timestamps[tail] = info.presentationTimeUs;
+    ring.flags[tail] = info.flags;
+    ring.count++;
+    count++;
+    maxBacklog = Math.max(maxBacklog, count);
+  }
+
+  /** Writes the buffered samples up to and including the given timestamp, in timestamp order. */
+  void writeUntil(long timestampUs, Output output) {
+    int oldestTrack;
+    while ((oldestTrack = getOldestTrack()) != -1
+        && rings[oldestTrack].timestamps[rings[oldestTrack].head] <= timestampUs) {
+      poll(oldestTrack, output, true);
+    }
+  }
+
+  /** Returns the number of buffered samples. */
+  int size() {
+    return count;
+  }
+
+  /** Returns the number of buffered samples of a track. */
+  int size(int trackIndex) {
+    return rings[trackIndex].count;
+  }
+
+  /** Returns the largest number of samples that were buffered at the same time. */
+  int getMaxBacklog() {
+    return maxBacklog;
+  }
+
+  /** Returns the number of samples that were handled by the overflow policy. */
+  int getOverflowCount() {
+    return overflowCount;
+  }
+
+  // Returns the track whose next sample has the smallest timestamp, or -1 if nothing is buffered.
+  private int getOldestTrack() {
+    int oldestTrack = -1;
+    for (int i = 0; i < rings.length; ++i) {
+      Ring ring = rings[i];
+      if (ring.count > 0
+          && (oldestTrack == -1
+              || ring.timestamps[ring.head]
+                  < rings[oldestTrack].timestamps[rings[oldestTrack].head])) {
+        oldestTrack = i;
+      }
+    }
+    return oldestTrack;
+  }
+
+  private void poll(int trackIndex, Output output, boolean write) {
+    Ring ring = rings[trackIndex];
+    int head = ring.head;
+    bufferInfo.set(ring.offsets[head], ring.sizes[head], ring.timestamps[head], ring.flags[head]);
+    if (write) {
+      output.writeSample(trackIndex, ring.bufferIndices[head], bufferInfo);
+    } else {
+      output.dropSample(trackIndex, ring.bufferIndices[head], bufferInfo);
+    }
+    ring.head = (head + 1) % ring.bufferIndices.length;
+    ring.count--;
+    count--;
+  }
+}
@@ -0,0 +1,541 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import android.util.Pair;
+import com.google.common.base.Preconditions;
+import com.google.vr180.common.logging.Log;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaCreationUtils;
+import com.google.vr180.media.MediaEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Implementation of the {@link MediaMux} interface that fans the output of one set of encoders out
+ * to several child muxers, e.g. a local file and a live stream.
+ *
+ * <p>Each child runs on its own thread. A codec output buffer is shared by all children and is
+ * released back to its encoder as soon as the last child has released it. A lossy child that falls
+ * behind drops samples (and the following video frames up to the next key frame) instead of holding
+ * more codec buffers, so it never stalls the other children. A lossless child never drops samples.
+ */
+@NotThreadSafe
+public final class TeeMediaMux implements MediaMux {
+  private static final String TAG = "TeeMediaMux";
+
+  /** Default number of samples a lossy child may have queued before it drops samples. */
+  public static final int DEFAULT_MAX_PENDING_SAMPLES = 60;
+
+  // The maximum number of tracks of a muxer: video, audio and motion.
+  private static final int MAX_TRACKS = 3;
+  // How long to wait for a child to drain its queue and stop.
+  private static final long STOP_TIMEOUT_MS = 10_000;
+
+  private final Child[] children;
+  private final MediaEncoder[] encoders = new MediaEncoder[MAX_TRACKS];
+  // Outstanding shared buffers of each track, indexed by the codec buffer index.
+  private final SharedBuffer[][] sharedBuffers = new SharedBuffer[MAX_TRACKS][];
+
+  private ErrorCallback errorCallback;
+  private int trackCount;
+  private int videoTrackIndex = INVALID_TRACK_INDEX;
+  private boolean isStarted;
+  private boolean isStopped;
+  private boolean isReleased;
+
+  /**
+   * Creates a tee of the given muxers.
+   *
+   * @param muxers The child muxers.
+   * @param lossy Whether each child may drop samples when it falls behind.
+   * @param maxPendingSamples The number of queued samples at which a lossy child drops samples.
+   */
+  public TeeMediaMux(List<MediaMux> muxers, boolean[] lossy, int maxPendingSamples) {
+    Preconditions.checkArgument(!muxers.isEmpty() && muxers.size() == lossy.length);
+    Preconditions.checkArgument(muxers.size() < Integer.SIZE);
+    children = new Child[muxers.size()];
+    for (int i = 0; i < children.length; ++i) {
+      children[i] = new Child(i, muxers.get(i), lossy[i], maxPendingSamples);
+    }
+    for (int i = 0; i < MAX_TRACKS; ++i) {
+      sharedBuffers[i] = new SharedBuffer[8];
+    }
+  }
+
+  @Override
+  public void setErrorCallback(@Nullable ErrorCallback errorCallback) {
+    this.errorCallback = errorCallback;
+  }
+
+  @Override
+  public int addTrack(MediaFormat format, MediaEncoder encoder) {
+    if (isStarted || isStopped || isReleased) {
+      Log.e(TAG, "Cannot add a track once started");
+      return INVALID_TRACK_INDEX;
+    }
+    if (trackCount == MAX_TRACKS) {
+      Log.e(TAG, "Too many tracks");
+      return INVALID_TRACK_INDEX;
+    }
+    int trackIndex = trackCount;
+    boolean added = false;
+    for (Child child : children) {
+      int childTrackIndex = INVALID_TRACK_INDEX;
+      // Live streams do not carry the motion metadata track.
+      if (!child.lossy || !MediaCreationUtils.isMotionFormat(format)) {
+        childTrackIndex = child.muxer.addTrack(format, child.getEncoder(trackIndex));
+      }
+      if (childTrackIndex < 0 && !child.lossy) {
+        Log.e(TAG, "Child muxer #" + child.index + " rejected track " + format);
+        return INVALID_TRACK_INDEX;
+      }
+      child.trackIndices[trackIndex] = childTrackIndex;
+      added |= childTrackIndex >= 0;
+    }
+    if (!added) {
+      return INVALID_TRACK_INDEX;
+    }
+    encoders[trackIndex] = encoder;
+    if (MediaCreationUtils.isVideoFormat(format)) {
+      videoTrackIndex = trackIndex;
+    }
+    trackCount++;
+    return trackIndex;
+  }
+
+  @Override
+  public boolean hasAllTracks() {
+    if (isReleased || isStopped) {
+      return false;
+    }
+    for (Child child : children) {
+      if (!child.muxer.hasAllTracks()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int prepare() {
+    for (Child child : children) {
+      int status = child.muxer.prepare();
+      if (status != MediaConstants.STATUS_SUCCESS) {
+        Log.e(TAG, "Failed to prepare child muxer #" + child.index);
+        return status;
+      }
+      child.muxer.setErrorCallback(child::onError);
+    }
+    return MediaConstants.STATUS_SUCCESS;
+  }
+
+  @Override
+  public boolean start() {
+    if (isReleased || isStopped) {
+      Log.e(TAG, "Cannot start once stopped");
+      return false;
+    }
+    if (isStarted) {
+      return true;
+    }
+    for (Child child : children) {
+      if (!child.muxer.start()) {
+        Log.e(TAG, "Failed to start child muxer #" + child.index);
+        return false;
+      }
+    }
+    isStarted = true;
+    return true;
+  }
+
+  @Override
+  public boolean stop() {
+    if (isReleased || !isStarted) {
+      Log.e(TAG, "Muxer not started");
+      return false;
+    }
+    if (isStopped) {
+      return true;
+    }
+    isStopped = true;
+    // Each child stops after writing its queued samples.
+    boolean success = true;
+    for (Child child : children) {
+      success &= runOnChild(child, child.muxer::stop) || child.lossy;
+    }
+    return success;
+  }
+
+  @Override
+  public boolean release() {
+    if (isReleased) {
+      return true;
+    }
+    boolean success = true;
+    for (Child child : children) {
+      success &= runOnChild(child, child.muxer::release);
+      child.executor.shutdown();
+    }
+    isReleased = true;
+    return success;
+  }
+
+  @Override
+  public boolean isStarted() {
+    return isStarted && !isStopped && !isReleased;
+  }
+
+  @Override
+  public boolean writeSampleDataAsync(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+    if (!isStarted()) {
+      Log.e(TAG, "Muxer not started");
+      return false;
+    }
+    if (trackIndex < 0 || trackIndex >= trackCount) {
+      Log.e(TAG, "Invalid track " + trackIndex);
+      return false;
+    }
+
+    // Decide which children get the sample before sharing the buffer.
+    boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    boolean isVideo = trackIndex == videoTrackIndex;
+    int holders = 0;
+    for (Child child : children) {
+      if (child.trackIndices[trackIndex] >= 0
+          && child.shouldWrite(isVideo, isKeyFrame || isConfig, isConfig)) {
+        holders |= 1 << child.index;
+      }
+    }
+    if (holders == 0) {
+      encoders[trackIndex].releaseOutputBuffer(bufferIndex);
+      return true;
+    }
+
+    BufferInfo info = new BufferInfo();
+    info.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+    SharedBuffer sharedBuffer =
+        new SharedBuffer(
+            trackIndex, bufferIndex, encoders[trackIndex].getOutputBuffer(bufferIndex), holders);
+    putSharedBuffer(sharedBuffer);
+    for (Child child : children) {
+      if ((holders & (1 << child.index)) != 0) {
+        child.write(sharedBuffer, info);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void cleanupPartialResults() {
+    for (Child child : children) {
+      runOnChild(
+          child,
+          () -> {
+            child.muxer.cleanupPartialResults();
+            return true;
+          });
+    }
+  }
+
+  @Override
+  public long getBytesWritten() {
+    long bytesWritten = 0;
+    for (Child child : children) {
+      bytesWritten = Math.max(bytesWritten, child.muxer.getBytesWritten());
+    }
+    return bytesWritten;
+  }
+
+  @Override
+  public int getOutputBufferUsed() {
+    // Rate control follows the first lossy child, i.e. the live stream.
+    Child child = getFirstLossyChild();
+    return child != null ? child.muxer.getOutputBufferUsed() : -1;
+  }
+
+  @Override
+  public Pair<Integer, Integer> getCurrentByteThroughput() {
+    Child child = getFirstLossyChild();
+    return child != null ? child.muxer.getCurrentByteThroughput() : null;
+  }
+
+  @Override
+  public void setOutputBufferLimit(int bytes) {
+    for (Child child : children) {
+      child.muxer.setOutputBufferLimit(bytes);
+    }
+  }
+
+  /** Returns the number of samples the given child dropped because it fell behind. */
+  public int getDroppedSampleCount(int childIndex) {
+    return children[childIndex].droppedSamples;
+  }
+
+  @Nullable
+  private Child getFirstLossyChild() {
+    for (Child child : children) {
+      if (child.lossy) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  // Runs a lifecycle call on the child's thread after its queued samples and waits for the result.
+  private boolean runOnChild(Child child, Callable<Boolean> call) {
+    try {
+      return child
+          .executor
+          .submit(call)
+          .get(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      Log.e(TAG, "Child muxer #" + child.index + " failed", e);
+      return false;
+    }
+  }
+
+  private synchronized void putSharedBuffer(SharedBuffer sharedBuffer) {
+    SharedBuffer[] buffers = sharedBuffers[sharedBuffer.trackIndex];
+    if (sharedBuffer.bufferIndex >= buffers.length) {
+      buffers = Arrays.copyOf(buffers, Math.max(buffers.length * 2, sharedBuffer.bufferIndex + 1));
+      sharedBuffers[sharedBuffer.trackIndex] = buffers;
+    }
+    buffers[sharedBuffer.bufferIndex] = sharedBuffer;
+  }
+
+  @Nullable
+  private synchronized SharedBuffer getSharedBuffer(int trackIndex, int bufferIndex) {
+    SharedBuffer[] buffers = sharedBuffers[trackIndex];
+    return bufferIndex < buffers.length ? buffers[bufferIndex] : null;
+  }
+
+  // Drops the child's reference to the buffer and releases it to the codec if it was the last one.
+  private void releaseSharedBuffer(int trackIndex, int bufferIndex, int childIndex) {
+    SharedBuffer sharedBuffer = getSharedBuffer(trackIndex, bufferIndex);
+    if (sharedBuffer != null) {
+      releaseSharedBuffer(sharedBuffer, childIndex);
+    }
+  }
+
+  private void releaseSharedBuffer(SharedBuffer sharedBuffer, int childIndex) {
+    if (!sharedBuffer.release(childIndex)) {
+      return;
+    }
+    synchronized (this) {
+      sharedBuffers[sharedBuffer.trackIndex][sharedBuffer.bufferIndex] = null;
+    }
+    encoders[sharedBuffer.trackIndex].releaseOutputBuffer(sharedBuffer.bufferIndex);
+  }
+
+  /** A codec output buffer that is shared by several children. */
+  private static final class SharedBuffer {
+    final int trackIndex;
+    final int bufferIndex;
+    final ByteBuffer buffer;
+    // Bit mask of the children that have not released the buffer yet.
+    final AtomicInteger holders;
+
+    SharedBuffer(int trackIndex, int bufferIndex, ByteBuffer buffer, int holders) {
+      this.trackIndex = trackIndex;
+      this.bufferIndex = bufferIndex;
+      this.buffer = buffer;
+      this.holders = new AtomicInteger(holders);
+    }
+
+    // Releases the child's reference. Returns true if it was the last reference.
+    boolean release(int childIndex) {
+      int bit = 1 << childIndex;
+      while (true) {
+        int current = holders.get();
+        if ((current & bit) == 0) {
+          return false;
+        }
+        if (holders.compareAndSet(current, current & ~bit)) {
+          return (current & ~bit) == 0;
+        }
+      }
+    }
+  }
+
+  /** A child muxer with its own thread and its view of the encoders. */
+  private final class Child {
+    final int index;
+    final MediaMux muxer;
+    final boolean lossy;
+    final int maxPendingSamples;
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Track index of the child for each track of the tee, or INVALID_TRACK_INDEX.
+    final int[] trackIndices = new int[MAX_TRACKS];
+    final AtomicInteger pendingSamples = new AtomicInteger();
+    private final List<MediaEncoder> childEncoders = new ArrayList<>();
+
+    // Whether video samples are skipped until the next key frame. Only used on the caller thread.
+    boolean waitForKeyFrame;
+    volatile boolean failed;
+    volatile int droppedSamples;
+
+    Child(int index, MediaMux muxer, boolean lossy, int maxPendingSamples) {
+      this.index = index;
+      this.muxer = muxer;
+      this.lossy = lossy;
+      this.maxPendingSamples = maxPendingSamples;
+      Arrays.fill(trackIndices, INVALID_TRACK_INDEX);
+    }
+
+    MediaEncoder getEncoder(int trackIndex) {
+      while (childEncoders.size() <= trackIndex) {
+        childEncoders.add(new ChildEncoder(this, childEncoders.size()));
+      }
+      return childEncoders.get(trackIndex);
+    }
+
+    // Decides on the caller thread whether the child gets the next sample.
+    boolean shouldWrite(boolean isVideo, boolean isKeyFrame, boolean isConfig) {
+      if (!lossy) {
+        return true;
+      }
+      if (failed) {
+        droppedSamples++;
+        return false;
+      }
+      if (isVideo && waitForKeyFrame && !isKeyFrame) {
+        droppedSamples++;
+        return false;
+      }
+      if (pendingSamples.get() >= maxPendingSamples && !isConfig) {
+        // Video can only resume on a key frame after a frame is dropped.
+        waitForKeyFrame |= isVideo;
+        droppedSamples++;
+        return false;
+      }
+      if (isVideo) {
+        waitForKeyFrame = false;
+      }
+      return true;
+    }
+
+    void write(SharedBuffer sharedBuffer, BufferInfo info) {
+      pendingSamples.incrementAndGet();
+      executor.execute(
+          () -> {
+            boolean success =
+                muxer.writeSampleDataAsync(
+                    trackIndices[sharedBuffer.trackIndex], sharedBuffer.bufferIndex, info);
+            pendingSamples.decrementAndGet();
+            if (!success) {
+              // A child may return early without releasing the buffer. Its reference is dropped on
+              // this sample's buffer only, so a release by the child is never repeated on a newer
+              // sample that reuses the codec buffer index.
+              releaseSharedBuffer(sharedBuffer, index);
+              onError(MediaConstants.STATUS_ERROR);
+            }
+          });
+    }
+
+    void onError(int errorCode) {
+      if (lossy) {
+        if (!failed) {
+          Log.e(TAG, "Child muxer #" + index + " failed with " + errorCode + ", dropping it");
+        }
+        failed = true;
+        return;
+      }
+      ErrorCallback callback = errorCallback;
+      if (callback != null) {
+        callback.onError(errorCode);
+      }
+    }
+  }
+
+  /**
+   * The encoder given to a child muxer. The child gets its own view of the shared buffer and its
+   * release only drops its reference.
+   */
+  private final class ChildEncoder implements MediaEncoder {
+    private final Child child;
+    private final int trackIndex;
+
+    ChildEncoder(Child child, int trackIndex) {
+      this.child = child;
+      this.trackIndex = trackIndex;
+    }
+
+    @Override
+    public String getName() {
+      return encoders[trackIndex] != null ? encoders[trackIndex].getName() : TAG;
+    }
+
+    @Override
+    public boolean start() {
+      return false;
+    }
+
+    @Override
+    public void setErrorCallback(@Nullable MediaEncoder.ErrorCallback errorCallback) {}
+
+    @Override
+    public boolean stop() {
+      return false;
+    }
+
+    @Override
+    public boolean isActive() {
+      return isStarted();
+    }
+
+    @Override
+    public boolean signalEndOfStream(EndOfStreamCallback callback) {
+      return false;
+    }
+
+    @Override
+    public boolean release() {
+      return false;
+    }
+
+    @Override
+    public int getTargetBitrate() {
+      return encoders[trackIndex] != null ? encoders[trackIndex].getTargetBitrate() : 0;
+    }
+
+    @Override
+    public void setTargetBitrate(int bitrate) {}
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+      SharedBuffer sharedBuffer = getSharedBuffer(trackIndex, index);
+      return sharedBuffer != null ? sharedBuffer.buffer.duplicate() : null;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+      releaseSharedBuffer(trackIndex, index, child.index);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.photo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+
+/**
+ * Builds a JPEG APP1 segment with EXIF data in memory, so that it can be written together with the
+ * image. Tags are written big endian, sorted by tag in their IFD, in IFD0 and the EXIF sub-IFD.
+ */
+final class ExifSegmentBuilder {
+  static final int IFD_0 = 0;
+  static final int IFD_EXIF = 1;
+
+  // IFD0 tags.
+  static final int TAG_IMAGE_WIDTH = 0x0100;
+  static final int TAG_IMAGE_LENGTH = 0x0101;
+  static final int TAG_MAKE = 0x010F;
+  static final int TAG_MODEL = 0x0110;
+  static final int TAG_ORIENTATION = 0x0112;
+  static final int TAG_DATETIME = 0x0132;
+  static final int TAG_EXIF_IFD_POINTER = 0x8769;
+  // EXIF sub-IFD tags.
+  static final int TAG_EXPOSURE_TIME = 0x829A;
+  static final int TAG_F_NUMBER = 0x829D;
+  static final int TAG_ISO_SPEED_RATINGS = 0x8827;
+  static final int TAG_EXIF_VERSION = 0x9000;
+  static final int TAG_DATETIME_ORIGINAL = 0x9003;
+  static final int TAG_DATETIME_DIGITIZED = 0x9004;
+  static final int TAG_APERTURE_VALUE = 0x9202;
+  static final int TAG_FLASH = 0x9209;
+  static final int TAG_FOCAL_LENGTH = 0x920A;
+  static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+  static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+  static final int TAG_EXPOSURE_MODE = 0xA402;
+  static final int TAG_WHITE_BALANCE = 0xA403;
+
+  // Value types.
+  static final int TYPE_ASCII = 2;
+  static final int TYPE_SHORT = 3;
+  static final int TYPE_LONG = 4;
+  static final int TYPE_RATIONAL = 5;
+  static final int TYPE_UNDEFINED = 7;
+
+  static final int APP1_MARKER = 0xFFE1;
+  static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+  private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+  // Tag, type, count and value or offset.
+  private static final int ENTRY_SIZE = 12;
+
+  /** An IFD entry, with its value in the byte order of the segment. */
+  private static class Entry {
+    public final int type;
+    public final int count;
+    public final byte[] value;
+
+    Entry(int type, int count, byte[] value) {
+      this.type = type;
+      this.count = count;
+      this.value = value;
+    }
+  }
+
+  private final TreeMap<Integer, Entry> ifd0Entries = new TreeMap<>();
+  private final TreeMap<Integer, Entry> exifEntries = new TreeMap<>();
+
+  /** Sets a NUL terminated ASCII value. */
+  ExifSegmentBuilder putAscii(int ifd, int tag, String value) {
+    byte[] bytes = (value + '\0').getBytes(StandardCharsets.US_ASCII);
+    getIfd(ifd).put(tag, new Entry(TYPE_ASCII, bytes.length, bytes));
+    return this;
+  }
+
+  /** Sets an unsigned 16 bit value. */
+  ExifSegmentBuilder putShort(int ifd, int tag, int value) {
+    getIfd(ifd).put(tag, new Entry(TYPE_SHORT, 1, allocate(2).putShort((short) value).array()));
+    return this;
+  }
+
+  /** Sets an unsigned 32 bit value. */
+  ExifSegmentBuilder putLong(int ifd, int tag, long value) {
+    getIfd(ifd).put(tag, new Entry(TYPE_LONG, 1, allocate(4).putInt((int) value).array()));
+    return this;
+  }
+
+  /** Sets an unsigned rational value. */
+  ExifSegmentBuilder putRational(int ifd, int tag, long numerator, long denominator) {
+    byte[] value = allocate(8).putInt((int) numerator).putInt((int) denominator).array();
+    getIfd(ifd).put(tag, new Entry(TYPE_RATIONAL, 1, value));
+    return this;
+  }
+
+  /** Sets a value of undefined bytes. */
+  ExifSegmentBuilder putUndefined(int ifd, int tag, byte[] value) {
+    getIfd(ifd).put(tag, new Entry(TYPE_UNDEFINED, value.length, value.clone()));
+    return this;
+  }
+
+  /**
+   * Returns the APP1 segment, starting with its marker.
+   *
+   * @throws IllegalStateException if the values do not fit in a segment
+   */
+  byte[] build() {
+    TreeMap<Integer, Entry> ifd0 = new TreeMap<>(ifd0Entries);
+    TreeMap<Integer, Entry> exifIfd = exifEntries;
+    // Offsets are from the start of the TIFF header, which is followed by IFD0 and then the EXIF
+    // sub-IFD.
+    int ifd0Offset = 8;
+    int exifIfdOffset = ifd0Offset + getIfdSize(ifd0) + (exifIfd.isEmpty() ? 0 : ENTRY_SIZE);
+    if (!exifIfd.isEmpty()) {
+      byte[] offset = allocate(4).putInt(exifIfdOffset).array();
+      ifd0.put(TAG_EXIF_IFD_POINTER, new Entry(TYPE_LONG, 1, offset));
+    }
+    int tiffSize = exifIfdOffset + (exifIfd.isEmpty() ? 0 : getIfdSize(exifIfd));
+    int segmentLength = 2 + EXIF_HEADER.length + tiffSize;
+    if (segmentLength > MAX_SEGMENT_LENGTH) {
+      throw new IllegalStateException("EXIF data is too large: " + segmentLength);
+    }
+
+    ByteBuffer segment = allocate(2 + segmentLength);
+    segment.putShort((short) APP1_MARKER);
+    segment.putShort((short) segmentLength);
+    segment.put(EXIF_HEADER);
+    ByteBuffer tiff = segment.slice().order(ByteOrder.BIG_ENDIAN);
+    tiff.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0Offset);
+    writeIfd(tiff, ifd0);
+    if (!exifIfd.isEmpty()) {
+      writeIfd(tiff, exifIfd);
+    }
+    return segment.array();
+  }
+
+  private TreeMap<Integer, Entry> getIfd(int ifd) {
+    return ifd == IFD_EXIF ? exifEntries : ifd0Entries;
+  }
+
+  // Writes the entries, with no next IFD, followed by the values that do not fit in an entry.
+  private static void writeIfd(ByteBuffer tiff, TreeMap<Integer, Entry> ifd) {
+    int dataOffset = tiff.position() + 2 + ifd.size() * ENTRY_SIZE + 4;
+    tiff.putShort((short) ifd.size());
+    for (int tag : ifd.keySet()) {
+      Entry entry = ifd.get(tag);
+      tiff.putShort((short) tag).putShort((short) entry.type).putInt(entry.count);
+      if (entry.value.length <= 4) {
+        tiff.put(entry.value);
+        tiff.position(tiff.position() + 4 - entry.value.length);
+      } else {
+        tiff.putInt(dataOffset);
+        dataOffset += getPaddedSize(entry);
+      }
+    }
+    tiff.putInt(0);
+    for (Entry entry : ifd.values()) {
+      if (entry.value.length > 4) {
+        tiff.put(entry.value);
+        tiff.position(tiff.position() + getPaddedSize(entry) - entry.value.length);
+      }
+    }
+  }
+
+  private static int getIfdSize(TreeMap<Integer, Entry> ifd) {
+    int size = 2 + ifd.size() * ENTRY_SIZE + 4;
+    for (Entry entry : ifd.values()) {
+      if (entry.value.length > 4) {
+        size += getPaddedSize(entry);
+      }
+    }
+    return size;
+  }
+
+  // Values start on word boundaries.
+  private static int getPaddedSize(Entry entry) {
+    return (entry.value.length + 1) & ~1;
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+  }
+}
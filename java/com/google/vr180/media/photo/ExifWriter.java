@@ -16,116 +16,184 @@ package com.google.vr180.media.photo;
 
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
-import android.media.ExifInterface;
 import android.os.Build;
-import android.util.Rational;
+import android.support.annotation.Nullable;
 import com.google.vr180.common.logging.Log;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Locale;
 
-/** A class that handles writing exif data to photos. */
+/**
+ * A class that creates the exif data of photos from their capture results, as a JPEG APP1 segment
+ * which is written together with the photo.
+ */
 public class ExifWriter {
 
   private static final String TAG = "ExifWriter";
   private static final int RATIONAL_PRECISION = 1000;
+  // Capture results kept for photos which have not been processed yet.
+  private static final int CAPTURE_RESULT_HISTORY_CAPACITY = 8;
+  // The capture result of a photo usually arrives before its image, but may arrive shortly after.
+  private static final long CAPTURE_RESULT_TIMEOUT_MS = 500;
+  private static final byte[] EXIF_VERSION = {'0', '2', '3', '0'};
+  private static final int ORIENTATION_NORMAL = 1;
+  private static final int EXPOSURE_MODE_AUTO = 0;
+  private static final int EXPOSURE_MODE_MANUAL = 1;
+  private static final int WHITE_BALANCE_AUTO = 0;
+  private static final int WHITE_BALANCE_MANUAL = 1;
+  private static final int FLASH_FIRED = 1;
 
-  /** A simple class for storing photo metadata */
-  private static class PhotoMetadata {
-    public final String path;
-    public final int width;
-    public final int height;
-    public final long timestamp;
-
-    PhotoMetadata(String path, int width, int height, long timestamp) {
-      this.path = path;
-      this.width = width;
-      this.height = height;
-      this.timestamp = timestamp;
-    }
-  }
-
-  private final ConcurrentSkipListMap<Long, CaptureResult> captureResultMap;
-  private final ConcurrentSkipListMap<Long, PhotoMetadata> photoMetadataMap;
   private final CameraCharacteristics cameraCharacteristics;
+  // Sensor timestamps and capture results of recent captures, guarded by captureResults.
+  private final long[] captureTimestamps = new long[CAPTURE_RESULT_HISTORY_CAPACITY];
+  private final CaptureResult[] captureResults = new CaptureResult[CAPTURE_RESULT_HISTORY_CAPACITY];
+  private int captureResultCount;
 
   public ExifWriter(CameraCharacteristics cameraCharacteristics) {
     this.cameraCharacteristics = cameraCharacteristics;
-    captureResultMap = new ConcurrentSkipListMap<>();
-    photoMetadataMap = new ConcurrentSkipListMap<>();
   }
 
-  public synchronized void onCaptureResult(CaptureResult result) {
-    long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
-    PhotoMetadata metadata = photoMetadataMap.remove(timestamp);
-    if (metadata == null) {
-      captureResultMap.put(timestamp, result);
-    } else {
-      saveExifData(result, metadata);
+  public void onCaptureResult(CaptureResult result) {
+    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+    if (timestamp == null) {
+      return;
+    }
+    synchronized (captureResults) {
+      int index = captureResultCount++ % CAPTURE_RESULT_HISTORY_CAPACITY;
+      captureTimestamps[index] = timestamp;
+      captureResults[index] = result;
+      captureResults.notifyAll();
     }
   }
 
-  public synchronized void onPhotoResult(String path, int width, int height, long timestamp) {
-    PhotoMetadata metadata = new PhotoMetadata(path, width, height, timestamp);
-    CaptureResult result = captureResultMap.remove(timestamp);
+  /**
+   * Returns an APP1 segment with the exif data of a photo. If the capture result of the photo does
+   * not arrive in time, only the device, time and size of the photo are included.
+   *
+   * @param width the width of a single eye of the photo
+   * @param height the height of a single eye of the photo
+   * @param timestamp the sensor timestamp of the photo
+   */
+  public byte[] createExifSegment(int width, int height, long timestamp) {
+    CaptureResult result = null;
+    try {
+      result = waitForCaptureResult(timestamp);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     if (result == null) {
-      photoMetadataMap.put(timestamp, metadata);
-    } else {
-      saveExifData(result, metadata);
+      Log.e(TAG, "No capture result for photo at " + timestamp);
     }
+    float[] apertures =
+        cameraCharacteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_APERTURES);
+    float aperture = apertures == null || apertures.length == 0 ? 0 : apertures[0];
+    return createExifSegment(result, aperture, width, height, new Date());
   }
 
-  private Rational toRational(float value, int precision) {
-    return new Rational((int) (value * precision), precision);
+  // Visible for testing.
+  static byte[] createExifSegment(
+      @Nullable CaptureResult result, float aperture, int width, int height, Date date) {
+    String datetime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(date);
+    ExifSegmentBuilder exif =
+        new ExifSegmentBuilder()
+            .putLong(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_IMAGE_WIDTH, width)
+            .putLong(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_IMAGE_LENGTH, height)
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_MAKE, Build.MANUFACTURER)
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_MODEL, Build.MODEL)
+            .putShort(
+                ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_ORIENTATION, ORIENTATION_NORMAL)
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_DATETIME, datetime)
+            .putUndefined(
+                ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_EXIF_VERSION, EXIF_VERSION)
+            .putAscii(
+                ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_DATETIME_ORIGINAL, datetime)
+            .putAscii(
+                ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_DATETIME_DIGITIZED, datetime)
+            .putLong(ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_PIXEL_X_DIMENSION, width)
+            .putLong(
+                ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_PIXEL_Y_DIMENSION, height);
+    if (aperture > 0) {
+      exif.putRational(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_F_NUMBER,
+          Math.round(aperture * RATIONAL_PRECISION),
+          RATIONAL_PRECISION);
+      // The APEX aperture value is 2 * log2(f-number).
+      exif.putRational(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_APERTURE_VALUE,
+          Math.round(2 * Math.log(aperture) / Math.log(2) * RATIONAL_PRECISION),
+          RATIONAL_PRECISION);
+    }
+    if (result == null) {
+      return exif.build();
+    }
+
+    Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+    if (exposureTime != null) {
+      // In microseconds, so that long exposures fit.
+      exif.putRational(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_EXPOSURE_TIME,
+          exposureTime / 1000,
+          1000000);
+    }
+    Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+    if (sensitivity != null) {
+      exif.putShort(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_ISO_SPEED_RATINGS,
+          Math.min(sensitivity, 0xFFFF));
+    }
+    Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+    if (focalLength != null) {
+      exif.putRational(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_FOCAL_LENGTH,
+          Math.round(focalLength * RATIONAL_PRECISION),
+          RATIONAL_PRECISION);
+    }
+    Integer flashState = result.get(CaptureResult.FLASH_STATE);
+    if (flashState != null) {
+      exif.putShort(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_FLASH,
+          flashState == CaptureResult.FLASH_STATE_FIRED ? FLASH_FIRED : 0);
+    }
+    Integer aeMode = result.get(CaptureResult.CONTROL_AE_MODE);
+    if (aeMode != null) {
+      exif.putShort(
+          ExifSegmentBuilder.IFD_EXIF,
+          ExifSegmentBuilder.TAG_EXPOSURE_MODE,
+          aeMode == CaptureResult.CONTROL_AE_MODE_OFF ? EXPOSURE_MODE_MANUAL : EXPOSURE_MODE_AUTO);
+    }
+    Integer awbMode = result.get(CaptureResult.CONTROL_AWB_MODE);
+    if (awbMode != null) {
+      int whiteBalance =
+          awbMode == CaptureResult.CONTROL_AWB_MODE_OFF ? WHITE_BALANCE_MANUAL : WHITE_BALANCE_AUTO;
+      exif.putShort(
+          ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_WHITE_BALANCE, whiteBalance);
+    }
+    return exif.build();
   }
 
-  private void saveExifData(CaptureResult result, PhotoMetadata metadata) {
-    // Clear old requests.
-    captureResultMap.headMap(metadata.timestamp).clear();
-    photoMetadataMap.headMap(metadata.timestamp).clear();
-    try {
-      ExifInterface exif = new ExifInterface(metadata.path);
-      exif.setAttribute(ExifInterface.TAG_MAKE, Build.MANUFACTURER);
-      exif.setAttribute(ExifInterface.TAG_MODEL, Build.MODEL);
-      Date now = new Date();
-      String datetime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss").format(now);
-      exif.setAttribute(ExifInterface.TAG_DATETIME, datetime);
-      exif.setAttribute(ExifInterface.TAG_DATETIME_DIGITIZED, datetime);
-      exif.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, datetime);
-      String width = String.valueOf(metadata.width);
-      exif.setAttribute(ExifInterface.TAG_PIXEL_X_DIMENSION, width);
-      String height = String.valueOf(metadata.height);
-      exif.setAttribute(ExifInterface.TAG_PIXEL_Y_DIMENSION, height);
-      exif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, width);
-      exif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, height);
-      exif.setAttribute(
-          ExifInterface.TAG_FLASH, String.valueOf(result.get(CaptureResult.FLASH_MODE)));
-      float aperture =
-          cameraCharacteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_APERTURES)[0];
-      String rationalApature = toRational(aperture, RATIONAL_PRECISION).toString();
-      exif.setAttribute(ExifInterface.TAG_F_NUMBER, String.valueOf(aperture));
-      exif.setAttribute(ExifInterface.TAG_APERTURE_VALUE, rationalApature);
-      exif.setAttribute(
-          ExifInterface.TAG_FOCAL_LENGTH,
-          toRational(result.get(CaptureResult.LENS_FOCAL_LENGTH), RATIONAL_PRECISION).toString());
-      exif.setAttribute(
-          ExifInterface.TAG_EXPOSURE_TIME,
-          String.valueOf(result.get(CaptureResult.SENSOR_EXPOSURE_TIME).doubleValue() / 1e9));
-      int exposureMode =
-          result.get(CaptureResult.CONTROL_AE_MODE) == CaptureResult.CONTROL_AE_MODE_OFF ? 1 : 0;
-      exif.setAttribute(ExifInterface.TAG_EXPOSURE_MODE, String.valueOf(exposureMode));
-      exif.setAttribute(
-          ExifInterface.TAG_ISO_SPEED_RATINGS,
-          String.valueOf(result.get(CaptureResult.SENSOR_SENSITIVITY)));
-      int whiteBalanceMode =
-          result.get(CaptureResult.CONTROL_AWB_MODE) == CaptureResult.CONTROL_AWB_MODE_OFF
-              ? ExifInterface.WHITEBALANCE_MANUAL
-              : ExifInterface.WHITEBALANCE_AUTO;
-      exif.setAttribute(ExifInterface.TAG_WHITE_BALANCE, String.valueOf(whiteBalanceMode));
-      exif.saveAttributes();
-    } catch (IOException e) {
-      Log.e(TAG, "Exception saving exif data: ", e);
+  @Nullable
+  private CaptureResult waitForCaptureResult(long timestamp) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + CAPTURE_RESULT_TIMEOUT_MS;
+    synchronized (captureResults) {
+      while (true) {
+        int count = Math.min(captureResultCount, CAPTURE_RESULT_HISTORY_CAPACITY);
+        for (int i = 0; i < count; i++) {
+          if (captureTimestamps[i] == timestamp) {
+            return captureResults[i];
+          }
+        }
+        long remainingMs = deadlineMs - System.currentTimeMillis();
+        if (remainingMs <= 0) {
+          return null;
+        }
+        captureResults.wait(remainingMs);
+      }
     }
   }
 }
@@ -14,6 +14,9 @@
 
 package com.google.vr180.media.photo;
 
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
 /** A java wrapper for JNI interface for creating a vr180 formatted photo. */
 public class PhotoWriter {
   static {
@@ -24,7 +27,8 @@ public class PhotoWriter {
    * Saves a VR180 formatted jpeg to 'outputPath' by compressing left and right eye images
    * separately and storing the right eye and pano data in the xmp extended section.
    *
-   * @param rgba - an array of bytes containing a stereo (left/right or top/bottom) image
+   * @param rgba - a direct buffer containing a stereo (left/right or top/bottom) image, which is
+   *     read in place from its start
    * @param width - width of the stereo image in pixels
    * @param height - height of the stereo image in pixels
    * @param stride - number of bytes between rows of the stereo image
@@ -32,10 +36,12 @@ public class PhotoWriter {
    * @param fovY - the vertical field of view of a single eye from the stereo image
    * @param angleAxis - the angle axis orientation of the camera when the photo was taken
    * @param stereoMode - the stereo mode of the image
+   * @param exifSegment - a JPEG APP1 segment with exif data, which is written right after the start
+   *     of the image, or null for none
    * @param outputPath - the file path to save the formatted image to
    */
   public static native boolean nativeWriteVRPhotoToFile(
-      byte[] rgba,
+      ByteBuffer rgba,
       int width,
       int height,
       int stride,
@@ -43,5 +49,6 @@ public class PhotoWriter {
       float fovY,
       float[] angleAxis,
       int stereoMode,
+      @Nullable byte[] exifSegment,
       String outputPath);
 }
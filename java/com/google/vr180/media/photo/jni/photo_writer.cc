@@ -25,13 +25,9 @@
 #include "cpp/jni/jni_utils.h"
 #include "cpp/jni/macros.h"
 #include "cpp/photo/jpeg_encoder.h"
+#include "cpp/photo/vr_photo.h"
 #include "cpp/video/stereo_mode.h"
-#include "xmpmeta/gimage.h"
-#include "xmpmeta/gpano.h"
 #include "xmpmeta/pano_meta_data.h"
-#include "xmpmeta/photo_sphere_writer.h"
-#include "xmpmeta/vr_photo_writer.h"
-#include "xmpmeta/xmp_writer.h"
 
 #undef JNI_PACKAGE_NAME
 #define JNI_PACKAGE_NAME com_google_vr180_media_photo
@@ -63,34 +59,6 @@ xmpmeta::PanoMetaData GetPanoMetaData(int width, int height, double fov_x,
   return meta;
 }
 
-// Write left image to jpeg and right image to xmp metadata.
-bool WriteVRPhoto(const std::string& left, const std::string& right,
-                  const xmpmeta::PanoMetaData& metadata,
-                  const std::string& output_path) {
-  const std::unique_ptr<xmpmeta::GPano> gpano =
-      xmpmeta::GPano::CreateFromData(metadata);
-  const std::unique_ptr<xmpmeta::XmpData> xmp_data =
-      xmpmeta::CreateXmpData(/*create_extended=*/true);
-
-  if (right.empty()) {
-    // For mono photos, only package the GPano into the XMP metadata.
-    if (!xmpmeta::WritePhotoSphereMetaToXmp(*gpano, xmp_data.get())) {
-      return false;
-    }
-  } else {
-    // Package right eye JPEG and GPano into the XMP metadata.
-    const std::unique_ptr<xmpmeta::GImage> gimage =
-        xmpmeta::GImage::CreateFromData(right, "image/jpeg");
-    if (!xmpmeta::WriteVrPhotoMetaToXmp(*gimage, *gpano, nullptr,
-                                        xmp_data.get())) {
-      return false;
-    }
-  }
-
-  // Write jpeg with xmp data.
-  return xmpmeta::WriteLeftEyeAndXmpMeta(left, output_path, *xmp_data);
-}
-
 // Gets the euler angles about the world axes y,x,z.
 Eigen::Vector3d GetEulerAngles(const Eigen::Matrix3d& coeff) {
   Eigen::Vector3d result;
@@ -115,20 +83,36 @@ Eigen::Vector3d GetEulerAngles(const std::array<double, 3>& angle_axis) {
 
 extern "C" {
 JNIEXPORT bool JNICALL JNI_METHOD(nativeWriteVRPhotoToFile)(
-    JNIEnv* env, jobject obj, jbyteArray rgba_buffer, jint stereo_width,
+    JNIEnv* env, jobject obj, jobject rgba_buffer, jint stereo_width,
     jint stereo_height, jint stride, jfloat fov_x, jfloat fov_y,
-    jfloatArray angle_axis, jint stereo_mode, jstring joutput_path) {
-  uint8* rgba_data =
-      reinterpret_cast<uint8*>(env->GetByteArrayElements(rgba_buffer, nullptr));
+    jfloatArray angle_axis, jint stereo_mode, jbyteArray exif_segment,
+    jstring joutput_path) {
+  // The pixels are read in place from the direct buffer, without copying.
+  const uint8* rgba_data =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(rgba_buffer));
+  if (rgba_data == nullptr || env->GetDirectBufferCapacity(rgba_buffer) <
+                                  static_cast<jlong>(stride) * stereo_height) {
+    LOG(ERROR) << "Invalid photo buffer";
+    return false;
+  }
   const std::string output_path = vr180::JavaStringToCppString(env, joutput_path);
+  std::string exif;
+  if (exif_segment != nullptr) {
+    const jsize exif_size = env->GetArrayLength(exif_segment);
+    exif.resize(exif_size);
+    env->GetByteArrayRegion(exif_segment, 0, exif_size,
+                            reinterpret_cast<jbyte*>(&exif[0]));
+  }
 
-  std::string left, right;
+  // The photo is created in memory, so that the file is written once.
+  std::string left, right, photo;
   bool success = false;
   if (fov_x == 0 || fov_y == 0) {
     // If we don't have a valid crop just save the raw image.
     success =
         vr180::EncodeRGBAJpeg(rgba_data, 0, 0, stereo_width, stereo_height,
                               stride, kJpegQuality, &left) &&
+        (exif.empty() || vr180::InsertExifSegment(exif, &left)) &&
         vr180::SetFileContents(output_path, left);
   } else {
     // Get the photo metadata.
@@ -157,10 +141,9 @@ JNIEXPORT bool JNICALL JNI_METHOD(nativeWriteVRPhotoToFile)(
                                stereo_height - height, width, height, stride,
                                kJpegQuality, &right)) &&
         // Write the image(s) and metadata to file.
-        WriteVRPhoto(left, right, metadata, output_path);
+        vr180::CreateVRPhoto(left, right, metadata, exif, &photo) &&
+        vr180::SetFileContents(output_path, photo);
   }
-  env->ReleaseByteArrayElements(rgba_buffer,
-                                reinterpret_cast<jbyte*>(rgba_data), JNI_ABORT);
   return success;
 }
 }
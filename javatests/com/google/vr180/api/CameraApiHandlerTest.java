@@ -512,6 +512,21 @@ public final class CameraApiHandlerTest {
         .isEqualTo(response.getThumbnail(0).getData().size());
   }
 
+  @Test
+  public void testGetFileChecksumsOfUnknownFile() throws Exception {
+    CameraApiRequest request =
+        CameraApiRequest.newBuilder()
+            .setType(CameraApiRequest.RequestType.GET_FILE_CHECKSUMS)
+            .setHeader(createRequestHeader())
+            .setFileChecksumsRequest(
+                CameraApiRequest.FileChecksumsRequest.newBuilder().setFilename("missing.mp4"))
+            .build();
+    CameraApiResponse response = apiHandler.handleRequest(request);
+    assertThat(response.getResponseStatus().getStatusCode())
+        .isEqualTo(CameraApiResponse.ResponseStatus.StatusCode.INVALID_REQUEST);
+    assertThat(response.getFileChecksumCount()).isEqualTo(0);
+  }
+
   @Test
   public void testGetPartialThumbnail() throws Exception {
     BitmapIO.saveBitmap(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 80, "testfile.jpg");
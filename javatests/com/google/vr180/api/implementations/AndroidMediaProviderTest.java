@@ -17,6 +17,9 @@ package com.google.vr180.api.implementations;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyListOf;
+import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
@@ -27,6 +30,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.provider.MediaStore.Video;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
 import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.CameraApi.Media;
@@ -35,7 +39,9 @@ import com.google.vr180.api.camerainterfaces.StatusNotifier;
 import com.google.vr180.api.camerainterfaces.StorageStatusProvider;
 import com.google.vr180.testhelpers.TestCameraCalibration;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -85,8 +91,21 @@ public final class AndroidMediaProviderTest {
 
   @Test
   public void testGetMediaCount() throws Exception {
-    when(mockCursor.moveToFirst()).thenReturn(true);
-    when(mockCursor.getInt(eq(0))).thenReturn(10);
+    // Return 10 items.
+    when(mockCursor.moveToNext())
+        .thenReturn(true, true, true, true, true, true, true, true, true, true, false);
+    when(mockCursor.getString(eq(0)))
+        .thenReturn(
+            BASE_PATH + "/test0.jpg",
+            BASE_PATH + "/test1.jpg",
+            BASE_PATH + "/test2.jpg",
+            BASE_PATH + "/test3.jpg",
+            BASE_PATH + "/test4.jpg",
+            BASE_PATH + "/test5.jpg",
+            BASE_PATH + "/test6.jpg",
+            BASE_PATH + "/test7.jpg",
+            BASE_PATH + "/test8.jpg",
+            BASE_PATH + "/test9.jpg");
     assertThat(mediaProvider.getMediaCount()).isEqualTo(10);
   }
 
@@ -102,18 +121,28 @@ public final class AndroidMediaProviderTest {
     when(mockCursor.getColumnIndex(eq(Video.VideoColumns.WIDTH))).thenReturn(4);
     when(mockCursor.getColumnIndex(eq(Video.VideoColumns.HEIGHT))).thenReturn(5);
 
-    when(mockCursor.getString(eq(0))).thenReturn(BASE_PATH + "/test.jpg");
+    when(mockCursor.getString(eq(0)))
+        .thenReturn(BASE_PATH + "/test.jpg", BASE_PATH + "/test2.jpg");
     when(mockCursor.getLong(eq(1))).thenReturn(1000L);
     when(mockCursor.getLong(eq(2))).thenReturn(1001L);
     when(mockCursor.getLong(eq(3))).thenReturn(1002L);
     when(mockCursor.getLong(eq(4))).thenReturn(1003L);
     when(mockCursor.getLong(eq(5))).thenReturn(1004L);
 
-    when(mockChecksumProvider.getFileChecksum(any()))
-        .thenReturn(
+    List<FileChecksum> checksums =
+        ImmutableList.of(
             FileChecksum.newBuilder()
                 .setChecksum(ByteString.copyFrom(new byte[] {1, 2, 3}))
                 .build());
+    when(mockChecksumProvider.getFileChecksums(anyListOf(String.class), anyInt()))
+        .thenAnswer(
+            invocation -> {
+              Map<String, List<FileChecksum>> result = new HashMap<>();
+              for (Object path : (List<?>) invocation.getArguments()[0]) {
+                result.put((String) path, checksums);
+              }
+              return result;
+            });
 
     List<Media> media = mediaProvider.getMedia(0, 10);
     assertThat(media.size()).isEqualTo(2);
@@ -124,7 +153,9 @@ public final class AndroidMediaProviderTest {
     assertThat(media.get(0).getDuration()).isEqualTo(1002L);
     assertThat(media.get(0).getWidth()).isEqualTo(1003L);
     assertThat(media.get(0).getHeight()).isEqualTo(1004L);
-    assertThat(media.get(1)).isEqualTo(media.get(0));
+    assertThat(media.get(0).getChecksumCount()).isEqualTo(1);
+    assertThat(media.get(1))
+        .isEqualTo(media.get(0).toBuilder().setFilename(BASE_PATH + "/test2.jpg").build());
   }
 
   @Test
@@ -147,11 +178,12 @@ public final class AndroidMediaProviderTest {
     when(mockCursor.getLong(eq(5))).thenReturn(1004L);
     when(mockCursor.getLong(eq(6))).thenReturn(1234L);
 
-    when(mockChecksumProvider.getFileChecksum(any()))
+    when(mockChecksumProvider.getFileChecksums(anyString(), anyInt()))
         .thenReturn(
-            FileChecksum.newBuilder()
-                .setChecksum(ByteString.copyFrom(new byte[] {1, 2, 3}))
-                .build());
+            ImmutableList.of(
+                FileChecksum.newBuilder()
+                    .setChecksum(ByteString.copyFrom(new byte[] {1, 2, 3}))
+                    .build()));
 
     Media media = mediaProvider.getMedia(1234L);
 
@@ -163,6 +195,43 @@ public final class AndroidMediaProviderTest {
     assertThat(media.getHeight()).isEqualTo(1004L);
   }
 
+  @Test
+  public void testBlockHashesAreOnlyServedOnRequest() throws Exception {
+    when(mockCursor.moveToNext()).thenReturn(true).thenReturn(false);
+    when(mockCursor.moveToFirst()).thenReturn(true);
+    when(mockCursor.getColumnIndex(eq(Video.VideoColumns.DATA))).thenReturn(0);
+    when(mockCursor.getColumnIndex(eq(Video.VideoColumns._ID))).thenReturn(6);
+    when(mockCursor.getString(eq(0))).thenReturn(BASE_PATH + "/test.mp4");
+    when(mockCursor.getLong(eq(6))).thenReturn(1234L);
+    FileChecksum blockList =
+        FileChecksum.newBuilder()
+            .setChecksumType(FileChecksum.ChecksumType.SHA1_BLOCK_LIST)
+            .setChecksum(ByteString.copyFrom(new byte[] {1, 2, 3}))
+            .setBlockSize(BlockListChecksum.BLOCK_SIZE)
+            .addBlockChecksum(ByteString.copyFrom(new byte[] {4, 5, 6}))
+            .addBlockChecksum(ByteString.copyFrom(new byte[] {7, 8, 9}))
+            .build();
+    when(mockChecksumProvider.getFileChecksums(anyString(), anyInt()))
+        .thenReturn(ImmutableList.of(blockList));
+
+    // Media items carry the hash over the block hashes, and the block size.
+    Media media = mediaProvider.getMedia(1234L);
+    assertThat(media.getChecksumList())
+        .containsExactly(blockList.toBuilder().clearBlockChecksum().build());
+
+    assertThat(mediaProvider.getFileChecksums(BASE_PATH + "/test.mp4"))
+        .containsExactly(blockList);
+    Mockito.verify(mockChecksumProvider)
+        .getFileChecksums(BASE_PATH + "/test.mp4", FileChecksumProvider.PRIORITY_REQUESTED);
+  }
+
+  @Test
+  public void testFileChecksumsOfUnknownFile() throws Exception {
+    when(mockCursor.moveToFirst()).thenReturn(false);
+    assertThat(mediaProvider.getFileChecksums("/data/secret.db")).isNull();
+    Mockito.verify(mockChecksumProvider, Mockito.never()).getFileChecksums(anyString(), anyInt());
+  }
+
   @Test
   public void testGetMedia_mediaStoreId_notFound() throws Exception {
     when(mockCursor.moveToNext()).thenReturn(false);
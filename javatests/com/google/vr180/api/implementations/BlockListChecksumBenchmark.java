@@ -0,0 +1,82 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.vr180.CameraApi.FileChecksum;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the time BlockListChecksum takes on one thread and on a pool. Not part of the default
+ * tests; run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BlockListChecksumBenchmark {
+  private static final int BLOCKS = 16;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService executor =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void benchmarkCompute() throws Exception {
+    byte[] data = new byte[BLOCKS * BlockListChecksum.BLOCK_SIZE];
+    new Random(0).nextBytes(data);
+    File file = folder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(data);
+    }
+    // Warm up the page cache.
+    BlockListChecksum.compute(file, MoreExecutors.directExecutor());
+
+    long startTimeMs = System.currentTimeMillis();
+    FileChecksum sequential = BlockListChecksum.compute(file, MoreExecutors.directExecutor());
+    long sequentialTimeMs = System.currentTimeMillis() - startTimeMs;
+
+    startTimeMs = System.currentTimeMillis();
+    FileChecksum parallel = BlockListChecksum.compute(file, executor);
+    long parallelTimeMs = System.currentTimeMillis() - startTimeMs;
+
+    System.out.println(
+        String.format(
+            "Block list checksum of %d MB: single thread %d ms, %d threads %d ms",
+            file.length() / (1024 * 1024),
+            sequentialTimeMs,
+            Runtime.getRuntime().availableProcessors(),
+            parallelTimeMs));
+    assertThat(parallel).isEqualTo(sequential);
+    assertThat(parallel.getBlockChecksumCount()).isEqualTo(BLOCKS);
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.vr180.CameraApi.FileChecksum;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BlockListChecksumTest {
+  private static final int TEST_BLOCK_SIZE = 4;
+  private static final String ABCD_SHA1 = "81fe8bfe87576c3ecb22426f8e57847382917acf";
+  private static final String EFGH_SHA1 = "2aed8aa9f826c21ef07d5ee15b48eea06e9c8a62";
+  private static final String IJ_SHA1 = "4cfa380a7a05ae26270f5ea888009520ab54b677";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService executor =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void testReferenceVectors() throws Exception {
+    FileChecksum empty = compute("", executor);
+    assertThat(empty.getChecksumType()).isEqualTo(FileChecksum.ChecksumType.SHA1_BLOCK_LIST);
+    assertThat(empty.getBlockSize()).isEqualTo((long) TEST_BLOCK_SIZE);
+    assertThat(empty.getBlockChecksumCount()).isEqualTo(0);
+    assertThat(toHex(empty.getChecksum())).isEqualTo("da39a3ee5e6b4b0d3255bfef95601890afd80709");
+
+    FileChecksum whole = compute("abcdefgh", executor);
+    assertThat(getBlockHashes(whole)).containsExactly(ABCD_SHA1, EFGH_SHA1).inOrder();
+    assertThat(toHex(whole.getChecksum())).isEqualTo("6bf6ccba7e9c9b09aa3addf648d52d6332f6f73d");
+
+    // The last block is shorter.
+    FileChecksum partial = compute("abcdefghij", executor);
+    assertThat(getBlockHashes(partial)).containsExactly(ABCD_SHA1, EFGH_SHA1, IJ_SHA1).inOrder();
+    assertThat(toHex(partial.getChecksum()))
+        .isEqualTo("468907c18a2e67848013bd38e84a105189c5bd4d");
+  }
+
+  @Test
+  public void testParallelHashingMatchesSequentialHashing() throws Exception {
+    int blockSize = 64 * 1024;
+    File file = createRandomFile(10 * blockSize + 123);
+    FileChecksum parallel = BlockListChecksum.compute(file, blockSize, executor);
+    FileChecksum sequential =
+        BlockListChecksum.compute(file, blockSize, MoreExecutors.directExecutor());
+    assertThat(parallel).isEqualTo(sequential);
+    assertThat(parallel.getBlockChecksumCount()).isEqualTo(11);
+  }
+
+  @Test
+  public void testVerifyBlocks() throws Exception {
+    FileChecksum checksum = compute("abcdefghij", executor);
+    assertThat(BlockListChecksum.verifyTree(checksum)).isTrue();
+    assertThat(BlockListChecksum.verifyBlock(checksum, 0, bytes("abcd"))).isTrue();
+    assertThat(BlockListChecksum.verifyBlock(checksum, 2, bytes("ij"))).isTrue();
+
+    assertThat(BlockListChecksum.verifyBlock(checksum, 1, bytes("abcd"))).isFalse();
+    assertThat(BlockListChecksum.verifyBlock(checksum, 2, bytes("ik"))).isFalse();
+    assertThat(BlockListChecksum.verifyBlock(checksum, 3, bytes("ij"))).isFalse();
+    assertThat(BlockListChecksum.verifyBlock(checksum, -1, bytes("ij"))).isFalse();
+    assertThat(BlockListChecksum.verifyBlock(checksum, 0, bytes("abcde"))).isFalse();
+
+    // Block hashes which don't match the checksum can't be trusted.
+    FileChecksum tampered =
+        checksum.toBuilder().setBlockChecksum(1, ByteString.copyFrom(new byte[20])).build();
+    assertThat(BlockListChecksum.verifyTree(tampered)).isFalse();
+  }
+
+  private FileChecksum compute(String data, ExecutorService executor) throws IOException {
+    File file = folder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(bytes(data));
+    }
+    return BlockListChecksum.compute(file, TEST_BLOCK_SIZE, executor);
+  }
+
+  private File createRandomFile(int size) throws IOException {
+    byte[] data = new byte[size];
+    new Random(0).nextBytes(data);
+    File file = folder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(data);
+    }
+    return file;
+  }
+
+  private static List<String> getBlockHashes(FileChecksum checksum) {
+    List<String> hashes = new ArrayList<>();
+    for (ByteString hash : checksum.getBlockChecksumList()) {
+      hashes.add(toHex(hash));
+    }
+    return hashes;
+  }
+
+  private static String toHex(ByteString bytes) {
+    return BaseEncoding.base16().lowerCase().encode(bytes.toByteArray());
+  }
+
+  private static byte[] bytes(String data) {
+    return data.getBytes(StandardCharsets.US_ASCII);
+  }
+}
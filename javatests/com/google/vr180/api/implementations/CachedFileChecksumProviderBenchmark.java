@@ -0,0 +1,93 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.vr180.api.camerainterfaces.FileChecksumProvider.PRIORITY_BACKGROUND;
+
+import com.google.vr180.CameraApi.FileChecksum;
+import com.google.vr180.api.camerainterfaces.FileProvider;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Prints the time CachedFileChecksumProvider takes to look up the checksums of a media page. Not
+ * part of the default tests; run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class CachedFileChecksumProviderBenchmark {
+  private static final int FILES = 2000;
+  private static final int PAGE_SIZE = 500;
+
+  private final FileProvider mockFileProvider = Mockito.mock(FileProvider.class);
+
+  @Test
+  public void benchmarkBatchLookup() throws Exception {
+    Mockito.when(mockFileProvider.getLastModified(Mockito.anyString())).thenReturn(new Date(1000));
+    byte[] sha1 = new byte[20];
+    List<String> paths = new ArrayList<>();
+    CachedFileChecksumProvider checksumProvider = createProviderWithoutComputation();
+    for (int i = 0; i < FILES; i++) {
+      String path = "VR_" + i + ".vr.mp4";
+      checksumProvider.onChecksumComputed(path, sha1);
+      paths.add(path);
+    }
+    checksumProvider.close();
+    List<String> page = paths.subList(FILES - PAGE_SIZE, FILES);
+
+    // New providers start without checksums in memory.
+    checksumProvider = createProviderWithoutComputation();
+    long startTimeMs = System.currentTimeMillis();
+    for (String path : page) {
+      checksumProvider.getFileChecksums(path, PRIORITY_BACKGROUND);
+    }
+    long singleTimeMs = System.currentTimeMillis() - startTimeMs;
+    checksumProvider.close();
+
+    checksumProvider = createProviderWithoutComputation();
+    startTimeMs = System.currentTimeMillis();
+    Map<String, List<FileChecksum>> checksums =
+        checksumProvider.getFileChecksums(page, PRIORITY_BACKGROUND);
+    long batchTimeMs = System.currentTimeMillis() - startTimeMs;
+    startTimeMs = System.currentTimeMillis();
+    checksumProvider.getFileChecksums(page, PRIORITY_BACKGROUND);
+    long memoryTimeMs = System.currentTimeMillis() - startTimeMs;
+    checksumProvider.close();
+
+    System.out.println(
+        String.format(
+            "Checksums of a %d item page: %d ms by path, %d ms batched, %d ms from memory",
+            PAGE_SIZE, singleTimeMs, batchTimeMs, memoryTimeMs));
+    assertThat(checksums).hasSize(PAGE_SIZE);
+    for (String path : page) {
+      assertThat(checksums.get(path)).hasSize(1);
+    }
+  }
+
+  // Creates a provider which only serves the cached checksums.
+  private CachedFileChecksumProvider createProviderWithoutComputation() {
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(command -> {});
+    return checksumProvider;
+  }
+}
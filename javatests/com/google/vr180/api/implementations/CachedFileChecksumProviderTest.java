@@ -15,18 +15,33 @@
 package com.google.vr180.api.implementations;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.vr180.api.camerainterfaces.FileChecksumProvider.PRIORITY_BACKGROUND;
+import static com.google.vr180.api.camerainterfaces.FileChecksumProvider.PRIORITY_REQUESTED;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Looper;
 import android.provider.MediaStore.Files;
 import android.provider.MediaStore.Video;
+import android.support.v4.content.LocalBroadcastManager;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
 import com.google.vr180.CameraApi.FileChecksum;
 import com.google.vr180.api.camerainterfaces.FileProvider;
+import com.google.vr180.common.media.MediaStoreUtil;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -112,4 +127,194 @@ public final class CachedFileChecksumProviderTest {
     Assert.assertArrayEquals(digest.digest(TEST_DATA), checksum.getChecksum().toByteArray());
     Assert.assertArrayEquals(digest.digest(TEST_DATA2), checksum2.getChecksum().toByteArray());
   }
+
+  @Test
+  public void testWriteTimeChecksumIsStored() throws Exception {
+    CachedFileChecksumProvider checksumProvider = createProviderWithoutComputation();
+    byte[] sha1 = MessageDigest.getInstance("SHA").digest(TEST_DATA);
+
+    checksumProvider.onChecksumComputed(TEST_PATH, sha1);
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application)
+        .sendBroadcast(
+            new Intent(MediaStoreUtil.ACTION_MEDIA_FINALIZED)
+                .putExtra(MediaStoreUtil.EXTRA_PATH, TEST_PATH));
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+
+    // The checksum is available on the first request, without reading the file.
+    FileChecksum checksum = checksumProvider.getFileChecksum(TEST_PATH);
+    assertThat(checksum.getChecksumType()).isEqualTo(FileChecksum.ChecksumType.SHA1);
+    Assert.assertArrayEquals(sha1, checksum.getChecksum().toByteArray());
+    Mockito.verify(mockFileProvider, Mockito.never()).openFile(Mockito.any());
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testCachedChecksumsAreNotComputed() throws Exception {
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(MoreExecutors.directExecutor());
+
+    assertThat(checksumProvider.getCachedFileChecksums(TEST_PATH)).isEmpty();
+    Mockito.verify(mockFileProvider, Mockito.never()).openFile(Mockito.any());
+
+    byte[] sha1 = MessageDigest.getInstance("SHA").digest(TEST_DATA);
+    checksumProvider.onChecksumComputed(TEST_PATH, sha1);
+    List<FileChecksum> checksums = checksumProvider.getCachedFileChecksums(TEST_PATH);
+    assertThat(checksums).hasSize(1);
+    Assert.assertArrayEquals(sha1, checksums.get(0).getChecksum().toByteArray());
+    Mockito.verify(mockFileProvider, Mockito.never()).openFile(Mockito.any());
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testChecksumInBroadcastIsIgnored() throws Exception {
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(MoreExecutors.directExecutor());
+
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application)
+        .sendBroadcast(
+            new Intent(MediaStoreUtil.ACTION_MEDIA_FINALIZED)
+                .putExtra(MediaStoreUtil.EXTRA_PATH, TEST_PATH)
+                .putExtra("sha1", new byte[20]));
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+
+    // The checksum is computed from the file.
+    FileChecksum checksum = checksumProvider.getFileChecksum(TEST_PATH);
+    MessageDigest digest = MessageDigest.getInstance("SHA");
+    Assert.assertArrayEquals(digest.digest(TEST_DATA), checksum.getChecksum().toByteArray());
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testFinalizedFileIsHashed() throws Exception {
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(MoreExecutors.directExecutor());
+
+    checksumProvider.onMediaFinalized(TEST_PATH);
+    FileChecksum checksum = checksumProvider.getFileChecksum(TEST_PATH);
+    MessageDigest digest = MessageDigest.getInstance("SHA");
+    Assert.assertArrayEquals(digest.digest(TEST_DATA), checksum.getChecksum().toByteArray());
+    Mockito.verify(mockFileProvider, Mockito.times(1)).openFile(Mockito.any());
+  }
+
+  @Test
+  public void testBlockListChecksumIsStoredWithSha1() throws Exception {
+    File file = new File(RuntimeEnvironment.application.getCacheDir(), TEST_PATH);
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(TEST_DATA);
+    }
+    Mockito.when(mockFileProvider.getFileForPath(Mockito.eq(TEST_PATH))).thenReturn(file);
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(MoreExecutors.directExecutor());
+
+    assertThat(checksumProvider.getFileChecksums(TEST_PATH, PRIORITY_REQUESTED)).isEmpty();
+    List<FileChecksum> checksums = checksumProvider.getFileChecksums(TEST_PATH, PRIORITY_REQUESTED);
+    assertThat(checksums).hasSize(2);
+    assertThat(checksums.get(0).getChecksumType()).isEqualTo(FileChecksum.ChecksumType.SHA1);
+    assertThat(checksums.get(1))
+        .isEqualTo(BlockListChecksum.compute(file, MoreExecutors.directExecutor()));
+    assertThat(checksumProvider.getFileChecksum(TEST_PATH)).isEqualTo(checksums.get(0));
+    Mockito.verify(mockFileProvider, Mockito.times(1)).openFile(Mockito.any());
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testBatchLookup() throws Exception {
+    Mockito.when(mockFileProvider.getLastModified(Mockito.anyString())).thenReturn(DATE_MODIFIED_1);
+    CachedFileChecksumProvider checksumProvider = createProviderWithoutComputation();
+    byte[] sha1 = MessageDigest.getInstance("SHA").digest(TEST_DATA);
+    checksumProvider.onChecksumComputed("a.mp4", sha1);
+    checksumProvider.onChecksumComputed("b.mp4", sha1);
+
+    Map<String, List<FileChecksum>> checksums =
+        checksumProvider.getFileChecksums(
+            Arrays.asList("a.mp4", "b.mp4", "c.mp4"), PRIORITY_BACKGROUND);
+    assertThat(checksums).hasSize(3);
+    assertThat(checksums.get("a.mp4")).hasSize(1);
+    assertThat(checksums.get("b.mp4")).hasSize(1);
+    assertThat(checksums.get("c.mp4")).isEmpty();
+    Assert.assertArrayEquals(sha1, checksums.get("a.mp4").get(0).getChecksum().toByteArray());
+
+    // Checksums of modified files are not used, even if they are in memory.
+    Mockito.when(mockFileProvider.getLastModified(Mockito.eq("a.mp4")))
+        .thenReturn(DATE_MODIFIED_2);
+    checksums = checksumProvider.getFileChecksums(Arrays.asList("a.mp4"), PRIORITY_BACKGROUND);
+    assertThat(checksums.get("a.mp4")).isEmpty();
+
+    // Paths are matched exactly.
+    checksums = checksumProvider.getFileChecksums(Arrays.asList("B.mp4"), PRIORITY_BACKGROUND);
+    assertThat(checksums.get("B.mp4")).isEmpty();
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testDeletedFileIsRemoved() throws Exception {
+    CachedFileChecksumProvider checksumProvider = createProviderWithoutComputation();
+    checksumProvider.onChecksumComputed(
+        TEST_PATH, MessageDigest.getInstance("SHA").digest(TEST_DATA));
+    assertThat(checksumProvider.getFileChecksum(TEST_PATH)).isNotNull();
+
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application)
+        .sendBroadcast(
+            new Intent(MediaStoreUtil.ACTION_MEDIA_DELETED)
+                .putExtra(MediaStoreUtil.EXTRA_PATH, TEST_PATH));
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+    assertThat(checksumProvider.getFileChecksum(TEST_PATH)).isNull();
+    checksumProvider.close();
+  }
+
+  @Test
+  public void testMigrationFromVersion2() throws Exception {
+    byte[] sha1 = MessageDigest.getInstance("SHA").digest(TEST_DATA);
+    File databaseFile = RuntimeEnvironment.application.getDatabasePath("ChecksumDatabase");
+    databaseFile.getParentFile().mkdirs();
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+    db.execSQL(
+        "CREATE TABLE ChecksumDatabase (_id INTEGER PRIMARY KEY, path TEXT UNIQUE,"
+            + " checksum BLOB NOT NULL, last_modified INTEGER NOT NULL, block_tree_checksum BLOB)");
+    ContentValues values = new ContentValues();
+    values.put("path", TEST_PATH);
+    values.put(
+        "checksum",
+        FileChecksum.newBuilder()
+            .setChecksumType(FileChecksum.ChecksumType.SHA1)
+            .setChecksum(ByteString.copyFrom(sha1))
+            .build()
+            .toByteArray());
+    values.put("last_modified", DATE_MODIFIED_1.getTime());
+    db.insert("ChecksumDatabase", null, values);
+    db.setVersion(2);
+    db.close();
+
+    CachedFileChecksumProvider checksumProvider = createProviderWithoutComputation();
+    FileChecksum checksum = checksumProvider.getFileChecksum(TEST_PATH);
+    Assert.assertArrayEquals(sha1, checksum.getChecksum().toByteArray());
+    checksumProvider.close();
+
+    // Lookups by path use the index.
+    db = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    assertThat(db.getVersion()).isEqualTo(3);
+    Cursor cursor =
+        db.rawQuery(
+            "EXPLAIN QUERY PLAN SELECT * FROM ChecksumDatabase WHERE path IN (?, ?)",
+            new String[] {TEST_PATH, "other.jpg"});
+    StringBuilder plan = new StringBuilder();
+    while (cursor.moveToNext()) {
+      plan.append(cursor.getString(cursor.getColumnIndex("detail")));
+    }
+    cursor.close();
+    db.close();
+    assertThat(plan.toString()).contains("ChecksumDatabase_path");
+  }
+
+  // Creates a provider which only serves the cached checksums.
+  private CachedFileChecksumProvider createProviderWithoutComputation() {
+    CachedFileChecksumProvider checksumProvider =
+        new CachedFileChecksumProvider(RuntimeEnvironment.application, mockFileProvider);
+    checksumProvider.setComputationExecutor(command -> {});
+    return checksumProvider;
+  }
 }
@@ -0,0 +1,244 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.vr180.api.camerainterfaces.FileChecksumProvider.PRIORITY_BACKGROUND;
+import static com.google.vr180.api.camerainterfaces.FileChecksumProvider.PRIORITY_REQUESTED;
+
+import com.google.vr180.api.camerainterfaces.CaptureManager;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ChecksumSchedulerTest {
+  private static final long PART_MS = 10;
+
+  private final FakeClock clock = new FakeClock();
+  private final Queue<Runnable> worker = new ArrayDeque<>();
+  private final List<String> started = new ArrayList<>();
+  private final List<String> completed = new ArrayList<>();
+  // The camera records from recordingStartMs until recordingEndMs.
+  private long recordingStartMs;
+  private long recordingEndMs;
+  private ChecksumScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    CaptureManager captureManager = Mockito.mock(CaptureManager.class);
+    Mockito.when(captureManager.isRecording())
+        .thenAnswer(
+            invocation -> clock.timeMs >= recordingStartMs && clock.timeMs < recordingEndMs);
+    scheduler = new ChecksumScheduler(worker::add, captureManager, clock);
+  }
+
+  @Test
+  public void testRequestedJobsRunFirst() {
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 1));
+    scheduler.submit("b", PRIORITY_BACKGROUND, createTask("b", 1));
+    scheduler.submit("c", PRIORITY_REQUESTED, createTask("c", 1));
+    runWorker();
+    assertThat(completed).containsExactly("c", "a", "b").inOrder();
+    assertThat(scheduler.hasPendingJobs()).isFalse();
+  }
+
+  @Test
+  public void testDuplicateSubmissionRaisesPriority() {
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 1));
+    scheduler.submit("b", PRIORITY_BACKGROUND, createTask("b", 1));
+    scheduler.submit("b", PRIORITY_REQUESTED, createTask("b2", 1));
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a2", 1));
+    runWorker();
+    assertThat(completed).containsExactly("b", "a").inOrder();
+  }
+
+  @Test
+  public void testCancelQueuedJob() {
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 1));
+    scheduler.submit("b", PRIORITY_BACKGROUND, createTask("b", 1));
+    scheduler.cancel("a");
+    runWorker();
+    assertThat(started).containsExactly("b");
+    assertThat(scheduler.hasPendingJobs()).isFalse();
+  }
+
+  @Test
+  public void testCancelRunningJob() {
+    scheduler.submit(
+        "a",
+        PRIORITY_REQUESTED,
+        job -> {
+          started.add("a");
+          assertThat(scheduler.awaitTurn(job)).isTrue();
+          scheduler.cancel("a");
+          assertThat(scheduler.awaitTurn(job)).isFalse();
+        });
+    runWorker();
+    assertThat(started).containsExactly("a");
+    assertThat(scheduler.hasPendingJobs()).isFalse();
+
+    // The file can be scheduled again.
+    scheduler.submit("a", PRIORITY_REQUESTED, createTask("a", 1));
+    runWorker();
+    assertThat(completed).containsExactly("a");
+  }
+
+  @Test
+  public void testBackgroundJobWaitsForRecording() {
+    recordingEndMs = 5000;
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 1));
+    runWorker();
+    assertThat(completed).containsExactly("a");
+    assertThat(clock.timeMs).isAtLeast(recordingEndMs + PART_MS);
+  }
+
+  @Test
+  public void testWorkerIsFreeWhileBackgroundJobsWaitForRecording() {
+    recordingEndMs = 5000;
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 1));
+    runQueuedTasks();
+    // The worker doesn't wait for the recording to finish.
+    assertThat(started).isEmpty();
+    assertThat(clock.timeMs).isEqualTo(0L);
+
+    scheduler.submit("b", PRIORITY_REQUESTED, createTask("b", 1));
+    runQueuedTasks();
+    assertThat(completed).containsExactly("b");
+    assertThat(clock.timeMs).isLessThan(recordingEndMs);
+
+    runWorker();
+    assertThat(completed).containsExactly("b", "a").inOrder();
+    assertThat(clock.timeMs).isAtLeast(recordingEndMs + PART_MS);
+    assertThat(scheduler.hasPendingJobs()).isFalse();
+  }
+
+  @Test
+  public void testBackgroundJobStopsForRecordingAndRunsAgain() {
+    recordingStartMs = 15;
+    recordingEndMs = 5000;
+    scheduler.submit("a", PRIORITY_BACKGROUND, createTask("a", 5));
+    runWorker();
+    assertThat(started).containsExactly("a", "a");
+    assertThat(completed).containsExactly("a");
+    assertThat(clock.timeMs).isAtLeast(recordingEndMs + 5 * PART_MS);
+  }
+
+  @Test
+  public void testBackgroundJobMakesWayForRequestedJob() {
+    scheduler.submit(
+        "a",
+        PRIORITY_BACKGROUND,
+        job -> {
+          started.add("a");
+          if (!started.contains("b")) {
+            scheduler.submit("b", PRIORITY_REQUESTED, createTask("b", 1));
+          }
+          if (scheduler.awaitTurn(job)) {
+            completed.add("a");
+          }
+        });
+    runWorker();
+    assertThat(started).containsExactly("a", "b", "a").inOrder();
+    assertThat(completed).containsExactly("b", "a").inOrder();
+  }
+
+  @Test
+  public void testRequestedJobIsThrottledWhileRecording() {
+    recordingEndMs = Long.MAX_VALUE;
+    scheduler.submit("a", PRIORITY_REQUESTED, createTask("a", 4));
+    runWorker();
+    assertThat(completed).containsExactly("a");
+    assertThat(clock.timeMs)
+        .isEqualTo(4 * PART_MS * (1 + ChecksumScheduler.RECORDING_PAUSE_RATIO));
+  }
+
+  @Test
+  public void testRequestedJobRunsAtFullSpeedWithoutRecording() {
+    scheduler.submit("a", PRIORITY_REQUESTED, createTask("a", 4));
+    runWorker();
+    assertThat(completed).containsExactly("a");
+    assertThat(clock.timeMs).isEqualTo(4 * PART_MS);
+  }
+
+  // Creates a task which takes PART_MS for each part, with a checkpoint after each part.
+  private ChecksumScheduler.Task createTask(String name, int parts) {
+    return job -> {
+      started.add(name);
+      for (int i = 0; i < parts; i++) {
+        clock.timeMs += PART_MS;
+        if (!scheduler.awaitTurn(job)) {
+          return;
+        }
+      }
+      completed.add(name);
+    };
+  }
+
+  // Runs the worker and the timers until no work is left.
+  private void runWorker() {
+    runQueuedTasks();
+    while (!clock.timers.isEmpty()) {
+      clock.runNextTimer();
+      runQueuedTasks();
+    }
+  }
+
+  // Runs the tasks of the worker, without advancing the time to the timers.
+  private void runQueuedTasks() {
+    while (!worker.isEmpty()) {
+      worker.remove().run();
+    }
+  }
+
+  private static final class FakeClock implements ChecksumScheduler.Clock {
+    private long timeMs;
+    // The pending delayed tasks, by the time they are due.
+    private final TreeMap<Long, List<Runnable>> timers = new TreeMap<>();
+
+    @Override
+    public long elapsedMillis() {
+      return timeMs;
+    }
+
+    @Override
+    public void sleep(long ms) {
+      timeMs += ms;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+      timers.computeIfAbsent(timeMs + delayMs, dueMs -> new ArrayList<>()).add(task);
+    }
+
+    private void runNextTimer() {
+      Map.Entry<Long, List<Runnable>> timer = timers.pollFirstEntry();
+      timeMs = Math.max(timeMs, timer.getKey());
+      for (Runnable task : timer.getValue()) {
+        task.run();
+      }
+    }
+  }
+}
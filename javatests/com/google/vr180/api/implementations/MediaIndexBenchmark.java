@@ -0,0 +1,99 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
+import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
+import com.google.vr180.CameraApi.Media;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the time MediaIndex takes to load and list a large library. Not part of the default tests;
+ * run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MediaIndexBenchmark {
+  private static final int ITEMS = 10000;
+
+  private final MediaIndex index = new MediaIndex(100 /* maxDeletions */, 1000 /* changeToken */);
+
+  @Test
+  public void benchmarkListing() {
+    List<MediaIndex.Item> items = new ArrayList<>();
+    for (int i = 0; i < ITEMS; i++) {
+      items.add(new MediaIndex.Item(i, createMedia("/sdcard/DCIM/Camera/" + i + ".vr.mp4", i)));
+    }
+    long startTimeMs = System.currentTimeMillis();
+    index.replaceAll(items);
+    long loadTimeMs = System.currentTimeMillis() - startTimeMs;
+
+    startTimeMs = System.currentTimeMillis();
+    int listed = 0;
+    ListMediaResponse page = list(ListMediaRequest.newBuilder().setMediaCount(100));
+    listed += page.getMediaCount();
+    while (page.hasNextPageToken()) {
+      page =
+          list(
+              ListMediaRequest.newBuilder()
+                  .setMediaCount(100)
+                  .setPageToken(page.getNextPageToken()));
+      listed += page.getMediaCount();
+    }
+    long tokenPagingTimeMs = System.currentTimeMillis() - startTimeMs;
+    assertThat(listed).isEqualTo(ITEMS);
+
+    startTimeMs = System.currentTimeMillis();
+    for (int start = 0; start < ITEMS; start += 100) {
+      // A change between pages, which invalidates the positional list.
+      Media media = createMedia("/sdcard/DCIM/Camera/" + start + ".vr.mp4", start);
+      index.put(start, media.toBuilder().setSize(start).build());
+      list(ListMediaRequest.newBuilder().setStartIndex(start).setMediaCount(100));
+    }
+    long indexPagingTimeMs = System.currentTimeMillis() - startTimeMs;
+
+    long changeToken = index.getChangeToken();
+    for (int i = 0; i < 100; i++) {
+      index.remove("/sdcard/DCIM/Camera/" + i + ".vr.mp4");
+    }
+    startTimeMs = System.currentTimeMillis();
+    ListMediaResponse changes = list(ListMediaRequest.newBuilder().setChangedSince(changeToken));
+    long changesTimeMs = System.currentTimeMillis() - startTimeMs;
+    assertThat(changes.getDeletedFilenameCount()).isEqualTo(100);
+
+    System.out.println(
+        String.format(
+            "MediaIndex with %d items: load %d ms, token paging %d ms, index paging %d ms,"
+                + " changes %d ms",
+            ITEMS, loadTimeMs, tokenPagingTimeMs, indexPagingTimeMs, changesTimeMs));
+  }
+
+  private ListMediaResponse list(ListMediaRequest.Builder request) {
+    ListMediaResponse.Builder response = index.list(request.build());
+    assertThat(response).isNotNull();
+    return response.build();
+  }
+
+  private static Media createMedia(String filename, long timestamp) {
+    return Media.newBuilder().setFilename(filename).setTimestamp(timestamp).setSize(1000).build();
+  }
+}
@@ -0,0 +1,336 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.vr180.CameraApi.CameraApiRequest.ListMediaRequest;
+import com.google.vr180.CameraApi.CameraApiResponse.ListMediaResponse;
+import com.google.vr180.CameraApi.Media;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MediaIndexTest {
+  private static final long INITIAL_CHANGE_TOKEN = 1000;
+  private static final int MAX_DELETIONS = 100;
+
+  private MediaIndex index;
+
+  @Before
+  public void setUp() {
+    index = new MediaIndex(MAX_DELETIONS, INITIAL_CHANGE_TOKEN);
+  }
+
+  @Test
+  public void testItemsAreListedNewestFirst() {
+    index.put(1, createMedia("b.vr.jpg", 10));
+    index.put(2, createMedia("c.vr.jpg", 30));
+    index.put(3, createMedia("a.vr.jpg", 10));
+    index.put(4, createMedia("d.vr.jpg", 20));
+
+    ListMediaResponse response = list(ListMediaRequest.newBuilder().setStartIndex(1));
+    assertThat(getFilenames(response))
+        .containsExactly("d.vr.jpg", "a.vr.jpg", "b.vr.jpg")
+        .inOrder();
+    assertThat(response.getTotalCount()).isEqualTo(4L);
+    assertThat(response.hasNextPageToken()).isFalse();
+    assertThat(index.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void testPageTokensContinueAfterTheLastItem() {
+    for (int i = 0; i < 10; i++) {
+      index.put(i, createMedia("media" + i, i));
+    }
+    ListMediaResponse first = list(ListMediaRequest.newBuilder().setMediaCount(3));
+    assertThat(getFilenames(first)).containsExactly("media9", "media8", "media7").inOrder();
+    assertThat(first.hasNextPageToken()).isTrue();
+
+    // Changes before the end of the first page don't shift the next page.
+    index.put(10, createMedia("media10", 10));
+    index.remove("media8");
+    index.remove("media6");
+    ListMediaResponse second =
+        list(
+            ListMediaRequest.newBuilder()
+                .setMediaCount(3)
+                .setPageToken(first.getNextPageToken()));
+    assertThat(getFilenames(second)).containsExactly("media5", "media4", "media3").inOrder();
+
+    ListMediaResponse last =
+        list(
+            ListMediaRequest.newBuilder()
+                .setMediaCount(3)
+                .setPageToken(second.getNextPageToken()));
+    assertThat(getFilenames(last)).containsExactly("media2", "media1", "media0").inOrder();
+    assertThat(last.hasNextPageToken()).isFalse();
+  }
+
+  @Test
+  public void testInvalidPageTokensAreRejected() {
+    index.put(1, createMedia("a.vr.jpg", 10));
+    assertThat(index.list(ListMediaRequest.newBuilder().setPageToken("invalid").build())).isNull();
+    assertThat(index.list(ListMediaRequest.newBuilder().setPageToken("x:a.vr.jpg").build()))
+        .isNull();
+  }
+
+  @Test
+  public void testChangesSinceToken() {
+    index.put(1, createMedia("a.vr.jpg", 10));
+    index.put(2, createMedia("b.vr.jpg", 20));
+    index.put(3, createMedia("c.vr.jpg", 30));
+    long changeToken = list(ListMediaRequest.newBuilder()).getChangeToken();
+    assertThat(changeToken).isEqualTo(index.getChangeToken());
+
+    // An update with no changes keeps the token.
+    index.put(1, createMedia("a.vr.jpg", 10));
+    assertThat(index.getChangeToken()).isEqualTo(changeToken);
+
+    index.put(4, createMedia("d.vr.jpg", 5));
+    index.put(1, createMedia("a.vr.jpg", 10).toBuilder().setSize(2000).build());
+    index.remove("b.vr.jpg");
+    ListMediaResponse changes =
+        list(ListMediaRequest.newBuilder().setChangedSince(changeToken));
+    assertThat(changes.getChangesUnavailable()).isFalse();
+    assertThat(getFilenames(changes)).containsExactly("d.vr.jpg", "a.vr.jpg").inOrder();
+    assertThat(changes.getMedia(1).getSize()).isEqualTo(2000L);
+    assertThat(changes.getDeletedFilenameList()).containsExactly("b.vr.jpg");
+    assertThat(changes.getTotalCount()).isEqualTo(3L);
+
+    ListMediaResponse noChanges =
+        list(ListMediaRequest.newBuilder().setChangedSince(changes.getChangeToken()));
+    assertThat(noChanges.getChangesUnavailable()).isFalse();
+    assertThat(noChanges.getMediaCount()).isEqualTo(0);
+    assertThat(noChanges.getDeletedFilenameCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testReplaceAllIsOneChange() {
+    index.put(1, createMedia("a.vr.jpg", 10));
+    index.put(2, createMedia("b.vr.jpg", 20));
+    long changeToken = index.getChangeToken();
+
+    List<MediaIndex.Item> items = new ArrayList<>();
+    items.add(new MediaIndex.Item(1, createMedia("a.vr.jpg", 10)));
+    items.add(new MediaIndex.Item(3, createMedia("c.vr.jpg", 30)));
+    index.replaceAll(items);
+    assertThat(index.getChangeToken()).isEqualTo(changeToken + 1);
+    ListMediaResponse changes =
+        list(ListMediaRequest.newBuilder().setChangedSince(changeToken));
+    assertThat(getFilenames(changes)).containsExactly("c.vr.jpg");
+    assertThat(changes.getDeletedFilenameList()).containsExactly("b.vr.jpg");
+
+    index.replaceAll(items);
+    assertThat(index.getChangeToken()).isEqualTo(changeToken + 1);
+  }
+
+  @Test
+  public void testChangesArePaged() {
+    long changeToken = index.getChangeToken();
+    for (int i = 0; i < 5; i++) {
+      index.put(i, createMedia("media" + i, i));
+    }
+    ListMediaResponse first =
+        list(ListMediaRequest.newBuilder().setChangedSince(changeToken).setMediaCount(2));
+    assertThat(getFilenames(first)).containsExactly("media0", "media1").inOrder();
+
+    // An item changed again moves after the items which are not listed yet.
+    index.put(0, createMedia("media0", 100));
+    index.remove("media3");
+    ListMediaResponse second =
+        list(
+            ListMediaRequest.newBuilder()
+                .setChangedSince(changeToken)
+                .setMediaCount(2)
+                .setPageToken(first.getNextPageToken()));
+    assertThat(getFilenames(second)).containsExactly("media2", "media4").inOrder();
+
+    ListMediaResponse last =
+        list(
+            ListMediaRequest.newBuilder()
+                .setChangedSince(changeToken)
+                .setMediaCount(2)
+                .setPageToken(second.getNextPageToken()));
+    assertThat(getFilenames(last)).containsExactly("media0");
+    assertThat(last.getDeletedFilenameList()).containsExactly("media3");
+    assertThat(last.hasNextPageToken()).isFalse();
+  }
+
+  @Test
+  public void testChangesAreUnavailableForForgottenDeletions() {
+    index = new MediaIndex(2, INITIAL_CHANGE_TOKEN);
+    for (int i = 0; i < 4; i++) {
+      index.put(i, createMedia("media" + i, i));
+    }
+    long firstToken = index.getChangeToken();
+    index.remove("media0");
+    long secondToken = index.getChangeToken();
+    index.remove("media1");
+    index.remove("media2");
+
+    assertThat(list(changedSince(firstToken)).getChangesUnavailable()).isTrue();
+    ListMediaResponse changes = list(changedSince(secondToken));
+    assertThat(changes.getChangesUnavailable()).isFalse();
+    assertThat(changes.getDeletedFilenameList()).containsExactly("media1", "media2").inOrder();
+
+    // Tokens from before this index, or from the future, can't be answered either.
+    assertThat(list(changedSince(INITIAL_CHANGE_TOKEN - 1)).getChangesUnavailable()).isTrue();
+    assertThat(list(changedSince(index.getChangeToken() + 1)).getChangesUnavailable()).isTrue();
+  }
+
+  @Test
+  public void testConcurrentInsertsAndDeletes() throws Exception {
+    index = new MediaIndex(Integer.MAX_VALUE, INITIAL_CHANGE_TOKEN);
+    // Stable items have even timestamps and are never deleted, while writers add and delete items
+    // with odd timestamps between them.
+    int stableCount = 2000;
+    for (int i = 0; i < stableCount; i++) {
+      index.put(i, createMedia("stable" + i, 2 * i));
+    }
+    ListMediaResponse snapshot = list(ListMediaRequest.newBuilder());
+    Map<String, Media> syncedItems = new HashMap<>();
+    for (Media media : snapshot.getMediaList()) {
+      syncedItems.put(media.getFilename(), media);
+    }
+    long syncedToken = snapshot.getChangeToken();
+
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> writers = new ArrayList<>();
+    for (int w = 0; w < 2; w++) {
+      int writer = w;
+      Thread thread =
+          new Thread(
+              () -> {
+                Random random = new Random(writer);
+                for (int i = 0; !done.get(); i++) {
+                  String filename = "volatile" + writer + "_" + random.nextInt(500);
+                  if (random.nextBoolean()) {
+                    long id = stableCount + writer * 1000000L + i;
+                    index.put(id, createMedia(filename, 2 * random.nextInt(stableCount) + 1));
+                  } else {
+                    index.remove(filename);
+                  }
+                }
+              });
+      thread.setUncaughtExceptionHandler((t, e) -> failure.set(e));
+      writers.add(thread);
+      thread.start();
+    }
+
+    for (int scan = 0; scan < 20; scan++) {
+      checkPagedScan(stableCount, 37);
+      syncedToken = syncChanges(syncedItems, syncedToken, 50);
+    }
+    done.set(true);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertThat(failure.get()).isNull();
+
+    // Applying the changes to a full listing gives the current items.
+    syncChanges(syncedItems, syncedToken, 50);
+    Map<String, Media> currentItems = new HashMap<>();
+    for (Media media : list(ListMediaRequest.newBuilder()).getMediaList()) {
+      currentItems.put(media.getFilename(), media);
+    }
+    assertThat(syncedItems).isEqualTo(currentItems);
+  }
+
+  // Pages through all items, and checks that they are in order and none of the stable items are
+  // skipped or repeated. Changed items may be listed again after they move past the cursor.
+  private void checkPagedScan(int stableCount, int pageSize) {
+    Set<String> stableFilenames = new HashSet<>();
+    Media previous = null;
+    ListMediaRequest.Builder request = ListMediaRequest.newBuilder().setMediaCount(pageSize);
+    while (true) {
+      ListMediaResponse page = list(request);
+      assertThat(page.getMediaCount()).isAtMost(pageSize);
+      for (Media media : page.getMediaList()) {
+        if (previous != null) {
+          assertThat(media.getTimestamp()).isAtMost(previous.getTimestamp());
+          if (media.getTimestamp() == previous.getTimestamp()) {
+            assertThat(media.getFilename().compareTo(previous.getFilename())).isGreaterThan(0);
+          }
+        }
+        if (media.getFilename().startsWith("stable")) {
+          assertThat(stableFilenames.add(media.getFilename())).isTrue();
+        }
+        previous = media;
+      }
+      if (!page.hasNextPageToken()) {
+        break;
+      }
+      request.setPageToken(page.getNextPageToken());
+    }
+    assertThat(stableFilenames).hasSize(stableCount);
+  }
+
+  // Applies the changes since a token to a client's copy of the items, and returns the new token.
+  private long syncChanges(Map<String, Media> items, long changeToken, int pageSize) {
+    ListMediaRequest.Builder request =
+        ListMediaRequest.newBuilder().setChangedSince(changeToken).setMediaCount(pageSize);
+    while (true) {
+      ListMediaResponse page = list(request);
+      assertThat(page.getChangesUnavailable()).isFalse();
+      for (Media media : page.getMediaList()) {
+        items.put(media.getFilename(), media);
+      }
+      for (String filename : page.getDeletedFilenameList()) {
+        items.remove(filename);
+      }
+      if (!page.hasNextPageToken()) {
+        return page.getChangeToken();
+      }
+      request.setPageToken(page.getNextPageToken());
+    }
+  }
+
+  private ListMediaResponse list(ListMediaRequest.Builder request) {
+    ListMediaResponse.Builder response = index.list(request.build());
+    assertThat(response).isNotNull();
+    return response.build();
+  }
+
+  private static ListMediaRequest.Builder changedSince(long changeToken) {
+    return ListMediaRequest.newBuilder().setChangedSince(changeToken);
+  }
+
+  private static List<String> getFilenames(ListMediaResponse response) {
+    List<String> filenames = new ArrayList<>();
+    for (Media media : response.getMediaList()) {
+      filenames.add(media.getFilename());
+    }
+    return filenames;
+  }
+
+  private static Media createMedia(String filename, long timestamp) {
+    return Media.newBuilder().setFilename(filename).setTimestamp(timestamp).setSize(1000).build();
+  }
+}
@@ -0,0 +1,264 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ThumbnailCacheTest {
+  private static final int THUMBNAIL_SIZE = 1000;
+  private static final long TIMEOUT_MS = 5000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File cacheDirectory;
+  private CountingGenerator generator;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDirectory = new File(folder.getRoot(), "thumbnails");
+    generator = new CountingGenerator();
+  }
+
+  @Test
+  public void testConcurrentChunkRequestsShareOneGeneration() throws Exception {
+    ThumbnailCache cache = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE);
+    ThumbnailRequest request = createRequest(createMediaFile("a.vr.jpg", 1), 0);
+    generator.block();
+
+    int chunkCount = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(chunkCount);
+    List<Future<byte[]>> chunks = new ArrayList<>();
+    for (int i = 0; i < chunkCount; i++) {
+      chunks.add(executor.submit(() -> cache.getThumbnail(request)));
+    }
+    generator.awaitGenerations(1);
+    // Give the other requests time to join the generation.
+    Thread.sleep(50);
+    generator.unblock();
+
+    byte[] expected = CountingGenerator.render(request);
+    for (Future<byte[]> chunk : chunks) {
+      assertThat(chunk.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isEqualTo(expected);
+    }
+    executor.shutdown();
+    assertThat(generator.getGenerationCount(request)).isEqualTo(1);
+  }
+
+  @Test
+  public void testThumbnailsAreGeneratedOncePerKey() throws Exception {
+    ThumbnailCache cache = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE);
+    File media = createMediaFile("a.vr.jpg", 1);
+    ThumbnailRequest small = createRequest(media, 0);
+    ThumbnailRequest large = small.toBuilder().setWidth(512).setHeight(512).build();
+    ThumbnailRequest lowQuality = small.toBuilder().setQuality(50).build();
+
+    for (int i = 0; i < 3; i++) {
+      cache.getThumbnail(small);
+      cache.getThumbnail(small.toBuilder().setStartIndex(100).setLength(100).build());
+      cache.getThumbnail(large);
+      cache.getThumbnail(lowQuality);
+    }
+
+    assertThat(generator.getGenerationCount(small)).isEqualTo(1);
+    assertThat(generator.getGenerationCount(large)).isEqualTo(1);
+    assertThat(generator.getGenerationCount(lowQuality)).isEqualTo(1);
+  }
+
+  @Test
+  public void testThumbnailsPersistOnDisk() throws Exception {
+    ThumbnailRequest request = createRequest(createMediaFile("a.vr.jpg", 1), 0);
+    byte[] thumbnail = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE).getThumbnail(request);
+
+    // A new cache, as after a restart, reads the thumbnail from disk.
+    ThumbnailCache cache = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE);
+    assertThat(cache.getDiskBytes()).isEqualTo((long) THUMBNAIL_SIZE);
+    assertThat(cache.getThumbnail(request)).isEqualTo(thumbnail);
+    assertThat(generator.getGenerationCount(request)).isEqualTo(1);
+  }
+
+  @Test
+  public void testModifiedFilesAreRegenerated() throws Exception {
+    ThumbnailCache cache = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE);
+    File media = createMediaFile("a.vr.jpg", 1);
+    ThumbnailRequest request = createRequest(media, 0);
+    cache.getThumbnail(request);
+
+    // A file of a different size.
+    createMediaFile("a.vr.jpg", 2);
+    cache.getThumbnail(request);
+    assertThat(generator.getGenerationCount(request)).isEqualTo(2);
+
+    // A file with a different modified time.
+    media.setLastModified(media.lastModified() - 60 * 1000);
+    cache.getThumbnail(request);
+    cache.getThumbnail(request);
+    assertThat(generator.getGenerationCount(request)).isEqualTo(3);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedThumbnailsAreEvicted() throws Exception {
+    // Room for two thumbnails on disk, and none in memory.
+    ThumbnailCache cache = createCache(2 * THUMBNAIL_SIZE, 1);
+    ThumbnailRequest a = createRequest(createMediaFile("a.vr.jpg", 1), 0);
+    ThumbnailRequest b = createRequest(createMediaFile("b.vr.jpg", 1), 0);
+    ThumbnailRequest c = createRequest(createMediaFile("c.vr.jpg", 1), 0);
+
+    cache.getThumbnail(a);
+    cache.getThumbnail(b);
+    // Use a again, so that b is the least recently used.
+    cache.getThumbnail(a);
+    cache.getThumbnail(c);
+    assertThat(cache.getDiskBytes()).isEqualTo(2L * THUMBNAIL_SIZE);
+    assertThat(cacheDirectory.list()).hasLength(2);
+
+    cache.getThumbnail(a);
+    cache.getThumbnail(c);
+    cache.getThumbnail(b);
+    assertThat(generator.getGenerationCount(a)).isEqualTo(1);
+    assertThat(generator.getGenerationCount(b)).isEqualTo(2);
+    assertThat(generator.getGenerationCount(c)).isEqualTo(1);
+  }
+
+  @Test
+  public void testFailedGenerationsAreNotCached() throws Exception {
+    ThumbnailCache cache = createCache(10 * THUMBNAIL_SIZE, 10 * THUMBNAIL_SIZE);
+    ThumbnailRequest request = createRequest(createMediaFile("a.vr.jpg", 1), 0);
+    generator.setFailure(true);
+    assertThat(cache.getThumbnail(request)).isNull();
+
+    generator.setFailure(false);
+    assertThat(cache.getThumbnail(request)).isNotNull();
+    assertThat(generator.getGenerationCount(request)).isEqualTo(2);
+    assertThat(cache.getDiskBytes()).isEqualTo((long) THUMBNAIL_SIZE);
+  }
+
+  private ThumbnailCache createCache(long maxDiskBytes, int maxMemoryBytes) {
+    return new ThumbnailCache(cacheDirectory, maxDiskBytes, maxMemoryBytes, generator);
+  }
+
+  private File createMediaFile(String name, int size) throws IOException {
+    File file = new File(folder.getRoot(), name);
+    try (FileOutputStream stream = new FileOutputStream(file)) {
+      stream.write(new byte[size]);
+    }
+    return file;
+  }
+
+  private static ThumbnailRequest createRequest(File media, int startIndex) {
+    return ThumbnailRequest.newBuilder()
+        .setFilename(media.getPath())
+        .setWidth(256)
+        .setHeight(256)
+        .setQuality(90)
+        .setStartIndex(startIndex)
+        .build();
+  }
+
+  /** A generator which counts the thumbnails it renders for each file, size and quality. */
+  private static class CountingGenerator implements ThumbnailCache.ThumbnailGenerator {
+    private final Map<String, Integer> generationCounts = new HashMap<>();
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+    private boolean blocked;
+    private boolean failure;
+    private int generations;
+
+    static byte[] render(ThumbnailRequest request) {
+      byte[] thumbnail = new byte[THUMBNAIL_SIZE];
+      thumbnail[0] = (byte) request.getWidth();
+      thumbnail[1] = (byte) request.getQuality();
+      thumbnail[2] = (byte) request.getFilename().hashCode();
+      return thumbnail;
+    }
+
+    synchronized void block() {
+      blocked = true;
+    }
+
+    void unblock() {
+      unblocked.countDown();
+    }
+
+    synchronized void setFailure(boolean failure) {
+      this.failure = failure;
+    }
+
+    synchronized void awaitGenerations(int count) throws InterruptedException {
+      long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      while (generations < count) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        wait(TIMEOUT_MS);
+      }
+    }
+
+    synchronized int getGenerationCount(ThumbnailRequest request) {
+      Integer count = generationCounts.get(getKey(request));
+      return count == null ? 0 : count;
+    }
+
+    @Override
+    public byte[] generateThumbnail(ThumbnailRequest request) {
+      boolean wait;
+      boolean fail;
+      synchronized (this) {
+        generationCounts.merge(getKey(request), 1, Integer::sum);
+        generations++;
+        wait = blocked;
+        fail = failure;
+        notifyAll();
+      }
+      if (wait) {
+        try {
+          unblocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return fail ? null : render(request);
+    }
+
+    private static String getKey(ThumbnailRequest request) {
+      return request.getFilename()
+          + ":"
+          + request.getWidth()
+          + "x"
+          + request.getHeight()
+          + ":"
+          + request.getQuality();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.api.implementations;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Intent;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+import com.google.vr180.CameraApi.CameraApiRequest.ThumbnailRequest;
+import com.google.vr180.api.camerainterfaces.CaptureManager;
+import com.google.vr180.common.media.MediaStoreUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ThumbnailPregeneratorTest {
+  private static final List<ThumbnailRequest> SIZES =
+      Arrays.asList(
+          ThumbnailRequest.newBuilder().setWidth(256).setHeight(256).setQuality(80).build(),
+          ThumbnailRequest.newBuilder().setWidth(512).setHeight(512).setQuality(80).build());
+  private static final long RECORDING_POLL_MS = 5;
+  private static final long TIMEOUT_MS = 5000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicBoolean recording = new AtomicBoolean();
+  private final AtomicInteger decodeCount = new AtomicInteger();
+  private File cacheDirectory;
+  private File media;
+  private ThumbnailPregenerator pregenerator;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDirectory = new File(folder.getRoot(), "thumbnails");
+    media = new File(folder.getRoot(), "video.vr.mp4");
+    try (FileOutputStream stream = new FileOutputStream(media)) {
+      stream.write(new byte[100]);
+    }
+    CaptureManager captureManager = Mockito.mock(CaptureManager.class);
+    Mockito.when(captureManager.isRecording()).thenAnswer(invocation -> recording.get());
+    pregenerator =
+        new ThumbnailPregenerator(
+            RuntimeEnvironment.application,
+            createCache(),
+            captureManager,
+            SIZES,
+            RECORDING_POLL_MS);
+    pregenerator.start();
+  }
+
+  @After
+  public void tearDown() {
+    pregenerator.stop();
+  }
+
+  @Test
+  public void testCapturedMediaThumbnailsAreServedWithoutDecoding() throws Exception {
+    pregenerator.onMediaFinalized(media.getPath());
+    waitForThumbnails();
+    assertThat(decodeCount.get()).isEqualTo(SIZES.size());
+
+    // A request, as served by AndroidMediaProvider from the same store, does not decode the file.
+    decodeCount.set(0);
+    ThumbnailCache cache = createCache();
+    for (ThumbnailRequest size : SIZES) {
+      ThumbnailRequest request = size.toBuilder().setFilename(media.getPath()).build();
+      assertThat(cache.getThumbnail(request)).isNotNull();
+      assertThat(cache.getThumbnail(request.toBuilder().setStartIndex(10).build())).isNotNull();
+    }
+    assertThat(decodeCount.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGenerationWaitsForRecording() throws Exception {
+    recording.set(true);
+    pregenerator.onMediaFinalized(media.getPath());
+
+    Thread.sleep(20 * RECORDING_POLL_MS);
+    assertThat(decodeCount.get()).isEqualTo(0);
+    assertThat(pregenerator.hasPendingThumbnails()).isTrue();
+
+    recording.set(false);
+    waitForThumbnails();
+    assertThat(decodeCount.get()).isEqualTo(SIZES.size());
+  }
+
+  @Test
+  public void testDeletionCancelsGeneration() throws Exception {
+    recording.set(true);
+    pregenerator.onMediaFinalized(media.getPath());
+    pregenerator.onMediaDeleted(media.getPath());
+    assertThat(pregenerator.hasPendingThumbnails()).isFalse();
+
+    recording.set(false);
+    // Queue another file behind the cancelled one, so that the cancelled one has run.
+    File other = new File(folder.getRoot(), "photo.vr.jpg");
+    new FileOutputStream(other).close();
+    pregenerator.onMediaFinalized(other.getPath());
+    waitForThumbnails();
+    assertThat(decodeCount.get()).isEqualTo(SIZES.size());
+  }
+
+  @Test
+  public void testOnlyInProcessBroadcastsQueueThumbnails() throws Exception {
+    recording.set(true);
+    Intent intent =
+        new Intent(MediaStoreUtil.ACTION_MEDIA_FINALIZED)
+            .putExtra(MediaStoreUtil.EXTRA_PATH, media.getPath());
+
+    // Other apps can't make the camera generate thumbnails.
+    RuntimeEnvironment.application.sendBroadcast(intent);
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+    assertThat(pregenerator.hasPendingThumbnails()).isFalse();
+
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application).sendBroadcast(intent);
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+    assertThat(pregenerator.hasPendingThumbnails()).isTrue();
+
+    recording.set(false);
+    waitForThumbnails();
+    assertThat(decodeCount.get()).isEqualTo(SIZES.size());
+  }
+
+  private ThumbnailCache createCache() {
+    return new ThumbnailCache(
+        cacheDirectory,
+        1024 * 1024,
+        1024 * 1024,
+        request -> {
+          decodeCount.incrementAndGet();
+          return new byte[] {(byte) request.getWidth(), (byte) request.getQuality()};
+        });
+  }
+
+  private void waitForThumbnails() throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (pregenerator.hasPendingThumbnails()) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+      Thread.sleep(1);
+    }
+  }
+}
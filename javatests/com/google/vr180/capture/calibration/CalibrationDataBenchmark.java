@@ -0,0 +1,113 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.calibration;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the throughput and size of CalibrationDataWriter, compared to the former text recording.
+ * Not part of the default tests; run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CalibrationDataBenchmark {
+  private static final String[] IMU_NAMES = {"timestamp_ns", "x", "y", "z"};
+  private static final byte[] IMU_TYPES = {
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32
+  };
+  private static final long START_NS = 1_000_000_000L;
+  private static final long PERIOD_NS = 500_000L;
+  // Ten minutes of 2kHz samples.
+  private static final int ROWS = 2000 * 60 * 10;
+
+  private File file;
+  private File textFile;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("gyro_data", ".bin", RuntimeEnvironment.application.getCacheDir());
+    textFile =
+        File.createTempFile("gyro_data", ".txt", RuntimeEnvironment.application.getCacheDir());
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    textFile.delete();
+  }
+
+  @Test
+  public void benchmarkThroughput() throws IOException {
+    long binaryNs;
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(
+            file, IMU_NAMES, IMU_TYPES, CalibrationDataWriter.DEFAULT_BLOCK_ROWS)) {
+      // Write a block first, so that one-time class loading is not counted.
+      for (int i = 0; i < CalibrationDataWriter.DEFAULT_BLOCK_ROWS; i++) {
+        writer.putLong(0, START_NS - PERIOD_NS);
+        writer.endRow();
+      }
+      long startNs = System.nanoTime();
+      for (int i = 0; i < ROWS; i++) {
+        writer.putLong(0, START_NS + i * PERIOD_NS);
+        writer.putFloat(1, i * 1e-3f);
+        writer.putFloat(2, -i * 1e-3f);
+        writer.putFloat(3, 9.81f);
+        writer.endRow();
+      }
+      writer.flush();
+      binaryNs = System.nanoTime() - startNs;
+    }
+
+    // The former text recording, one formatted line per sample.
+    long startNs = System.nanoTime();
+    try (BufferedWriter textWriter = new BufferedWriter(new FileWriter(textFile))) {
+      for (int i = 0; i < ROWS; i++) {
+        textWriter.write(
+            String.format(
+                "%d %a %a %a", START_NS + i * PERIOD_NS, i * 1e-3f, -i * 1e-3f, 9.81f));
+        textWriter.newLine();
+      }
+    }
+    long textNs = System.nanoTime() - startNs;
+
+    System.out.println(
+        "CalibrationDataWriter: "
+            + ROWS * 1_000_000_000L / Math.max(binaryNs, 1)
+            + " rows/s, "
+            + file.length()
+            + " bytes; String.format text: "
+            + ROWS * 1_000_000_000L / Math.max(textNs, 1)
+            + " rows/s, "
+            + textFile.length()
+            + " bytes");
+    assertThat(file.length()).isLessThan(textFile.length());
+  }
+}
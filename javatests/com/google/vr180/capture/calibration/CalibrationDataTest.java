@@ -0,0 +1,250 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.calibration;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CalibrationDataTest {
+  private static final String[] IMU_NAMES = {"timestamp_ns", "x", "y", "z"};
+  private static final byte[] IMU_TYPES = {
+    CalibrationDataFormat.TYPE_INT64,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32,
+    CalibrationDataFormat.TYPE_FLOAT32
+  };
+  private static final long START_NS = 1_000_000_000L;
+  // 2kHz, the highest IMU rate recorded for calibration.
+  private static final long PERIOD_NS = 500_000L;
+  private static final float[] SPECIAL_VALUES = {
+    Float.NaN,
+    -0.0f,
+    0.0f,
+    Float.MIN_VALUE,
+    -Float.MIN_NORMAL / 3,
+    Float.MAX_VALUE,
+    Float.NEGATIVE_INFINITY,
+    1.0f / 3
+  };
+
+  private File file;
+  private File textFile;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("gyro_data", ".bin", RuntimeEnvironment.application.getCacheDir());
+    textFile =
+        File.createTempFile("gyro_data", ".txt", RuntimeEnvironment.application.getCacheDir());
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    textFile.delete();
+  }
+
+  @Test
+  public void testRoundTripIsBitExact() throws IOException {
+    // Two full blocks and a partial one.
+    int blockRows = 16;
+    int rows = 2 * blockRows + 5;
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(file, IMU_NAMES, IMU_TYPES, blockRows)) {
+      for (int i = 0; i < rows; i++) {
+        writeRow(writer, i);
+      }
+    }
+
+    try (CalibrationDataReader reader = new CalibrationDataReader(file)) {
+      assertThat(reader.getVersion()).isEqualTo((int) CalibrationDataFormat.VERSION);
+      assertThat(reader.getColumnNames()).isEqualTo(IMU_NAMES);
+      assertThat(reader.getColumnTypes()).isEqualTo(IMU_TYPES);
+      int row = 0;
+      int blockSize;
+      while ((blockSize = reader.readBlock()) >= 0) {
+        for (int i = 0; i < blockSize; i++, row++) {
+          assertThat(reader.getLong(0, i)).isEqualTo(timestamp(row));
+          for (int axis = 0; axis < 3; axis++) {
+            assertThat(Float.floatToRawIntBits(reader.getFloat(axis + 1, i)))
+                .isEqualTo(Float.floatToRawIntBits(value(row, axis)));
+          }
+        }
+      }
+      assertThat(row).isEqualTo(rows);
+    }
+  }
+
+  @Test
+  public void testTextMatchesFormerTextOutput() throws IOException {
+    int rows = 100;
+    StringBuilder expected = new StringBuilder();
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(file, IMU_NAMES, IMU_TYPES, /* blockRows= */ 32)) {
+      for (int i = 0; i < rows; i++) {
+        writeRow(writer, i);
+        expected.append(formatRow(i)).append('\n');
+      }
+    }
+
+    StringWriter text = new StringWriter();
+    try (CalibrationDataReader reader = new CalibrationDataReader(file)) {
+      reader.writeText(text);
+    }
+    assertThat(text.toString()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void testConvertToText() throws IOException {
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(
+            file,
+            new String[] {"timestamp_ns", "frame_number"},
+            new byte[] {CalibrationDataFormat.TYPE_INT64, CalibrationDataFormat.TYPE_INT64},
+            CalibrationDataWriter.DEFAULT_BLOCK_ROWS)) {
+      writer.putLong(0, START_NS);
+      writer.putLong(1, 7);
+      writer.endRow();
+      writer.putLong(0, -1);
+      writer.putLong(1, Long.MAX_VALUE);
+      writer.endRow();
+    }
+
+    CalibrationDataReader.convertToText(file, textFile);
+    String text = new String(Files.readAllBytes(textFile.toPath()), "UTF-8");
+    assertThat(text).isEqualTo(START_NS + " 7\n-1 " + Long.MAX_VALUE + "\n");
+  }
+
+  @Test
+  public void testEmptyFileHasNoBlocks() throws IOException {
+    new CalibrationDataWriter(file, IMU_NAMES, IMU_TYPES, /* blockRows= */ 8).close();
+    try (CalibrationDataReader reader = new CalibrationDataReader(file)) {
+      assertThat(reader.readBlock()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    try (FileOutputStream stream = new FileOutputStream(file)) {
+      stream.write("0 0x1.0p0 0x1.0p0 0x1.0p0\n".getBytes("UTF-8"));
+    }
+    try {
+      new CalibrationDataReader(file).close();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("Not a calibration data file");
+    }
+  }
+
+  @Test
+  public void testTruncatedBlockThrows() throws IOException {
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(file, IMU_NAMES, IMU_TYPES, /* blockRows= */ 8)) {
+      for (int i = 0; i < 12; i++) {
+        writeRow(writer, i);
+      }
+    }
+    // Cut the last block short, as if the recording was interrupted while writing it.
+    try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+      truncated.setLength(truncated.length() - 3);
+    }
+
+    try (CalibrationDataReader reader = new CalibrationDataReader(file)) {
+      assertThat(reader.readBlock()).isEqualTo(8);
+      try {
+        reader.readBlock();
+        fail("Expected an EOFException");
+      } catch (EOFException expected) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testRowsDoNotAllocate() throws IOException {
+    // A minute of 2kHz samples.
+    int rows = 2000 * 60;
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    try (CalibrationDataWriter writer =
+        new CalibrationDataWriter(
+            file, IMU_NAMES, IMU_TYPES, CalibrationDataWriter.DEFAULT_BLOCK_ROWS)) {
+      // Write a block first, so that one-time class loading is not counted.
+      for (int i = 0; i < CalibrationDataWriter.DEFAULT_BLOCK_ROWS; i++) {
+        writer.putLong(0, START_NS - PERIOD_NS);
+        writer.endRow();
+      }
+      // Reading the counter may itself allocate.
+      long overhead = threadBean.getThreadAllocatedBytes(threadId);
+      overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < rows; i++) {
+        writer.putLong(0, START_NS + i * PERIOD_NS);
+        writer.putFloat(1, i * 1e-3f);
+        writer.putFloat(2, -i * 1e-3f);
+        writer.putFloat(3, 9.81f);
+        writer.endRow();
+      }
+      writer.flush();
+      long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+      // Rows do not allocate. The JDK file channel may allocate a few hundred bytes once in a
+      // while, which is far less than a byte per row.
+      assertThat(allocatedBytes).isLessThan((long) rows / 100);
+    }
+  }
+
+  private static long timestamp(int row) {
+    return START_NS + row * PERIOD_NS;
+  }
+
+  private static float value(int row, int axis) {
+    if (row < SPECIAL_VALUES.length) {
+      return SPECIAL_VALUES[(row + axis) % SPECIAL_VALUES.length];
+    }
+    return (float) Math.sin(row * 0.01 + axis);
+  }
+
+  private static void writeRow(CalibrationDataWriter writer, int row) throws IOException {
+    writer.putLong(0, timestamp(row));
+    for (int axis = 0; axis < 3; axis++) {
+      writer.putFloat(axis + 1, value(row, axis));
+    }
+    writer.endRow();
+  }
+
+  private static String formatRow(int row) {
+    return String.format(
+        "%d %a %a %a", timestamp(row), value(row, 0), value(row, 1), value(row, 2));
+  }
+}
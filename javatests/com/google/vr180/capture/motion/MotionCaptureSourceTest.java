@@ -0,0 +1,667 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Pair;
+import com.google.vr180.capture.motion.MotionCaptureSource.LatencyMode;
+import com.google.vr180.media.MediaEncoder;
+import com.google.vr180.media.motion.MotionEncoder;
+import com.google.vr180.media.motion.MotionEvent;
+import com.google.vr180.media.motion.MotionEvent.CammType;
+import com.google.vr180.media.muxer.MediaMux;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MotionCaptureSourceTest {
+  private static final long START_NS = 1_000_000_000L;
+  // 1kHz for both sensors, with the accelerometer half a period behind the gyroscope.
+  private static final long PERIOD_NS = 1_000_000L;
+  private static final long ACCEL_OFFSET_NS = PERIOD_NS / 2;
+  private static final long IDLE_TIMEOUT_MS = 5000;
+  // Samples fed between waits for the fusion thread, to keep the queue sizes bounded.
+  private static final int FEED_CHUNK = 100;
+
+  private final float[] gyro = new float[6];
+  private final float[] accel = new float[3];
+  private FakeSensorFusion filter;
+  private MotionCaptureSource source;
+  private long nextSampleNs = START_NS;
+
+  @Before
+  public void setUp() {
+    filter = new FakeSensorFusion();
+    source = new MotionCaptureSource(RuntimeEnvironment.application, filter, 0);
+    assertThat(source.start()).isTrue();
+  }
+
+  @After
+  public void tearDown() {
+    source.release();
+  }
+
+  @Test
+  public void testSteadyStateDoesNotAllocateAt1kHz() throws Exception {
+    MediaFormat format = new MediaFormat();
+    format.setString(MediaFormat.KEY_MIME, "application/camm");
+    format.setInteger(MediaFormat.KEY_BIT_RATE, 0);
+    format.setInteger(MotionEncoder.KEY_EXTRA_CAMM_DATA, 1);
+    FakeMux mux = new FakeMux();
+    MotionEncoder encoder = new MotionEncoder(format, mux, new Handler());
+    assertThat(encoder.start()).isTrue();
+    CountingListener counter = new CountingListener();
+    source.addMotionEventListener(encoder::onMotionEvent);
+    source.addMotionEventListener(counter);
+
+    // Warm up the pools, rings, output buffers and compiled code.
+    feedSamples(20_000);
+    int writtenBefore = mux.writeCount;
+    int eventsBefore = counter.count;
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long fusionThreadId = source.getFusionThread().getId();
+    // Reading the counter may itself allocate.
+    long overhead = threadBean.getThreadAllocatedBytes(threadId);
+    overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    long fusionBefore = threadBean.getThreadAllocatedBytes(fusionThreadId);
+    feedSamples(10_000);
+    long fusionAllocatedBytes = threadBean.getThreadAllocatedBytes(fusionThreadId) - fusionBefore;
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+
+    assertThat(allocatedBytes).isEqualTo(0L);
+    // Allows for a few one-off allocations on the fusion thread, such as while the JIT recompiles,
+    // but not for one per sample.
+    assertThat(fusionAllocatedBytes).isLessThan(1024L);
+    // Every gyro sample yields a gyro and an orientation event, every accel sample one event.
+    assertThat(counter.count - eventsBefore).isEqualTo(30_000);
+    assertThat(mux.writeCount - writtenBefore).isEqualTo(30_000);
+  }
+
+  @Test
+  public void testEventsAreRecycledUnlessRetained() throws Exception {
+    List<MotionEvent> orientations = new ArrayList<>();
+    boolean[] retainNext = new boolean[1];
+    source.addMotionEventListener(
+        e -> {
+          if (e.type == CammType.ORIENTATION) {
+            orientations.add(retainNext[0] ? e.retain() : e);
+            retainNext[0] = false;
+          }
+        });
+
+    feedSamples(2);
+    // Released events are handed out again.
+    assertThat(orientations.get(1)).isSameAs(orientations.get(0));
+
+    retainNext[0] = true;
+    feedSamples(1);
+    MotionEvent retained = orientations.get(2);
+    long timestamp = retained.timestamp;
+    float[] values = retained.values.clone();
+    feedSamples(10);
+    assertThat(retained.timestamp).isEqualTo(timestamp);
+    assertThat(retained.values).isEqualTo(values);
+    for (int i = 3; i < orientations.size(); i++) {
+      assertThat(orientations.get(i)).isNotSameAs(retained);
+    }
+
+    retained.release();
+    orientations.clear();
+    feedSamples(1);
+    assertThat(orientations.get(0)).isSameAs(retained);
+  }
+
+  @Test
+  public void testMagneticFieldIsMergedInTimestampOrder() throws Exception {
+    List<MotionEvent> events = new ArrayList<>();
+    source.addMotionEventListener(
+        e -> {
+          if (e.type != CammType.ORIENTATION) {
+            events.add(e.retain());
+          }
+        });
+    float[] magnetic = {20f, -5f, 40f};
+
+    // The magnetometer runs at a tenth of the rate, and reports its samples ahead of the others.
+    for (int i = 0; i < 10; i++) {
+      source.onSensorSample(CammType.MAGNETIC_FIELD, magnetic, START_NS + i * 10 * PERIOD_NS + 2);
+    }
+    for (int i = 0; i < 100; i++) {
+      source.onSensorSample(CammType.GYROSCOPE, gyro, START_NS + i * PERIOD_NS);
+      source.onSensorSample(CammType.ACCELEROMETER, accel, START_NS + i * PERIOD_NS + 1);
+    }
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+    // Arrives after newer samples were output.
+    source.onSensorSample(CammType.MAGNETIC_FIELD, magnetic, START_NS + 50 * PERIOD_NS + 3);
+    source.onSensorSample(CammType.GYROSCOPE, gyro, START_NS + 100 * PERIOD_NS);
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+
+    int magneticCount = 0;
+    for (int i = 0; i < events.size(); i++) {
+      MotionEvent event = events.get(i);
+      if (i > 0) {
+        assertThat(event.timestamp).isGreaterThan(events.get(i - 1).timestamp);
+      }
+      if (event.type == CammType.MAGNETIC_FIELD) {
+        assertThat(event.values).isEqualTo(magnetic);
+        magneticCount++;
+      }
+      event.release();
+    }
+    assertThat(magneticCount).isEqualTo(10);
+    // Magnetic field samples are not fused.
+    assertThat(filter.gyroCount).isEqualTo(100);
+  }
+
+  @Test
+  public void testMergesSensorsInTimestampOrder() throws Exception {
+    List<Long> timestamps = new ArrayList<>();
+    source.addMotionEventListener(
+        e -> {
+          if (e.type != CammType.ORIENTATION) {
+            timestamps.add(e.timestamp);
+          }
+        });
+
+    // Queue more gyro samples than the initial ring capacity before any accel sample.
+    for (int i = 0; i < 200; i++) {
+      source.onSensorSample(CammType.GYROSCOPE, gyro, START_NS + i * PERIOD_NS);
+    }
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+    assertThat(timestamps).isEmpty();
+    for (int i = 0; i < 200; i++) {
+      source.onSensorSample(CammType.ACCELEROMETER, accel, START_NS + i * PERIOD_NS + 1);
+    }
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+
+    // The last accel sample waits for a later gyro sample.
+    assertThat(timestamps).hasSize(399);
+    for (int i = 1; i < timestamps.size(); i++) {
+      assertThat(timestamps.get(i)).isGreaterThan(timestamps.get(i - 1));
+    }
+    assertThat(filter.gyroCount).isEqualTo(200);
+    assertThat(filter.accelCount).isEqualTo(199);
+  }
+
+  @Test
+  public void testReplayedOrientationIsBitIdentical() throws Exception {
+    List<float[]> orientations = new ArrayList<>();
+    source.addMotionEventListener(
+        e -> {
+          if (e.type == CammType.ORIENTATION) {
+            orientations.add(e.values.clone());
+          }
+        });
+
+    // A 400Hz gyroscope and a 250Hz accelerometer with jittered timestamps, arriving in bursts as
+    // batched sensors deliver them.
+    Random random = new Random(1234);
+    List<float[]> gyroSamples = new ArrayList<>();
+    List<Long> gyroTimestamps = new ArrayList<>();
+    List<float[]> accelSamples = new ArrayList<>();
+    List<Long> accelTimestamps = new ArrayList<>();
+    long gyroNs = START_NS;
+    long accelNs = START_NS;
+    for (int i = 0; i < 4000; i++) {
+      gyroNs += 2_500_000L + random.nextInt(200_000) - 100_000;
+      gyroSamples.add(new float[] {random.nextFloat(), random.nextFloat(), random.nextFloat()});
+      gyroTimestamps.add(gyroNs);
+    }
+    for (int i = 0; i < 2500; i++) {
+      accelNs += 4_000_000L + random.nextInt(200_000) - 100_000;
+      accelSamples.add(new float[] {random.nextFloat(), random.nextFloat(), random.nextFloat()});
+      accelTimestamps.add(accelNs);
+    }
+    int gyroIndex = 0;
+    int accelIndex = 0;
+    while (gyroIndex < gyroSamples.size() || accelIndex < accelSamples.size()) {
+      int gyroEnd = Math.min(gyroSamples.size(), gyroIndex + random.nextInt(40));
+      for (; gyroIndex < gyroEnd; gyroIndex++) {
+        source.onSensorSample(
+            CammType.GYROSCOPE, gyroSamples.get(gyroIndex), gyroTimestamps.get(gyroIndex));
+      }
+      int accelEnd = Math.min(accelSamples.size(), accelIndex + random.nextInt(25));
+      for (; accelIndex < accelEnd; accelIndex++) {
+        source.onSensorSample(
+            CammType.ACCELEROMETER, accelSamples.get(accelIndex), accelTimestamps.get(accelIndex));
+      }
+      if (random.nextInt(4) == 0) {
+        assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+      }
+    }
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+
+    // The reference takes one measurement at a time, merged in timestamp order. This checks the
+    // batching of the fusion thread; the native batch entry point is compared with the single
+    // measurement one in cpp/sensor_fusion/measurement_batch_test.cc.
+    FakeSensorFusion reference = new FakeSensorFusion();
+    List<float[]> expected = new ArrayList<>();
+    gyroIndex = 0;
+    accelIndex = 0;
+    while (gyroIndex < gyroSamples.size() && accelIndex < accelSamples.size()) {
+      if (gyroTimestamps.get(gyroIndex) < accelTimestamps.get(accelIndex)) {
+        reference.addGyroMeasurement(gyroSamples.get(gyroIndex), gyroTimestamps.get(gyroIndex));
+        float[] orientation = new float[3];
+        reference.getOrientation(orientation);
+        expected.add(orientation);
+        gyroIndex++;
+      } else {
+        reference.addAccelMeasurement(
+            accelSamples.get(accelIndex), accelTimestamps.get(accelIndex));
+        accelIndex++;
+      }
+    }
+
+    assertThat(orientations).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      for (int j = 0; j < 3; j++) {
+        assertThat(Float.floatToIntBits(orientations.get(i)[j]))
+            .isEqualTo(Float.floatToIntBits(expected.get(i)[j]));
+      }
+    }
+  }
+
+  @Test
+  public void testLatencyBudgetFollowsMode() {
+    FakeSensorManager sensors = useFakeSensors();
+    source.setLatencyBudget(LatencyMode.RECORDING, 80_000);
+    assertThat(source.configure(200, null)).isTrue();
+    assertThat(sensors.getLatencyUs(sensors.gyro))
+        .isEqualTo(MotionCaptureSource.DEFAULT_VIEWFINDER_LATENCY_US);
+    assertThat(sensors.getLatencyUs(sensors.accel))
+        .isEqualTo(MotionCaptureSource.DEFAULT_VIEWFINDER_LATENCY_US);
+    assertThat(sensors.getIntervalUs(sensors.gyro)).isEqualTo(5_000);
+
+    source.configureLatency(LatencyMode.RECORDING);
+    assertThat(sensors.flushCount).isEqualTo(1);
+    assertThat(sensors.getLatencyUs(sensors.gyro)).isEqualTo(80_000);
+    assertThat(sensors.getLatencyUs(sensors.accel)).isEqualTo(80_000);
+    assertThat(sensors.getIntervalUs(sensors.accel)).isEqualTo(5_000);
+
+    source.configureLatency(LatencyMode.IDLE);
+    assertThat(sensors.getLatencyUs(sensors.gyro))
+        .isEqualTo(MotionCaptureSource.DEFAULT_IDLE_LATENCY_US);
+    assertThat(sensors.getIntervalUs(sensors.gyro)).isEqualTo(20_000);
+
+    // Flushes that don't change the mode keep the registration.
+    int registerCount = sensors.registerCount;
+    source.stop();
+    assertThat(sensors.registerCount).isEqualTo(registerCount);
+    source.configureLatency(LatencyMode.IDLE);
+    assertThat(sensors.registerCount).isEqualTo(registerCount);
+  }
+
+  @Test
+  public void testOutOfPhaseBurstsAreMergedInTimestampOrder() throws Exception {
+    FakeSensorManager sensors = useFakeSensors();
+    assertThat(source.configure(1000, null)).isTrue();
+    List<MotionEvent> events = new ArrayList<>();
+    source.addMotionEventListener(e -> events.add(e.retain()));
+
+    // A 1kHz gyroscope batched every 50ms, and a 400Hz accelerometer batched every 80ms starting
+    // about 30ms later. The batches arrive in the order the sensor hub reports them.
+    long gyroPeriodNs = 1_000_000L;
+    long accelPeriodNs = 2_500_000L;
+    long gyroBatchNs = 50_000_000L;
+    long accelBatchNs = 80_000_000L;
+    long accelStartNs = START_NS + 30_300_000L;
+    long gyroNs = START_NS;
+    long accelNs = accelStartNs;
+    long gyroReportNs = START_NS + gyroBatchNs;
+    long accelReportNs = accelStartNs + accelBatchNs;
+    long endNs = START_NS + 1_000_000_000L;
+    int gyroCount = 0;
+    int accelCount = 0;
+    while (gyroReportNs <= endNs || accelReportNs <= endNs) {
+      if (gyroReportNs <= accelReportNs) {
+        for (; gyroNs < gyroReportNs; gyroNs += gyroPeriodNs, gyroCount++) {
+          sensors.deliver(sensors.gyro, gyroNs);
+        }
+        gyroReportNs += gyroBatchNs;
+      } else {
+        for (; accelNs < accelReportNs; accelNs += accelPeriodNs, accelCount++) {
+          sensors.deliver(sensors.accel, accelNs);
+        }
+        accelReportNs += accelBatchNs;
+      }
+    }
+    assertThat(source.awaitFusionIdle(IDLE_TIMEOUT_MS)).isTrue();
+
+    long lastTimestamp = 0;
+    int mergedGyroCount = 0;
+    int mergedAccelCount = 0;
+    for (int i = 0; i < events.size(); i++) {
+      MotionEvent event = events.get(i);
+      if (event.type == CammType.ORIENTATION) {
+        // Follows the gyro sample it was fused from.
+        assertThat(events.get(i - 1).type).isEqualTo(CammType.GYROSCOPE);
+        assertThat(event.timestamp).isEqualTo(lastTimestamp);
+        continue;
+      }
+      assertThat(event.timestamp).isGreaterThan(lastTimestamp);
+      lastTimestamp = event.timestamp;
+      if (event.type == CammType.GYROSCOPE) {
+        mergedGyroCount++;
+      } else {
+        mergedAccelCount++;
+      }
+    }
+    // Only the samples after the last sample of the other sensor wait for more samples.
+    long lastGyroNs = gyroNs - gyroPeriodNs;
+    long lastAccelNs = accelNs - accelPeriodNs;
+    assertThat(lastGyroNs).isGreaterThan(lastAccelNs);
+    assertThat(mergedAccelCount).isEqualTo(accelCount);
+    assertThat(mergedGyroCount)
+        .isEqualTo((int) ((lastAccelNs - START_NS) / gyroPeriodNs) + 1);
+    assertThat(mergedGyroCount).isLessThan(gyroCount);
+    for (MotionEvent event : events) {
+      event.release();
+    }
+  }
+
+  @Test
+  public void testEstimateWakeupsPerSecond() {
+    // Without a FIFO, every sample wakes up the processor.
+    assertThat(MotionCaptureSource.estimateWakeupsPerSecond(5_000, 100_000, 0)).isEqualTo(200f);
+    // Without a latency budget, samples are not batched.
+    assertThat(MotionCaptureSource.estimateWakeupsPerSecond(5_000, 0, 3000)).isEqualTo(200f);
+    // The latency budget limits the batches.
+    assertThat(MotionCaptureSource.estimateWakeupsPerSecond(5_000, 100_000, 3000)).isEqualTo(10f);
+    // A small FIFO fills up before the latency budget runs out.
+    assertThat(MotionCaptureSource.estimateWakeupsPerSecond(5_000, 100_000, 10)).isEqualTo(20f);
+  }
+
+  // Replaces the source with one that uses fake sensors.
+  private FakeSensorManager useFakeSensors() {
+    source.release();
+    FakeSensorManager sensors = new FakeSensorManager();
+    source = new MotionCaptureSource(sensors, filter, 0);
+    assertThat(source.start()).isTrue();
+    return sensors;
+  }
+
+  private void feedSamples(int count) throws InterruptedException {
+    for (int i = 0; i < count; i++) {
+      gyro[0] = 0.01f * (i % 7);
+      accel[2] = 9.8f;
+      source.onSensorSample(CammType.GYROSCOPE, gyro, nextSampleNs);
+      source.onSensorSample(CammType.ACCELEROMETER, accel, nextSampleNs + ACCEL_OFFSET_NS);
+      nextSampleNs += PERIOD_NS;
+      // Not using assertThat, which allocates.
+      if (((i + 1) % FEED_CHUNK == 0 || i == count - 1)
+          && !source.awaitFusionIdle(IDLE_TIMEOUT_MS)) {
+        throw new AssertionError("Timed out waiting for sensor fusion");
+      }
+    }
+  }
+
+  /**
+   * Integrates the gyroscope, and nudges the angles towards the accelerometer, so that the output
+   * depends on the order of the measurements. Does not need the native library.
+   */
+  private static final class FakeSensorFusion extends SensorFusion {
+    private final float[] angles = new float[3];
+    private final float[] sample = new float[3];
+    private final float[] orientation = new float[3];
+    private long lastGyroNs;
+    int gyroCount;
+    int accelCount;
+
+    FakeSensorFusion() {
+      super(new float[9]);
+    }
+
+    @Override
+    public void init() {}
+
+    @Override
+    public void release() {}
+
+    @Override
+    public void addGyroMeasurement(float[] sample, long timestampNs) {
+      if (lastGyroNs > 0) {
+        for (int i = 0; i < angles.length; i++) {
+          angles[i] += sample[i] * (timestampNs - lastGyroNs) * 1e-9f;
+        }
+      }
+      lastGyroNs = timestampNs;
+      gyroCount++;
+    }
+
+    @Override
+    public void addAccelMeasurement(float[] sample, long timestampNs) {
+      for (int i = 0; i < angles.length; i++) {
+        angles[i] = angles[i] * 0.99f + sample[i] * 0.01f;
+      }
+      accelCount++;
+    }
+
+    @Override
+    public void addMeasurements(
+        int count, int[] types, float[] samples, long[] timestampsNs, float[] orientations) {
+      for (int i = 0; i < count; i++) {
+        System.arraycopy(samples, i * 3, sample, 0, 3);
+        if (types[i] == MEASUREMENT_GYRO) {
+          addGyroMeasurement(sample, timestampsNs[i]);
+          getOrientation(orientation);
+          System.arraycopy(orientation, 0, orientations, i * 3, 3);
+        } else {
+          addAccelMeasurement(sample, timestampsNs[i]);
+        }
+      }
+    }
+
+    @Override
+    public void getOrientation(float[] orientation) {
+      System.arraycopy(angles, 0, orientation, 0, angles.length);
+    }
+
+    @Override
+    public void setGyroBias(float[] bias) {}
+
+    @Override
+    public void recenter() {}
+  }
+
+  /** Records sensor registrations, and delivers sensor events and flushes right away. */
+  private static final class FakeSensorManager extends MotionSensorManager {
+    final Sensor gyro = newSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED, 3000);
+    final Sensor accel = newSensor(Sensor.TYPE_ACCELEROMETER, 3000);
+    private final int[] intervalsUs = new int[2];
+    private final int[] latenciesUs = new int[2];
+    private SensorEventListener2 listener;
+    int registerCount;
+    int flushCount;
+
+    FakeSensorManager() {
+      super(null);
+    }
+
+    @Override
+    Sensor getDefaultSensor(int type) {
+      return type == Sensor.TYPE_ACCELEROMETER ? accel : gyro;
+    }
+
+    @Override
+    boolean registerListener(
+        SensorEventListener2 listener,
+        Sensor sensor,
+        int samplingPeriodUs,
+        int maxReportLatencyUs,
+        Handler handler) {
+      this.listener = listener;
+      intervalsUs[index(sensor)] = samplingPeriodUs;
+      latenciesUs[index(sensor)] = maxReportLatencyUs;
+      registerCount++;
+      return true;
+    }
+
+    @Override
+    void unregisterListener(SensorEventListener2 listener) {
+      intervalsUs[0] = intervalsUs[1] = 0;
+    }
+
+    @Override
+    void unregisterListener(SensorEventListener2 listener, Sensor sensor) {
+      intervalsUs[index(sensor)] = 0;
+    }
+
+    @Override
+    boolean flush(SensorEventListener2 listener) {
+      flushCount++;
+      listener.onFlushCompleted(gyro);
+      listener.onFlushCompleted(accel);
+      return true;
+    }
+
+    int getIntervalUs(Sensor sensor) {
+      return intervalsUs[index(sensor)];
+    }
+
+    int getLatencyUs(Sensor sensor) {
+      return latenciesUs[index(sensor)];
+    }
+
+    void deliver(Sensor sensor, long timestampNs) {
+      SensorEvent event =
+          ReflectionHelpers.callConstructor(
+              SensorEvent.class, ClassParameter.from(int.class, sensor == gyro ? 6 : 3));
+      event.sensor = sensor;
+      event.timestamp = timestampNs;
+      event.values[0] = 0.1f;
+      listener.onSensorChanged(event);
+    }
+
+    private int index(Sensor sensor) {
+      return sensor == gyro ? 0 : 1;
+    }
+
+    private static Sensor newSensor(int type, int fifoMaxEventCount) {
+      Sensor sensor = ReflectionHelpers.callConstructor(Sensor.class);
+      ReflectionHelpers.setField(sensor, "mType", type);
+      ReflectionHelpers.setField(sensor, "mFifoMaxEventCount", fifoMaxEventCount);
+      return sensor;
+    }
+  }
+
+  private static final class CountingListener
+      implements MotionCaptureSource.MotionEventListener {
+    int count;
+
+    @Override
+    public void onMotionEvent(MotionEvent e) {
+      count++;
+    }
+  }
+
+  /** Writes samples by releasing them right away, without allocating. */
+  private static final class FakeMux implements MediaMux {
+    private MediaEncoder encoder;
+    int writeCount;
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public int addTrack(MediaFormat format, MediaEncoder encoder) {
+      this.encoder = encoder;
+      return 0;
+    }
+
+    @Override
+    public boolean hasAllTracks() {
+      return true;
+    }
+
+    @Override
+    public int prepare() {
+      return 0;
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      return true;
+    }
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isStarted() {
+      return true;
+    }
+
+    @Override
+    public boolean writeSampleDataAsync(
+        int trackIndex, int bufferIndex, MediaCodec.BufferInfo bufferInfo) {
+      if (encoder.getOutputBuffer(bufferIndex).remaining() == bufferInfo.size) {
+        writeCount++;
+      }
+      encoder.releaseOutputBuffer(bufferIndex);
+      return true;
+    }
+
+    @Override
+    public void cleanupPartialResults() {}
+
+    @Override
+    public long getBytesWritten() {
+      return 0;
+    }
+
+    @Override
+    public int getOutputBufferUsed() {
+      return 0;
+    }
+
+    @Override
+    public Pair<Integer, Integer> getCurrentByteThroughput() {
+      return null;
+    }
+
+    @Override
+    public void setOutputBufferLimit(int bytes) {}
+  }
+}
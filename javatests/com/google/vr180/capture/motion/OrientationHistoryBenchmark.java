@@ -0,0 +1,81 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the time of an interpolated OrientationHistory lookup, compared to a floor lookup in a
+ * ConcurrentSkipListMap. Not part of the default tests; run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OrientationHistoryBenchmark {
+  private static final long START_NS = 1_000_000_000L;
+  private static final long PERIOD_NS = 5_000_000L;
+  private static final int CAPACITY = 2048;
+  private static final int LOOKUPS = 1_000_000;
+
+  @Test
+  public void benchmarkLookup() {
+    OrientationHistory history = new OrientationHistory(CAPACITY);
+    ConcurrentSkipListMap<Long, float[]> map = new ConcurrentSkipListMap<>();
+    // Wrap the ring around, so that lookups also cover the physical index math.
+    for (int i = 0; i < CAPACITY + CAPACITY / 2; i++) {
+      // Rotation at 2 rad/s about a tilted axis.
+      float angle = (float) (2 * i * PERIOD_NS * 1e-9 % Math.PI);
+      float[] sample = {0.6f * angle, 0, 0.8f * angle};
+      history.add(START_NS + i * PERIOD_NS, sample);
+      map.put(START_NS + i * PERIOD_NS, sample);
+    }
+    long firstNs = START_NS + (CAPACITY / 2) * PERIOD_NS;
+    long spanNs = (CAPACITY - 1) * PERIOD_NS;
+    float[] orientation = new float[3];
+    float checksum = 0;
+    // Warm up the compiled code.
+    for (int i = 0; i < LOOKUPS; i++) {
+      history.getOrientation(firstNs + (i * 7919L) % spanNs, orientation);
+      Entry<Long, float[]> entry = map.floorEntry(firstNs + (i * 7919L) % spanNs);
+      checksum += orientation[0] + entry.getValue()[0];
+    }
+
+    long startNs = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      history.getOrientation(firstNs + (i * 7919L) % spanNs, orientation);
+      checksum += orientation[0];
+    }
+    long historyNs = System.nanoTime() - startNs;
+
+    startNs = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      checksum += map.floorEntry(firstNs + (i * 7919L) % spanNs).getValue()[0];
+    }
+    long mapNs = System.nanoTime() - startNs;
+
+    System.out.println(
+        "OrientationHistory: "
+            + historyNs / LOOKUPS
+            + " ns per interpolated lookup, ConcurrentSkipListMap.floorEntry: "
+            + mapNs / LOOKUPS
+            + " ns per lookup ("
+            + checksum
+            + ")");
+  }
+}
@@ -0,0 +1,240 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.motion;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OrientationHistoryTest {
+  private static final long START_NS = 1_000_000_000L;
+  // 200Hz, as sampled by the capture pipeline.
+  private static final long PERIOD_NS = 5_000_000L;
+
+  @Test
+  public void testEmptyHistoryReturnsZeros() {
+    OrientationHistory history = new OrientationHistory(4);
+    float[] orientation = {1, 2, 3};
+    assertThat(history.getOrientation(START_NS, orientation)).isFalse();
+    assertThat(orientation).isEqualTo(new float[] {0, 0, 0});
+  }
+
+  @Test
+  public void testInterpolatesRotationAboutFixedAxis() {
+    // A fast pan at 3 rad/s about a tilted axis, where the sample before a time is up to 15 mrad
+    // off.
+    double[] axis = normalize(1, 2, 3);
+    double rate = 3;
+    OrientationHistory history = new OrientationHistory(1024);
+    for (int i = 0; i < 200; i++) {
+      double t = i * PERIOD_NS * 1e-9;
+      history.add(START_NS + i * PERIOD_NS, toAngleAxis(axisAngle(axis, rate * t)));
+    }
+
+    Random random = new Random(1);
+    float[] orientation = new float[3];
+    double maxError = 0;
+    double maxFloorError = 0;
+    for (int i = 0; i < 1000; i++) {
+      long offsetNs = (long) (random.nextDouble() * 199 * PERIOD_NS);
+      double[] expected = axisAngle(axis, rate * offsetNs * 1e-9);
+      assertThat(history.getOrientation(START_NS + offsetNs, orientation)).isTrue();
+      maxError = Math.max(maxError, angleBetween(fromAngleAxis(orientation), expected));
+      double floorT = (offsetNs / PERIOD_NS) * PERIOD_NS * 1e-9;
+      maxFloorError =
+          Math.max(maxFloorError, angleBetween(axisAngle(axis, rate * floorT), expected));
+    }
+    assertThat(maxError).isLessThan(1e-5);
+    assertThat(maxFloorError).isGreaterThan(1e-2);
+  }
+
+  @Test
+  public void testInterpolatesCombinedRotation() {
+    // Panning and tilting at once, which does not follow a great circle between samples.
+    OrientationHistory history = new OrientationHistory(1024);
+    for (int i = 0; i < 200; i++) {
+      history.add(START_NS + i * PERIOD_NS, toAngleAxis(panAndTilt(i * PERIOD_NS * 1e-9)));
+    }
+
+    float[] orientation = new float[3];
+    double maxError = 0;
+    for (long offsetNs = 0; offsetNs < 199 * PERIOD_NS; offsetNs += PERIOD_NS / 7) {
+      assertThat(history.getOrientation(START_NS + offsetNs, orientation)).isTrue();
+      double[] expected = panAndTilt(offsetNs * 1e-9);
+      maxError = Math.max(maxError, angleBetween(fromAngleAxis(orientation), expected));
+    }
+    assertThat(maxError).isLessThan(1e-4);
+  }
+
+  @Test
+  public void testInterpolatesAcrossHalfTurn() {
+    // Angle axis values flip the axis past half a turn, the quaternions must not.
+    double[] axis = {0, 0, 1};
+    OrientationHistory history = new OrientationHistory(4);
+    history.add(START_NS, toAngleAxis(axisAngle(axis, 3.0)));
+    history.add(START_NS + PERIOD_NS, toAngleAxis(axisAngle(axis, 3.3)));
+
+    float[] orientation = new float[3];
+    assertThat(history.getOrientation(START_NS + PERIOD_NS / 2, orientation)).isTrue();
+    assertThat(angleBetween(fromAngleAxis(orientation), axisAngle(axis, 3.15))).isLessThan(1e-5);
+  }
+
+  @Test
+  public void testReturnsSamplesAtTheirTimestamps() {
+    OrientationHistory history = new OrientationHistory(8);
+    float[] first = {0.1f, -0.2f, 0.3f};
+    float[] second = {0.2f, -0.1f, 0.4f};
+    history.add(START_NS, first);
+    history.add(START_NS + PERIOD_NS, second);
+
+    float[] orientation = new float[3];
+    assertThat(history.getOrientation(START_NS, orientation)).isTrue();
+    assertClose(orientation, first);
+    assertThat(history.getOrientation(START_NS + PERIOD_NS, orientation)).isTrue();
+    assertClose(orientation, second);
+  }
+
+  @Test
+  public void testIgnoresSamplesThatAreNotNewer() {
+    OrientationHistory history = new OrientationHistory(8);
+    float[] sample = {0.1f, 0.2f, 0.3f};
+    history.add(START_NS, sample);
+    history.add(START_NS, new float[] {1, 1, 1});
+    history.add(START_NS - PERIOD_NS, new float[] {1, 1, 1});
+    assertThat(history.size()).isEqualTo(1);
+
+    float[] orientation = new float[3];
+    assertThat(history.getOrientation(START_NS, orientation)).isTrue();
+    assertClose(orientation, sample);
+  }
+
+  @Test
+  public void testHistoryIsBounded() {
+    OrientationHistory history = new OrientationHistory(16);
+    for (int i = 0; i < 100; i++) {
+      history.add(START_NS + i * PERIOD_NS, new float[] {0.01f * i, 0, 0});
+    }
+    assertThat(history.size()).isEqualTo(16);
+
+    float[] orientation = new float[3];
+    // Times before the oldest sample get the oldest orientation.
+    assertThat(history.getOrientation(START_NS, orientation)).isFalse();
+    assertClose(orientation, new float[] {0.84f, 0, 0});
+    // Times after the newest sample get the newest orientation.
+    assertThat(history.getOrientation(START_NS + 100 * PERIOD_NS, orientation)).isFalse();
+    assertClose(orientation, new float[] {0.99f, 0, 0});
+    assertThat(history.getOrientation(START_NS + 90 * PERIOD_NS + PERIOD_NS / 2, orientation))
+        .isTrue();
+    assertClose(orientation, new float[] {0.905f, 0, 0});
+
+    history.clear();
+    assertThat(history.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLookupDoesNotAllocate() {
+    int capacity = 2048;
+    int lookups = 100_000;
+    OrientationHistory history = new OrientationHistory(capacity);
+    // Wrap the ring around, so that lookups also cover the physical index math.
+    for (int i = 0; i < capacity + capacity / 2; i++) {
+      history.add(START_NS + i * PERIOD_NS, toAngleAxis(panAndTilt(i * PERIOD_NS * 1e-9)));
+    }
+    long firstNs = START_NS + (capacity / 2) * PERIOD_NS;
+    long spanNs = (capacity - 1) * PERIOD_NS;
+    float[] orientation = new float[3];
+    // Warm up the compiled code.
+    for (int i = 0; i < lookups; i++) {
+      history.getOrientation(firstNs + (i * 7919L) % spanNs, orientation);
+    }
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    // Reading the counter may itself allocate.
+    long overhead = threadBean.getThreadAllocatedBytes(threadId);
+    overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < lookups; i++) {
+      history.getOrientation(firstNs + (i * 7919L) % spanNs, orientation);
+    }
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+    assertThat(allocatedBytes).isEqualTo(0L);
+  }
+
+  private static void assertClose(float[] actual, float[] expected) {
+    for (int i = 0; i < expected.length; i++) {
+      assertThat((double) Math.abs(actual[i] - expected[i])).isLessThan(1e-5);
+    }
+  }
+
+  // Rotation at 2 rad/s about z after 1.5 rad/s about x, as quaternion x, y, z, w.
+  private static double[] panAndTilt(double t) {
+    return multiply(
+        axisAngle(new double[] {0, 0, 1}, 2 * t), axisAngle(new double[] {1, 0, 0}, 1.5 * t));
+  }
+
+  private static double[] normalize(double x, double y, double z) {
+    double norm = Math.sqrt(x * x + y * y + z * z);
+    return new double[] {x / norm, y / norm, z / norm};
+  }
+
+  private static double[] axisAngle(double[] axis, double angle) {
+    double sin = Math.sin(angle / 2);
+    return new double[] {axis[0] * sin, axis[1] * sin, axis[2] * sin, Math.cos(angle / 2)};
+  }
+
+  private static double[] multiply(double[] a, double[] b) {
+    return new double[] {
+      a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+      a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+      a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+      a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2]
+    };
+  }
+
+  // Converts to an angle axis with the angle in [0, pi], like the sensor fusion output.
+  private static float[] toAngleAxis(double[] q) {
+    double sign = q[3] < 0 ? -1 : 1;
+    double sinHalfAngle = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2]);
+    double angle = 2 * Math.atan2(sinHalfAngle, sign * q[3]);
+    double scale = sinHalfAngle == 0 ? 0 : sign * angle / sinHalfAngle;
+    return new float[] {(float) (q[0] * scale), (float) (q[1] * scale), (float) (q[2] * scale)};
+  }
+
+  private static double[] fromAngleAxis(float[] angleAxis) {
+    double x = angleAxis[0];
+    double y = angleAxis[1];
+    double z = angleAxis[2];
+    double angle = Math.sqrt(x * x + y * y + z * z);
+    if (angle == 0) {
+      return new double[] {0, 0, 0, 1};
+    }
+    return axisAngle(new double[] {x / angle, y / angle, z / angle}, angle);
+  }
+
+  // The angle of the rotation between two orientations.
+  private static double angleBetween(double[] a, double[] b) {
+    double dot = Math.abs(a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3]);
+    return 2 * Math.acos(Math.min(1, dot));
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.photo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PhotoBufferPoolTest {
+  // A 5.7K stereo RGBA photo, with rows padded to a 64 byte stride.
+  private static final int WIDTH = 5760;
+  private static final int HEIGHT = 2880;
+  private static final int STRIDE = WIDTH * 4 + 64;
+  private static final int SIZE = STRIDE * HEIGHT;
+  private static final int QUEUE_SIZE = 4;
+
+  @Test
+  public void testBurstDoesNotAllocateLargeBuffers() {
+    PhotoBufferPool pool = new PhotoBufferPool(QUEUE_SIZE, WIDTH * HEIGHT * 4);
+    // The image reader plane, which like the one of a real image is a direct buffer that ends
+    // without padding after the last row.
+    ByteBuffer plane = ByteBuffer.allocateDirect(SIZE - 64);
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    // The first photo allocates the buffer.
+    takePhoto(pool, plane, 0);
+    // Reading the counter may itself allocate.
+    long overhead = threadBean.getThreadAllocatedBytes(threadId);
+    overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 1; i < 20; i++) {
+      takePhoto(pool, plane, i);
+    }
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+
+    assertThat(pool.getAllocationCount()).isEqualTo(1);
+    // Only small buffer views are allocated, rather than a copy of each photo.
+    assertThat(allocatedBytes).isLessThan(64 * 1024L);
+  }
+
+  @Test
+  public void testCopyReadsPixelsFromTheStart() {
+    ByteBuffer plane = ByteBuffer.allocateDirect(100);
+    for (int i = 0; i < plane.capacity(); i++) {
+      plane.put(i, (byte) i);
+    }
+    plane.position(10);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(200);
+    buffer.position(50);
+
+    PhotoBufferPool.copy(plane, 40, buffer);
+
+    assertThat(buffer.position()).isEqualTo(0);
+    assertThat(buffer.limit()).isEqualTo(40);
+    assertThat((int) buffer.get(0)).isEqualTo(10);
+    assertThat((int) buffer.get(39)).isEqualTo(49);
+    // The plane is unchanged.
+    assertThat(plane.position()).isEqualTo(10);
+    assertThat(plane.limit()).isEqualTo(100);
+  }
+
+  @Test
+  public void testBuffersAreBoundedByQueueSize() throws Exception {
+    PhotoBufferPool pool = new PhotoBufferPool(2, 1024);
+    ByteBuffer first = pool.acquire(1024);
+    ByteBuffer second = pool.acquire(1024);
+    assertThat(first.isDirect()).isTrue();
+    assertThat(second).isNotSameAs(first);
+
+    AtomicReference<ByteBuffer> third = new AtomicReference<>();
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                third.set(pool.acquire(1024));
+                acquired.countDown();
+              } catch (InterruptedException e) {
+                // The test fails below.
+              }
+            });
+    thread.start();
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    pool.release(first);
+    assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(third.get()).isSameAs(first);
+    assertThat(pool.getAllocationCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testLargerPhotosReplaceBuffers() throws Exception {
+    PhotoBufferPool pool = new PhotoBufferPool(1, 1024);
+    ByteBuffer small = pool.acquire(1000);
+    assertThat(small.capacity()).isEqualTo(1024);
+    pool.release(small);
+
+    ByteBuffer large = pool.acquire(2048);
+    assertThat(large.capacity()).isEqualTo(2048);
+    pool.release(large);
+    // The small buffer was dropped, so the pool is still bounded.
+    assertThat(pool.acquire(1000)).isSameAs(large);
+    assertThat(pool.getAllocationCount()).isEqualTo(2);
+  }
+
+  private static void takePhoto(PhotoBufferPool pool, ByteBuffer plane, int id) {
+    plane.put(0, (byte) id);
+    ByteBuffer buffer;
+    try {
+      buffer = pool.acquire(SIZE);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+    try {
+      PhotoBufferPool.copy(plane, SIZE, buffer);
+      assertThat(buffer.isDirect()).isTrue();
+      assertThat(buffer.remaining()).isEqualTo(plane.capacity());
+      assertThat((int) buffer.get(0)).isEqualTo(id);
+    } finally {
+      pool.release(buffer);
+    }
+  }
+}
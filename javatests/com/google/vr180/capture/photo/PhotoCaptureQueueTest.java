@@ -0,0 +1,302 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.capture.photo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.hardware.camera2.CaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.view.Surface;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PhotoCaptureQueueTest {
+  private static final int QUEUE_SIZE = 8;
+  private static final long TIMEOUT_MS = 5000;
+
+  private Image image;
+  private ImageReader reader;
+  private FakeEncoder encoder;
+  private PhotoCaptureQueue queue;
+
+  @Before
+  public void setUp() {
+    image = Mockito.mock(Image.class);
+    reader = Mockito.mock(ImageReader.class);
+    Mockito.when(reader.acquireNextImage()).thenReturn(image);
+    encoder = new FakeEncoder();
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.close();
+    }
+  }
+
+  @Test
+  public void testResultsAreReportedInCaptureOrder() throws Exception {
+    queue = new PhotoCaptureQueue(encoder, QUEUE_SIZE, 4);
+    // Later photos finish first.
+    for (int i = 0; i < QUEUE_SIZE; i++) {
+      encoder.setEncodeTimeMs(i, (QUEUE_SIZE - i) * 10);
+    }
+
+    capture(QUEUE_SIZE);
+    waitForPhotos();
+
+    assertThat(encoder.getSavedPaths()).isEqualTo(getPathRange(0, QUEUE_SIZE));
+    assertThat(encoder.getMaxConcurrentPhotos()).isEqualTo(4);
+  }
+
+  @Test
+  public void testWorkersEncodeInParallel() throws Exception {
+    for (int workerCount : new int[] {1, 4}) {
+      encoder = new FakeEncoder();
+      encoder.block();
+      queue = new PhotoCaptureQueue(encoder, QUEUE_SIZE, workerCount);
+
+      capture(QUEUE_SIZE);
+      // Every worker takes a photo before any of them finishes.
+      encoder.awaitConcurrentPhotos(workerCount);
+      encoder.unblock();
+      waitForPhotos();
+
+      assertThat(encoder.getSavedPaths()).isEqualTo(getPathRange(0, QUEUE_SIZE));
+      assertThat(encoder.getMaxConcurrentPhotos()).isEqualTo(workerCount);
+      queue.close();
+    }
+  }
+
+  @Test
+  public void testFailedPhotosDoNotBlockLaterOnes() throws Exception {
+    queue = new PhotoCaptureQueue(encoder, 4, 2);
+    encoder.setEncodeTimeMs(1, 100);
+    encoder.setFailure(1);
+
+    capture(4);
+    waitForPhotos();
+
+    assertThat(encoder.getSavedPaths()).isEqualTo(getPaths(0, 2, 3));
+  }
+
+  @Test
+  public void testImagesAreClosedWhenProcessingThrows() throws Exception {
+    queue = new PhotoCaptureQueue(encoder, 2, 1);
+    encoder.setException(0);
+
+    capture(2);
+    waitForPhotos();
+
+    assertThat(encoder.getSavedPaths()).isEqualTo(getPaths(1));
+    // Once for the photo that threw, and twice for the saved one, which the queue closes again.
+    Mockito.verify(image, Mockito.times(3)).close();
+  }
+
+  @Test
+  public void testQueueIsFullUntilPhotosAreReported() throws Exception {
+    queue = new PhotoCaptureQueue(encoder, 2, 2);
+    encoder.block();
+
+    queue.addPhotoRequest(0, getPath(0));
+    assertThat(queue.isFull()).isFalse();
+    queue.addPhotoRequest(1, getPath(1));
+    assertThat(queue.isFull()).isTrue();
+    queue.onImageAvailable(reader);
+    queue.onImageAvailable(reader);
+    encoder.awaitConcurrentPhotos(2);
+    // Both workers are busy, so capture waits for them.
+    assertThat(queue.isFull()).isTrue();
+    assertThat(queue.hasPendingRequests()).isTrue();
+
+    encoder.unblock();
+    waitForPhotos();
+    assertThat(queue.isFull()).isFalse();
+    assertThat(encoder.getSavedPaths()).isEqualTo(getPathRange(0, 2));
+  }
+
+  @Test
+  public void testImagesWithoutRequestsAreDropped() throws Exception {
+    queue = new PhotoCaptureQueue(encoder, 2, 1);
+
+    queue.onImageAvailable(reader);
+
+    assertThat(queue.hasPendingRequests()).isFalse();
+    assertThat(encoder.getSavedPaths()).isEmpty();
+  }
+
+  private void capture(int count) {
+    for (int i = 0; i < count; i++) {
+      queue.addPhotoRequest(i, getPath(i));
+    }
+    for (int i = 0; i < count; i++) {
+      queue.onImageAvailable(reader);
+    }
+  }
+
+  private void waitForPhotos() throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (queue.hasPendingRequests()) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+      Thread.sleep(1);
+    }
+  }
+
+  private static String getPath(int id) {
+    return "/sdcard/DCIM/photo_" + id + ".vr.jpg";
+  }
+
+  private static List<String> getPathRange(int start, int end) {
+    List<String> paths = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      paths.add(getPath(i));
+    }
+    return paths;
+  }
+
+  private static List<String> getPaths(int... ids) {
+    List<String> paths = new ArrayList<>();
+    for (int id : ids) {
+      paths.add(getPath(id));
+    }
+    return paths;
+  }
+
+  /** A photo capturer which takes a set time to encode each photo. */
+  private static class FakeEncoder implements PhotoCapturer {
+    private final long[] encodeTimesMs = new long[QUEUE_SIZE];
+    private final boolean[] failures = new boolean[QUEUE_SIZE];
+    private final boolean[] exceptions = new boolean[QUEUE_SIZE];
+    private final List<String> savedPaths = new ArrayList<>();
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+    private boolean blocked;
+    private int concurrentPhotos;
+    private int maxConcurrentPhotos;
+
+    void setEncodeTimeMs(int id, long timeMs) {
+      encodeTimesMs[id] = timeMs;
+    }
+
+    void setFailure(int id) {
+      failures[id] = true;
+    }
+
+    void setException(int id) {
+      exceptions[id] = true;
+    }
+
+    synchronized void block() {
+      blocked = true;
+    }
+
+    void unblock() {
+      unblocked.countDown();
+    }
+
+    synchronized void awaitConcurrentPhotos(int count) throws InterruptedException {
+      long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      while (concurrentPhotos < count) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        wait(TIMEOUT_MS);
+      }
+    }
+
+    synchronized List<String> getSavedPaths() {
+      return new ArrayList<>(savedPaths);
+    }
+
+    synchronized int getMaxConcurrentPhotos() {
+      return maxConcurrentPhotos;
+    }
+
+    @Override
+    public String processPhoto(Image image, int id, String path) {
+      boolean wait;
+      synchronized (this) {
+        concurrentPhotos++;
+        maxConcurrentPhotos = Math.max(maxConcurrentPhotos, concurrentPhotos);
+        wait = blocked;
+        notifyAll();
+      }
+      try {
+        if (wait) {
+          unblocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(encodeTimesMs[id]);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        concurrentPhotos--;
+      }
+      if (exceptions[id]) {
+        throw new IllegalStateException("Unable to encode photo #" + id);
+      }
+      image.close();
+      return failures[id] ? null : path;
+    }
+
+    @Override
+    public synchronized void onPhotoSaved(String path) {
+      savedPaths.add(path);
+    }
+
+    @Override
+    public int getWidth() {
+      return 0;
+    }
+
+    @Override
+    public int getHeight() {
+      return 0;
+    }
+
+    @Override
+    public List<Surface> getTargetSurfaces() {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isReadyForCapture() {
+      return true;
+    }
+
+    @Override
+    public boolean hasPendingRequests() {
+      return false;
+    }
+
+    @Override
+    public void addPhotoRequest(int id, String path) {}
+
+    @Override
+    public void onCaptureResult(CaptureResult result) {}
+  }
+}
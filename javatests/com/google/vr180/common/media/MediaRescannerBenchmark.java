@@ -0,0 +1,125 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.webkit.MimeTypeMap;
+import com.google.vr180.testhelpers.FakeMediaProvider;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the time MediaRescanner takes to register a directory, compared to registering its files
+ * one at a time. Not part of the default tests; run it by name.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaRescannerBenchmark {
+  private static final int WORKER_THREADS = 4;
+  private static final int[] FILE_COUNTS = {100, 400, 1600};
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+  private Context context;
+  private MediaRescanner rescanner;
+
+  @Before
+  public void setUp() throws Exception {
+    context = RuntimeEnvironment.application.getApplicationContext();
+    Robolectric.setupContentProvider(FakeMediaProvider.class, FakeMediaProvider.AUTHORITY);
+    shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("jpg", "image/jpeg");
+    rescanner = new MediaRescanner(context, workers);
+  }
+
+  @After
+  public void tearDown() {
+    workers.shutdown();
+  }
+
+  @Test
+  public void benchmarkRescan() throws Exception {
+    for (int fileCount : FILE_COUNTS) {
+      File sequentialDirectory = folder.newFolder();
+      File rescanDirectory = folder.newFolder();
+      List<File> sequentialFiles = new ArrayList<>();
+      for (int i = 0; i < fileCount; i++) {
+        sequentialFiles.add(createFile(sequentialDirectory, "IMG_" + i + ".jpg"));
+        createFile(rescanDirectory, "IMG_" + i + ".jpg");
+      }
+
+      long startTimeMs = System.currentTimeMillis();
+      for (File file : sequentialFiles) {
+        MediaStoreUtil.updateFile(context, file);
+      }
+      long sequentialTimeMs = System.currentTimeMillis() - startTimeMs;
+
+      startTimeMs = System.currentTimeMillis();
+      assertThat(
+              rescanner.rescan(
+                  Collections.singletonList(rescanDirectory), (scannedFiles, totalFiles) -> {}))
+          .isTrue();
+      long rescanTimeMs = System.currentTimeMillis() - startTimeMs;
+
+      System.out.println(
+          String.format(
+              "Registered %d files: one at a time %d ms, rescan with %d workers %d ms",
+              fileCount, sequentialTimeMs, WORKER_THREADS, rescanTimeMs));
+      assertThat(getEntryCount(rescanDirectory)).isEqualTo(fileCount);
+    }
+  }
+
+  private int getEntryCount(File directory) {
+    try (Cursor cursor =
+        context
+            .getContentResolver()
+            .query(
+                MediaStore.Files.getContentUri("external"),
+                new String[] {MediaStore.MediaColumns.SIZE},
+                MediaStore.MediaColumns.DATA + " LIKE ?",
+                new String[] {directory.getAbsolutePath() + "/%"},
+                null)) {
+      return cursor.getCount();
+    }
+  }
+
+  private static File createFile(File directory, String name) throws Exception {
+    File file = new File(directory, name);
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      output.setLength(1000);
+    }
+    return file;
+  }
+}
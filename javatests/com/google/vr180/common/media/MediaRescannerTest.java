@@ -0,0 +1,215 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.v4.content.LocalBroadcastManager;
+import android.webkit.MimeTypeMap;
+import com.google.vr180.testhelpers.FakeMediaProvider;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for MediaRescanner. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaRescannerTest {
+  private static final int WORKER_THREADS = 4;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+  private final List<int[]> progress = new ArrayList<>();
+  private final List<Intent> deletedIntents = new ArrayList<>();
+  private final BroadcastReceiver deletedReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          deletedIntents.add(intent);
+        }
+      };
+  private Context context;
+  private MediaRescanner rescanner;
+
+  @Before
+  public void setUp() throws Exception {
+    context = RuntimeEnvironment.application.getApplicationContext();
+    Robolectric.setupContentProvider(FakeMediaProvider.class, FakeMediaProvider.AUTHORITY);
+    shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("jpg", "image/jpeg");
+    shadowOf(MimeTypeMap.getSingleton()).addExtensionMimeTypMapping("txt", "text/plain");
+    rescanner = new MediaRescanner(context, workers);
+    LocalBroadcastManager.getInstance(context)
+        .registerReceiver(deletedReceiver, new IntentFilter(MediaStoreUtil.ACTION_MEDIA_DELETED));
+  }
+
+  @After
+  public void tearDown() {
+    LocalBroadcastManager.getInstance(context).unregisterReceiver(deletedReceiver);
+    workers.shutdown();
+  }
+
+  @Test
+  public void testRescanInsertsNewFiles() throws Exception {
+    File directory = folder.newFolder();
+    File subdirectory = new File(directory, "2018");
+    subdirectory.mkdir();
+    int fileCount = 2 * MediaRescanner.BATCH_SIZE + 50;
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < fileCount; i++) {
+      files.add(createFile(i % 2 == 0 ? directory : subdirectory, "IMG_" + i + ".jpg", 1000));
+    }
+    // Files which aren't media, or are hidden, aren't added.
+    createFile(directory, "notes.txt", 10);
+    createFile(new File(directory, ".thumbnails"), "IMG_0.jpg", 10);
+
+    assertThat(rescan(directory)).isTrue();
+
+    assertThat(getEntryCount(directory)).isEqualTo(fileCount);
+    assertThat(getEntrySize(files.get(1))).isEqualTo(1000L);
+    // The files are committed in batches.
+    assertThat(progress).hasSize(4);
+    assertThat(progress.get(0)).isEqualTo(new int[] {0, fileCount});
+    assertThat(progress.get(1)).isEqualTo(new int[] {MediaRescanner.BATCH_SIZE, fileCount});
+    assertThat(progress.get(3)).isEqualTo(new int[] {fileCount, fileCount});
+  }
+
+  @Test
+  public void testRescanUpdatesOnlyModifiedFiles() throws Exception {
+    File directory = folder.newFolder();
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      files.add(createFile(directory, "IMG_" + i + ".jpg", 1000));
+    }
+    assertThat(rescan(directory)).isTrue();
+
+    File modified = files.get(3);
+    try (RandomAccessFile output = new RandomAccessFile(modified, "rw")) {
+      output.setLength(2000);
+    }
+    progress.clear();
+    assertThat(rescan(directory)).isTrue();
+
+    assertThat(getEntryCount(directory)).isEqualTo(10);
+    assertThat(getEntrySize(modified)).isEqualTo(2000L);
+    assertThat(getEntrySize(files.get(4))).isEqualTo(1000L);
+    // Only the modified file had to be read.
+    assertThat(progress.get(0)).isEqualTo(new int[] {9, 10});
+    assertThat(progress.get(progress.size() - 1)).isEqualTo(new int[] {10, 10});
+  }
+
+  @Test
+  public void testRescanDeletesMissingFiles() throws Exception {
+    File directory = folder.newFolder();
+    File kept = createFile(directory, "IMG_1.jpg", 1000);
+    File deleted = createFile(directory, "IMG_2.jpg", 1000);
+    File otherDirectory = folder.newFolder();
+    File other = createFile(otherDirectory, "IMG_3.jpg", 1000);
+    assertThat(rescanner.rescan(Arrays.asList(directory, otherDirectory), this::onProgress))
+        .isTrue();
+    assertThat(other.delete()).isTrue();
+    assertThat(deleted.delete()).isTrue();
+
+    assertThat(rescan(directory)).isTrue();
+
+    assertThat(getEntrySize(kept)).isEqualTo(1000L);
+    assertThat(getEntrySize(deleted)).isNull();
+    // Entries outside of the scanned directories are kept.
+    assertThat(getEntrySize(other)).isEqualTo(1000L);
+    shadowOf(Looper.getMainLooper()).idle();
+    assertThat(deletedIntents).hasSize(1);
+    assertThat(deletedIntents.get(0).getStringExtra(MediaStoreUtil.EXTRA_PATH))
+        .isEqualTo(deleted.getAbsolutePath());
+  }
+
+  @Test
+  public void testRescanKeepsEntriesOfRemovedStorage() throws Exception {
+    File directory = folder.newFolder();
+    File file = createFile(directory, "IMG_1.jpg", 1000);
+    assertThat(rescan(directory)).isTrue();
+    // Like an SD card which was ejected.
+    assertThat(file.delete()).isTrue();
+    assertThat(directory.delete()).isTrue();
+
+    assertThat(rescan(directory)).isFalse();
+
+    assertThat(getEntrySize(file)).isEqualTo(1000L);
+    shadowOf(Looper.getMainLooper()).idle();
+    assertThat(deletedIntents).isEmpty();
+  }
+
+  private boolean rescan(File directory) {
+    return rescanner.rescan(Collections.singletonList(directory), this::onProgress);
+  }
+
+  private void onProgress(int scannedFiles, int totalFiles) {
+    progress.add(new int[] {scannedFiles, totalFiles});
+  }
+
+  private int getEntryCount(File directory) {
+    try (Cursor cursor = queryEntries(directory.getAbsolutePath() + "/%")) {
+      return cursor.getCount();
+    }
+  }
+
+  private Long getEntrySize(File file) {
+    try (Cursor cursor = queryEntries(file.getAbsolutePath())) {
+      return cursor.moveToFirst() ? cursor.getLong(0) : null;
+    }
+  }
+
+  private Cursor queryEntries(String pathPattern) {
+    return context
+        .getContentResolver()
+        .query(
+            MediaStore.Files.getContentUri("external"),
+            new String[] {MediaStore.MediaColumns.SIZE},
+            MediaStore.MediaColumns.DATA + " LIKE ?",
+            new String[] {pathPattern},
+            null);
+  }
+
+  private static File createFile(File directory, String name, long size) throws Exception {
+    directory.mkdirs();
+    File file = new File(directory, name);
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      output.setLength(size);
+    }
+    return file;
+  }
+}
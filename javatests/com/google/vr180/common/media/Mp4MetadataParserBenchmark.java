@@ -0,0 +1,78 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.MP4_CREATION_TIME;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.audioTrak;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.box;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.ftyp;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.moov;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.mvhd;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.st3d;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.sv3d;
+import static com.google.vr180.common.media.Mp4MetadataParserTest.videoTrak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Prints the time Mp4MetadataParser takes to parse the metadata of many files. Not part of the
+ * default tests; run it by name. The files are built with the box writers of {@link
+ * Mp4MetadataParserTest}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class Mp4MetadataParserBenchmark {
+  private static final int FILES = 500;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void benchmarkParse() throws Exception {
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < FILES; i++) {
+      File file = folder.newFile();
+      try (FileOutputStream output = new FileOutputStream(file)) {
+        output.write(ftyp());
+        output.write(box("mdat", new byte[64 * 1024]));
+        output.write(
+            moov(
+                mvhd(0, 1000, 1000 + i, MP4_CREATION_TIME),
+                videoTrak(1, "avc1", 3840, 1920, st3d(), sv3d()),
+                audioTrak(2)));
+      }
+      files.add(file);
+    }
+
+    long startTimeMs = System.currentTimeMillis();
+    for (int i = 0; i < FILES; i++) {
+      assertThat(Mp4MetadataParser.parse(files.get(i)).durationMs).isEqualTo(1000L + i);
+    }
+    long parseTimeMs = System.currentTimeMillis() - startTimeMs;
+    System.out.println(
+        String.format(
+            "Parsed the metadata of %d MP4 files in %d ms (%.3f ms per file)",
+            FILES, parseTimeMs, (double) parseTimeMs / FILES));
+  }
+}
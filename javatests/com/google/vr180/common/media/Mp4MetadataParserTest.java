@@ -0,0 +1,377 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.common.media;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import android.content.ContentValues;
+import android.provider.MediaStore;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class Mp4MetadataParserTest {
+  // 2017-11-18T00:44:54Z, in seconds since 1904-01-01.
+  private static final long CREATION_TIME_MS = 1510965894000L;
+  static final long MP4_CREATION_TIME = CREATION_TIME_MS / 1000 + 2082844800L;
+  private static final int VIDEO_TIMESCALE = 90000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testMoovBeforeMdat() throws Exception {
+    File file =
+        writeFile(
+            ftyp(),
+            moov(
+                mvhd(0, 1000, 12345, MP4_CREATION_TIME),
+                videoTrak(1, "avc1", 3840, 1920, st3d(), sv3d()),
+                audioTrak(2)),
+            box("mdat", new byte[1000]));
+
+    Mp4MetadataParser.Metadata metadata = Mp4MetadataParser.parse(file);
+    assertThat(metadata.durationMs).isEqualTo(12345L);
+    assertThat(metadata.width).isEqualTo(3840);
+    assertThat(metadata.height).isEqualTo(1920);
+    assertThat(metadata.creationTimeMs).isEqualTo(CREATION_TIME_MS);
+    assertThat(metadata.videoCodec).isEqualTo("avc1");
+    assertThat(metadata.hasSt3d).isTrue();
+    assertThat(metadata.hasSv3d).isTrue();
+  }
+
+  @Test
+  public void testMoovAfterLargeMdat() throws Exception {
+    // A sparse file with a 64-bit mdat box of more than 4 GB, which must not be read.
+    long mdatSize = 16 + (5L << 30);
+    File file = folder.newFile();
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      output.write(ftyp());
+      output.write(new Data().i32(1).fourCc("mdat").i64(mdatSize).get());
+      output.seek(ftyp().length + mdatSize);
+      output.write(
+          moov(
+              mvhd(1, VIDEO_TIMESCALE, 60L * VIDEO_TIMESCALE, 0),
+              videoTrak(1, "hvc1", 5760, 2880)));
+    }
+
+    Mp4MetadataParser.Metadata metadata = Mp4MetadataParser.parse(file);
+    assertThat(metadata.durationMs).isEqualTo(60000L);
+    assertThat(metadata.width).isEqualTo(5760);
+    assertThat(metadata.height).isEqualTo(2880);
+    assertThat(metadata.creationTimeMs).isEqualTo(0L);
+    assertThat(metadata.videoCodec).isEqualTo("hvc1");
+    assertThat(metadata.hasSt3d).isFalse();
+    assertThat(metadata.hasSv3d).isFalse();
+  }
+
+  @Test
+  public void testFragmentedDurationFromLastFragment() throws Exception {
+    // Like the files of FragmentedMp4Muxer, with a zero duration in the moov box.
+    File file =
+        writeFile(
+            ftyp(),
+            moov(
+                mvhd(0, VIDEO_TIMESCALE, 0, 0),
+                videoTrak(1, "avc1", 3840, 1920, st3d()),
+                audioTrak(2),
+                box("mvex", trex(1, 0), trex(2, 0))),
+            moof(traf(1, 0, 3000, 3000, 3000)),
+            box("mdat", new byte[100]),
+            moof(traf(2, 0, 1024, 1024), traf(1, 9000, 3000, 3000, 3000)),
+            box("mdat", new byte[100]));
+
+    Mp4MetadataParser.Metadata metadata = Mp4MetadataParser.parse(file);
+    assertThat(metadata.durationMs).isEqualTo(200L);
+    assertThat(metadata.hasSt3d).isTrue();
+    assertThat(metadata.hasSv3d).isFalse();
+  }
+
+  @Test
+  public void testFragmentedDurationFromDefaultSampleDuration() throws Exception {
+    byte[] trun = fullBox("trun", 0, 0, new Data().i32(30).get());
+    File file =
+        writeFile(
+            ftyp(),
+            moov(
+                mvhd(0, VIDEO_TIMESCALE, 0, 0),
+                videoTrak(1, "avc1", 1920, 960),
+                box("mvex", trex(1, 3000))),
+            moof(box("traf", tfhd(1), tfdt(0), trun)),
+            box("mdat", new byte[100]));
+    assertThat(Mp4MetadataParser.parse(file).durationMs).isEqualTo(1000L);
+  }
+
+  @Test
+  public void testFragmentedDurationFromMehd() throws Exception {
+    File file =
+        writeFile(
+            ftyp(),
+            moov(
+                mvhd(0, 1000, 0, 0),
+                videoTrak(1, "avc1", 1920, 960),
+                box("mvex", fullBox("mehd", 0, 0, new Data().i32(5000).get()), trex(1, 0))),
+            moof(traf(1, 0, 3000)),
+            box("mdat", new byte[100]));
+    assertThat(Mp4MetadataParser.parse(file).durationMs).isEqualTo(5000L);
+  }
+
+  @Test
+  public void testInvalidFiles() throws Exception {
+    assertParseFails(writeFile(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}));
+    assertParseFails(writeFile(ftyp(), box("mdat", new byte[100])));
+
+    // The file ends in the mvhd box.
+    byte[] moov = moov(mvhd(0, 1000, 12345, 0), videoTrak(1, "avc1", 1920, 960));
+    assertParseFails(writeFile(ftyp(), Arrays.copyOf(moov, 24)));
+
+    // A box which is smaller than its header.
+    assertParseFails(writeFile(ftyp(), new Data().i32(4).fourCc("moov").get()));
+  }
+
+  @Test
+  public void testExtractMediaStoreMetadata() throws Exception {
+    File file =
+        writeFile(
+            ftyp(),
+            moov(mvhd(0, 1000, 12345, MP4_CREATION_TIME), videoTrak(1, "avc1", 3840, 1920)));
+    ContentValues values = new ContentValues();
+    MediaInfo.extractMediaStoreMetadata(file, "video/mp4", values);
+    assertThat(values.get(MediaStore.MediaColumns.WIDTH)).isEqualTo(3840);
+    assertThat(values.get(MediaStore.MediaColumns.HEIGHT)).isEqualTo(1920);
+    assertThat(values.get(MediaStore.Video.VideoColumns.DURATION)).isEqualTo(12345L);
+    assertThat(values.get(MediaStore.Video.VideoColumns.DATE_TAKEN)).isEqualTo(CREATION_TIME_MS);
+  }
+
+  private static void assertParseFails(File file) throws IOException {
+    try {
+      Mp4MetadataParser.parse(file);
+      fail("Parsed invalid file");
+    } catch (ParseException e) {
+      // Expected.
+    }
+  }
+
+  private File writeFile(byte[]... boxes) throws IOException {
+    File file = folder.newFile();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      for (byte[] box : boxes) {
+        output.write(box);
+      }
+    }
+    return file;
+  }
+
+  static byte[] ftyp() {
+    return box("ftyp", new Data().fourCc("isom").i32(0x200).fourCc("isom").fourCc("mp41").get());
+  }
+
+  static byte[] moov(byte[]... children) {
+    return box("moov", children);
+  }
+
+  static byte[] mvhd(int version, int timescale, long duration, long creationTime) {
+    Data data = new Data();
+    if (version == 1) {
+      data.i64(creationTime).i64(0).i32(timescale).i64(duration);
+    } else {
+      data.i32((int) creationTime).i32(0).i32(timescale).i32((int) duration);
+    }
+    // rate, volume, reserved, matrix, pre_defined and next_track_ID.
+    data.i32(0x00010000).i16(0x0100).zeros(10 + 36 + 24).i32(3);
+    return fullBox("mvhd", version, 0, data.get());
+  }
+
+  static byte[] videoTrak(
+      int trackId, String codec, int width, int height, byte[]... sampleEntryChildren) {
+    Data entry =
+        new Data()
+            .zeros(6)
+            .i16(1) // data_reference_index
+            .zeros(16)
+            .i16(width)
+            .i16(height)
+            .i32(0x00480000)
+            .i32(0x00480000)
+            .i32(0)
+            .i16(1)
+            .zeros(32)
+            .i16(0x0018)
+            .i16(-1)
+            .bytes(box(codec.equals("hvc1") ? "hvcC" : "avcC", new byte[16]));
+    for (byte[] child : sampleEntryChildren) {
+      entry.bytes(child);
+    }
+    return trak(trackId, "vide", width, height, box(codec, entry.get()));
+  }
+
+  static byte[] audioTrak(int trackId) {
+    return trak(trackId, "soun", 0, 0, box("mp4a", new byte[28]));
+  }
+
+  private static byte[] trak(
+      int trackId, String handler, int width, int height, byte[] sampleEntry) {
+    byte[] tkhd =
+        fullBox(
+            "tkhd",
+            0,
+            7,
+            new Data()
+                .i32(0)
+                .i32(0)
+                .i32(trackId)
+                .i32(0)
+                .i32(0) // duration
+                .zeros(8 + 8 + 36)
+                .i32(width << 16)
+                .i32(height << 16)
+                .get());
+    byte[] mdhd =
+        fullBox("mdhd", 0, 0, new Data().i32(0).i32(0).i32(VIDEO_TIMESCALE).i32(0).i32(0).get());
+    byte[] hdlr =
+        fullBox(
+            "hdlr",
+            0,
+            0,
+            new Data().i32(0).fourCc(handler).zeros(12).bytes(new byte[] {'h', 0}).get());
+    byte[] stsd = fullBox("stsd", 0, 0, new Data().i32(1).bytes(sampleEntry).get());
+    byte[] stts = fullBox("stts", 0, 0, new Data().i32(0).get());
+    byte[] minf = box("minf", box("dinf", new byte[0]), box("stbl", stsd, stts));
+    return box("trak", tkhd, box("mdia", mdhd, hdlr, minf));
+  }
+
+  static byte[] st3d() {
+    return fullBox("st3d", 0, 0, new byte[] {2});
+  }
+
+  static byte[] sv3d() {
+    return box("sv3d", box("svhd", new byte[] {0, 0, 0, 0, 0}), box("proj", new byte[0]));
+  }
+
+  private static byte[] trex(int trackId, int defaultSampleDuration) {
+    Data data = new Data().i32(trackId).i32(1).i32(defaultSampleDuration).i32(0).i32(0);
+    return fullBox("trex", 0, 0, data.get());
+  }
+
+  private static byte[] moof(byte[]... trafs) {
+    byte[] mfhd = fullBox("mfhd", 0, 0, new Data().i32(1).get());
+    byte[][] children = new byte[trafs.length + 1][];
+    children[0] = mfhd;
+    System.arraycopy(trafs, 0, children, 1, trafs.length);
+    return box("moof", children);
+  }
+
+  // A track fragment with a sample duration, size and flags for each sample, like the muxer writes.
+  private static byte[] traf(int trackId, long baseMediaDecodeTime, int... sampleDurations) {
+    Data trun = new Data().i32(sampleDurations.length).i32(0); // sample_count, data_offset
+    for (int duration : sampleDurations) {
+      trun.i32(duration).i32(100).i32(0);
+    }
+    return box(
+        "traf",
+        tfhd(trackId),
+        tfdt(baseMediaDecodeTime),
+        fullBox("trun", 0, 0x000701, trun.get()));
+  }
+
+  private static byte[] tfhd(int trackId) {
+    return fullBox("tfhd", 0, 0x020000 /* default-base-is-moof */, new Data().i32(trackId).get());
+  }
+
+  private static byte[] tfdt(long baseMediaDecodeTime) {
+    return fullBox("tfdt", 1, 0, new Data().i64(baseMediaDecodeTime).get());
+  }
+
+  static byte[] box(String type, byte[]... payloads) {
+    Data payload = new Data();
+    for (byte[] bytes : payloads) {
+      payload.bytes(bytes);
+    }
+    byte[] data = payload.get();
+    return new Data().i32(8 + data.length).fourCc(type).bytes(data).get();
+  }
+
+  private static byte[] fullBox(String type, int version, int flags, byte[] payload) {
+    return box(type, new Data().i32((version << 24) | flags).bytes(payload).get());
+  }
+
+  /** Writes big endian box fields. */
+  private static final class Data {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream output = new DataOutputStream(bytes);
+
+    Data i16(int value) {
+      try {
+        output.writeShort(value);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return this;
+    }
+
+    Data i32(int value) {
+      try {
+        output.writeInt(value);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return this;
+    }
+
+    Data i64(long value) {
+      try {
+        output.writeLong(value);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return this;
+    }
+
+    Data fourCc(String type) {
+      return bytes(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    Data zeros(int count) {
+      return bytes(new byte[count]);
+    }
+
+    Data bytes(byte[] data) {
+      try {
+        output.write(data);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return this;
+    }
+
+    byte[] get() {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,369 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.communication.http;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.vr180.CameraApi.FileChecksum;
+import com.google.vr180.api.camerainterfaces.CameraSettings;
+import com.google.vr180.api.camerainterfaces.FileChecksumProvider;
+import com.google.vr180.api.camerainterfaces.FileProvider;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ServerSocketFactory;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests the validators of media downloads through a local HTTP server. */
+@RunWith(RobolectricTestRunner.class)
+public final class ConditionalMediaDownloadTest {
+  private static final String PATH = "/storage/DCIM/VR180/video.mp4";
+  private static final byte[] DATA = "0123456789".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] MODIFIED_DATA = "abcdefghij".getBytes(StandardCharsets.UTF_8);
+  // 2018-01-01T00:00:00.500Z, with a fraction of a second which HTTP dates don't have.
+  private static final long LAST_MODIFIED_MS = 1514764800500L;
+  private static final String LAST_MODIFIED = "Mon, 01 Jan 2018 00:00:00 GMT";
+  private static final String FILE_ETAG = "W/\"a-160af0491f4\"";
+  private static final byte[] SHA1 = new byte[] {0x12, 0x34, 0x56, 0x78, (byte) 0x9a};
+  private static final String SHA1_ETAG = "\"sha1-123456789a\"";
+
+  private final FakeFileProvider fileProvider = new FakeFileProvider();
+  private final FakeFileChecksumProvider checksumProvider = new FakeFileChecksumProvider();
+  private LocalHttpSocketServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    AuthorizationValidator authValidator =
+        Mockito.spy(new AuthorizationValidator(Mockito.mock(CameraSettings.class)));
+    Mockito.doReturn(true).when(authValidator).isValidRequest(Mockito.any(), Mockito.any());
+    Map<String, HttpRequestHandler> handlerMap = new HashMap<>();
+    handlerMap.put(
+        MediaDownloadHandler.PREFIX + "*",
+        new MediaDownloadHandler(fileProvider, checksumProvider, authValidator));
+    server = new LocalHttpSocketServer(handlerMap);
+    server.startServer();
+
+    fileProvider.putFile(PATH, DATA, LAST_MODIFIED_MS);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stopServer();
+    server.close();
+  }
+
+  @Test
+  public void testValidatorHeaders() throws Exception {
+    HttpURLConnection connection = get();
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("ETag")).isEqualTo(FILE_ETAG);
+    assertThat(connection.getHeaderField("Last-Modified")).isEqualTo(LAST_MODIFIED);
+    assertThat(connection.getHeaderField("Accept-Ranges")).isEqualTo("bytes");
+    assertThat(readBody(connection)).isEqualTo(DATA);
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    HttpURLConnection connection = get("If-None-Match", "\"other\", " + FILE_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(304);
+    assertThat(connection.getHeaderField("ETag")).isEqualTo(FILE_ETAG);
+    assertThat(readBody(connection)).isEmpty();
+
+    // If-None-Match uses the weak comparison.
+    assertThat(get("If-None-Match", FILE_ETAG.substring(2)).getResponseCode()).isEqualTo(304);
+    assertThat(get("If-None-Match", "*").getResponseCode()).isEqualTo(304);
+    // If-None-Match takes precedence over If-Modified-Since.
+    connection = get("If-None-Match", "\"other\"", "If-Modified-Since", LAST_MODIFIED);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+  }
+
+  @Test
+  public void testIfNoneMatchOfModifiedFile() throws Exception {
+    fileProvider.putFile(PATH, MODIFIED_DATA, LAST_MODIFIED_MS + 1);
+    HttpURLConnection connection = get("If-None-Match", FILE_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("ETag")).isNotEqualTo(FILE_ETAG);
+    assertThat(readBody(connection)).isEqualTo(MODIFIED_DATA);
+  }
+
+  @Test
+  public void testChecksumEtag() throws Exception {
+    checksumProvider.setSha1(PATH, SHA1);
+    HttpURLConnection connection = get();
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("ETag")).isEqualTo(SHA1_ETAG);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+
+    assertThat(get("If-None-Match", SHA1_ETAG).getResponseCode()).isEqualTo(304);
+    // The ETag from before the checksum was computed is still valid.
+    assertThat(get("If-None-Match", FILE_ETAG).getResponseCode()).isEqualTo(304);
+  }
+
+  @Test
+  public void testDownloadsDontComputeChecksums() throws Exception {
+    assertThat(get().getResponseCode()).isEqualTo(200);
+    assertThat(get("If-None-Match", FILE_ETAG).getResponseCode()).isEqualTo(304);
+    assertThat(checksumProvider.computationRequests).isEqualTo(0);
+  }
+
+  @Test
+  public void testIfModifiedSince() throws Exception {
+    assertThat(get("If-Modified-Since", LAST_MODIFIED).getResponseCode()).isEqualTo(304);
+    assertThat(get("If-Modified-Since", "Tue, 02 Jan 2018 00:00:00 GMT").getResponseCode())
+        .isEqualTo(304);
+
+    HttpURLConnection connection = get("If-Modified-Since", "Sun, 31 Dec 2017 23:59:59 GMT");
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+    assertThat(get("If-Modified-Since", "yesterday").getResponseCode()).isEqualTo(200);
+  }
+
+  @Test
+  public void testIfRangeOfSameFile() throws Exception {
+    checksumProvider.setSha1(PATH, SHA1);
+    HttpURLConnection connection = get("Range", "bytes=4-", "If-Range", SHA1_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(206);
+    assertThat(connection.getHeaderField("Content-Range")).isEqualTo("bytes 4-9/10");
+    assertThat(readBody(connection)).isEqualTo("456789".getBytes(StandardCharsets.UTF_8));
+
+    connection = get("Range", "bytes=4-", "If-Range", LAST_MODIFIED);
+    assertThat(connection.getResponseCode()).isEqualTo(206);
+    assertThat(readBody(connection)).isEqualTo("456789".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testIfRangeOfModifiedFile() throws Exception {
+    fileProvider.putFile(PATH, MODIFIED_DATA, LAST_MODIFIED_MS + 2000);
+
+    // The whole new file is sent instead of splicing it with the old one.
+    HttpURLConnection connection = get("Range", "bytes=4-", "If-Range", FILE_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Content-Range")).isNull();
+    assertThat(readBody(connection)).isEqualTo(MODIFIED_DATA);
+
+    connection = get("Range", "bytes=4-", "If-Range", LAST_MODIFIED);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(MODIFIED_DATA);
+  }
+
+  @Test
+  public void testIfRangeDateOfRecentlyModifiedFile() throws Exception {
+    // A modification time which is not a second before the response, like a file still written.
+    fileProvider.putFile(PATH, DATA, System.currentTimeMillis() + 60 * 1000);
+    String lastModified = get().getHeaderField("Last-Modified");
+
+    // The date is a weak validator, so If-Range never matches it.
+    HttpURLConnection connection = get("Range", "bytes=4-", "If-Range", lastModified);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+
+    checksumProvider.setSha1(PATH, SHA1);
+    connection = get("Range", "bytes=4-", "If-Range", SHA1_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(206);
+    assertThat(readBody(connection)).isEqualTo("456789".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testIfRangeWithWeakEtag() throws Exception {
+    // If-Range uses the strong comparison, so the ETag from the size and modification time never
+    // matches, with or without its weak prefix.
+    HttpURLConnection connection = get("Range", "bytes=4-", "If-Range", FILE_ETAG);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+
+    connection = get("Range", "bytes=4-", "If-Range", FILE_ETAG.substring(2));
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(readBody(connection)).isEqualTo(DATA);
+  }
+
+  @Test
+  public void testMissingFile() throws Exception {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(server.getUrl("/storage/missing.mp4")).openConnection();
+    assertThat(connection.getResponseCode()).isEqualTo(404);
+    assertThat(connection.getHeaderField("ETag")).isNull();
+  }
+
+  // Sends a GET request for the file with pairs of header names and values.
+  private HttpURLConnection get(String... headers) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(server.getUrl(PATH)).openConnection();
+    for (int i = 0; i < headers.length; i += 2) {
+      connection.setRequestProperty(headers[i], headers[i + 1]);
+    }
+    connection.getResponseCode();
+    return connection;
+  }
+
+  private static byte[] readBody(HttpURLConnection connection) throws IOException {
+    try (InputStream input = connection.getInputStream()) {
+      return ByteStreams.toByteArray(input);
+    }
+  }
+
+  /** An HTTP server on a free port of the loopback interface. */
+  private static final class LocalHttpSocketServer extends HttpSocketServer {
+    private final ServerSocket serverSocket;
+
+    LocalHttpSocketServer(Map<String, HttpRequestHandler> handlerMap) throws IOException {
+      super(
+          RuntimeEnvironment.application,
+          HttpServiceFactory.constructHttpService(handlerMap),
+          ServerSocketFactory.getDefault());
+      serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    }
+
+    String getUrl(String path) {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort() + MediaDownloadHandler.PREFIX
+          + path;
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    protected void startServerSocket() {
+      // The socket is opened by the constructor, so that its port is known.
+    }
+
+    @Override
+    protected Socket acceptSocket() throws IOException {
+      return serverSocket.accept();
+    }
+  }
+
+  /** Serves files from memory. */
+  private static final class FakeFileProvider implements FileProvider {
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final Map<String, Long> lastModified = new HashMap<>();
+
+    synchronized void putFile(String path, byte[] data, long lastModifiedMs) {
+      files.put(path, data);
+      lastModified.put(path, lastModifiedMs);
+    }
+
+    @Override
+    public synchronized InputStream openFile(String path) throws FileNotFoundException {
+      byte[] data = files.get(path);
+      if (data == null) {
+        throw new FileNotFoundException(path);
+      }
+      return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public synchronized void deleteFile(String path) throws FileNotFoundException {
+      if (files.remove(path) == null) {
+        throw new FileNotFoundException(path);
+      }
+    }
+
+    @Override
+    public synchronized long getFileSize(String path) {
+      byte[] data = files.get(path);
+      return data != null ? data.length : 0;
+    }
+
+    @Override
+    public synchronized Date getLastModified(String path) {
+      Long lastModifiedMs = lastModified.get(path);
+      return new Date(lastModifiedMs != null ? lastModifiedMs : 0);
+    }
+
+    @Override
+    public synchronized boolean fileExists(String path) {
+      return files.containsKey(path);
+    }
+
+    @Override
+    public File getFileForPath(String path) throws FileNotFoundException {
+      throw new FileNotFoundException("The files are in memory");
+    }
+  }
+
+  /** Returns the SHA1 checksums which were set, as if they were cached. */
+  private static final class FakeFileChecksumProvider implements FileChecksumProvider {
+    private final Map<String, FileChecksum> checksums = new HashMap<>();
+    // The number of calls which would compute missing checksums.
+    private volatile int computationRequests;
+
+    synchronized void setSha1(String path, byte[] sha1) {
+      checksums.put(
+          path,
+          FileChecksum.newBuilder()
+              .setChecksumType(FileChecksum.ChecksumType.SHA1)
+              .setChecksum(ByteString.copyFrom(sha1))
+              .build());
+    }
+
+    @Override
+    public synchronized FileChecksum getFileChecksum(String path) throws IOException {
+      computationRequests++;
+      FileChecksum checksum = checksums.get(path);
+      if (checksum == null) {
+        throw new IOException("No checksum of " + path);
+      }
+      return checksum;
+    }
+
+    @Override
+    public synchronized List<FileChecksum> getFileChecksums(String path, int priority) {
+      computationRequests++;
+      return getCachedFileChecksums(path);
+    }
+
+    @Override
+    public synchronized List<FileChecksum> getCachedFileChecksums(String path) {
+      FileChecksum checksum = checksums.get(path);
+      return checksum != null
+          ? Collections.singletonList(checksum)
+          : Collections.<FileChecksum>emptyList();
+    }
+
+    @Override
+    public Map<String, List<FileChecksum>> getFileChecksums(List<String> paths, int priority) {
+      Map<String, List<FileChecksum>> result = new HashMap<>();
+      for (String path : paths) {
+        result.put(path, new ArrayList<>(getFileChecksums(path, priority)));
+      }
+      return result;
+    }
+  }
+}
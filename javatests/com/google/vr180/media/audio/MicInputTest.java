@@ -0,0 +1,370 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.audio;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import com.google.vr180.media.MediaConstants;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MicInputTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BUFFER_SIZE = 1920;
+  private static final int CODEC_BUFFER_COUNT = 4;
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private FakeAudioRecord audioRecord;
+  private ClientHandler clientHandler;
+  private FakeEncoder encoder;
+  private MicInput micInput;
+
+  @Before
+  public void setUp() {
+    audioRecord = new FakeAudioRecord();
+    clientHandler = new ClientHandler();
+    micInput =
+        new MicInput(
+            audioRecord, AudioFormat.CHANNEL_IN_MONO, SAMPLE_RATE, BUFFER_SIZE, clientHandler);
+    encoder = new FakeEncoder(micInput);
+    micInput.setFillBufferResponseHandler(encoder);
+    micInput.setErrorCallback(errorCode -> encoder.lastStatus = errorCode);
+    micInput.setIsEnabled(true);
+  }
+
+  @After
+  public void tearDown() {
+    micInput.release();
+    clientHandler.quit();
+  }
+
+  @Test
+  public void testDeliversDataInOrderThenEndOfStream() {
+    assertThat(micInput.start()).isTrue();
+    encoder.requestAll();
+    waitUntil(() -> encoder.filledCount >= 20);
+
+    assertThat(micInput.stop()).isTrue();
+    waitUntil(() -> encoder.endOfStreamCount > 0);
+    assertThat(encoder.hasOrderedTimestamps).isTrue();
+    assertThat(encoder.hasExpectedData).isTrue();
+    assertThat(encoder.errorCount).isEqualTo(0);
+    // Everything that was read is delivered before the end of stream.
+    assertThat((long) encoder.filledCount).isEqualTo(audioRecord.readCount);
+    assertThat(audioRecord.isStopped).isTrue();
+  }
+
+  @Test
+  public void testSteadyStateDoesNotAllocate() {
+    audioRecord.readDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    assertThat(micInput.start()).isTrue();
+    encoder.requestAll();
+    // Let class loading and compilation settle.
+    waitUntil(() -> encoder.filledCount >= 500);
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long micThreadId = audioRecord.readThread.getId();
+    long micBytesBefore = threadBean.getThreadAllocatedBytes(micThreadId);
+    clientHandler.resetAllocatedBytes();
+    int filledBefore = encoder.filledCount;
+    waitUntil(() -> encoder.filledCount >= filledBefore + 1000);
+    long micBytes = threadBean.getThreadAllocatedBytes(micThreadId) - micBytesBefore;
+    long clientBytes = clientHandler.getAllocatedBytes();
+
+    assertThat(micBytes).isEqualTo(0L);
+    assertThat(clientBytes).isEqualTo(0L);
+    assertThat(micInput.getDroppedBufferCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testDropsAndCountsWhenClientFallsBehind() {
+    assertThat(micInput.start()).isTrue();
+    // Without requests from the encoder the ring fills up and further data is dropped.
+    waitUntil(() -> micInput.getDroppedBufferCount() >= 10);
+
+    assertThat(micInput.getBufferedMicDataCount()).isEqualTo(30);
+    waitUntil(() -> encoder.lastStatus == MediaConstants.STATUS_AUDIO_RATE_LOW);
+
+    // The buffered data is still delivered, oldest first.
+    encoder.requestAll();
+    waitUntil(() -> encoder.filledCount >= 30);
+    assertThat(encoder.hasOrderedTimestamps).isTrue();
+    assertThat(encoder.firstByte).isEqualTo(0);
+  }
+
+  @Test
+  public void testReadErrorFailsRequests() {
+    audioRecord.failAfterReads = 5;
+    assertThat(micInput.start()).isTrue();
+    encoder.requestAll();
+    waitUntil(() -> encoder.errorCount > 0);
+
+    assertThat(encoder.filledCount).isAtMost(5);
+    encoder.request(CODEC_BUFFER_COUNT);
+    waitUntil(() -> encoder.errorCount > 1);
+  }
+
+  @Test
+  public void testRequestBeforeStartIsReturnedEmpty() {
+    encoder.request(0);
+    waitUntil(() -> encoder.emptyCount > 0);
+
+    assertThat(encoder.filledCount).isEqualTo(0);
+    assertThat(micInput.getPendingRequestCount()).isEqualTo(0);
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  private static void waitUntil(Condition condition) {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.isMet()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Timed out");
+      }
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Produces a byte pattern derived from the total number of bytes read, without allocating.
+   */
+  private static final class FakeAudioRecord extends AudioRecord {
+    volatile Thread readThread;
+    volatile long readCount;
+    volatile boolean isStopped;
+    volatile long readDelayNanos;
+    volatile int failAfterReads = Integer.MAX_VALUE;
+    private long bytesRead;
+    private int recordingState = RECORDSTATE_STOPPED;
+
+    FakeAudioRecord() {
+      super(
+          MediaRecorder.AudioSource.MIC,
+          SAMPLE_RATE,
+          AudioFormat.CHANNEL_IN_MONO,
+          AudioFormat.ENCODING_PCM_16BIT,
+          BUFFER_SIZE);
+    }
+
+    @Override
+    public void startRecording() {
+      recordingState = RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public void stop() {
+      recordingState = RECORDSTATE_STOPPED;
+      isStopped = true;
+    }
+
+    @Override
+    public int getRecordingState() {
+      return recordingState;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+      readThread = Thread.currentThread();
+      if (readCount >= failAfterReads) {
+        return -1;
+      }
+      if (readDelayNanos > 0) {
+        LockSupport.parkNanos(readDelayNanos);
+      }
+      for (int i = 0; i < sizeInBytes; i++) {
+        buffer.put(i, (byte) (bytesRead + i));
+      }
+      bytesRead += sizeInBytes;
+      readCount++;
+      return sizeInBytes;
+    }
+  }
+
+  /** Returns every filled buffer to the mic input, the way the codec returns input buffers. */
+  private static final class FakeEncoder implements AudioInput.FillBufferCallback {
+    private final MicInput micInput;
+    private final ByteBuffer[] codecBuffers = new ByteBuffer[CODEC_BUFFER_COUNT];
+    private long expectedByte;
+    private long lastTimestamp = -1;
+    volatile int filledCount;
+    volatile int emptyCount;
+    volatile int errorCount;
+    volatile int endOfStreamCount;
+    volatile int firstByte = -1;
+    volatile boolean hasOrderedTimestamps = true;
+    volatile boolean hasExpectedData = true;
+    volatile int lastStatus;
+
+    FakeEncoder(MicInput micInput) {
+      this.micInput = micInput;
+      for (int i = 0; i < CODEC_BUFFER_COUNT; i++) {
+        codecBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+    }
+
+    void requestAll() {
+      for (int i = 0; i < CODEC_BUFFER_COUNT; i++) {
+        request(i);
+      }
+    }
+
+    void request(int bufferId) {
+      ByteBuffer buffer = codecBuffers[bufferId % CODEC_BUFFER_COUNT];
+      buffer.clear();
+      micInput.fillBufferRequest(bufferId, buffer);
+    }
+
+    @Override
+    public void onBufferFilled(
+        int bufferId, ByteBuffer buffer, int flags, int offset, int count, long timestamp) {
+      if (count < 0) {
+        errorCount++;
+        return;
+      }
+      if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        endOfStreamCount++;
+        return;
+      }
+      if (count == 0) {
+        emptyCount++;
+        return;
+      }
+      if (firstByte < 0) {
+        firstByte = buffer.get(0);
+      }
+      if (timestamp <= lastTimestamp || buffer.position() != count) {
+        hasOrderedTimestamps = false;
+      }
+      lastTimestamp = timestamp;
+      // Data is delivered in order unless the ring overflowed.
+      if (buffer.get(0) != (byte) expectedByte
+          || buffer.get(count - 1) != (byte) (expectedByte + count - 1)) {
+        hasExpectedData = false;
+      }
+      expectedByte += count;
+      filledCount++;
+      request(bufferId);
+    }
+  }
+
+  /**
+   * Runs posted messages on its own thread, and tracks the memory allocated while running them.
+   * Messages are recycled outside of the measurement, since the framework may allocate to do so.
+   */
+  private static final class ClientHandler extends Handler {
+    private final Message[] queue = new Message[64];
+    private final Thread thread;
+    private int queueHead;
+    private int queueCount;
+    private boolean isQuit;
+    private volatile long allocatedBytes;
+
+    ClientHandler() {
+      super(Looper.getMainLooper());
+      thread = new Thread(this::loop, "ClientHandler");
+      thread.start();
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message message, long uptimeMillis) {
+      synchronized (queue) {
+        if (queueCount == queue.length) {
+          return false;
+        }
+        queue[(queueHead + queueCount) % queue.length] = message;
+        queueCount++;
+        queue.notify();
+      }
+      return true;
+    }
+
+    void quit() {
+      synchronized (queue) {
+        isQuit = true;
+        queue.notify();
+      }
+      try {
+        thread.join(TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void resetAllocatedBytes() {
+      allocatedBytes = 0;
+    }
+
+    long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    private void loop() {
+      com.sun.management.ThreadMXBean threadBean =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+      // Reading the counter may itself allocate.
+      long overhead = threadBean.getThreadAllocatedBytes(threadId);
+      overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+      while (true) {
+        Message message;
+        synchronized (queue) {
+          while (queueCount == 0 && !isQuit) {
+            try {
+              queue.wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (isQuit) {
+            return;
+          }
+          message = queue[queueHead];
+          queue[queueHead] = null;
+          queueHead = (queueHead + 1) % queue.length;
+          queueCount--;
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        message.getCallback().run();
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+        allocatedBytes += after - before - overhead;
+        message.recycle();
+      }
+    }
+  }
+}
@@ -0,0 +1,313 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.metadata;
+
+import static com.google.vr180.media.muxer.Mp4Box.getSampleEntries;
+import static com.google.vr180.media.muxer.Mp4Box.getTypes;
+import static com.google.vr180.media.muxer.Mp4Box.parseBoxes;
+
+import com.google.common.truth.Truth;
+import com.google.vr180.common.media.StereoMode;
+import com.google.vr180.media.muxer.Mp4Box;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Test for {@link Mp4MoovPatcher} */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class Mp4MoovPatcherTest {
+  private static final byte[] SV3D = {0, 0, 0, 12, 's', 'v', '3', 'd', 1, 2, 3, 4};
+  private static final int MDAT_PAYLOAD_SIZE = 1000;
+  private static final int TRACK_DURATION = 90000;
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("patcher", ".mp4", RuntimeEnvironment.application.getCacheDir());
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testPatchMoovAtEnd() throws Exception {
+    byte[] original = concat(ftyp(), mdat(), moov(true));
+    Files.write(file.toPath(), original);
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Truth.assertThat(getTypes(boxes)).containsExactly("ftyp", "mdat", "moov").inOrder();
+    // The sample data is not touched.
+    Truth.assertThat(Arrays.copyOf(data, boxes.get(2).offset))
+        .isEqualTo(Arrays.copyOf(original, boxes.get(2).offset));
+    Truth.assertThat(data.length).isGreaterThan(original.length);
+    assertPatched(data, boxes.get(2));
+  }
+
+  @Test
+  public void testPatchUsesFreeBoxAfterMoov() throws Exception {
+    byte[] original = concat(ftyp(), moov(true), free(4096), mdat());
+    Files.write(file.toPath(), original);
+    int mdatOffset = original.length - 8 - MDAT_PAYLOAD_SIZE;
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+
+    byte[] data = Files.readAllBytes(file.toPath());
+    Truth.assertThat(data.length).isEqualTo(original.length);
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Truth.assertThat(getTypes(boxes)).containsExactly("ftyp", "moov", "free", "mdat").inOrder();
+    Truth.assertThat(boxes.get(3).offset).isEqualTo(mdatOffset);
+    Truth.assertThat(Arrays.copyOfRange(data, mdatOffset, data.length))
+        .isEqualTo(Arrays.copyOfRange(original, mdatOffset, original.length));
+    assertPatched(data, boxes.get(1));
+  }
+
+  @Test
+  public void testPatchConsumesWholeFreeBox() throws Exception {
+    // Measure how much the moov box grows.
+    byte[] moovAtEnd = concat(ftyp(), mdat(), moov(true));
+    Files.write(file.toPath(), moovAtEnd);
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+    int growth = (int) file.length() - moovAtEnd.length;
+
+    byte[] original = concat(ftyp(), moov(true), free(growth), mdat());
+    Files.write(file.toPath(), original);
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+
+    byte[] data = Files.readAllBytes(file.toPath());
+    Truth.assertThat(data.length).isEqualTo(original.length);
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Truth.assertThat(getTypes(boxes)).containsExactly("ftyp", "moov", "mdat").inOrder();
+    assertPatched(data, boxes.get(1));
+  }
+
+  @Test
+  public void testPatchUsesFreeBoxInsideMoov() throws Exception {
+    byte[] moov = moov(true, free(2048));
+    byte[] original = concat(ftyp(), moov, mdat());
+    Files.write(file.toPath(), original);
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+
+    byte[] data = Files.readAllBytes(file.toPath());
+    Truth.assertThat(data.length).isEqualTo(original.length);
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Truth.assertThat(getTypes(boxes)).containsExactly("ftyp", "moov", "mdat").inOrder();
+    Truth.assertThat(boxes.get(1).size).isEqualTo(moov.length);
+    Truth.assertThat(getTypes(boxes.get(1).children(data)))
+        .containsExactly("mvhd", "trak", "trak", "free")
+        .inOrder();
+    assertPatched(data, boxes.get(1));
+  }
+
+  @Test
+  public void testNotEnoughSpace() throws Exception {
+    byte[] original = concat(ftyp(), moov(true), free(16), mdat());
+    Files.write(file.toPath(), original);
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_NO_SPACE);
+    Truth.assertThat(Files.readAllBytes(file.toPath())).isEqualTo(original);
+  }
+
+  @Test
+  public void testPatchTwice() throws Exception {
+    Files.write(file.toPath(), concat(ftyp(), mdat(), moov(true)));
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+    byte[] patched = Files.readAllBytes(file.toPath());
+
+    // Patching again replaces the boxes instead of adding new ones.
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_PATCHED);
+    Truth.assertThat(Files.readAllBytes(file.toPath())).isEqualTo(patched);
+  }
+
+  @Test
+  public void testMissingMetadataTrack() throws Exception {
+    byte[] original = concat(ftyp(), mdat(), moov(false));
+    Files.write(file.toPath(), original);
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_ERROR);
+    Truth.assertThat(Files.readAllBytes(file.toPath())).isEqualTo(original);
+  }
+
+  @Test
+  public void testMissingMoov() throws Exception {
+    byte[] original = concat(ftyp(), mdat());
+    Files.write(file.toPath(), original);
+
+    Truth.assertThat(patch()).isEqualTo(Mp4MoovPatcher.RESULT_ERROR);
+    Truth.assertThat(Files.readAllBytes(file.toPath())).isEqualTo(original);
+  }
+
+  @Test
+  public void testCreateSphericalV1Uuid() throws Exception {
+    Truth.assertThat(Mp4MoovPatcher.createSphericalV1Uuid(StereoMode.LEFT_RIGHT, 1000, 500, 0, 90))
+        .isNull();
+    byte[] uuid =
+        Mp4MoovPatcher.createSphericalV1Uuid(StereoMode.LEFT_RIGHT, 1000, 500, 180, 90);
+    Truth.assertThat(ByteBuffer.wrap(uuid).getInt(0)).isEqualTo(uuid.length);
+    Truth.assertThat(new String(uuid, 4, 4, StandardCharsets.US_ASCII)).isEqualTo("uuid");
+    String xml = new String(uuid, 24, uuid.length - 24, StandardCharsets.UTF_8);
+    Truth.assertThat(xml).contains("<GSpherical:StereoMode>left-right</GSpherical:StereoMode>");
+    Truth.assertThat(xml).contains("<GSpherical:FullPanoWidthPixels>2000<");
+    Truth.assertThat(xml).contains("<GSpherical:FullPanoHeightPixels>1000<");
+    Truth.assertThat(xml).contains("<GSpherical:CroppedAreaLeftPixels>500<");
+  }
+
+  private int patch() {
+    return Mp4MoovPatcher.patch(
+        file.getPath(),
+        StereoMode.LEFT_RIGHT,
+        SV3D,
+        Mp4MoovPatcher.createSphericalV1Uuid(StereoMode.LEFT_RIGHT, 1000, 500, 180, 90));
+  }
+
+  // Checks the box structure of a patched moov box.
+  private static void assertPatched(byte[] data, Mp4Box moov) {
+    assertValidTree(data, moov);
+    List<Mp4Box> traks = moov.children(data, "trak");
+    Truth.assertThat(traks).hasSize(2);
+
+    Mp4Box videoTrak = traks.get(0);
+    Truth.assertThat(getTypes(videoTrak.children(data)))
+        .containsExactly("tkhd", "edts", "mdia", "uuid")
+        .inOrder();
+    Mp4Box elst = videoTrak.child(data, "edts").child(data, "elst");
+    Truth.assertThat(ByteBuffer.wrap(data).getInt(elst.offset + 16)).isEqualTo(TRACK_DURATION);
+
+    Mp4Box avc1 = getSampleEntries(data, videoTrak).get(0);
+    List<Mp4Box> avc1Children = parseBoxes(data, avc1.offset + 8 + 78, avc1.end());
+    Truth.assertThat(getTypes(avc1Children)).containsExactly("avcC", "st3d", "sv3d").inOrder();
+    Truth.assertThat((int) data[avc1Children.get(1).offset + 12]).isEqualTo(StereoMode.LEFT_RIGHT);
+    Mp4Box sv3d = avc1Children.get(2);
+    Truth.assertThat(Arrays.copyOfRange(data, sv3d.offset, sv3d.end())).isEqualTo(SV3D);
+
+    List<Mp4Box> metaEntries = getSampleEntries(data, traks.get(1));
+    Truth.assertThat(getTypes(metaEntries)).containsExactly("camm");
+    Truth.assertThat(metaEntries.get(0).size).isEqualTo(16);
+    Truth.assertThat(getTypes(traks.get(1).children(data)))
+        .containsExactly("tkhd", "edts", "mdia")
+        .inOrder();
+  }
+
+  // Checks that the children of all container boxes exactly fill their parents.
+  private static void assertValidTree(byte[] data, Mp4Box box) {
+    int childrenOffset;
+    switch (box.type) {
+      case "moov":
+      case "trak":
+      case "edts":
+      case "mdia":
+      case "minf":
+      case "stbl":
+        childrenOffset = box.offset + 8;
+        break;
+      case "stsd":
+        childrenOffset = box.offset + 16;
+        break;
+      case "avc1":
+        childrenOffset = box.offset + 8 + 78;
+        break;
+      default:
+        return;
+    }
+    int end = childrenOffset;
+    for (Mp4Box child : parseBoxes(data, childrenOffset, box.end())) {
+      end = child.end();
+      assertValidTree(data, child);
+    }
+    Truth.assertThat(end).isEqualTo(box.end());
+  }
+
+  private static byte[] ftyp() {
+    return box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+  }
+
+  private static byte[] mdat() {
+    byte[] payload = new byte[MDAT_PAYLOAD_SIZE];
+    for (int i = 0; i < payload.length; ++i) {
+      payload[i] = (byte) i;
+    }
+    return box("mdat", payload);
+  }
+
+  private static byte[] free(int size) {
+    return box("free", new byte[size - 8]);
+  }
+
+  private static byte[] moov(boolean withMetadataTrack, byte[]... extraChildren) {
+    byte[] visualSampleEntry =
+        box("avc1", new byte[78], box("avcC", new byte[] {1, 0x42, 0, 0x1e, (byte) 0xff}));
+    byte[] videoTrak = trak("vide", visualSampleEntry);
+    byte[] mett =
+        box(
+            "mett",
+            new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 0},
+            "application/motion\0".getBytes(StandardCharsets.US_ASCII));
+    byte[] metaTrak = withMetadataTrack ? trak("meta", mett) : new byte[0];
+    return box("moov", box("mvhd", new byte[100]), videoTrak, metaTrak, concat(extraChildren));
+  }
+
+  private static byte[] trak(String handler, byte[] sampleEntry) {
+    ByteBuffer tkhd = ByteBuffer.allocate(84);
+    tkhd.putInt(20, TRACK_DURATION);
+    ByteBuffer hdlr = ByteBuffer.allocate(25);
+    hdlr.position(8);
+    hdlr.put(handler.getBytes(StandardCharsets.US_ASCII));
+    byte[] stsd = box("stsd", new byte[] {0, 0, 0, 0, 0, 0, 0, 1}, sampleEntry);
+    byte[] stco = box("stco", new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 16});
+    return box(
+        "trak",
+        box("tkhd", tkhd.array()),
+        box(
+            "mdia",
+            box("mdhd", new byte[24]),
+            box("hdlr", hdlr.array()),
+            box("minf", box("stbl", stsd, box("stts", new byte[8]), stco))));
+  }
+
+  private static byte[] box(String type, byte[]... payloads) {
+    byte[] payload = concat(payloads);
+    ByteBuffer box = ByteBuffer.allocate(8 + payload.length);
+    box.putInt(box.capacity());
+    box.put(type.getBytes(StandardCharsets.US_ASCII));
+    box.put(payload);
+    return box.array();
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      output.write(array, 0, array.length);
+    }
+    return output.toByteArray();
+  }
+}
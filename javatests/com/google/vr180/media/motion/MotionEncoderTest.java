@@ -0,0 +1,375 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.motion;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.location.Location;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Pair;
+import com.google.vr180.media.MediaEncoder;
+import com.google.vr180.media.motion.MotionEvent.CammType;
+import com.google.vr180.media.muxer.MediaMux;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MotionEncoderTest {
+  private static final long START_NS = 1_000_000_000L;
+  private static final long PERIOD_NS = 5_000_000L;
+  // Packet sizes and types from https://developers.google.com/streetview/publish/camm-spec.
+  private static final int VECTOR_PACKET_SIZE = 16;
+  private static final int GPS_PACKET_SIZE = 60;
+  private static final int GPS_TYPE = 6;
+  // 2018-06-01T00:00:00Z, and the same time in seconds since the GPS epoch.
+  private static final long FIX_UNIX_MILLIS = 1_527_811_200_000L;
+  private static final double FIX_GPS_SECONDS = 1_211_846_418.0;
+
+  private final QueuingHandler handler = new QueuingHandler();
+  private final FakeMux mux = new FakeMux();
+
+  @Test
+  public void testVectorPacketsFollowCammLayout() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ true);
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.ORIENTATION, new float[] {0.1f, -0.2f, 0.3f}, START_NS));
+    encoder.onMotionEvent(
+        new MotionEvent(
+            CammType.GYROSCOPE,
+            new float[] {1.0f, 2.0f, 3.0f, 0.5f, 0.25f, 0.125f},
+            START_NS + PERIOD_NS));
+    encoder.onMotionEvent(
+        new MotionEvent(
+            CammType.ACCELEROMETER, new float[] {0f, -9.8f, 0.5f}, START_NS + 2 * PERIOD_NS));
+    encoder.onMotionEvent(
+        new MotionEvent(
+            CammType.MAGNETIC_FIELD, new float[] {22f, -4f, 41f}, START_NS + 3 * PERIOD_NS));
+    handler.runAll();
+
+    assertThat(mux.samples).hasSize(4);
+    assertVectorPacket(mux.samples.get(0), 0, 0.1f, -0.2f, 0.3f);
+    // The gyroscope bias is subtracted.
+    assertVectorPacket(mux.samples.get(1), 2, 0.5f, 1.75f, 2.875f);
+    assertVectorPacket(mux.samples.get(2), 3, 0f, -9.8f, 0.5f);
+    assertVectorPacket(mux.samples.get(3), 7, 22f, -4f, 41f);
+    for (int i = 0; i < 4; i++) {
+      assertThat(mux.timestampsUs.get(i)).isEqualTo((START_NS + i * PERIOD_NS) / 1000);
+    }
+  }
+
+  @Test
+  public void testOrientationPacketIsUnchanged() throws Exception {
+    // Angle axis packets have type 0, so they are the same as before the reserved field was split
+    // from the type.
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ false);
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.ORIENTATION, new float[] {1.0f, 2.0f, 3.0f}, START_NS));
+    handler.runAll();
+
+    ByteBuffer expected = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    expected.putInt(0).putFloat(1.0f).putFloat(2.0f).putFloat(3.0f);
+    assertThat(mux.samples.get(0)).isEqualTo(expected.array());
+  }
+
+  @Test
+  public void testExtraCammDataIsOptional() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ false);
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.GYROSCOPE, new float[] {1, 2, 3, 0, 0, 0}, START_NS));
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.ACCELEROMETER, new float[] {1, 2, 3}, START_NS + 1));
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.MAGNETIC_FIELD, new float[] {1, 2, 3}, START_NS + 2));
+    encoder.onLocation(createLocation(START_NS + 3));
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.ORIENTATION, new float[] {1, 2, 3}, START_NS + 4));
+    handler.runAll();
+
+    assertThat(mux.samples).hasSize(1);
+    assertThat(readType(mux.samples.get(0))).isEqualTo(0);
+  }
+
+  @Test
+  public void testGpsPacketFollowsCammLayout() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ true);
+    encoder.onLocation(createLocation(START_NS));
+    handler.runAll();
+
+    assertThat(mux.samples).hasSize(1);
+    byte[] sample = mux.samples.get(0);
+    assertThat(sample.length).isEqualTo(GPS_PACKET_SIZE);
+    ByteBuffer packet = ByteBuffer.wrap(sample).order(ByteOrder.LITTLE_ENDIAN);
+    assertThat(packet.getShort() & 0xffff).isEqualTo(0);
+    assertThat(packet.getShort() & 0xffff).isEqualTo(GPS_TYPE);
+    assertThat(packet.getDouble()).isEqualTo(FIX_GPS_SECONDS);
+    // A 3D fix, since the location has an altitude.
+    assertThat(packet.getInt()).isEqualTo(3);
+    assertThat(packet.getDouble()).isEqualTo(37.422);
+    assertThat(packet.getDouble()).isEqualTo(-122.084);
+    // The altitude is a float, unlike latitude and longitude.
+    assertThat(packet.getFloat()).isEqualTo(32.5f);
+    assertThat(packet.getFloat()).isEqualTo(4.0f);
+    assertThat(packet.getFloat()).isEqualTo(6.0f);
+    // 2 m/s towards the east.
+    assertThat((double) packet.getFloat()).isWithin(1e-6).of(2.0);
+    assertThat((double) packet.getFloat()).isWithin(1e-6).of(0.0);
+    assertThat(packet.getFloat()).isEqualTo(0.0f);
+    assertThat(packet.getFloat()).isEqualTo(0.5f);
+    assertThat(packet.remaining()).isEqualTo(0);
+    assertThat(mux.timestampsUs.get(0)).isEqualTo(START_NS / 1000);
+  }
+
+  @Test
+  public void testLateGpsFixIsTimedAfterNewerSamples() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ true);
+    encoder.onMotionEvent(
+        new MotionEvent(CammType.ORIENTATION, new float[] {0, 0, 0}, START_NS + PERIOD_NS));
+    encoder.onLocation(createLocation(START_NS));
+    handler.runAll();
+
+    assertThat(mux.samples).hasSize(2);
+    assertThat(readType(mux.samples.get(1))).isEqualTo(GPS_TYPE);
+    assertThat(mux.timestampsUs.get(1)).isEqualTo((START_NS + PERIOD_NS) / 1000);
+  }
+
+  @Test
+  public void testPacketsAreHandedToMuxerInBatches() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ true);
+    float[] values = {0.1f, 0.2f, 0.3f};
+    for (int i = 0; i < 50; i++) {
+      encoder.onMotionEvent(
+          new MotionEvent(CammType.ORIENTATION, values, START_NS + i * PERIOD_NS));
+    }
+    assertThat(mux.samples).isEmpty();
+    assertThat(handler.posted).hasSize(1);
+
+    handler.runAll();
+    assertThat(mux.samples).hasSize(50);
+    for (int i = 0; i < 50; i++) {
+      assertThat(mux.timestampsUs.get(i)).isEqualTo((START_NS + i * PERIOD_NS) / 1000);
+    }
+
+    // The next packet schedules another batch.
+    encoder.onMotionEvent(new MotionEvent(CammType.ORIENTATION, values, START_NS + 50 * PERIOD_NS));
+    assertThat(handler.posted).hasSize(1);
+  }
+
+  @Test
+  public void testPacketsAreWrittenIntoRecycledDirectSlots() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ true);
+    float[] values = {0.1f, 0.2f, 0.3f};
+    int initialBufferCount = encoder.getBufferCount();
+    mux.isHolding = true;
+    for (int i = 0; i < initialBufferCount + 1; i++) {
+      encoder.onMotionEvent(
+          new MotionEvent(CammType.ORIENTATION, values, START_NS + i * PERIOD_NS));
+    }
+    handler.runAll();
+    // The muxer held every slot, so another slab was added.
+    assertThat(encoder.getBufferCount()).isEqualTo(2 * initialBufferCount);
+    for (int index : mux.heldIndices) {
+      assertThat(encoder.getOutputBuffer(index).isDirect()).isTrue();
+    }
+    assertThat(mux.heldIndices.get(0)).isEqualTo(0);
+
+    mux.releaseHeld();
+    mux.isHolding = false;
+    long timestampNs = START_NS + (initialBufferCount + 1) * PERIOD_NS;
+    for (int i = 0; i < 10 * initialBufferCount; i++) {
+      encoder.onMotionEvent(new MotionEvent(CammType.ORIENTATION, values, timestampNs));
+      timestampNs += PERIOD_NS;
+      handler.runAll();
+    }
+    assertThat(encoder.getBufferCount()).isEqualTo(2 * initialBufferCount);
+    assertThat(mux.samples).hasSize(11 * initialBufferCount + 1);
+  }
+
+  @Test
+  public void testEndOfStreamFollowsQueuedPackets() throws Exception {
+    MotionEncoder encoder = createEncoder(/* extraCammData= */ false);
+    assertThat(encoder.start()).isTrue();
+    boolean[] isEndOfStream = new boolean[1];
+    encoder.onMotionEvent(new MotionEvent(CammType.ORIENTATION, new float[] {1, 2, 3}, START_NS));
+    assertThat(encoder.signalEndOfStream(e -> isEndOfStream[0] = true)).isTrue();
+    handler.runAll();
+
+    assertThat(mux.samples).hasSize(1);
+    assertThat(isEndOfStream[0]).isTrue();
+  }
+
+  private MotionEncoder createEncoder(boolean extraCammData) throws Exception {
+    MediaFormat format = new MediaFormat();
+    format.setString(MediaFormat.KEY_MIME, "application/camm");
+    format.setInteger(MediaFormat.KEY_BIT_RATE, 0);
+    format.setInteger(MotionEncoder.KEY_EXTRA_CAMM_DATA, extraCammData ? 1 : 0);
+    return new MotionEncoder(format, mux, handler);
+  }
+
+  private static Location createLocation(long elapsedRealtimeNanos) {
+    Location location = new Location("gps");
+    location.setTime(FIX_UNIX_MILLIS);
+    location.setElapsedRealtimeNanos(elapsedRealtimeNanos);
+    location.setLatitude(37.422);
+    location.setLongitude(-122.084);
+    location.setAltitude(32.5);
+    location.setAccuracy(4.0f);
+    location.setVerticalAccuracyMeters(6.0f);
+    location.setSpeed(2.0f);
+    location.setBearing(90.0f);
+    location.setSpeedAccuracyMetersPerSecond(0.5f);
+    return location;
+  }
+
+  private static int readType(byte[] sample) {
+    return ByteBuffer.wrap(sample).order(ByteOrder.LITTLE_ENDIAN).getShort(2) & 0xffff;
+  }
+
+  private static void assertVectorPacket(byte[] sample, int type, float x, float y, float z) {
+    assertThat(sample.length).isEqualTo(VECTOR_PACKET_SIZE);
+    ByteBuffer packet = ByteBuffer.wrap(sample).order(ByteOrder.LITTLE_ENDIAN);
+    // uint16 reserved, uint16 type, then the values.
+    assertThat(packet.getShort() & 0xffff).isEqualTo(0);
+    assertThat(packet.getShort() & 0xffff).isEqualTo(type);
+    assertThat(packet.getFloat()).isEqualTo(x);
+    assertThat(packet.getFloat()).isEqualTo(y);
+    assertThat(packet.getFloat()).isEqualTo(z);
+  }
+
+  /** Queues posted runnables until they are run by the test. */
+  private static final class QueuingHandler extends Handler {
+    final List<Runnable> posted = new ArrayList<>();
+
+    QueuingHandler() {
+      super(Looper.getMainLooper());
+    }
+
+    @Override
+    public boolean sendMessageAtTime(Message message, long uptimeMillis) {
+      posted.add(message.getCallback());
+      return true;
+    }
+
+    void runAll() {
+      while (!posted.isEmpty()) {
+        posted.remove(0).run();
+      }
+    }
+  }
+
+  /** Copies the written samples, and releases or holds their buffers. */
+  private static final class FakeMux implements MediaMux {
+    final List<byte[]> samples = new ArrayList<>();
+    final List<Long> timestampsUs = new ArrayList<>();
+    final List<Integer> heldIndices = new ArrayList<>();
+    boolean isHolding;
+    private MediaEncoder encoder;
+
+    void releaseHeld() {
+      for (int index : heldIndices) {
+        encoder.releaseOutputBuffer(index);
+      }
+      heldIndices.clear();
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public int addTrack(MediaFormat format, MediaEncoder encoder) {
+      this.encoder = encoder;
+      return 0;
+    }
+
+    @Override
+    public boolean hasAllTracks() {
+      return true;
+    }
+
+    @Override
+    public int prepare() {
+      return 0;
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      return true;
+    }
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isStarted() {
+      return true;
+    }
+
+    @Override
+    public boolean writeSampleDataAsync(
+        int trackIndex, int bufferIndex, MediaCodec.BufferInfo bufferInfo) {
+      ByteBuffer buffer = encoder.getOutputBuffer(bufferIndex).duplicate();
+      buffer.position(bufferInfo.offset);
+      buffer.limit(bufferInfo.offset + bufferInfo.size);
+      byte[] sample = new byte[buffer.remaining()];
+      buffer.get(sample);
+      samples.add(sample);
+      timestampsUs.add(bufferInfo.presentationTimeUs);
+      if (isHolding) {
+        heldIndices.add(bufferIndex);
+      } else {
+        encoder.releaseOutputBuffer(bufferIndex);
+      }
+      return true;
+    }
+
+    @Override
+    public void cleanupPartialResults() {}
+
+    @Override
+    public long getBytesWritten() {
+      return 0;
+    }
+
+    @Override
+    public int getOutputBufferUsed() {
+      return 0;
+    }
+
+    @Override
+    public Pair<Integer, Integer> getCurrentByteThroughput() {
+      return null;
+    }
+
+    @Override
+    public void setOutputBufferLimit(int bytes) {}
+  }
+}
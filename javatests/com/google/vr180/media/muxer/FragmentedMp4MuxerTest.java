@@ -0,0 +1,356 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import static com.google.vr180.media.muxer.Mp4Box.getSampleEntries;
+import static com.google.vr180.media.muxer.Mp4Box.getTypes;
+import static com.google.vr180.media.muxer.Mp4Box.parseBoxes;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+import com.google.common.truth.Truth;
+import com.google.vr180.common.media.MediaStoreUtil;
+import com.google.vr180.common.media.StereoMode;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaEncoder;
+import com.google.vr180.media.metadata.ProjectionMetadata;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+/** Test for {@link FragmentedMp4Muxer} and {@link FragmentedMp4Recovery} */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FragmentedMp4MuxerTest {
+  private static final long START_US = 1_000_000;
+  private static final long VIDEO_FRAME_US = 40_000;
+  private static final int KEY_FRAME_INTERVAL = 25;
+  private static final int VIDEO_FRAME_COUNT = 100;
+  private static final long AUDIO_FRAME_US = 20_000;
+  private static final long MOTION_SAMPLE_US = 5_000;
+  private static final long FRAGMENT_DURATION_US = 1_000_000;
+  private static final int VIDEO_PAYLOAD_SIZE = 100;
+  private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e, 0x01, 0x02};
+  private static final byte[] PPS = {0, 0, 0, 1, 0x68, 0x03, 0x04};
+  private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+  private static final byte[] SV3D = {0, 0, 0, 8, 's', 'v', '3', 'd'};
+
+  @Mock MediaEncoder mockVideoEncoder;
+  @Mock MediaEncoder mockAudioEncoder;
+  @Mock MediaEncoder mockMotionEncoder;
+
+  private final Map<Integer, ByteBuffer> outputBuffers = new HashMap<>();
+  private final Map<String, byte[]> checksums = new HashMap<>();
+  private final List<Intent> finalizedIntents = new ArrayList<>();
+  private final BroadcastReceiver finalizedReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          finalizedIntents.add(intent);
+        }
+      };
+  private int nextBufferIndex;
+  private File outputFile;
+  private FragmentedMp4Muxer muxer;
+  private int videoTrack;
+  private int audioTrack;
+  private int motionTrack;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application)
+        .registerReceiver(
+            finalizedReceiver, new IntentFilter(MediaStoreUtil.ACTION_MEDIA_FINALIZED));
+    for (MediaEncoder encoder :
+        new MediaEncoder[] {mockVideoEncoder, mockAudioEncoder, mockMotionEncoder}) {
+      when(encoder.getOutputBuffer(anyInt()))
+          .thenAnswer(invocation -> outputBuffers.get(invocation.getArguments()[0]));
+      when(encoder.getName()).thenReturn("encoder");
+    }
+    outputFile = new File(RuntimeEnvironment.application.getCacheDir(), "test.vr.mp4");
+
+    MediaFormat videoFormat =
+        MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 320);
+    videoFormat.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+    videoFormat.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+    MediaFormat audioFormat =
+        MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+    audioFormat.setByteBuffer("csd-0", ByteBuffer.wrap(AUDIO_SPECIFIC_CONFIG));
+    MediaFormat motionFormat = new MediaFormat();
+    motionFormat.setString(MediaFormat.KEY_MIME, "application/motion");
+
+    muxer =
+        new FragmentedMp4Muxer(
+            RuntimeEnvironment.application,
+            outputFile.getPath(),
+            true /* need motion */,
+            new ProjectionMetadata(StereoMode.LEFT_RIGHT, SV3D, null),
+            FRAGMENT_DURATION_US);
+    muxer.setChecksumListener(checksums::put);
+    Truth.assertThat(muxer.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    videoTrack = muxer.addTrack(videoFormat, mockVideoEncoder);
+    audioTrack = muxer.addTrack(audioFormat, mockAudioEncoder);
+    Truth.assertThat(muxer.hasAllTracks()).isFalse();
+    motionTrack = muxer.addTrack(motionFormat, mockMotionEncoder);
+    Truth.assertThat(muxer.hasAllTracks()).isTrue();
+    Truth.assertThat(muxer.start()).isTrue();
+  }
+
+  @After
+  public void tearDown() {
+    muxer.release();
+    outputFile.delete();
+    LocalBroadcastManager.getInstance(RuntimeEnvironment.application)
+        .unregisterReceiver(finalizedReceiver);
+  }
+
+  @Test
+  public void testWritesHeaderAndFragments() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    Truth.assertThat(muxer.stop()).isTrue();
+
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Truth.assertThat(getTypes(boxes))
+        .containsExactly(
+            "ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat", "moof", "mdat")
+        .inOrder();
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(4);
+    Truth.assertThat(outputFile.length()).isEqualTo((long) data.length);
+  }
+
+  @Test
+  public void testChecksumIsPassedToListener() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    Truth.assertThat(muxer.stop()).isTrue();
+
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    Truth.assertThat(checksums.get(outputFile.getPath()))
+        .isEqualTo(MessageDigest.getInstance("SHA-1").digest(data));
+    // The broadcast only carries the path.
+    Truth.assertThat(getFinalizedIntent().getExtras().keySet())
+        .containsExactly(MediaStoreUtil.EXTRA_PATH);
+  }
+
+  @Test
+  public void testSampleEntries() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    muxer.stop();
+
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    Mp4Box moov = parseBoxes(data, 0, data.length).get(1);
+    List<Mp4Box> traks = moov.children(data, "trak");
+    Truth.assertThat(traks).hasSize(3);
+
+    List<Mp4Box> videoEntries = getSampleEntries(data, traks.get(0));
+    Truth.assertThat(getTypes(videoEntries)).containsExactly("avc1");
+    // A visual sample entry has 78 bytes of fields before its child boxes.
+    Mp4Box avc1 = videoEntries.get(0);
+    List<Mp4Box> avc1Children = parseBoxes(data, avc1.offset + 8 + 78, avc1.end());
+    Truth.assertThat(getTypes(avc1Children)).containsExactly("avcC", "st3d", "sv3d").inOrder();
+    Mp4Box st3d = avc1Children.get(1);
+    Truth.assertThat((int) data[st3d.offset + 12]).isEqualTo(StereoMode.LEFT_RIGHT);
+
+    Truth.assertThat(getTypes(getSampleEntries(data, traks.get(1)))).containsExactly("mp4a");
+    Truth.assertThat(getTypes(getSampleEntries(data, traks.get(2)))).containsExactly("camm");
+  }
+
+  @Test
+  public void testFragmentsContainAllSamples() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    muxer.stop();
+
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    int[] sampleCounts = new int[3];
+    boolean firstFragment = true;
+    for (Mp4Box box : parseBoxes(data, 0, data.length)) {
+      if (!box.type.equals("moof")) {
+        continue;
+      }
+      for (Mp4Box traf : box.children(data, "traf")) {
+        int trackId = ByteBuffer.wrap(data).getInt(traf.child(data, "tfhd").offset + 12);
+        Mp4Box trun = traf.child(data, "trun");
+        sampleCounts[trackId - 1] += ByteBuffer.wrap(data).getInt(trun.offset + 12);
+        if (firstFragment && trackId == 1) {
+          // Timestamps start at the first video frame.
+          Truth.assertThat(ByteBuffer.wrap(data).getLong(traf.child(data, "tfdt").offset + 12))
+              .isEqualTo(0L);
+          // The first sample starts with the NAL unit length instead of a start code.
+          int dataOffset = ByteBuffer.wrap(data).getInt(trun.offset + 16);
+          Truth.assertThat(ByteBuffer.wrap(data).getInt(box.offset + dataOffset))
+              .isEqualTo(VIDEO_PAYLOAD_SIZE + 1);
+          Truth.assertThat(ByteBuffer.wrap(data).getInt(trun.offset + 20 + 8))
+              .isEqualTo(FragmentedMp4Muxer.SAMPLE_FLAGS_SYNC);
+        }
+      }
+      firstFragment = false;
+    }
+    Truth.assertThat(sampleCounts[videoTrack]).isEqualTo(VIDEO_FRAME_COUNT);
+    // Audio and motion samples before the first video frame are dropped.
+    long durationUs = (VIDEO_FRAME_COUNT - 1) * VIDEO_FRAME_US;
+    Truth.assertThat(sampleCounts[audioTrack]).isEqualTo((int) (durationUs / AUDIO_FRAME_US));
+    Truth.assertThat(sampleCounts[motionTrack]).isEqualTo((int) (durationUs / MOTION_SAMPLE_US));
+    // All buffers are returned to the encoders.
+    verify(mockVideoEncoder, times(VIDEO_FRAME_COUNT)).releaseOutputBuffer(anyInt());
+  }
+
+  @Test
+  public void testRecoverTruncatedFragment() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    muxer.stop();
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    List<Mp4Box> boxes = parseBoxes(data, 0, data.length);
+    Mp4Box lastMdat = boxes.get(boxes.size() - 1);
+    Mp4Box lastMoof = boxes.get(boxes.size() - 2);
+
+    // Truncated in the middle of the sample data.
+    truncate(lastMdat.offset + lastMdat.size / 2);
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(3);
+    Truth.assertThat(outputFile.length()).isEqualTo((long) lastMoof.offset);
+
+    // Truncated in the middle of the moof box.
+    Files.write(outputFile.toPath(), data);
+    truncate(lastMoof.offset + 10);
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(3);
+    Truth.assertThat(outputFile.length()).isEqualTo((long) lastMoof.offset);
+
+    // Truncated right after the moof box.
+    Files.write(outputFile.toPath(), data);
+    truncate(lastMdat.offset);
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(3);
+    Truth.assertThat(outputFile.length()).isEqualTo((long) lastMoof.offset);
+
+    byte[] recovered = Files.readAllBytes(outputFile.toPath());
+    Truth.assertThat(getTypes(parseBoxes(recovered, 0, recovered.length)))
+        .containsExactly("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat")
+        .inOrder();
+  }
+
+  @Test
+  public void testRecoverWithoutFragments() throws Exception {
+    writeSamples(VIDEO_FRAME_COUNT);
+    muxer.stop();
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    Mp4Box moov = parseBoxes(data, 0, data.length).get(1);
+
+    truncate(moov.end() + 4);
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(0);
+    Truth.assertThat(outputFile.length()).isEqualTo((long) moov.end());
+
+    // A file without a complete moov box cannot be recovered.
+    truncate(moov.end() - 1);
+    Truth.assertThat(FragmentedMp4Recovery.recover(outputFile.getPath())).isEqualTo(-1);
+  }
+
+  @Test
+  public void testCleanupPartialResultsKeepsCompleteFragments() throws Exception {
+    // Two complete fragments plus pending samples that are lost on failure.
+    writeSamples(2 * KEY_FRAME_INTERVAL + 10);
+    muxer.cleanupPartialResults();
+
+    Truth.assertThat(outputFile.exists()).isTrue();
+    byte[] data = Files.readAllBytes(outputFile.toPath());
+    Truth.assertThat(getTypes(parseBoxes(data, 0, data.length)))
+        .containsExactly("ftyp", "moov", "moof", "mdat", "moof", "mdat")
+        .inOrder();
+    // The recovered file is shorter than what was hashed.
+    getFinalizedIntent();
+    Truth.assertThat(checksums).isEmpty();
+  }
+
+  @Test
+  public void testCleanupPartialResultsWithoutFragments() throws Exception {
+    writeSamples(KEY_FRAME_INTERVAL - 1);
+    muxer.cleanupPartialResults();
+    Truth.assertThat(outputFile.exists()).isFalse();
+  }
+
+  // Write video frames with audio and motion samples interleaved in timestamp order. Audio and
+  // motion samples start before the first video frame.
+  private void writeSamples(int videoFrameCount) {
+    long audioTimestamp = START_US - 5 * AUDIO_FRAME_US;
+    long motionTimestamp = START_US - 5 * MOTION_SAMPLE_US;
+    for (int i = 0; i < videoFrameCount; ++i) {
+      long videoTimestamp = START_US + i * VIDEO_FRAME_US;
+      for (; audioTimestamp < videoTimestamp; audioTimestamp += AUDIO_FRAME_US) {
+        writeSample(audioTrack, new byte[10], audioTimestamp, 0);
+      }
+      for (; motionTimestamp < videoTimestamp; motionTimestamp += MOTION_SAMPLE_US) {
+        writeSample(motionTrack, new byte[16], motionTimestamp, 0);
+      }
+      boolean isKeyFrame = i % KEY_FRAME_INTERVAL == 0;
+      byte[] frame = new byte[5 + VIDEO_PAYLOAD_SIZE];
+      frame[3] = 1;
+      frame[4] = (byte) (isKeyFrame ? 0x65 : 0x41);
+      writeSample(
+          videoTrack, frame, videoTimestamp, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+  }
+
+  private void writeSample(int track, byte[] sample, long timestampUs, int flags) {
+    int bufferIndex = nextBufferIndex++;
+    outputBuffers.put(bufferIndex, ByteBuffer.wrap(sample));
+    BufferInfo info = new BufferInfo();
+    info.set(0, sample.length, timestampUs, flags);
+    Truth.assertThat(muxer.writeSampleDataAsync(track, bufferIndex, info)).isTrue();
+  }
+
+  // Returns the last finalized media broadcast for the output file.
+  private Intent getFinalizedIntent() {
+    Shadows.shadowOf(Looper.getMainLooper()).idle();
+    Intent result = null;
+    for (Intent intent : finalizedIntents) {
+      if (outputFile.getPath().equals(intent.getStringExtra(MediaStoreUtil.EXTRA_PATH))) {
+        result = intent;
+      }
+    }
+    Truth.assertThat(result).isNotNull();
+    return result;
+  }
+
+  private void truncate(long length) throws Exception {
+    try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
+      file.setLength(length);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import com.google.common.truth.Truth;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A box of an MP4 file, for tests which check the box structure of written files. */
+public final class Mp4Box {
+  public final String type;
+  public final int offset;
+  public final int size;
+
+  private Mp4Box(String type, int offset, int size) {
+    this.type = type;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  public int end() {
+    return offset + size;
+  }
+
+  public List<Mp4Box> children(byte[] data) {
+    return parseBoxes(data, offset + 8, end());
+  }
+
+  public List<Mp4Box> children(byte[] data, String childType) {
+    List<Mp4Box> result = new ArrayList<>();
+    for (Mp4Box child : children(data)) {
+      if (child.type.equals(childType)) {
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the only child box of the given type. */
+  public Mp4Box child(byte[] data, String childType) {
+    List<Mp4Box> result = children(data, childType);
+    Truth.assertThat(result).hasSize(1);
+    return result.get(0);
+  }
+
+  /** Parses the boxes between start and end, which they must exactly fill. */
+  public static List<Mp4Box> parseBoxes(byte[] data, int start, int end) {
+    List<Mp4Box> boxes = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    int position = start;
+    while (position + 8 <= end) {
+      int size = buffer.getInt(position);
+      String type = new String(data, position + 4, 4, StandardCharsets.US_ASCII);
+      Truth.assertThat(size).isAtLeast(8);
+      Truth.assertThat(position + size).isAtMost(end);
+      boxes.add(new Mp4Box(type, position, size));
+      position += size;
+    }
+    Truth.assertThat(position).isEqualTo(end);
+    return boxes;
+  }
+
+  /** Returns the sample entries of the stsd box of a trak box. */
+  public static List<Mp4Box> getSampleEntries(byte[] data, Mp4Box trak) {
+    Mp4Box stsd =
+        trak.child(data, "mdia").child(data, "minf").child(data, "stbl").child(data, "stsd");
+    // Skip the full box header and the entry count.
+    return parseBoxes(data, stsd.offset + 16, stsd.end());
+  }
+
+  public static List<String> getTypes(List<Mp4Box> boxes) {
+    List<String> types = new ArrayList<>();
+    for (Mp4Box box : boxes) {
+      types.add(box.type);
+    }
+    return types;
+  }
+}
@@ -0,0 +1,404 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.util.Pair;
+import com.google.common.truth.Truth;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Test for {@link PreRollMediaMux} */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PreRollMediaMuxTest {
+  private static final int PRE_ROLL_MS = 1000;
+  private static final long FRAME_DURATION_US = 33_333;
+  private static final long AUDIO_SAMPLE_US = 21_333;
+  private static final int KEY_FRAME_INTERVAL = 30;
+  private static final int VIDEO_FRAME_BYTES = 1000;
+  private static final int AUDIO_SAMPLE_BYTES = 100;
+
+  private final FakeEncoder videoEncoder = new FakeEncoder();
+  private final FakeEncoder audioEncoder = new FakeEncoder();
+  private final FakeMux target = new FakeMux();
+  private PreRollMediaMux preRoll;
+  private int videoTrack;
+  private int audioTrack;
+  private int nextBufferIndex;
+  private long nextAudioUs;
+
+  @Before
+  public void setUp() {
+    preRoll = new PreRollMediaMux(2, PRE_ROLL_MS, 1024 * 1024);
+    Truth.assertThat(preRoll.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    videoTrack = preRoll.addTrack(MediaFormat.createVideoFormat("video/avc", 64, 64), videoEncoder);
+    audioTrack =
+        preRoll.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2), audioEncoder);
+    Truth.assertThat(preRoll.hasAllTracks()).isTrue();
+    Truth.assertThat(preRoll.start()).isTrue();
+  }
+
+  @Test
+  public void testFlushStartsAtPreRollKeyFrame() {
+    // Five seconds with a key frame every second.
+    int frameCount = 150;
+    writeFrames(0, frameCount);
+    long lastFrameUs = (frameCount - 1) * FRAME_DURATION_US;
+
+    // The codec buffers are not held by the pre-roll. Each one is released once.
+    Truth.assertThat(videoEncoder.releasedIndices).hasSize(frameCount);
+    Truth.assertThat(audioEncoder.releasedIndices).hasSize(audioEncoder.bufferCount);
+
+    Truth.assertThat(preRoll.attach(target)).isTrue();
+    Truth.assertThat(target.trackCount).isEqualTo(2);
+
+    // The output starts at the last key frame that covers the pre-roll.
+    long keyFrameUs = 90 * FRAME_DURATION_US;
+    Sample first = target.samples.get(0);
+    Truth.assertThat(first.trackIndex).isEqualTo(videoTrack);
+    Truth.assertThat(first.isKeyFrame).isTrue();
+    Truth.assertThat(first.timestampUs).isEqualTo(keyFrameUs);
+    Truth.assertThat(lastFrameUs - first.timestampUs).isAtLeast(PRE_ROLL_MS * 1000L);
+    Truth.assertThat(lastFrameUs - first.timestampUs)
+        .isLessThan((PRE_ROLL_MS + 1000L) * 1000L);
+
+    // All samples after the key frame are flushed in order with their content.
+    int videoCount = 0;
+    for (Sample sample : target.samples) {
+      Truth.assertThat(sample.contentMatches).isTrue();
+      if (sample.trackIndex == videoTrack) {
+        Truth.assertThat(sample.timestampUs).isEqualTo(keyFrameUs + videoCount * FRAME_DURATION_US);
+        videoCount++;
+      }
+    }
+    Truth.assertThat(videoCount).isEqualTo(frameCount - 90);
+    Truth.assertThat(preRoll.getBufferedBytes()).isGreaterThan(0);
+
+    // Live samples are forwarded with their codec buffers.
+    int flushedCount = target.samples.size();
+    writeVideo(frameCount * FRAME_DURATION_US, false);
+    Truth.assertThat(target.samples).hasSize(flushedCount + 1);
+    Truth.assertThat(target.samples.get(flushedCount).bufferIndex).isLessThan(1 << 20);
+
+    // The flushed samples leave the ring once the target released them.
+    target.releaseAll();
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCapacityKeepsKeyFrameAlignment() {
+    preRoll = new PreRollMediaMux(2, 10_000, 40 * VIDEO_FRAME_BYTES);
+    Truth.assertThat(preRoll.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    preRoll.addTrack(MediaFormat.createVideoFormat("video/avc", 64, 64), videoEncoder);
+    preRoll.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2), audioEncoder);
+    Truth.assertThat(preRoll.start()).isTrue();
+
+    // The ring only fits part of a key frame interval.
+    writeFrames(0, 100);
+    Truth.assertThat(preRoll.getBufferedBytes()).isAtMost(preRoll.getCapacityBytes());
+    Truth.assertThat(preRoll.getDroppedSampleCount()).isGreaterThan(0);
+
+    Truth.assertThat(preRoll.attach(target)).isTrue();
+    Truth.assertThat(target.samples).isNotEmpty();
+    Truth.assertThat(target.samples.get(0).isKeyFrame).isTrue();
+    Truth.assertThat(target.samples.get(0).timestampUs).isEqualTo(90 * FRAME_DURATION_US);
+    for (Sample sample : target.samples) {
+      Truth.assertThat(sample.contentMatches).isTrue();
+    }
+  }
+
+  @Test
+  public void testSampleMetadataIsSizedByDuration() {
+    int capacityBytes = 64 * 1024 * 1024;
+    PreRollMediaMux largePreRoll = new PreRollMediaMux(3, 3000, capacityBytes);
+    // Three tracks for the pre-roll and one key frame interval, not one slot per 64 bytes.
+    Truth.assertThat(largePreRoll.getMaxSampleCount()).isEqualTo(3 * 5 * 250);
+    Truth.assertThat(largePreRoll.getCapacityBytes()).isEqualTo(capacityBytes);
+  }
+
+  @Test
+  public void testResetKeepsRingForNextPreRoll() {
+    writeFrames(0, 60);
+    Truth.assertThat(preRoll.attach(target)).isTrue();
+    target.releaseAll();
+    preRoll.reset();
+    Truth.assertThat(target.released).isTrue();
+    Truth.assertThat(preRoll.isStarted()).isFalse();
+    Truth.assertThat(preRoll.isAttached()).isFalse();
+    Truth.assertThat(preRoll.hasAllTracks()).isFalse();
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(0);
+    Truth.assertThat(preRoll.getDroppedSampleCount()).isEqualTo(0);
+    Truth.assertThat(preRoll.hasConfiguration(2, PRE_ROLL_MS, 1024 * 1024)).isTrue();
+
+    // The next pre-roll starts from scratch in the same ring.
+    Truth.assertThat(preRoll.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    videoTrack = preRoll.addTrack(MediaFormat.createVideoFormat("video/avc", 64, 64), videoEncoder);
+    audioTrack =
+        preRoll.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2), audioEncoder);
+    Truth.assertThat(preRoll.start()).isTrue();
+    writeFrames(60, 60);
+    FakeMux nextTarget = new FakeMux();
+    Truth.assertThat(preRoll.attach(nextTarget)).isTrue();
+    Truth.assertThat(nextTarget.samples.get(0).isKeyFrame).isTrue();
+    Truth.assertThat(nextTarget.samples.get(0).timestampUs).isEqualTo(60 * FRAME_DURATION_US);
+    for (Sample sample : nextTarget.samples) {
+      Truth.assertThat(sample.contentMatches).isTrue();
+    }
+  }
+
+  @Test
+  public void testSamplesBeforeFirstKeyFrameAreDropped() {
+    writeAudio(FRAME_DURATION_US);
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(0);
+    Truth.assertThat(preRoll.getDroppedSampleCount()).isEqualTo(1);
+    Truth.assertThat(audioEncoder.releasedIndices).hasSize(1);
+
+    writeVideo(0, false);
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(0);
+    writeVideo(FRAME_DURATION_US, true);
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(VIDEO_FRAME_BYTES);
+  }
+
+  @Test
+  public void testStopWithoutAttach() {
+    writeFrames(0, 10);
+    Truth.assertThat(preRoll.stop()).isTrue();
+    Truth.assertThat(preRoll.isStarted()).isFalse();
+    Truth.assertThat(preRoll.getBufferedBytes()).isEqualTo(0);
+    Truth.assertThat(preRoll.attach(target)).isFalse();
+    Truth.assertThat(preRoll.release()).isTrue();
+  }
+
+  private void writeFrames(int firstFrame, int frameCount) {
+    for (int i = firstFrame; i < firstFrame + frameCount; ++i) {
+      long timestampUs = i * FRAME_DURATION_US;
+      writeVideo(timestampUs, i % KEY_FRAME_INTERVAL == 0);
+      while (nextAudioUs <= timestampUs) {
+        writeAudio(nextAudioUs);
+        nextAudioUs += AUDIO_SAMPLE_US;
+      }
+    }
+  }
+
+  private void writeVideo(long timestampUs, boolean isKeyFrame) {
+    write(videoTrack, videoEncoder, timestampUs, VIDEO_FRAME_BYTES, isKeyFrame);
+  }
+
+  private void writeAudio(long timestampUs) {
+    write(audioTrack, audioEncoder, timestampUs, AUDIO_SAMPLE_BYTES, false);
+  }
+
+  private void write(
+      int trackIndex, FakeEncoder encoder, long timestampUs, int size, boolean isKeyFrame) {
+    int bufferIndex = nextBufferIndex++;
+    encoder.fill(bufferIndex, timestampUs, size);
+    BufferInfo info = new BufferInfo();
+    // Samples start at a non-zero offset in the codec buffer.
+    info.set(8, size, timestampUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    Truth.assertThat(preRoll.writeSampleDataAsync(trackIndex, bufferIndex, info)).isTrue();
+  }
+
+  // The content of a sample, derived from its timestamp.
+  private static byte contentByte(long timestampUs, int position) {
+    return (byte) (timestampUs * 31 + position);
+  }
+
+  private static final class Sample {
+    final int trackIndex;
+    final int bufferIndex;
+    final long timestampUs;
+    final boolean isKeyFrame;
+    final boolean contentMatches;
+
+    Sample(int trackIndex, int bufferIndex, BufferInfo info, ByteBuffer buffer) {
+      this.trackIndex = trackIndex;
+      this.bufferIndex = bufferIndex;
+      this.timestampUs = info.presentationTimeUs;
+      this.isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+      boolean matches = buffer != null;
+      for (int i = 0; matches && i < info.size; ++i) {
+        matches = buffer.get(info.offset + i) == contentByte(timestampUs, i);
+      }
+      this.contentMatches = matches;
+    }
+  }
+
+  /** Encoder with one buffer per index whose content is derived from the sample timestamp. */
+  private static final class FakeEncoder implements MediaEncoder {
+    final List<Integer> releasedIndices = new ArrayList<>();
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    int bufferCount;
+
+    void fill(int index, long timestampUs, int size) {
+      while (buffers.size() <= index) {
+        buffers.add(null);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size + 16);
+      for (int i = 0; i < size; ++i) {
+        buffer.put(8 + i, contentByte(timestampUs, i));
+      }
+      buffers.set(index, buffer);
+      bufferCount++;
+    }
+
+    @Override
+    public String getName() {
+      return "FakeEncoder";
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public boolean signalEndOfStream(EndOfStreamCallback callback) {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      return true;
+    }
+
+    @Override
+    public int getTargetBitrate() {
+      return 0;
+    }
+
+    @Override
+    public void setTargetBitrate(int bitrate) {}
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+      return buffers.get(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+      Truth.assertThat(releasedIndices).doesNotContain(index);
+      releasedIndices.add(index);
+    }
+  }
+
+  /** Muxer that records the samples and holds their buffers until released. */
+  private static final class FakeMux implements MediaMux {
+    final List<Sample> samples = new ArrayList<>();
+    final List<MediaEncoder> encoders = new ArrayList<>();
+    final List<int[]> heldBuffers = new ArrayList<>();
+    int trackCount;
+    boolean released;
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public int addTrack(MediaFormat format, MediaEncoder encoder) {
+      encoders.add(encoder);
+      return trackCount++;
+    }
+
+    @Override
+    public boolean hasAllTracks() {
+      return trackCount == 2;
+    }
+
+    @Override
+    public int prepare() {
+      return MediaConstants.STATUS_SUCCESS;
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      released = true;
+      return true;
+    }
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isStarted() {
+      return true;
+    }
+
+    @Override
+    public boolean writeSampleDataAsync(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+      ByteBuffer buffer = encoders.get(trackIndex).getOutputBuffer(bufferIndex);
+      samples.add(new Sample(trackIndex, bufferIndex, bufferInfo, buffer));
+      heldBuffers.add(new int[] {trackIndex, bufferIndex});
+      return true;
+    }
+
+    @Override
+    public void cleanupPartialResults() {}
+
+    @Override
+    public long getBytesWritten() {
+      return 0;
+    }
+
+    @Override
+    public int getOutputBufferUsed() {
+      return 0;
+    }
+
+    @Override
+    public Pair<Integer, Integer> getCurrentByteThroughput() {
+      return null;
+    }
+
+    @Override
+    public void setOutputBufferLimit(int bytes) {}
+
+    void releaseAll() {
+      for (int[] held : heldBuffers) {
+        encoders.get(held[0]).releaseOutputBuffer(held[1]);
+      }
+      heldBuffers.clear();
+    }
+  }
+}
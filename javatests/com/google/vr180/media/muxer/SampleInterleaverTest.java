@@ -0,0 +1,267 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec.BufferInfo;
+import com.google.common.truth.Truth;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Test for {@link SampleInterleaver} */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SampleInterleaverTest {
+  private static final int TRACK_COUNT = 3;
+  private static final int VIDEO_TRACK = 0;
+  private static final int AUDIO_TRACK = 1;
+  private static final int MOTION_TRACK = 2;
+  private static final long AUDIO_SAMPLE_US = 21_333;
+  private static final long MOTION_SAMPLE_US = 1_000;
+
+  private final RecordingOutput output = new RecordingOutput();
+  private final BufferInfo bufferInfo = new BufferInfo();
+  private int nextBufferIndex;
+
+  @Test
+  public void testWriteUntilVideoTimestamp() {
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, 16, 1000, SampleInterleaver.OVERFLOW_WRITE_OLDEST);
+    add(interleaver, AUDIO_TRACK, 100, 7);
+    add(interleaver, MOTION_TRACK, 200, 8);
+    add(interleaver, AUDIO_TRACK, 300, 9);
+
+    interleaver.writeUntil(200, output);
+    Truth.assertThat(output.written).hasSize(2);
+    Truth.assertThat(output.written.get(0).trackIndex).isEqualTo(AUDIO_TRACK);
+    Truth.assertThat(output.written.get(0).bufferIndex).isEqualTo(0);
+    Truth.assertThat(output.written.get(0).timestampUs).isEqualTo(100L);
+    Truth.assertThat(output.written.get(0).size).isEqualTo(7);
+    Truth.assertThat(output.written.get(1).trackIndex).isEqualTo(MOTION_TRACK);
+    Truth.assertThat(output.written.get(1).timestampUs).isEqualTo(200L);
+    Truth.assertThat(interleaver.size()).isEqualTo(1);
+
+    interleaver.writeUntil(300, output);
+    Truth.assertThat(output.written).hasSize(3);
+    Truth.assertThat(interleaver.size()).isEqualTo(0);
+    Truth.assertThat(output.dropped).isEmpty();
+    Truth.assertThat(interleaver.getMaxBacklog()).isEqualTo(3);
+    Truth.assertThat(interleaver.getOverflowCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMixedTracksKeepTimestampOrder() {
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, 16, 1000, SampleInterleaver.OVERFLOW_WRITE_OLDEST);
+    // Routes the samples like ChapteredFileMuxer: samples ahead of the video track, or behind
+    // buffered samples of their own track, go through the interleaver.
+    long[] videoTimestampUs = {0};
+    SampleMux mux =
+        (trackIndex, timestampUs) -> {
+          if (trackIndex == VIDEO_TRACK) {
+            output.written.add(new Sample(trackIndex, nextBufferIndex++, timestampUs));
+            videoTimestampUs[0] = timestampUs;
+            interleaver.writeUntil(timestampUs, output);
+          } else if (timestampUs > videoTimestampUs[0] || interleaver.size(trackIndex) > 0) {
+            add(interleaver, trackIndex, timestampUs, 1);
+          } else {
+            output.written.add(new Sample(trackIndex, nextBufferIndex++, timestampUs));
+          }
+        };
+
+    mux.write(VIDEO_TRACK, 0);
+    mux.write(AUDIO_TRACK, 100);
+    // A motion sample far ahead of the video track is buffered in front of older audio.
+    mux.write(MOTION_TRACK, 500);
+    mux.write(AUDIO_TRACK, 300);
+    Truth.assertThat(interleaver.size(AUDIO_TRACK)).isEqualTo(2);
+    Truth.assertThat(interleaver.size(MOTION_TRACK)).isEqualTo(1);
+
+    // The audio behind the motion sample is written with the video, not held back by it.
+    mux.write(VIDEO_TRACK, 350);
+    Truth.assertThat(interleaver.size(AUDIO_TRACK)).isEqualTo(0);
+    Truth.assertThat(interleaver.size(MOTION_TRACK)).isEqualTo(1);
+    mux.write(AUDIO_TRACK, 320);
+    mux.write(AUDIO_TRACK, 400);
+    mux.write(MOTION_TRACK, 600);
+    mux.write(VIDEO_TRACK, 700);
+
+    Truth.assertThat(interleaver.size()).isEqualTo(0);
+    long[] expectedTimestamps = {0, 350, 100, 300, 320, 700, 400, 500, 600};
+    int[] expectedTracks = {
+      VIDEO_TRACK, VIDEO_TRACK, AUDIO_TRACK, AUDIO_TRACK, AUDIO_TRACK, VIDEO_TRACK, AUDIO_TRACK,
+      MOTION_TRACK, MOTION_TRACK
+    };
+    Truth.assertThat(output.written).hasSize(expectedTimestamps.length);
+    for (int i = 0; i < expectedTimestamps.length; ++i) {
+      Truth.assertThat(output.written.get(i).trackIndex).isEqualTo(expectedTracks[i]);
+      Truth.assertThat(output.written.get(i).timestampUs).isEqualTo(expectedTimestamps[i]);
+    }
+    assertInOrder(output.written);
+  }
+
+  @Test
+  public void testFullTrackWritesOlderSamplesOfOtherTracksFirst() {
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, 2, 1000, SampleInterleaver.OVERFLOW_WRITE_OLDEST);
+    add(interleaver, AUDIO_TRACK, 100, 1);
+    add(interleaver, MOTION_TRACK, 200, 1);
+    add(interleaver, MOTION_TRACK, 300, 1);
+    add(interleaver, MOTION_TRACK, 400, 1);
+
+    Truth.assertThat(output.written).hasSize(2);
+    Truth.assertThat(output.written.get(0).trackIndex).isEqualTo(AUDIO_TRACK);
+    Truth.assertThat(output.written.get(1).timestampUs).isEqualTo(200L);
+    Truth.assertThat(interleaver.size()).isEqualTo(2);
+    Truth.assertThat(interleaver.getOverflowCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCapacityOverflowDropsOldest() {
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, 4, 1000, SampleInterleaver.OVERFLOW_DROP_OLDEST);
+    for (int i = 0; i < 6; ++i) {
+      add(interleaver, MOTION_TRACK, i, 1);
+    }
+    Truth.assertThat(interleaver.size()).isEqualTo(4);
+    Truth.assertThat(output.written).isEmpty();
+    Truth.assertThat(output.dropped).hasSize(2);
+    Truth.assertThat(output.dropped.get(0).timestampUs).isEqualTo(0L);
+    Truth.assertThat(output.dropped.get(1).timestampUs).isEqualTo(1L);
+    Truth.assertThat(interleaver.getOverflowCount()).isEqualTo(2);
+
+    // The ring wraps around and keeps the arrival order.
+    interleaver.writeUntil(Long.MAX_VALUE, output);
+    Truth.assertThat(output.written).hasSize(4);
+    for (int i = 0; i < 4; ++i) {
+      Truth.assertThat(output.written.get(i).timestampUs).isEqualTo((long) i + 2);
+    }
+  }
+
+  @Test
+  public void testWindowOverflowWritesOldest() {
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, 1024, 10, SampleInterleaver.OVERFLOW_WRITE_OLDEST);
+    add(interleaver, AUDIO_TRACK, 0, 1);
+    add(interleaver, AUDIO_TRACK, 10_000, 1);
+    Truth.assertThat(output.written).isEmpty();
+
+    add(interleaver, AUDIO_TRACK, 10_001, 1);
+    Truth.assertThat(output.written).hasSize(1);
+    Truth.assertThat(output.written.get(0).timestampUs).isEqualTo(0L);
+    Truth.assertThat(output.dropped).isEmpty();
+    Truth.assertThat(interleaver.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void testStarvedVideoTrack() {
+    int windowMs = 100;
+    int capacity = 256;
+    SampleInterleaver interleaver =
+        new SampleInterleaver(TRACK_COUNT, capacity, windowMs, SampleInterleaver.OVERFLOW_DROP_OLDEST);
+
+    // Ten seconds of audio and 1kHz motion samples without any video sample.
+    long durationUs = 10_000_000;
+    long nextAudioUs = 0;
+    int sampleCount = 0;
+    for (long motionUs = 0; motionUs < durationUs; motionUs += MOTION_SAMPLE_US) {
+      if (nextAudioUs <= motionUs) {
+        add(interleaver, AUDIO_TRACK, nextAudioUs, 1);
+        nextAudioUs += AUDIO_SAMPLE_US;
+        sampleCount++;
+      }
+      add(interleaver, MOTION_TRACK, motionUs, 1);
+      sampleCount++;
+      Truth.assertThat(interleaver.size()).isAtMost(capacity);
+    }
+
+    // The backlog is bounded by the window, every sample is accounted for and the samples are
+    // released in order for each track.
+    Truth.assertThat(interleaver.getMaxBacklog()).isAtLeast(windowMs);
+    Truth.assertThat(interleaver.getMaxBacklog()).isLessThan(capacity);
+    Truth.assertThat(output.written).isEmpty();
+    Truth.assertThat(output.dropped.size() + interleaver.size()).isEqualTo(sampleCount);
+    Truth.assertThat(interleaver.getOverflowCount()).isEqualTo(output.dropped.size());
+    assertInOrder(output.dropped);
+
+    // Video resumes and everything up to its timestamp is written.
+    interleaver.writeUntil(durationUs, output);
+    Truth.assertThat(interleaver.size()).isEqualTo(0);
+    Truth.assertThat(output.written.size() + output.dropped.size()).isEqualTo(sampleCount);
+    assertInOrder(output.written);
+    // Only the most recent samples within the window were kept.
+    for (Sample sample : output.written) {
+      Truth.assertThat(sample.timestampUs)
+          .isAtLeast(durationUs - MOTION_SAMPLE_US - 1000L * windowMs);
+    }
+  }
+
+  private void add(SampleInterleaver interleaver, int trackIndex, long timestampUs, int size) {
+    bufferInfo.set(0, size, timestampUs, 0);
+    interleaver.add(trackIndex, nextBufferIndex++, bufferInfo, output);
+  }
+
+  private static void assertInOrder(List<Sample> samples) {
+    long[] lastTimestamps = {-1, -1, -1};
+    for (Sample sample : samples) {
+      Truth.assertThat(sample.timestampUs).isGreaterThan(lastTimestamps[sample.trackIndex]);
+      lastTimestamps[sample.trackIndex] = sample.timestampUs;
+    }
+  }
+
+  /** Writes a sample of a track. */
+  private interface SampleMux {
+    void write(int trackIndex, long timestampUs);
+  }
+
+  private static final class Sample {
+    final int trackIndex;
+    final int bufferIndex;
+    final int size;
+    final long timestampUs;
+
+    Sample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+      this.trackIndex = trackIndex;
+      this.bufferIndex = bufferIndex;
+      this.size = bufferInfo.size;
+      this.timestampUs = bufferInfo.presentationTimeUs;
+    }
+
+    Sample(int trackIndex, int bufferIndex, long timestampUs) {
+      this.trackIndex = trackIndex;
+      this.bufferIndex = bufferIndex;
+      this.size = 1;
+      this.timestampUs = timestampUs;
+    }
+  }
+
+  private static final class RecordingOutput implements SampleInterleaver.Output {
+    final List<Sample> written = new ArrayList<>();
+    final List<Sample> dropped = new ArrayList<>();
+
+    @Override
+    public void writeSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+      written.add(new Sample(trackIndex, bufferIndex, bufferInfo));
+    }
+
+    @Override
+    public void dropSample(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+      dropped.add(new Sample(trackIndex, bufferIndex, bufferInfo));
+    }
+  }
+}
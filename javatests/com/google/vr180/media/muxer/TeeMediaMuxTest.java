@@ -0,0 +1,442 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.util.Pair;
+import com.google.common.truth.Truth;
+import com.google.vr180.media.MediaConstants;
+import com.google.vr180.media.MediaEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Test for {@link TeeMediaMux} */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TeeMediaMuxTest {
+  private static final int FILE_CHILD = 0;
+  private static final int STREAM_CHILD = 1;
+  private static final int FRAME_COUNT = 120;
+  private static final int KEY_FRAME_INTERVAL = 30;
+  private static final long FRAME_DURATION_US = 33_333;
+  private static final int MAX_PENDING_SAMPLES = 4;
+
+  private final FakeEncoder videoEncoder = new FakeEncoder();
+  private final FakeEncoder motionEncoder = new FakeEncoder();
+  private final FakeMux fileMux = new FakeMux();
+  private final FakeMux streamMux = new FakeMux();
+  private TeeMediaMux tee;
+
+  @After
+  public void tearDown() {
+    if (tee != null) {
+      tee.release();
+    }
+  }
+
+  @Test
+  public void testBufferReleasedAfterSlowestChild() throws Exception {
+    streamMux.holdBuffers = true;
+    int videoTrack = createTee();
+
+    Truth.assertThat(tee.writeSampleDataAsync(videoTrack, 3, createInfo(0, true))).isTrue();
+    Truth.assertThat(fileMux.awaitSamples(1)).isTrue();
+    Truth.assertThat(streamMux.awaitSamples(1)).isTrue();
+    // The file child released its reference, but the stream child still holds the buffer.
+    Truth.assertThat(videoEncoder.releasedIndices).isEmpty();
+
+    streamMux.releaseHeldBuffers();
+    Truth.assertThat(videoEncoder.releasedIndices).containsExactly(3);
+    Truth.assertThat(streamMux.samples.get(0).data).isEqualTo(3);
+  }
+
+  @Test
+  public void testSlowStreamDropsWithoutStallingFile() throws Exception {
+    // The stream is stalled until the file has every frame.
+    CountDownLatch streamStall = new CountDownLatch(1);
+    streamMux.writeLatch = streamStall;
+    int videoTrack = createTee();
+
+    writeFrames(videoTrack);
+    Truth.assertThat(fileMux.awaitSamples(FRAME_COUNT)).isTrue();
+    Truth.assertThat(streamMux.samples).isEmpty();
+    streamStall.countDown();
+    Truth.assertThat(tee.stop()).isTrue();
+
+    // The file gets every frame, the stream drops frames and resumes on key frames.
+    Truth.assertThat(fileMux.samples).hasSize(FRAME_COUNT);
+    Truth.assertThat(streamMux.samples.size()).isLessThan(FRAME_COUNT);
+    Truth.assertThat(tee.getDroppedSampleCount(FILE_CHILD)).isEqualTo(0);
+    Truth.assertThat(tee.getDroppedSampleCount(STREAM_CHILD))
+        .isEqualTo(FRAME_COUNT - streamMux.samples.size());
+    assertDecodable(streamMux.samples);
+    // Every codec buffer went back to the encoder exactly once.
+    Truth.assertThat(videoEncoder.releasedIndices).hasSize(FRAME_COUNT);
+  }
+
+  @Test
+  public void testSlowFileNeverDrops() throws Exception {
+    fileMux.latencyMs = 2;
+    int videoTrack = createTee();
+
+    writeFrames(videoTrack);
+    Truth.assertThat(tee.stop()).isTrue();
+
+    Truth.assertThat(fileMux.samples).hasSize(FRAME_COUNT);
+    Truth.assertThat(streamMux.samples).hasSize(FRAME_COUNT);
+    Truth.assertThat(tee.getDroppedSampleCount(FILE_CHILD)).isEqualTo(0);
+    Truth.assertThat(videoEncoder.releasedIndices).hasSize(FRAME_COUNT);
+  }
+
+  @Test
+  public void testFailedStreamIsDetached() throws Exception {
+    streamMux.failAfter = 10;
+    AtomicInteger errors = new AtomicInteger();
+    int videoTrack = createTee();
+    tee.setErrorCallback(errorCode -> errors.incrementAndGet());
+
+    writeFrames(videoTrack);
+    Truth.assertThat(tee.stop()).isTrue();
+
+    Truth.assertThat(errors.get()).isEqualTo(0);
+    Truth.assertThat(fileMux.samples).hasSize(FRAME_COUNT);
+    Truth.assertThat(streamMux.samples.size()).isAtMost(10);
+    Truth.assertThat(videoEncoder.releasedIndices).hasSize(FRAME_COUNT);
+  }
+
+  @Test
+  public void testFileErrorIsReported() throws Exception {
+    fileMux.failAfter = 0;
+    AtomicInteger errors = new AtomicInteger();
+    int videoTrack = createTee();
+    tee.setErrorCallback(errorCode -> errors.incrementAndGet());
+
+    Truth.assertThat(tee.writeSampleDataAsync(videoTrack, 0, createInfo(0, true))).isTrue();
+    Truth.assertThat(tee.stop()).isTrue();
+    Truth.assertThat(errors.get()).isEqualTo(1);
+    Truth.assertThat(videoEncoder.releasedIndices).containsExactly(0);
+  }
+
+  @Test
+  public void testFailedChildOnlyReleasesItsOwnSample() throws Exception {
+    // The stream reads and releases each buffer before it fails.
+    CountDownLatch failure = new CountDownLatch(1);
+    streamMux.failAfter = 0;
+    streamMux.releaseBeforeFailure = failure;
+    int videoTrack = createTee();
+
+    Truth.assertThat(tee.writeSampleDataAsync(videoTrack, 0, createInfo(0, true))).isTrue();
+    Truth.assertThat(videoEncoder.awaitReleases(1)).isTrue();
+    // The codec reuses the buffer before the stream reports its failure.
+    videoEncoder.releasedIndices.clear();
+    Truth.assertThat(
+            tee.writeSampleDataAsync(videoTrack, 0, createInfo(FRAME_DURATION_US, false)))
+        .isTrue();
+    Truth.assertThat(fileMux.awaitSamples(2)).isTrue();
+    failure.countDown();
+    Truth.assertThat(tee.stop()).isTrue();
+
+    // The failure did not drop the stream's reference to the newer sample before it was read.
+    Truth.assertThat(streamMux.failedData).containsExactly(0, 0);
+    Truth.assertThat(videoEncoder.releasedIndices).containsExactly(0);
+  }
+
+  @Test
+  public void testMotionTrackOnlyWrittenToFile() throws Exception {
+    tee =
+        new TeeMediaMux(
+            Arrays.asList(fileMux, streamMux), new boolean[] {false, true}, MAX_PENDING_SAMPLES);
+    int motionTrack = tee.addTrack(createMotionFormat(), motionEncoder);
+    Truth.assertThat(motionTrack).isEqualTo(0);
+    Truth.assertThat(fileMux.trackCount).isEqualTo(1);
+    Truth.assertThat(streamMux.trackCount).isEqualTo(0);
+    Truth.assertThat(tee.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    Truth.assertThat(tee.start()).isTrue();
+
+    Truth.assertThat(tee.writeSampleDataAsync(motionTrack, 5, createInfo(0, false))).isTrue();
+    Truth.assertThat(tee.stop()).isTrue();
+    Truth.assertThat(fileMux.samples).hasSize(1);
+    Truth.assertThat(fileMux.samples.get(0).trackIndex).isEqualTo(0);
+    Truth.assertThat(streamMux.samples).isEmpty();
+    Truth.assertThat(motionEncoder.releasedIndices).containsExactly(5);
+  }
+
+  private int createTee() {
+    tee =
+        new TeeMediaMux(
+            Arrays.asList(fileMux, streamMux), new boolean[] {false, true}, MAX_PENDING_SAMPLES);
+    int videoTrack = tee.addTrack(MediaFormat.createVideoFormat("video/avc", 64, 64), videoEncoder);
+    Truth.assertThat(videoTrack).isEqualTo(0);
+    Truth.assertThat(tee.prepare()).isEqualTo(MediaConstants.STATUS_SUCCESS);
+    Truth.assertThat(tee.start()).isTrue();
+    return videoTrack;
+  }
+
+  // Writes the frames at the pace of a fast encoder that cycles through its buffers.
+  private void writeFrames(int videoTrack) throws InterruptedException {
+    for (int i = 0; i < FRAME_COUNT; ++i) {
+      BufferInfo info = createInfo(i * FRAME_DURATION_US, i % KEY_FRAME_INTERVAL == 0);
+      Truth.assertThat(tee.writeSampleDataAsync(videoTrack, i, info)).isTrue();
+      Thread.sleep(1);
+    }
+  }
+
+  private static BufferInfo createInfo(long timestampUs, boolean isKeyFrame) {
+    BufferInfo info = new BufferInfo();
+    info.set(0, 4, timestampUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    return info;
+  }
+
+  private static MediaFormat createMotionFormat() {
+    MediaFormat format = new MediaFormat();
+    format.setString(MediaFormat.KEY_MIME, "application/motion");
+    return format;
+  }
+
+  // Checks that every run of frames after a gap starts with a key frame.
+  private static void assertDecodable(List<Sample> samples) {
+    long lastTimestampUs = -FRAME_DURATION_US;
+    for (Sample sample : samples) {
+      if (sample.timestampUs != lastTimestampUs + FRAME_DURATION_US) {
+        Truth.assertThat(sample.isKeyFrame).isTrue();
+      }
+      lastTimestampUs = sample.timestampUs;
+    }
+  }
+
+  private static final class Sample {
+    final int trackIndex;
+    final long timestampUs;
+    final boolean isKeyFrame;
+    final int data;
+
+    Sample(int trackIndex, BufferInfo info, int data) {
+      this.trackIndex = trackIndex;
+      this.timestampUs = info.presentationTimeUs;
+      this.isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+      this.data = data;
+    }
+  }
+
+  /** Encoder that stores the buffer index in each buffer and records the released buffers. */
+  private static final class FakeEncoder implements MediaEncoder {
+    final List<Integer> releasedIndices = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public String getName() {
+      return "FakeEncoder";
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public boolean signalEndOfStream(EndOfStreamCallback callback) {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      return true;
+    }
+
+    @Override
+    public int getTargetBitrate() {
+      return 0;
+    }
+
+    @Override
+    public void setTargetBitrate(int bitrate) {}
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.putInt(0, index);
+      return buffer;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+      Truth.assertThat(releasedIndices).doesNotContain(index);
+      releasedIndices.add(index);
+    }
+
+    boolean awaitReleases(int count) throws InterruptedException {
+      for (int i = 0; i < 1000 && releasedIndices.size() < count; ++i) {
+        Thread.sleep(5);
+      }
+      return releasedIndices.size() >= count;
+    }
+  }
+
+  /** Muxer that reads each sample after an injected latency, like a network or disk write. */
+  private static final class FakeMux implements MediaMux {
+    final List<Sample> samples = Collections.synchronizedList(new ArrayList<>());
+    final List<MediaEncoder> encoders = new ArrayList<>();
+    final List<int[]> heldBuffers = new ArrayList<>();
+    // Data of the samples that failed, or -1 if their buffer was gone.
+    final List<Integer> failedData = Collections.synchronizedList(new ArrayList<>());
+    volatile int latencyMs;
+    // If set, each write waits for the latch before it reads its sample.
+    volatile CountDownLatch writeLatch;
+    volatile boolean holdBuffers;
+    volatile int failAfter = Integer.MAX_VALUE;
+    // If set, a failing write reads and releases its buffer, and then waits for the latch.
+    volatile CountDownLatch releaseBeforeFailure;
+    int trackCount;
+
+    @Override
+    public void setErrorCallback(ErrorCallback errorCallback) {}
+
+    @Override
+    public int addTrack(MediaFormat format, MediaEncoder encoder) {
+      encoders.add(encoder);
+      return trackCount++;
+    }
+
+    @Override
+    public boolean hasAllTracks() {
+      return true;
+    }
+
+    @Override
+    public int prepare() {
+      return MediaConstants.STATUS_SUCCESS;
+    }
+
+    @Override
+    public boolean start() {
+      return true;
+    }
+
+    @Override
+    public boolean release() {
+      return true;
+    }
+
+    @Override
+    public boolean stop() {
+      return true;
+    }
+
+    @Override
+    public boolean isStarted() {
+      return true;
+    }
+
+    @Override
+    public boolean writeSampleDataAsync(int trackIndex, int bufferIndex, BufferInfo bufferInfo) {
+      if (samples.size() >= failAfter) {
+        CountDownLatch latch = releaseBeforeFailure;
+        if (latch != null) {
+          MediaEncoder encoder = encoders.get(trackIndex);
+          ByteBuffer buffer = encoder.getOutputBuffer(bufferIndex);
+          failedData.add(buffer != null ? buffer.getInt(0) : -1);
+          encoder.releaseOutputBuffer(bufferIndex);
+          try {
+            latch.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return false;
+      }
+      try {
+        CountDownLatch latch = writeLatch;
+        if (latch != null) {
+          latch.await();
+        }
+        Thread.sleep(latencyMs);
+      } catch (InterruptedException e) {
+        return false;
+      }
+      MediaEncoder encoder = encoders.get(trackIndex);
+      int data = encoder.getOutputBuffer(bufferIndex).getInt(0);
+      samples.add(new Sample(trackIndex, bufferInfo, data));
+      if (holdBuffers) {
+        synchronized (heldBuffers) {
+          heldBuffers.add(new int[] {trackIndex, bufferIndex});
+        }
+      } else {
+        encoder.releaseOutputBuffer(bufferIndex);
+      }
+      return true;
+    }
+
+    @Override
+    public void cleanupPartialResults() {}
+
+    @Override
+    public long getBytesWritten() {
+      return 0;
+    }
+
+    @Override
+    public int getOutputBufferUsed() {
+      return 0;
+    }
+
+    @Override
+    public Pair<Integer, Integer> getCurrentByteThroughput() {
+      return null;
+    }
+
+    @Override
+    public void setOutputBufferLimit(int bytes) {}
+
+    boolean awaitSamples(int count) throws InterruptedException {
+      for (int i = 0; i < 1000 && samples.size() < count; ++i) {
+        Thread.sleep(5);
+      }
+      return samples.size() >= count;
+    }
+
+    void releaseHeldBuffers() {
+      synchronized (heldBuffers) {
+        for (int[] held : heldBuffers) {
+          encoders.get(held[0]).releaseOutputBuffer(held[1]);
+        }
+        heldBuffers.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.vr180.media.photo;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import android.hardware.camera2.CaptureResult;
+import android.os.Build;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ExifWriterTest {
+  private static final int WIDTH = 2880;
+  private static final int HEIGHT = 2880;
+  private static final String DATETIME = "2018:10:17 13:45:06";
+
+  @Test
+  public void testSegmentWithoutCaptureResult() {
+    byte[] segment = ExifWriter.createExifSegment(null, 0, WIDTH, HEIGHT, getDate());
+
+    ExifSegment exif = new ExifSegment(segment);
+    assertThat(exif.getLong(exif.ifd0, ExifSegmentBuilder.TAG_IMAGE_WIDTH)).isEqualTo((long) WIDTH);
+    assertThat(exif.getLong(exif.ifd0, ExifSegmentBuilder.TAG_IMAGE_LENGTH))
+        .isEqualTo((long) HEIGHT);
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_MAKE))
+        .isEqualTo(Build.MANUFACTURER);
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_MODEL)).isEqualTo(Build.MODEL);
+    assertThat(exif.getShort(exif.ifd0, ExifSegmentBuilder.TAG_ORIENTATION)).isEqualTo(1);
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_DATETIME)).isEqualTo(DATETIME);
+    assertThat(exif.getAscii(exif.exifIfd, ExifSegmentBuilder.TAG_DATETIME_ORIGINAL))
+        .isEqualTo(DATETIME);
+    assertThat(exif.getAscii(exif.exifIfd, ExifSegmentBuilder.TAG_DATETIME_DIGITIZED))
+        .isEqualTo(DATETIME);
+    assertThat(exif.getBytes(exif.exifIfd, ExifSegmentBuilder.TAG_EXIF_VERSION))
+        .isEqualTo("0230".getBytes(StandardCharsets.US_ASCII));
+    assertThat(exif.getLong(exif.exifIfd, ExifSegmentBuilder.TAG_PIXEL_X_DIMENSION))
+        .isEqualTo((long) WIDTH);
+    assertThat(exif.getLong(exif.exifIfd, ExifSegmentBuilder.TAG_PIXEL_Y_DIMENSION))
+        .isEqualTo((long) HEIGHT);
+    // Without a capture result or aperture, the exposure is unknown.
+    assertThat(exif.exifIfd.containsKey(ExifSegmentBuilder.TAG_EXPOSURE_TIME)).isFalse();
+    assertThat(exif.exifIfd.containsKey(ExifSegmentBuilder.TAG_F_NUMBER)).isFalse();
+  }
+
+  @Test
+  public void testSegmentWithCaptureResult() {
+    CaptureResult result = Mockito.mock(CaptureResult.class);
+    Mockito.when(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)).thenReturn(10_000_000L);
+    Mockito.when(result.get(CaptureResult.SENSOR_SENSITIVITY)).thenReturn(400);
+    Mockito.when(result.get(CaptureResult.LENS_FOCAL_LENGTH)).thenReturn(1.8f);
+    Mockito.when(result.get(CaptureResult.FLASH_STATE))
+        .thenReturn(CaptureResult.FLASH_STATE_FIRED);
+    Mockito.when(result.get(CaptureResult.CONTROL_AE_MODE))
+        .thenReturn(CaptureResult.CONTROL_AE_MODE_OFF);
+    Mockito.when(result.get(CaptureResult.CONTROL_AWB_MODE)).thenReturn(1);
+
+    byte[] segment = ExifWriter.createExifSegment(result, 2.0f, WIDTH, HEIGHT, getDate());
+
+    ExifSegment exif = new ExifSegment(segment);
+    assertThat(exif.getRational(exif.exifIfd, ExifSegmentBuilder.TAG_EXPOSURE_TIME))
+        .isEqualTo(0.01);
+    assertThat(exif.getShort(exif.exifIfd, ExifSegmentBuilder.TAG_ISO_SPEED_RATINGS))
+        .isEqualTo(400);
+    assertThat(exif.getRational(exif.exifIfd, ExifSegmentBuilder.TAG_FOCAL_LENGTH))
+        .isEqualTo(1.8);
+    assertThat(exif.getRational(exif.exifIfd, ExifSegmentBuilder.TAG_F_NUMBER)).isEqualTo(2.0);
+    // The APEX value of f/2.
+    assertThat(exif.getRational(exif.exifIfd, ExifSegmentBuilder.TAG_APERTURE_VALUE))
+        .isEqualTo(2.0);
+    assertThat(exif.getShort(exif.exifIfd, ExifSegmentBuilder.TAG_FLASH)).isEqualTo(1);
+    // Manual exposure and auto white balance.
+    assertThat(exif.getShort(exif.exifIfd, ExifSegmentBuilder.TAG_EXPOSURE_MODE)).isEqualTo(1);
+    assertThat(exif.getShort(exif.exifIfd, ExifSegmentBuilder.TAG_WHITE_BALANCE)).isEqualTo(0);
+  }
+
+  @Test
+  public void testValuesAreWordAligned() {
+    byte[] segment =
+        new ExifSegmentBuilder()
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_MAKE, "Odd")
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_MODEL, "Model")
+            .putAscii(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_DATETIME, DATETIME)
+            .putRational(ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_F_NUMBER, 18, 10)
+            .build();
+
+    ExifSegment exif = new ExifSegment(segment);
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_MAKE)).isEqualTo("Odd");
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_MODEL)).isEqualTo("Model");
+    assertThat(exif.getAscii(exif.ifd0, ExifSegmentBuilder.TAG_DATETIME)).isEqualTo(DATETIME);
+    assertThat(exif.getRational(exif.exifIfd, ExifSegmentBuilder.TAG_F_NUMBER)).isEqualTo(1.8);
+    for (int offset : exif.valueOffsets) {
+      assertThat(offset % 2).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testSegmentWithoutExifIfd() {
+    byte[] segment =
+        new ExifSegmentBuilder()
+            .putShort(ExifSegmentBuilder.IFD_0, ExifSegmentBuilder.TAG_ORIENTATION, 1)
+            .build();
+
+    ExifSegment exif = new ExifSegment(segment);
+    assertThat(exif.ifd0.keySet()).containsExactly(ExifSegmentBuilder.TAG_ORIENTATION);
+    assertThat(exif.exifIfd).isEmpty();
+  }
+
+  @Test
+  public void testTooLargeSegmentThrows() {
+    byte[] value = new byte[0x10000];
+    ExifSegmentBuilder builder =
+        new ExifSegmentBuilder()
+            .putUndefined(ExifSegmentBuilder.IFD_EXIF, ExifSegmentBuilder.TAG_EXIF_VERSION, value);
+    try {
+      builder.build();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // Expected.
+    }
+  }
+
+  private static Date getDate() {
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(2018, Calendar.OCTOBER, 17, 13, 45, 6);
+    return calendar.getTime();
+  }
+
+  /** Parses an APP1 segment with EXIF data, as a photo viewer would. */
+  private static class ExifSegment {
+    /** An IFD entry with its value, or the offset of its value. */
+    private static class Entry {
+      final int type;
+      final int count;
+      final ByteBuffer value;
+
+      Entry(int type, int count, ByteBuffer value) {
+        this.type = type;
+        this.count = count;
+        this.value = value;
+      }
+    }
+
+    final Map<Integer, Entry> ifd0 = new HashMap<>();
+    final Map<Integer, Entry> exifIfd = new HashMap<>();
+    final List<Integer> valueOffsets = new ArrayList<>();
+    private final ByteBuffer tiff;
+
+    ExifSegment(byte[] segment) {
+      ByteBuffer buffer = ByteBuffer.wrap(segment).order(ByteOrder.BIG_ENDIAN);
+      assertThat(buffer.getShort() & 0xffff).isEqualTo(ExifSegmentBuilder.APP1_MARKER);
+      assertThat(buffer.getShort() & 0xffff).isEqualTo(segment.length - 2);
+      byte[] header = new byte[6];
+      buffer.get(header);
+      assertThat(header).isEqualTo(ExifSegmentBuilder.EXIF_HEADER);
+      tiff = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+      assertThat((int) tiff.get()).isEqualTo((int) 'M');
+      assertThat((int) tiff.get()).isEqualTo((int) 'M');
+      assertThat((int) tiff.getShort()).isEqualTo(42);
+      readIfd(tiff.getInt(), ifd0);
+      Entry pointer = ifd0.get(ExifSegmentBuilder.TAG_EXIF_IFD_POINTER);
+      if (pointer != null) {
+        assertThat(pointer.type).isEqualTo(ExifSegmentBuilder.TYPE_LONG);
+        readIfd(pointer.value.getInt(0), exifIfd);
+      }
+    }
+
+    String getAscii(Map<Integer, Entry> ifd, int tag) {
+      byte[] bytes = getValue(ifd, tag, ExifSegmentBuilder.TYPE_ASCII);
+      assertThat((int) bytes[bytes.length - 1]).isEqualTo(0);
+      return new String(bytes, 0, bytes.length - 1, StandardCharsets.US_ASCII);
+    }
+
+    byte[] getBytes(Map<Integer, Entry> ifd, int tag) {
+      return getValue(ifd, tag, ExifSegmentBuilder.TYPE_UNDEFINED);
+    }
+
+    int getShort(Map<Integer, Entry> ifd, int tag) {
+      return ByteBuffer.wrap(getValue(ifd, tag, ExifSegmentBuilder.TYPE_SHORT)).getShort()
+          & 0xffff;
+    }
+
+    long getLong(Map<Integer, Entry> ifd, int tag) {
+      return ByteBuffer.wrap(getValue(ifd, tag, ExifSegmentBuilder.TYPE_LONG)).getInt()
+          & 0xffffffffL;
+    }
+
+    double getRational(Map<Integer, Entry> ifd, int tag) {
+      ByteBuffer value = ByteBuffer.wrap(getValue(ifd, tag, ExifSegmentBuilder.TYPE_RATIONAL));
+      return (double) (value.getInt() & 0xffffffffL) / (value.getInt() & 0xffffffffL);
+    }
+
+    private byte[] getValue(Map<Integer, Entry> ifd, int tag, int type) {
+      Entry entry = ifd.get(tag);
+      assertThat(entry).isNotNull();
+      assertThat(entry.type).isEqualTo(type);
+      int size = entry.count * getTypeSize(type);
+      ByteBuffer value = entry.value;
+      if (size > 4) {
+        value = (ByteBuffer) tiff.duplicate().position(entry.value.getInt(0));
+      }
+      byte[] bytes = new byte[size];
+      value.duplicate().get(bytes);
+      return bytes;
+    }
+
+    private void readIfd(int offset, Map<Integer, Entry> ifd) {
+      ByteBuffer buffer = (ByteBuffer) tiff.duplicate().position(offset);
+      int count = buffer.getShort() & 0xffff;
+      int previousTag = -1;
+      for (int i = 0; i < count; i++) {
+        int tag = buffer.getShort() & 0xffff;
+        // Tags are sorted.
+        assertThat(tag).isGreaterThan(previousTag);
+        previousTag = tag;
+        int type = buffer.getShort();
+        int entryCount = buffer.getInt();
+        ByteBuffer value = (ByteBuffer) buffer.slice().limit(4);
+        if (entryCount * getTypeSize(type) > 4) {
+          valueOffsets.add(value.getInt(0));
+          assertThat(value.getInt(0) + entryCount * getTypeSize(type))
+              .isAtMost(tiff.limit());
+        }
+        ifd.put(tag, new Entry(type, entryCount, value));
+        buffer.position(buffer.position() + 4);
+      }
+      assertThat(buffer.getInt()).isEqualTo(0);
+    }
+
+    private static int getTypeSize(int type) {
+      switch (type) {
+        case ExifSegmentBuilder.TYPE_SHORT:
+          return 2;
+        case ExifSegmentBuilder.TYPE_LONG:
+          return 4;
+        case ExifSegmentBuilder.TYPE_RATIONAL:
+          return 8;
+        default:
+          return 1;
+      }
+    }
+  }
+}